@@ -0,0 +1,97 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections.benchmarks;
+
+import com.github.sarnowski.collections.ClusteredCollections;
+import com.github.sarnowski.collections.Serializers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local operations of a replicated list on a single member. Writes include
+ * encoding and sending the update.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark {
+
+    @Param({"1000", "100000"})
+    private int size;
+
+    private Members members;
+    private List<Integer> list;
+    private int index;
+
+    @Setup
+    public void setUp() throws Exception {
+        members = new Members();
+        list = ClusteredCollections.newReplicatedClusteredList(members.join(), "list", Serializers.integerSerializer());
+        for (int n = 0; n < size; n++) {
+            list.add(n);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        members.close();
+    }
+
+    private int nextIndex() {
+        index = index + 1 == size ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public Integer get() {
+        return list.get(nextIndex());
+    }
+
+    @Benchmark
+    public Integer set() {
+        final int position = nextIndex();
+        return list.set(position, position);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long iterate() {
+        long sum = 0;
+        for (Integer element: list) {
+            sum += element;
+        }
+        return sum;
+    }
+}
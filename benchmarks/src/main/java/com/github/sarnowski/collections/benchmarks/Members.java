@@ -0,0 +1,115 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections.benchmarks;
+
+import com.github.sarnowski.collections.ClusterContext;
+import com.github.sarnowski.collections.ClusterUpdateCallback;
+import com.github.sarnowski.collections.Clustered;
+import org.jgroups.ChannelException;
+import org.jgroups.JChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts cluster members within the benchmark JVM. Every instance uses its
+ * own cluster name, so that members of different trials never see each
+ * other.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+final class Members {
+
+    private static final String STACK = "/loopback.xml";
+    private static final AtomicInteger CLUSTERS = new AtomicInteger();
+
+    /**
+     * Maximum time to wait for the replication of updates.
+     */
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    private final String clusterName = "benchmark-" + CLUSTERS.incrementAndGet();
+    private final List<ClusterContext> contexts = new ArrayList<ClusterContext>();
+
+    /**
+     * Starts a new member on the in-process protocol stack.
+     *
+     * @return the context of the new member
+     * @throws ChannelException if the member cannot join
+     */
+    ClusterContext join() throws ChannelException {
+        final ClusterContext context = new ClusterContext(clusterName, new JChannel(Members.class.getResource(STACK)));
+        contexts.add(context);
+        return context;
+    }
+
+    /**
+     * Stops the latest member.
+     */
+    void leave() {
+        contexts.remove(contexts.size() - 1).close();
+    }
+
+    /**
+     * Stops all members, the latest first.
+     */
+    void close() {
+        for (int n = contexts.size() - 1; n >= 0; n--) {
+            contexts.get(n).close();
+        }
+        contexts.clear();
+    }
+
+    /**
+     * Counts the updates a collection receives from other members.
+     *
+     * @param collection the receiving collection
+     * @return the counter
+     */
+    static AtomicLong count(Clustered collection) {
+        final AtomicLong counter = new AtomicLong();
+        collection.setUpdateCallback(new ClusterUpdateCallback() {
+            @Override
+            public void clusterUpdated() {
+                counter.incrementAndGet();
+            }
+        });
+        return counter;
+    }
+
+    /**
+     * Waits until all counters reached the expected number of updates.
+     *
+     * @param counters the counters of the receiving collections
+     * @param expected the expected number of updates
+     */
+    static void await(List<AtomicLong> counters, long expected) {
+        final long deadline = System.nanoTime() + TIMEOUT;
+        for (AtomicLong counter: counters) {
+            while (counter.get() < expected) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new IllegalStateException("updates were not replicated in time: " +
+                            counter.get() + " of " + expected);
+                }
+                Thread.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections.benchmarks;
+
+import com.github.sarnowski.collections.ClusteredCollections;
+import com.github.sarnowski.collections.ClusteredMap;
+import com.github.sarnowski.collections.Serializers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end replication between in-process members: one member writes, the
+ * operation completes once all other members applied the update.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplicationBenchmark {
+
+    /**
+     * Number of updates in flight per throughput invocation.
+     */
+    private static final int BATCH = 1000;
+
+    @Param({"2", "3", "5"})
+    private int members;
+
+    @Param({"16", "1024"})
+    private int valueSize;
+
+    private Members cluster;
+    private ClusteredMap<Integer, String> map;
+    private final List<AtomicLong> counters = new ArrayList<AtomicLong>();
+    private String value;
+    private long updates;
+
+    @Setup
+    public void setUp() throws Exception {
+        cluster = new Members();
+        map = ClusteredCollections.newReplicatedClusteredMap(cluster.join(), "map",
+                Serializers.integerSerializer(), Serializers.stringSerializer());
+        for (int n = 1; n < members; n++) {
+            final ClusteredMap<Integer, String> replica = ClusteredCollections.newReplicatedClusteredMap(
+                    cluster.join(), "map", Serializers.integerSerializer(), Serializers.stringSerializer());
+            counters.add(Members.count(replica));
+        }
+        final StringBuilder builder = new StringBuilder(valueSize);
+        for (int n = 0; n < valueSize; n++) {
+            builder.append((char) ('a' + n % 26));
+        }
+        value = builder.toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        cluster.close();
+        counters.clear();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() {
+        map.put((int) (updates & 0xFFFF), value);
+        Members.await(counters, ++updates);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput() {
+        for (int n = 0; n < BATCH; n++) {
+            map.put((int) (updates++ & 0xFFFF), value);
+        }
+        Members.await(counters, updates);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections.benchmarks;
+
+import com.github.sarnowski.collections.ClusterContext;
+import com.github.sarnowski.collections.ClusteredCollections;
+import com.github.sarnowski.collections.ClusteredMap;
+import com.github.sarnowski.collections.Serializers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for a new member to fetch the complete state of a replicated map.
+ * The member connects before the measurement, so only the streamed state
+ * transfer gets timed. All sizes exceed the default update log of 1000
+ * messages, which would otherwise replay the logged updates instead.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StateTransferBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    private int size;
+
+    private Members cluster;
+    private ClusterContext joining;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        cluster = new Members();
+        final Map<Integer, Integer> map = ClusteredCollections.newReplicatedClusteredMap(cluster.join(), "map",
+                Serializers.integerSerializer(), Serializers.integerSerializer());
+        for (int n = 0; n < size; n++) {
+            map.put(n, n);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cluster.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void join() throws Exception {
+        joining = cluster.join();
+    }
+
+    @TearDown(Level.Invocation)
+    public void leave() {
+        cluster.leave();
+    }
+
+    @Benchmark
+    public int fetchState() throws Exception {
+        final ClusteredMap<Integer, Integer> map = ClusteredCollections.newReplicatedClusteredMap(joining, "map",
+                Serializers.integerSerializer(), Serializers.integerSerializer());
+        return map.size();
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Defines the wire format of the updates and states a {@link ClusterManager}
+ * exchanges with the cluster. Every {@link ClusterManaged} implementation
+ * ships its own codec, which delegates the element encoding to the
+ * user supplied {@link Serializer}s.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterManager
+ * @param <A> action identifier
+ * @param <P> payload
+ * @param <S> state
+ */
+interface ClusterCodec<A, P, S> {
+
+    /**
+     * Writes a single update.
+     *
+     * @param action the update action
+     * @param payload the update payload
+     * @param out the target
+     * @throws IOException if writing fails
+     */
+    void writeUpdate(A action, P payload, DataOutput out) throws IOException;
+
+    /**
+     * Reads a single update written by {@link #writeUpdate(Object, Object, DataOutput)}.
+     *
+     * @param in the source
+     * @return the update
+     * @throws IOException if reading fails
+     */
+    ClusterUpdate<A, P> readUpdate(DataInput in) throws IOException;
+
+    /**
+     * Writes a complete state.
+     *
+     * @param state the state
+     * @param out the target
+     * @throws IOException if writing fails
+     */
+    void writeState(S state, DataOutput out) throws IOException;
+
+    /**
+     * Reads a complete state written by {@link #writeState(Object, DataOutput)}.
+     *
+     * @param in the source
+     * @return the state
+     * @throws IOException if reading fails
+     */
+    S readState(DataInput in) throws IOException;
+
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.Serializable;
+
+/**
+ * Computes the new value of a key for
+ * {@link ClusteredConcurrentMap#computeReplicated(Object, ClusterComputation)}. With
+ * {@link ConsistencyMode#TOTAL_ORDER} every member applies the computation
+ * itself, which is why it has to be serializable and deterministic.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public interface ClusterComputation<K, V> extends Serializable {
+
+    /**
+     * @param key the key
+     * @param value the current value, {@code null} if there is none
+     * @return the new value, {@code null} to remove the key
+     */
+    V compute(K key, V value);
+
+}
@@ -0,0 +1,517 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes how a clustered collection talks to the cluster. A fresh instance
+ * describes the default behaviour; the configuration is read once when the
+ * collection is created.
+ *
+ * <p>
+ * <strong>Example:</strong>
+ * <pre>
+ * ClusterConfiguration configuration = new ClusterConfiguration();
+ * configuration.setBatchSize(1000);
+ * configuration.setBatchDelay(500, TimeUnit.MICROSECONDS);
+ * </pre>
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusteredCollections
+ */
+public final class ClusterConfiguration {
+
+    private int batchSize = 1;
+    private long batchDelay = TimeUnit.MILLISECONDS.toNanos(1);
+    private int stateChunkSize = 10000;
+    private long stateTimeout = TimeUnit.SECONDS.toMillis(5);
+    private int updateLogSize = 1000;
+    private int backupCount = 1;
+    private long requestTimeout = TimeUnit.SECONDS.toMillis(5);
+    private int nearCacheSize = 0;
+    private long nearCacheTimeToLive = 0;
+    private ConsistencyMode consistencyMode = ConsistencyMode.ASYNC;
+    private long tombstoneRetention = TimeUnit.HOURS.toMillis(1);
+    private File persistenceDirectory = null;
+    private int snapshotInterval = 100000;
+    private int applyQueueSize = 0;
+    private int callbackQueueSize = 0;
+    private OverflowPolicy callbackOverflowPolicy = OverflowPolicy.BLOCK;
+    private ClusterMetricsListener metricsListener = null;
+    private boolean jmxEnabled = false;
+
+    /**
+     * The maximum number of updates which will be sent as one message.
+     *
+     * @return the batch size, 1 if batching is disabled
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Enables batching of updates if set to a value greater than 1. Updates
+     * are collected until either the batch size or the
+     * {@link #setBatchDelay(long, TimeUnit) batch delay} is reached and are
+     * then sent as a single message. Defaults to 1.
+     *
+     * @param batchSize the maximum number of updates per message
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The maximum time an update waits in a batch before it gets sent.
+     *
+     * @param unit the requested unit
+     * @return the batch delay
+     */
+    public long getBatchDelay(TimeUnit unit) {
+        return unit.convert(batchDelay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the maximum time an update waits in a batch before it gets sent.
+     * Only used if batching is enabled. Defaults to 1 millisecond.
+     *
+     * @param delay the maximum delay
+     * @param unit the unit of the delay
+     */
+    public void setBatchDelay(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay must not be negative");
+        }
+        this.batchDelay = unit.toNanos(delay);
+    }
+
+    /**
+     * The maximum number of elements per chunk of a streamed state transfer.
+     *
+     * @return the chunk size
+     */
+    public int getStateChunkSize() {
+        return stateChunkSize;
+    }
+
+    /**
+     * Sets the maximum number of elements per chunk of a streamed state
+     * transfer. Streaming requires {@code STREAMING_STATE_TRANSFER} in the
+     * protocol stack. Defaults to 10000.
+     *
+     * @param stateChunkSize the maximum number of elements per chunk
+     */
+    public void setStateChunkSize(int stateChunkSize) {
+        if (stateChunkSize < 1) {
+            throw new IllegalArgumentException("stateChunkSize must be positive");
+        }
+        this.stateChunkSize = stateChunkSize;
+    }
+
+    /**
+     * The maximum time to wait for the initial state.
+     *
+     * @param unit the requested unit
+     * @return the state timeout
+     */
+    public long getStateTimeout(TimeUnit unit) {
+        return unit.convert(stateTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the maximum time to wait for the initial state when joining the
+     * cluster. A value of 0 waits forever. Defaults to 5 seconds.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     */
+    public void setStateTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        this.stateTimeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * The number of recent update messages kept for rejoining members.
+     *
+     * @return the update log size, 0 if disabled
+     */
+    public int getUpdateLogSize() {
+        return updateLogSize;
+    }
+
+    /**
+     * Sets the number of recent update messages kept in memory. A member
+     * which rejoins the cluster, for example after a network partition,
+     * fetches only the updates it missed as long as they are still logged;
+     * otherwise it fetches the complete state. A value of 0 disables the log.
+     * Defaults to 1000.
+     *
+     * @param updateLogSize the maximum number of logged update messages
+     */
+    public void setUpdateLogSize(int updateLogSize) {
+        if (updateLogSize < 0) {
+            throw new IllegalArgumentException("updateLogSize must not be negative");
+        }
+        this.updateLogSize = updateLogSize;
+    }
+
+    /**
+     * The number of additional copies of every entry of a partitioned map.
+     *
+     * @return the number of backups
+     */
+    public int getBackupCount() {
+        return backupCount;
+    }
+
+    /**
+     * Sets the number of members which hold a copy of an entry of a
+     * partitioned map in addition to its owner. Entries survive as many
+     * simultaneous member failures. Defaults to 1.
+     *
+     * @param backupCount the number of backups
+     */
+    public void setBackupCount(int backupCount) {
+        if (backupCount < 0) {
+            throw new IllegalArgumentException("backupCount must not be negative");
+        }
+        this.backupCount = backupCount;
+    }
+
+    /**
+     * The maximum time to wait for the answer of another member.
+     *
+     * @param unit the requested unit
+     * @return the request timeout
+     */
+    public long getRequestTimeout(TimeUnit unit) {
+        return unit.convert(requestTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the maximum time to wait for the answer of another member, for
+     * example when reading a key of a partitioned map which is owned by
+     * another member, or for the acknowledgements of a synchronous update.
+     * Defaults to 5 seconds.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     */
+    public void setRequestTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.requestTimeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * How updates of a replicated collection are ordered and acknowledged.
+     *
+     * @return the consistency mode
+     */
+    public ConsistencyMode getConsistencyMode() {
+        return consistencyMode;
+    }
+
+    /**
+     * Sets how updates of a replicated collection are ordered and
+     * acknowledged, see {@link ConsistencyMode} for the cost of each mode.
+     * Partitioned maps always apply updates on the owner and ignore it.
+     * Defaults to {@link ConsistencyMode#ASYNC}.
+     *
+     * @param consistencyMode the consistency mode
+     */
+    public void setConsistencyMode(ConsistencyMode consistencyMode) {
+        if (consistencyMode == null) {
+            throw new IllegalArgumentException("consistencyMode must not be null");
+        }
+        this.consistencyMode = consistencyMode;
+    }
+
+    /**
+     * How long a convergent or partitioned map remembers removed keys.
+     *
+     * @param unit the requested unit
+     * @return the tombstone retention
+     */
+    public long getTombstoneRetention(TimeUnit unit) {
+        return unit.convert(tombstoneRetention, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets how long a convergent map remembers removed keys. A write which
+     * was made before a remove but arrives after the tombstone was purged,
+     * for example from a partition which was separated for longer, brings
+     * the key back. A partitioned map forgets removed keys on view changes
+     * already, it only needs them to drop outdated hand-overs. Defaults to 1 hour.
+     *
+     * @param retention the retention of removed keys
+     * @param unit the unit of the retention
+     */
+    public void setTombstoneRetention(long retention, TimeUnit unit) {
+        if (retention <= 0) {
+            throw new IllegalArgumentException("retention must be positive");
+        }
+        this.tombstoneRetention = unit.toMillis(retention);
+    }
+
+    /**
+     * The maximum number of values of other members a partitioned map keeps locally.
+     *
+     * @return the near cache size, 0 if disabled
+     */
+    public int getNearCacheSize() {
+        return nearCacheSize;
+    }
+
+    /**
+     * Enables the near cache of a partitioned map if set to a positive value.
+     * The near cache keeps up to this many values owned by other members, so
+     * that repeated reads stay local. The least recently used values are
+     * dropped first; the owners invalidate cached values when they change.
+     * Defaults to 0.
+     *
+     * @param nearCacheSize the maximum number of cached values
+     */
+    public void setNearCacheSize(int nearCacheSize) {
+        if (nearCacheSize < 0) {
+            throw new IllegalArgumentException("nearCacheSize must not be negative");
+        }
+        this.nearCacheSize = nearCacheSize;
+    }
+
+    /**
+     * The maximum time a value stays in the near cache.
+     *
+     * @param unit the requested unit
+     * @return the time to live, 0 if values never expire
+     */
+    public long getNearCacheTimeToLive(TimeUnit unit) {
+        return unit.convert(nearCacheTimeToLive, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the maximum time a value stays in the near cache. It bounds how
+     * long a value may be stale if an invalidation gets lost, for example
+     * while the owners change. A value of 0 keeps values until they are
+     * evicted or invalidated. Defaults to 0.
+     *
+     * @param timeToLive the maximum time to keep a value
+     * @param unit the unit of the time to live
+     */
+    public void setNearCacheTimeToLive(long timeToLive, TimeUnit unit) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("timeToLive must not be negative");
+        }
+        this.nearCacheTimeToLive = unit.toNanos(timeToLive);
+    }
+
+    /**
+     * The directory the collection is persisted to.
+     *
+     * @return the directory, {@code null} if persistence is disabled
+     */
+    public File getPersistenceDirectory() {
+        return persistenceDirectory;
+    }
+
+    /**
+     * Keeps a snapshot and a log of all updates in the given directory. A
+     * restarted member restores its state from it and only fetches the
+     * updates it missed from the other members; if the whole cluster was
+     * down, the state survives. Every collection keeps its files in a
+     * subdirectory named after it; the directory must not be shared between
+     * members. Defaults to {@code null}, which disables persistence.
+     *
+     * @param persistenceDirectory the directory
+     */
+    public void setPersistenceDirectory(File persistenceDirectory) {
+        this.persistenceDirectory = persistenceDirectory;
+    }
+
+    /**
+     * The number of logged updates after which a new snapshot is written.
+     *
+     * @return the snapshot interval
+     */
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Sets the number of logged update messages after which a new snapshot
+     * is written in the background. Larger intervals write less often but
+     * make the log replayed on restart longer. Only used if a
+     * {@link #setPersistenceDirectory(File) persistence directory} is set.
+     * Defaults to 100000.
+     *
+     * @param snapshotInterval the number of update messages
+     */
+    public void setSnapshotInterval(int snapshotInterval) {
+        if (snapshotInterval < 1) {
+            throw new IllegalArgumentException("snapshotInterval must be positive");
+        }
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * The maximum number of received updates waiting to be applied.
+     *
+     * @return the queue size, 0 if updates are applied by the receiving thread
+     */
+    public int getApplyQueueSize() {
+        return applyQueueSize;
+    }
+
+    /**
+     * Applies received updates on a thread of their own instead of the
+     * thread of the channel. The receiving thread only decodes an update
+     * and queues it; the updates of the collection are applied one after
+     * another in the order they were received. If the queue is full, the
+     * receiving thread waits. Defaults to 0, which applies the updates on
+     * the receiving thread.
+     *
+     * @param applyQueueSize the maximum number of waiting updates
+     */
+    public void setApplyQueueSize(int applyQueueSize) {
+        if (applyQueueSize < 0) {
+            throw new IllegalArgumentException("applyQueueSize must not be negative");
+        }
+        this.applyQueueSize = applyQueueSize;
+    }
+
+    /**
+     * The maximum number of update callbacks waiting to be invoked.
+     *
+     * @return the queue size, 0 if callbacks are invoked by the applying thread
+     */
+    public int getCallbackQueueSize() {
+        return callbackQueueSize;
+    }
+
+    /**
+     * Invokes the {@link ClusterUpdateCallback} on a thread of its own, so
+     * that a slow callback does not hold up the updates. The callbacks of
+     * the collection run one after another; if more are waiting than the
+     * given size, the {@link #setCallbackOverflowPolicy(OverflowPolicy)
+     * overflow policy} applies. Defaults to 0, which invokes the callback
+     * right after applying an update.
+     *
+     * @param callbackQueueSize the maximum number of waiting callbacks
+     */
+    public void setCallbackQueueSize(int callbackQueueSize) {
+        if (callbackQueueSize < 0) {
+            throw new IllegalArgumentException("callbackQueueSize must not be negative");
+        }
+        this.callbackQueueSize = callbackQueueSize;
+    }
+
+    /**
+     * What happens to a callback if the callback queue is full.
+     *
+     * @return the overflow policy
+     */
+    public OverflowPolicy getCallbackOverflowPolicy() {
+        return callbackOverflowPolicy;
+    }
+
+    /**
+     * Sets what happens to a callback if the
+     * {@link #setCallbackQueueSize(int) callback queue} is full. Defaults
+     * to {@link OverflowPolicy#BLOCK}.
+     *
+     * @param callbackOverflowPolicy the overflow policy
+     */
+    public void setCallbackOverflowPolicy(OverflowPolicy callbackOverflowPolicy) {
+        if (callbackOverflowPolicy == null) {
+            throw new IllegalArgumentException("callbackOverflowPolicy must not be null");
+        }
+        this.callbackOverflowPolicy = callbackOverflowPolicy;
+    }
+
+    /**
+     * The listener which receives the measurements of the collection.
+     *
+     * @return the listener, {@code null} if none is set
+     */
+    public ClusterMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Sets a listener which receives the measurements of the collection, for
+     * example to feed them into a metrics registry. Without a listener and
+     * without JMX, nothing is measured. Defaults to {@code null}.
+     *
+     * @param metricsListener the listener
+     */
+    public void setMetricsListener(ClusterMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Whether the statistics of the collection are exposed through JMX.
+     *
+     * @return if JMX is enabled
+     */
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * Registers a {@link ClusterStatisticsMXBean} per collection with the
+     * platform MBean server. It is unregistered when the
+     * {@link ClusterContext} is closed. Defaults to {@code false}.
+     *
+     * @param jmxEnabled if JMX is enabled
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterConfiguration{" +
+                "batchSize=" + batchSize +
+                ", batchDelay=" + batchDelay + "ns" +
+                ", stateChunkSize=" + stateChunkSize +
+                ", stateTimeout=" + stateTimeout + "ms" +
+                ", updateLogSize=" + updateLogSize +
+                ", backupCount=" + backupCount +
+                ", requestTimeout=" + requestTimeout + "ms" +
+                ", consistencyMode=" + consistencyMode +
+                ", tombstoneRetention=" + tombstoneRetention + "ms" +
+                ", persistenceDirectory=" + persistenceDirectory +
+                ", snapshotInterval=" + snapshotInterval +
+                ", applyQueueSize=" + applyQueueSize +
+                ", callbackQueueSize=" + callbackQueueSize +
+                ", callbackOverflowPolicy=" + callbackOverflowPolicy +
+                ", nearCacheSize=" + nearCacheSize +
+                ", nearCacheTimeToLive=" + nearCacheTimeToLive + "ns" +
+                ", metricsListener=" + metricsListener +
+                ", jmxEnabled=" + jmxEnabled +
+                '}';
+    }
+}
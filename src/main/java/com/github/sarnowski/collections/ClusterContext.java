@@ -0,0 +1,443 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Address;
+import org.jgroups.Channel;
+import org.jgroups.ChannelClosedException;
+import org.jgroups.ChannelException;
+import org.jgroups.ChannelNotConnectedException;
+import org.jgroups.ExtendedReceiver;
+import org.jgroups.JChannel;
+import org.jgroups.MergeView;
+import org.jgroups.Message;
+import org.jgroups.View;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hosts any number of named clustered collections on a single JGroups
+ * channel. All collections of a context share the protocol stack, its
+ * threads and its failure detection; updates and state transfers are routed
+ * to the collection by its name.
+ *
+ * <p>
+ * <strong>Example:</strong>
+ * <pre>
+ * ClusterContext context = new ClusterContext("MyCluster");
+ * Map&lt;String,String&gt; users = ClusteredCollections.newReplicatedClusteredMap(context, "users");
+ * Set&lt;String&gt; roles = ClusteredCollections.newReplicatedClusteredSet(context, "roles");
+ * </pre>
+ * </p>
+ *
+ * <p>
+ * The state of a collection is fetched from the first member which hosts a
+ * collection of the same name. Partial state transfer has to be supported by
+ * the protocol stack, which is the case for the default stacks.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusteredCollections
+ */
+public final class ClusterContext {
+
+    private static final Log LOG = LogFactory.getLog(ClusterContext.class);
+
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Separates the collection name and the version vector within a state id.
+     */
+    private static final char STATE_ID_SEPARATOR = '/';
+
+    /**
+     * The protocol which delivers all messages in the same order to all members.
+     */
+    private static final String SEQUENCER = "SEQUENCER";
+
+    private final Channel channel;
+    private final ConcurrentMap<String, ClusterEndpoint> endpoints =
+            new ConcurrentHashMap<String, ClusterEndpoint>();
+
+    private volatile boolean loopback;
+
+    private final Object stateRequestLock = new Object();
+    private volatile boolean stateReceived;
+
+    /**
+     * Creates a context with the default JGroups configuration.
+     *
+     * @param clusterName the name of the cluster to join
+     * @throws ChannelException if the channel cannot be created or connected
+     */
+    public ClusterContext(String clusterName) throws ChannelException {
+        this(clusterName, new JChannel());
+    }
+
+    /**
+     * Creates a context on an unconnected channel. The context takes over
+     * the channel's receiver.
+     *
+     * @param clusterName the name of the cluster to join
+     * @param channel the channel to use
+     * @throws ChannelException if the channel cannot be connected
+     */
+    public ClusterContext(String clusterName, Channel channel) throws ChannelException {
+        this.channel = channel;
+        channel.setReceiver(new ContextReceiver());
+        channel.setOpt(Channel.LOCAL, false);
+
+        if (LOG.isTraceEnabled())
+            LOG.trace("connect(" + clusterName + ")");
+        channel.connect(clusterName);
+    }
+
+    /**
+     * Provides the underlying channel.
+     *
+     * @return the underlying channel
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Leaves the cluster. All collections of this context stop replicating.
+     */
+    public void close() {
+        // the collections still announce that they leave
+        for (String name: endpoints.keySet()) {
+            close(name);
+        }
+        channel.close();
+    }
+
+    /**
+     * Closes a single collection, the other collections of this context keep
+     * replicating. The collection rejects further updates and its name can
+     * be used again.
+     *
+     * @param name the collection name
+     * @return whether a collection of that name was open
+     */
+    public boolean close(String name) {
+        final ClusterEndpoint endpoint = endpoints.remove(name);
+        if (endpoint == null) {
+            return false;
+        }
+        endpoint.close();
+        return true;
+    }
+
+    /**
+     * Registers a collection under its name. The channel starts to deliver
+     * the own messages once an endpoint asks for them.
+     *
+     * @param name the collection name
+     * @param endpoint the receiver of the collection's messages
+     * @throws IllegalArgumentException if the name is in use already
+     * @throws IllegalStateException if the endpoint needs a total order which the protocol stack does not provide
+     */
+    void register(String name, ClusterEndpoint endpoint) {
+        if (endpoint.receivesOwnMessages() && channel instanceof JChannel
+                && ((JChannel) channel).getProtocolStack().findProtocol(SEQUENCER) == null) {
+            throw new IllegalStateException("collection " + name + " uses " + ConsistencyMode.TOTAL_ORDER
+                    + ", which needs " + SEQUENCER + " in the protocol stack of the channel");
+        }
+        if (endpoints.putIfAbsent(name, endpoint) != null) {
+            throw new IllegalArgumentException("a collection named " + name + " exists already");
+        }
+        if (endpoint.receivesOwnMessages() && !loopback) {
+            loopback = true;
+            channel.setOpt(Channel.LOCAL, true);
+        }
+    }
+
+    /**
+     * Fetches the state of a collection from the first member which provides it.
+     *
+     * @param name the collection name
+     * @param versions the encoded version vector of the collection
+     * @param target the member to ask or {@code null} to ask all members in turn
+     * @param timeout the maximum time in milliseconds per member
+     * @return the member which provided the state or {@code null} if none did
+     * @throws ChannelException if the state cannot be requested
+     */
+    Address requestState(String name, String versions, Address target, long timeout) throws ChannelException {
+        final String stateId = name + STATE_ID_SEPARATOR + versions;
+        final List<Address> candidates = new ArrayList<Address>();
+        if (target != null) {
+            candidates.add(target);
+        } else if (channel.getView() != null) {
+            candidates.addAll(channel.getView().getMembers());
+            candidates.remove(channel.getAddress());
+        }
+        synchronized (stateRequestLock) {
+            for (Address candidate: candidates) {
+                stateReceived = false;
+                if (channel.getState(candidate, stateId, timeout) && stateReceived) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends a message, which has to start with an encoded collection name.
+     *
+     * @param destination the receiving member or {@code null} for all other members
+     * @param buffer the buffer containing the message
+     * @param offset the offset of the message
+     * @param length the length of the message
+     */
+    void send(Address destination, byte[] buffer, int offset, int length) {
+        try {
+            channel.send(new Message(destination, null, buffer, offset, length));
+        } catch (ChannelNotConnectedException e) {
+            throw new IllegalStateException(e);
+        } catch (ChannelClosedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encodes the routing prefix of all messages of a collection.
+     *
+     * @param name the collection name
+     * @return the encoded name
+     */
+    static byte[] encodeName(String name) {
+        try {
+            final byte[] bytes = name.getBytes(CHARSET);
+            final byte[] prefix = new byte[Varints.sizeOfUnsignedLong(bytes.length) + bytes.length];
+            final int offset = Varints.writeUnsignedLong(prefix, 0, bytes.length);
+            System.arraycopy(bytes, 0, prefix, offset, bytes.length);
+            return prefix;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ClusterEndpoint endpointOf(String stateId) {
+        final int separator = stateId == null ? -1 : stateId.lastIndexOf(STATE_ID_SEPARATOR);
+        return separator < 0 ? null : endpoints.get(stateId.substring(0, separator));
+    }
+
+    private static String versionsOf(String stateId) {
+        return stateId.substring(stateId.lastIndexOf(STATE_ID_SEPARATOR) + 1);
+    }
+
+    /**
+     * Routes all channel events to the registered endpoints.
+     */
+    private final class ContextReceiver implements ExtendedReceiver {
+
+        @Override
+        public void receive(Message msg) {
+            if (LOG.isTraceEnabled())
+                LOG.trace("receive(" + msg + ")");
+            final ByteArrayInputStream buffer =
+                    new ByteArrayInputStream(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            final String name;
+            try {
+                final byte[] bytes = new byte[Varints.readUnsignedInt(new DataInputStream(buffer))];
+                if (buffer.read(bytes, 0, bytes.length) != bytes.length) {
+                    throw new IOException("truncated collection name");
+                }
+                name = new String(bytes, CHARSET);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+            final ClusterEndpoint endpoint = endpoints.get(name);
+            if (endpoint == null) {
+                if (LOG.isTraceEnabled())
+                    LOG.trace("dropping update of unknown collection " + name);
+                return;
+            }
+            if (loopback && !endpoint.receivesOwnMessages() && msg.getSrc() != null
+                    && msg.getSrc().equals(channel.getAddress())) {
+                return;
+            }
+            final int remaining = buffer.available();
+            endpoint.receive(msg.getSrc(), msg.getRawBuffer(), msg.getOffset() + msg.getLength() - remaining, remaining);
+        }
+
+        @Override
+        public void viewAccepted(View new_view) {
+            if (LOG.isTraceEnabled())
+                LOG.trace("viewAccepted(" + new_view + ")");
+            for (ClusterEndpoint endpoint: endpoints.values()) {
+                endpoint.viewAccepted(new_view);
+            }
+            if (new_view instanceof MergeView) {
+                final View primary = primaryPartition(((MergeView) new_view).getSubgroups());
+                if (primary != null && !primary.getMembers().contains(channel.getAddress())) {
+                    rejoin(primary.getMembers().get(0));
+                }
+            }
+        }
+
+        @Override
+        public void suspect(Address suspected_mbr) {
+            if (LOG.isTraceEnabled())
+                LOG.trace("suspect(" + suspected_mbr + ")");
+        }
+
+        @Override
+        public void block() {
+            if (LOG.isTraceEnabled())
+                LOG.trace("block()");
+        }
+
+        @Override
+        public void unblock() {
+            if (LOG.isTraceEnabled())
+                LOG.trace("unblock()");
+        }
+
+        @Override
+        public byte[] getState() {
+            // every collection requests its state by id
+            return null;
+        }
+
+        @Override
+        public void setState(byte[] state) {
+        }
+
+        @Override
+        public void getState(OutputStream ostream) {
+            ClusterManager.close(ostream);
+        }
+
+        @Override
+        public void setState(InputStream istream) {
+            ClusterManager.close(istream);
+        }
+
+        @Override
+        public byte[] getState(String state_id) {
+            final ClusterEndpoint endpoint = endpointOf(state_id);
+            return endpoint == null ? null : endpoint.getState(versionsOf(state_id));
+        }
+
+        @Override
+        public void setState(String state_id, byte[] state) {
+            final ClusterEndpoint endpoint = endpointOf(state_id);
+            if (endpoint != null && state != null) {
+                endpoint.setState(state);
+                stateReceived = true;
+            }
+        }
+
+        @Override
+        public void getState(String state_id, OutputStream ostream) {
+            final ClusterEndpoint endpoint = endpointOf(state_id);
+            try {
+                ostream.write(endpoint == null ? 0 : 1);
+            } catch (IOException e) {
+                ClusterManager.close(ostream);
+                throw new IllegalArgumentException(e);
+            }
+            if (endpoint == null) {
+                ClusterManager.close(ostream);
+            } else {
+                endpoint.getState(versionsOf(state_id), ostream);
+            }
+        }
+
+        @Override
+        public void setState(String state_id, InputStream istream) {
+            final ClusterEndpoint endpoint = endpointOf(state_id);
+            final int present;
+            try {
+                present = istream.read();
+            } catch (IOException e) {
+                ClusterManager.close(istream);
+                throw new IllegalArgumentException(e);
+            }
+            if (endpoint == null || present != 1) {
+                ClusterManager.close(istream);
+            } else {
+                endpoint.setState(istream);
+                stateReceived = true;
+            }
+        }
+    }
+
+    /**
+     * Selects the largest partition; its state survives a merge.
+     *
+     * @param partitions the merged partitions
+     * @return the largest partition, the first one in case of a tie
+     */
+    private static View primaryPartition(List<View> partitions) {
+        View primary = null;
+        for (View partition: partitions) {
+            if (primary == null || partition.getMembers().size() > primary.getMembers().size()) {
+                primary = partition;
+            }
+        }
+        return primary;
+    }
+
+    /**
+     * Catches up with another partition. The state cannot be requested from
+     * within a view callback, so a separate thread does the work for all
+     * collections.
+     *
+     * @param target the member to fetch the states from
+     */
+    private void rejoin(final Address target) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("rejoin(" + target + ")");
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (ClusterEndpoint endpoint: endpoints.values()) {
+                    try {
+                        endpoint.requestState(target);
+                    } catch (ChannelException e) {
+                        LOG.error("cannot fetch state of " + endpoint + " from " + target + " after merge", e);
+                    }
+                }
+            }
+        }, "ClusterContext-Rejoin");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterContext{" +
+                "channel=" + channel +
+                ", collections=" + endpoints.keySet() +
+                '}';
+    }
+}
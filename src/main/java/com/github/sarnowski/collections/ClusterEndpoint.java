@@ -0,0 +1,105 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Address;
+import org.jgroups.ChannelException;
+import org.jgroups.View;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A named receiver of a {@link ClusterContext}. The context strips the
+ * collection name from every message and hands the rest to the endpoint
+ * registered under that name.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterContext
+ */
+interface ClusterEndpoint {
+
+    /**
+     * Handles a message addressed to this endpoint.
+     *
+     * @param source the sending member
+     * @param buffer the buffer containing the message
+     * @param offset the offset of the message behind the collection name
+     * @param length the length of the message
+     */
+    void receive(Address source, byte[] buffer, int offset, int length);
+
+    /**
+     * Gets called for every new view of the shared channel.
+     *
+     * @param view the new view
+     */
+    void viewAccepted(View view);
+
+    /**
+     * Fetches the state from another member.
+     *
+     * @param target the member to ask, {@code null} for the first member providing it
+     * @throws ChannelException if the state cannot be requested
+     */
+    void requestState(Address target) throws ChannelException;
+
+    /**
+     * Provides the state for another member.
+     *
+     * @param versions the encoded version vector of the requesting member
+     * @return the state
+     */
+    byte[] getState(String versions);
+
+    /**
+     * Applies the state provided by another member.
+     *
+     * @param state the state
+     */
+    void setState(byte[] state);
+
+    /**
+     * Streams the state to another member and closes the stream.
+     *
+     * @param versions the encoded version vector of the requesting member
+     * @param ostream the target
+     */
+    void getState(String versions, OutputStream ostream);
+
+    /**
+     * Applies a streamed state and closes the stream.
+     *
+     * @param istream the source
+     */
+    void setState(InputStream istream);
+
+    /**
+     * Whether the endpoint wants to receive the messages it sent to all
+     * members. Other endpoints never see their own messages.
+     *
+     * @return if the own messages are delivered
+     */
+    boolean receivesOwnMessages();
+
+    /**
+     * Releases the resources of the endpoint when it or its context gets
+     * closed. The channel is still connected.
+     */
+    void close();
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Address;
+
+/**
+ * A change of a clustered collection caused by an update of another member.
+ * Maps report the key, lists the index at the time the change was applied.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterEventListener
+ * @param <K> the key type, {@link Integer} for lists
+ * @param <V> the value type
+ */
+public final class ClusterEvent<K, V> {
+
+    /**
+     * The kind of change.
+     */
+    public static enum Type {
+
+        /**
+         * A key or index was added, there is no old value.
+         */
+        ADDED,
+
+        /**
+         * The value of a key or index was replaced.
+         */
+        UPDATED,
+
+        /**
+         * A key or index was removed, there is no new value.
+         */
+        REMOVED,
+
+        /**
+         * The whole collection was cleared, there is neither a key nor a value.
+         */
+        CLEARED
+
+    }
+
+    private final Type type;
+    private final K key;
+    private final V oldValue;
+    private final V newValue;
+    private final Address origin;
+    private final long sequence;
+
+    ClusterEvent(Type type, K key, V oldValue, V newValue, Address origin, long sequence) {
+        this.type = type;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.origin = origin;
+        this.sequence = sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the changed key or index, {@code null} for {@link Type#CLEARED}
+     */
+    public K getKey() {
+        return key;
+    }
+
+    /**
+     * @return the value before the change, {@code null} if there was none
+     */
+    public V getOldValue() {
+        return oldValue;
+    }
+
+    /**
+     * @return the value after the change, {@code null} if there is none
+     */
+    public V getNewValue() {
+        return newValue;
+    }
+
+    /**
+     * @return the member which sent the update, {@code null} if unknown, e.g. when replayed from a state
+     */
+    public Address getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return the sequence number of the update message, unique per origin;
+     *         0 for the backup copies of a partitioned map
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterEvent{" +
+                "type=" + type +
+                ", key=" + key +
+                ", oldValue=" + oldValue +
+                ", newValue=" + newValue +
+                ", origin=" + origin +
+                ", sequence=" + sequence +
+                '}';
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * Selects the keys a {@link ClusterEventListener} is interested in. The
+ * filter is consulted before an event is created, so that changes nobody
+ * listens to cost nothing. {@link ClusterEvent.Type#CLEARED} events are
+ * delivered without consulting it.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterEventListener
+ * @param <K> the key type, {@link Integer} for lists
+ */
+public interface ClusterEventFilter<K> {
+
+    /**
+     * @param key the changed key or index
+     * @return if the listener wants to know about the change
+     */
+    boolean accept(K key);
+
+}
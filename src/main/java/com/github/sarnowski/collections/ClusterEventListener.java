@@ -0,0 +1,53 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.List;
+
+/**
+ * Receives the changes a clustered collection applied for other members.
+ * Unlike the {@link ClusterUpdateCallback}, it tells what changed, so that
+ * the collection does not have to be scanned. Local writes are not
+ * reported, except with {@link ConsistencyMode#TOTAL_ORDER} where they
+ * are applied like the updates of the other members.
+ *
+ * <p>
+ * The events of one update message are delivered together; a bulk update
+ * therefore results in a single call. The calls follow the order in which
+ * the updates were applied. They are made by the thread applying the
+ * updates or, if a {@link ClusterConfiguration#setCallbackQueueSize(int)
+ * callback queue} is configured, by the callback executor. A complete state
+ * received from another member, e.g. after a merge, is not reported as
+ * events.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusteredMap#addEventListener(ClusterEventListener, ClusterEventFilter)
+ * @see ClusteredList#addEventListener(ClusterEventListener, ClusterEventFilter)
+ * @param <K> the key type, {@link Integer} for lists
+ * @param <V> the value type
+ */
+public interface ClusterEventListener<K, V> {
+
+    /**
+     * Some changes were applied.
+     *
+     * @param events the changes in the order they were applied, never empty
+     */
+    void clusterChanged(List<ClusterEvent<K, V>> events);
+
+}
@@ -0,0 +1,349 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Address;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects the {@link ClusterEvent}s of a collection while an update
+ * message is applied and hands them to the registered listeners. It also
+ * maintains the {@link ContinuousQuery continuous queries} of a map, which
+ * see local writes as well.
+ *
+ * <p>
+ * The applying thread brackets the update with {@link #begin(Address, long)}
+ * and {@link #end()}, a local write with {@link #beginLocal()} and
+ * {@link #endLocal()}. Meanwhile, the collection asks
+ * {@link #isObserved(Object)} before it computes an event; changes made
+ * outside of a bracket are never observed. The delivery returned at the end
+ * has to be run once the collection released its locks.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterManager
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class ClusterEvents<K, V> implements LiveQuery.Owner<K, V> {
+
+    private static final Log LOG = LogFactory.getLog(ClusterEvents.class);
+
+    private final List<Registration<K, V>> registrations = new CopyOnWriteArrayList<Registration<K, V>>();
+    private final List<LiveQuery<K, V>> queries = new CopyOnWriteArrayList<LiveQuery<K, V>>();
+    private final ReentrantLock recording = new ReentrantLock();
+    private Recorder<K, V> received;
+    private final ThreadLocal<Recorder<K, V>> local = new ThreadLocal<Recorder<K, V>>();
+
+    void addListener(ClusterEventListener<K, V> listener, ClusterEventFilter<? super K> filter) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        registrations.add(new Registration<K, V>(listener, filter));
+    }
+
+    void removeListener(ClusterEventListener<K, V> listener) {
+        for (Registration<K, V> registration: registrations) {
+            if (registration.listener == listener) {
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Registers a continuous query. The caller has to hold the locks of all
+     * keys, so that no change slips between the initial result and the
+     * first recorded change.
+     *
+     * @param contents the current entries of the map
+     * @return the query
+     */
+    ContinuousQuery<K, V> addQuery(ClusterPredicate<? super K, ? super V> predicate,
+                                   ClusterEventListener<K, V> listener, Iterable<Map.Entry<K, V>> contents) {
+        final LiveQuery<K, V> query = new LiveQuery<K, V>(predicate, listener, this);
+        query.fill(contents);
+        queries.add(query);
+        return query;
+    }
+
+    @Override
+    public void closed(LiveQuery<K, V> query) {
+        queries.remove(query);
+    }
+
+    boolean hasListeners() {
+        return !registrations.isEmpty();
+    }
+
+    /**
+     * Starts recording the events of an update message. Updates of several
+     * threads are recorded one after another.
+     *
+     * @param origin the sender of the message
+     * @param sequence the sequence of the message
+     */
+    void begin(Address origin, long sequence) {
+        recording.lock();
+        received = new Recorder<K, V>(origin, sequence, true);
+    }
+
+    /**
+     * Stops recording an update message.
+     *
+     * @return the delivery of the recorded events, {@code null} if there are none
+     */
+    Runnable end() {
+        final Recorder<K, V> recorder = received;
+        received = null;
+        recording.unlock();
+        return delivery(recorder);
+    }
+
+    /**
+     * Starts recording a local write for the continuous queries. The caller
+     * has to hold the lock of the written keys already.
+     *
+     * @return if there is something to record, only then {@link #endLocal()} has to be called
+     */
+    boolean beginLocal() {
+        if (queries.isEmpty()) {
+            return false;
+        }
+        local.set(new Recorder<K, V>(null, 0, false));
+        return true;
+    }
+
+    /**
+     * Stops recording a local write.
+     *
+     * @return the delivery of the recorded events, {@code null} if there are none
+     */
+    Runnable endLocal() {
+        final Recorder<K, V> recorder = local.get();
+        local.remove();
+        return delivery(recorder);
+    }
+
+    private Recorder<K, V> current() {
+        if (recording.isHeldByCurrentThread()) {
+            return received;
+        }
+        return queries.isEmpty() ? null : local.get();
+    }
+
+    /**
+     * Checks if the current thread records events, before a collection
+     * spends any work on the key.
+     *
+     * @return if {@link #isObserved(Object)} may agree
+     */
+    boolean isRecording() {
+        final Recorder<K, V> recorder = current();
+        return recorder != null && (!queries.isEmpty() || recorder.received && !registrations.isEmpty());
+    }
+
+    /**
+     * Checks if a change of the key has to be reported.
+     *
+     * @param key the key, {@code null} for a cleared collection
+     * @return if an event has to be added
+     */
+    boolean isObserved(K key) {
+        final Recorder<K, V> recorder = current();
+        if (recorder == null) {
+            return false;
+        }
+        return !queries.isEmpty() || recorder.received && isListened(key);
+    }
+
+    private boolean isListened(K key) {
+        for (Registration<K, V> registration: registrations) {
+            if (registration.accepts(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds an event, only call if {@link #isObserved(Object)} agrees.
+     */
+    void add(ClusterEvent.Type type, K key, V oldValue, V newValue) {
+        final Recorder<K, V> recorder = current();
+        if (recorder.received && isListened(key)) {
+            recorder.add(new ClusterEvent<K, V>(type, key, oldValue, newValue, recorder.origin, recorder.sequence));
+        }
+        for (LiveQuery<K, V> query: queries) {
+            if (type == ClusterEvent.Type.CLEARED) {
+                query.cleared(recorder.batchOf(query), recorder.origin, recorder.sequence);
+            } else {
+                final ClusterEvent<K, V> event = query.changed(key, newValue, recorder.origin, recorder.sequence);
+                if (event != null) {
+                    recorder.batchOf(query).add(event);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recomputes the continuous queries after the whole content was replaced.
+     * The caller has to hold the locks of all keys.
+     *
+     * @param contents the new entries of the map
+     * @return the delivery of the changes, {@code null} if there are none
+     */
+    Runnable reset(Iterable<Map.Entry<K, V>> contents) {
+        if (queries.isEmpty()) {
+            return null;
+        }
+        final Recorder<K, V> recorder = new Recorder<K, V>(null, 0, false);
+        for (LiveQuery<K, V> query: queries) {
+            query.reset(contents, recorder.batchOf(query));
+        }
+        return delivery(recorder);
+    }
+
+    private void deliver(List<ClusterEvent<K, V>> events) {
+        for (Registration<K, V> registration: registrations) {
+            final List<ClusterEvent<K, V>> accepted = registration.select(events);
+            if (accepted.isEmpty()) {
+                continue;
+            }
+            try {
+                registration.listener.clusterChanged(accepted);
+            /* CHECKSTYLE:OFF */
+            } catch (RuntimeException e) {
+            /* CHECKSTYLE:ON */
+                LOG.error("event listener " + registration.listener + " failed", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterEvents{" +
+                "listeners=" + registrations.size() +
+                ", queries=" + queries.size() +
+                '}';
+    }
+
+    /**
+     * @return the delivery of the recorded events, {@code null} if there are none
+     */
+    private Runnable delivery(Recorder<K, V> recorder) {
+        if (recorder.batch == null && recorder.queryBatches == null) {
+            return null;
+        }
+        // shared by all listeners
+        final List<ClusterEvent<K, V>> events = recorder.batch == null
+                ? null : Collections.unmodifiableList(recorder.batch);
+        final Map<LiveQuery<K, V>, List<ClusterEvent<K, V>>> queryEvents = recorder.queryBatches;
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (events != null) {
+                    deliver(events);
+                }
+                if (queryEvents != null) {
+                    for (Map.Entry<LiveQuery<K, V>, List<ClusterEvent<K, V>>> entry: queryEvents.entrySet()) {
+                        entry.getKey().deliver(entry.getValue());
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * The events of one update message or local write.
+     */
+    private static final class Recorder<K, V> {
+        final Address origin;
+        final long sequence;
+        final boolean received;
+        List<ClusterEvent<K, V>> batch;
+        Map<LiveQuery<K, V>, List<ClusterEvent<K, V>>> queryBatches;
+
+        Recorder(Address origin, long sequence, boolean received) {
+            this.origin = origin;
+            this.sequence = sequence;
+            this.received = received;
+        }
+
+        void add(ClusterEvent<K, V> event) {
+            if (batch == null) {
+                batch = new ArrayList<ClusterEvent<K, V>>();
+            }
+            batch.add(event);
+        }
+
+        List<ClusterEvent<K, V>> batchOf(LiveQuery<K, V> query) {
+            if (queryBatches == null) {
+                queryBatches = new LinkedHashMap<LiveQuery<K, V>, List<ClusterEvent<K, V>>>();
+            }
+            List<ClusterEvent<K, V>> events = queryBatches.get(query);
+            if (events == null) {
+                events = new ArrayList<ClusterEvent<K, V>>();
+                queryBatches.put(query, events);
+            }
+            return events;
+        }
+    }
+
+    private static final class Registration<K, V> {
+        final ClusterEventListener<K, V> listener;
+        final ClusterEventFilter<? super K> filter;
+
+        Registration(ClusterEventListener<K, V> listener, ClusterEventFilter<? super K> filter) {
+            this.listener = listener;
+            this.filter = filter;
+        }
+
+        boolean accepts(K key) {
+            return filter == null || key == null || filter.accept(key);
+        }
+
+        /**
+         * @return the accepted events, the given list if all are accepted
+         */
+        List<ClusterEvent<K, V>> select(List<ClusterEvent<K, V>> events) {
+            if (filter == null) {
+                return events;
+            }
+            List<ClusterEvent<K, V>> accepted = null;
+            for (int n = 0; n < events.size(); n++) {
+                final ClusterEvent<K, V> event = events.get(n);
+                if (accepts(event.getKey())) {
+                    if (accepted != null) {
+                        accepted.add(event);
+                    }
+                } else if (accepted == null) {
+                    accepted = new ArrayList<ClusterEvent<K, V>>(events.subList(0, n));
+                }
+            }
+            return accepted == null ? events : accepted;
+        }
+    }
+}
@@ -15,6 +15,9 @@
  */
 package com.github.sarnowski.collections;
 
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * Defines a high level abstraction for JGroups events. A {@link ClusterManager}
  * will handle the instance.
@@ -33,8 +36,28 @@ interface ClusterManaged<A, P, S> {
      *
      * @param action the update action
      * @param payload the update payload
+     * @return the result of the update, e.g. the previous value, which is
+     *         handed back to the sender of an ordered update
+     */
+    Object handleUpdate(A action, P payload);
+
+    /**
+     * Will be triggered as soon as a batch of updates from the cluster
+     * receives. The whole batch has to be applied in one step.
+     *
+     * @param updates the updates in the order they were sent
      */
-    void handleUpdate(A action, P payload);
+    void handleUpdates(List<ClusterUpdate<A, P>> updates);
+
+    /**
+     * Identifies updates which supersede each other. If a batch contains
+     * two updates with equal keys, only the later one will be sent.
+     *
+     * @param action the update action
+     * @param payload the update payload
+     * @return the coalescing key or {@code null} if the update must never be dropped
+     */
+    Object coalesceKey(A action, P payload);
 
     /**
      * Will be triggered as soon as a new state from the cluster receives.
@@ -43,12 +66,51 @@ interface ClusterManaged<A, P, S> {
      */
     void updateClusterState(S state);
 
+    /**
+     * Runs an action while no local write can change the instance. Every
+     * local write made before has been handed to the {@link ClusterManager}.
+     *
+     * @param action the action
+     */
+    void runExclusively(Runnable action);
+
     /**
      * Instance has to provide the current state because another cluster member
-     * asked for it.
+     * asked for it. Called from within {@link #runExclusively(Runnable)}, the
+     * returned state must not change afterwards.
      *
      * @return the current state
      */
     S provideClusterState();
 
+    /**
+     * Instance has to provide the current state as a sequence of partial
+     * states because another cluster member asked for it. Called from within
+     * {@link #runExclusively(Runnable)}, which lasts until the last chunk was
+     * requested, so the chunks can be read from the live state.
+     *
+     * @param chunkSize the maximum number of elements per chunk
+     * @return the partial states which form the current state together
+     */
+    Iterator<S> provideClusterStateChunks(int chunkSize);
+
+    /**
+     * Will be triggered before the chunks of a new state from the cluster
+     * receive.
+     */
+    void beginClusterState();
+
+    /**
+     * Will be triggered for every chunk of a new state from the cluster.
+     *
+     * @param chunk the next partial state
+     */
+    void applyClusterStateChunk(S chunk);
+
+    /**
+     * Will be triggered after the last chunk of a new state from the cluster
+     * received.
+     */
+    void endClusterState();
+
 }
@@ -17,45 +17,355 @@ package com.github.sarnowski.collections;
 
 import org.jgroups.Address;
 import org.jgroups.Channel;
-import org.jgroups.ChannelClosedException;
 import org.jgroups.ChannelException;
-import org.jgroups.ChannelNotConnectedException;
+import org.jgroups.MergeView;
 import org.jgroups.Message;
-import org.jgroups.Receiver;
 import org.jgroups.View;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
-import org.jgroups.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The ClusterManager encapsulates the JGroups handling and provides easy
- * cluster handling through the {@link ClusterManaged} interface.
+ * cluster handling through the {@link ClusterManaged} interface. It
+ * replicates one named collection of a {@link ClusterContext}; all of its
+ * messages are prefixed with the collection name.
+ *
+ * <p>
+ * If the protocol stack contains {@code STREAMING_STATE_TRANSFER}, the state
+ * is transferred as a stream of chunks, each containing at most
+ * {@link ClusterConfiguration#getStateChunkSize()} elements, and applied
+ * chunk by chunk. Updates which arrive during a state transfer are held back
+ * and applied after the state.
+ * </p>
+ *
+ * <p>
+ * Every message carries the id of its sender and a sequence number. The
+ * applied messages are tracked in an {@link UpdateLog}, which drops
+ * duplicates and keeps the most recent messages. A member which requests the
+ * state presents its version vector; if the provider still logs every missing
+ * update, only those are transferred. When partitions merge, the
+ * {@link ClusterContext} lets the members of the smaller partitions fetch
+ * the state of the largest one this way.
+ * </p>
+ *
+ * <p>
+ * If a {@link ClusterConfiguration#getPersistenceDirectory() persistence directory}
+ * is configured, the applied update messages are logged to a
+ * {@link PersistentState} as well. The collection is restored from it before
+ * the state is requested, so that the other members only provide the
+ * missed updates.
+ * </p>
+ *
+ * <p>
+ * Received updates are applied by the receiving thread, unless an
+ * {@link ClusterConfiguration#setApplyQueueSize(int) apply queue} is
+ * configured: then the receiving thread only decodes them and an
+ * {@link OrderedExecutor} applies them in order. Update callbacks can be
+ * moved to an executor of their own the same way.
+ * </p>
+ *
+ * <p>
+ * Asynchronous updates are queued in an outbox and sent by a pooled thread;
+ * synchronous sends drain the outbox first, so the order of all updates of
+ * a member is kept. Updates waiting for a {@link ReplicationLevel} above
+ * {@link ReplicationLevel#SENT} request an acknowledgement from every other
+ * member of the view which hosts the collection, which is sent once the
+ * update is applied. The members announce hosting the collection when they
+ * register and closing it; members of a shared {@link ClusterContext} which
+ * do not host it are never waited for. When hosts leave, the required number
+ * of acknowledgements is recomputed over the remaining ones.
+ * </p>
+ *
+ * <p>
+ * In {@link ConsistencyMode#TOTAL_ORDER}, the manager receives its own
+ * updates back from the channel. The collection does not change itself when
+ * sending; all members, including the sender, apply the update on delivery
+ * and the sender gets the result handed back. In
+ * {@link ConsistencyMode#SYNCHRONOUS}, every update requests the
+ * acknowledgement of a majority and the sending call waits for it.
+ * </p>
+ *
+ * <p>
+ * If a {@link ClusterMetricsListener} is configured or JMX is enabled, the
+ * manager measures its traffic, the codec and the collection. Without both,
+ * the measuring code is skipped entirely.
+ * </p>
  *
  * @author Tobias Sarnowski
  * @since 1.0
- * @param <A> serializable action identifier
- * @param <P> serializable payload
- * @param <S> serializable state
+ * @param <A> action identifier
+ * @param <P> payload
+ * @param <S> state
  * @see ClusterManaged
+ * @see ClusterCodec
+ * @see ClusterContext
  */
-final class ClusterManager<A, P, S> implements Receiver {
+final class ClusterManager<A, P, S> implements ClusterEndpoint {
     
     private static final Log LOG = LogFactory.getLog(ClusterManager.class);
 
-    private final Channel channel;
+    /**
+     * Message type of a single update.
+     */
+    private static final int UPDATE = 0;
+
+    /**
+     * Message type of a sequence of updates which have to be applied in one step.
+     */
+    private static final int BATCH = 1;
+
+    /**
+     * Message type of an acknowledgement of an applied update.
+     */
+    private static final int ACK = 2;
+
+    /**
+     * Message type announcing that the sender hosts the collection.
+     */
+    private static final int HOSTED = 3;
+
+    /**
+     * Message type announcing that the sender closed the collection.
+     */
+    private static final int UNHOSTED = 4;
+
+    /**
+     * Flag of the message type, asks the receivers to acknowledge the update
+     * or to answer a {@link #HOSTED} announcement.
+     */
+    private static final int ACK_REQUESTED = 0x80;
+
+    /**
+     * Space reserved in front of every message for the type, sender and sequence.
+     */
+    private static final int HEADER_SIZE = 1 + 8 + 10;
+
+    /**
+     * State type of a complete state.
+     */
+    private static final int FULL_STATE = 0;
+
+    /**
+     * State type of the updates the requesting member missed.
+     */
+    private static final int DELTA_STATE = 1;
+
+    private final String name;
+    private final byte[] prefix;
+    private final ClusterContext context;
     private final ClusterManaged<A, P, S> managed;
+    private final ClusterCodec<A, P, S> codec;
+
+    private final long memberId = UUID.randomUUID().getLeastSignificantBits();
+    private final Object sendLock = new Object();
+    private long sequence;
+    private final UpdateLog updateLog;
+    private final PersistentState persistentState;
+
+    private final Queue<Outgoing> outbox = new ConcurrentLinkedQueue<Outgoing>();
+    private final AtomicBoolean outboxScheduled = new AtomicBoolean();
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            do {
+                synchronized (sendLock) {
+                    drainOutbox();
+                }
+                outboxScheduled.set(false);
+                // a message may have been queued after draining but before the reset
+            } while (!outbox.isEmpty() && outboxScheduled.compareAndSet(false, true));
+        }
+    };
+    private final ConcurrentMap<Long, PendingAck> pendingAcks = new ConcurrentHashMap<Long, PendingAck>();
+    private final Set<Address> hosts = Collections.newSetFromMap(new ConcurrentHashMap<Address, Boolean>());
+
+    private final ConsistencyMode consistency;
+    private final long requestTimeout;
+    private final ConcurrentMap<Long, Delivery<?>> deliveries = new ConcurrentHashMap<Long, Delivery<?>>();
+
+    private final int batchSize;
+    private final long batchDelay;
+    private final Object batchLock = new Object();
+    private final List<ClusterUpdate<A, P>> batch = new ArrayList<ClusterUpdate<A, P>>();
+    private final Map<Object, Integer> batchIndex = new HashMap<Object, Integer>();
+    private int batchCount;
+    private final List<SettableReplicationFuture<?>> batchFutures = new ArrayList<SettableReplicationFuture<?>>();
+    private ReplicationLevel batchLevel = ReplicationLevel.SENT;
+    private ScheduledFuture<?> batchFlush;
+
+    private final int stateChunkSize;
+    private final Object stateLock = new Object();
+    private List<Message> heldBack;
+    private final long stateTimeout;
+
+    private final Object applyLock = new Object();
+    private final OrderedExecutor applier;
+    private volatile ClusterEvents<?, ?> events;
+    private volatile boolean closed;
+    private final OrderedExecutor callbacks;
+    private final OverflowPolicy callbackOverflow;
+
+    private final ClusterMetricsListener metrics;
+    private final ClusterStatistics statistics;
 
-    ClusterManager(String clusterName, Channel channel, ClusterManaged<A, P, S> managed) throws ChannelException {
-        this.channel = channel;
+    ClusterManager(ClusterContext context, String name, ClusterManaged<A, P, S> managed, ClusterCodec<A, P, S> codec,
+                   ClusterConfiguration configuration) throws ChannelException {
+        this.context = context;
+        this.name = name;
+        this.prefix = ClusterContext.encodeName(name);
         this.managed = managed;
+        this.codec = codec;
+        this.consistency = configuration.getConsistencyMode();
+        this.requestTimeout = configuration.getRequestTimeout(TimeUnit.MILLISECONDS);
+        // the results of ordered updates are handed back one by one
+        this.batchSize = consistency == ConsistencyMode.TOTAL_ORDER ? 1 : configuration.getBatchSize();
+        this.batchDelay = configuration.getBatchDelay(TimeUnit.NANOSECONDS);
+        this.stateChunkSize = configuration.getStateChunkSize();
+        this.stateTimeout = configuration.getStateTimeout(TimeUnit.MILLISECONDS);
+        this.updateLog = new UpdateLog(configuration.getUpdateLogSize());
+        this.applier = configuration.getApplyQueueSize() == 0 ? null
+                : new OrderedExecutor(name + " updates", configuration.getApplyQueueSize());
+        this.callbacks = configuration.getCallbackQueueSize() == 0 ? null
+                : new OrderedExecutor(name + " callbacks", configuration.getCallbackQueueSize());
+        this.callbackOverflow = configuration.getCallbackOverflowPolicy();
+        if (configuration.isJmxEnabled()) {
+            statistics = new ClusterStatistics(configuration.getMetricsListener());
+            metrics = statistics;
+        } else {
+            statistics = null;
+            metrics = configuration.getMetricsListener();
+        }
+        if (configuration.getPersistenceDirectory() != null) {
+            persistentState = recover(configuration.getPersistenceDirectory(), configuration.getSnapshotInterval());
+        } else {
+            persistentState = null;
+        }
 
-        channel.setReceiver(this);
-        channel.setOpt(Channel.LOCAL, false);
+        try {
+            context.register(name, this);
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            if (persistentState != null) {
+                persistentState.close();
+            }
+            throw e;
+        }
+        if (statistics != null) {
+            final Channel channel = context.getChannel();
+            statistics.register(channel.getClusterName(), name, String.valueOf(channel.getAddress()));
+        }
+        // members of a shared context may not host the collection, they never acknowledge
+        sendControl(null, HOSTED | ACK_REQUESTED, memberId, 0);
+        requestState(null);
+    }
 
-        if (LOG.isTraceEnabled())
-            LOG.trace("connect()");
-        channel.connect(clusterName);
-        channel.getState(null, 5000);
+    /**
+     * Restores the collection from its persisted snapshot and log.
+     *
+     * @param directory the configured persistence directory
+     * @param snapshotInterval the number of logged messages between snapshots
+     * @return the opened persistent state
+     * @throws ChannelException if the persisted state cannot be read
+     */
+    private PersistentState recover(File directory, int snapshotInterval) throws ChannelException {
+        final File collectionDirectory;
+        try {
+            collectionDirectory = new File(directory, URLEncoder.encode(name, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        final PersistentState state;
+        try {
+            state = new PersistentState(collectionDirectory, snapshotInterval, new PersistentState.Source() {
+                @Override
+                public void readSnapshot(DataInputStream in) throws IOException {
+                    readCompleteState(in, true);
+                }
+
+                @Override
+                public void replay(byte[] buffer, int offset, int length) {
+                    process(null, buffer, offset, length);
+                }
+
+                @Override
+                public void writeSnapshot(DataOutputStream out) throws IOException {
+                    writeCompleteState(out, true);
+                }
+            });
+        } catch (IOException e) {
+            throw new ChannelException("cannot open " + collectionDirectory, e);
+        }
+        try {
+            state.recover();
+        } catch (IOException e) {
+            state.close();
+            throw new ChannelException("cannot recover " + name + " from " + collectionDirectory, e);
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            state.close();
+            throw e;
+        }
+        if (LOG.isDebugEnabled())
+            LOG.debug("recovered " + name + " from " + state);
+        return state;
+    }
+
+    /**
+     * Fetches the state, or only the missing updates, from another member.
+     *
+     * @param target the member to ask, {@code null} for the first member providing it
+     * @throws ChannelException if the state cannot be requested
+     */
+    @Override
+    public void requestState(Address target) throws ChannelException {
+        holdBackUpdates();
+        try {
+            // the answer to our announcement may arrive later, a joiner must not take over the coordinator
+            hosted(context.requestState(name, UpdateLog.toStateId(updateLog.getVersions()), target, stateTimeout));
+        } finally {
+            releaseUpdates();
+        }
     }
 
     /**
@@ -64,103 +374,1346 @@ final class ClusterManager<A, P, S> implements Receiver {
      * @return the underlying channel
      */
     public Channel getChannel() {
-        return channel;
+        return context.getChannel();
+    }
+
+    /**
+     * Whether the updates are applied when they are delivered, in the same
+     * order on all members. The collection must not change itself when
+     * sending then, but use {@link #sendOrdered(Object, Object)}.
+     *
+     * @return if the consistency mode is {@link ConsistencyMode#TOTAL_ORDER}
+     */
+    public boolean isOrdered() {
+        return consistency == ConsistencyMode.TOTAL_ORDER;
+    }
+
+    /**
+     * Whether this member takes the decisions which have to be the same on
+     * all members, e.g. which entries to evict. Exactly one member of a view
+     * is the coordinator. A member knows the member which provided its state
+     * as a host, so a joiner never takes over before it learned of the
+     * others.
+     *
+     * @return if this member is the first one of the current view which
+     *         hosts the collection
+     */
+    public boolean isCoordinator() {
+        final Channel channel = context.getChannel();
+        final View view = channel.getView();
+        if (view != null) {
+            for (Address member: view.getMembers()) {
+                if (member.equals(channel.getAddress())) {
+                    return true;
+                } else if (hosts.contains(member)) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     /**
-     * Sends an update to the cluster members.
+     * Sends an update to the cluster members. If batching is enabled, the
+     * update will be queued and sent with the next batch. A synchronous
+     * collection waits until a majority applied the update, so the caller
+     * must not hold locks which are needed to apply updates.
      *
      * @param action the update action
      * @param payload the payload
      */
     public void sendUpdate(A action, P payload) {
+        await(sendUpdateDeferred(action, payload));
+    }
+
+    /**
+     * Sends an update like {@link #sendUpdate(Object, Object)}, but leaves
+     * waiting for the acknowledgements to the caller, which can release its
+     * locks first.
+     *
+     * @param action the update action
+     * @param payload the payload
+     * @return the future to pass to {@link #await(ReplicationFuture)}, {@code null} if there is nothing to wait for
+     */
+    public ReplicationFuture<Void> sendUpdateDeferred(A action, P payload) {
         if (LOG.isDebugEnabled())
             LOG.debug("sendUpdate(" + action + ", " + payload + ")");
-        final ClusterUpdate<A, P> update = new ClusterUpdate<A, P>(action, payload);
-        final byte[] buffer;
+        final ReplicationLevel level;
+        final SettableReplicationFuture<Void> future;
+        if (consistency == ConsistencyMode.SYNCHRONOUS) {
+            level = ReplicationLevel.QUORUM;
+            future = new SettableReplicationFuture<Void>(null);
+        } else {
+            level = ReplicationLevel.SENT;
+            future = null;
+        }
+        if (batchSize <= 1) {
+            send(new Outgoing(UPDATE, encode(action, payload), 1, level,
+                    future == null ? null : Collections.<SettableReplicationFuture<?>>singletonList(future), null));
+        } else {
+            enqueue(action, payload, future, level);
+        }
+        return future;
+    }
+
+    /**
+     * Sends an update to all members including this one and waits until it
+     * was applied here, in the same order as on all other members. The caller
+     * must not hold locks which are needed to apply updates.
+     *
+     * @param action the update action
+     * @param payload the payload
+     * @return the result of applying the update, see {@link ClusterManaged#handleUpdate(Object, Object)}
+     */
+    public <T> T sendOrdered(A action, P payload) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("sendOrdered(" + action + ", " + payload + ")");
+        final Delivery<T> delivery = new Delivery<T>(null);
+        send(new Outgoing(UPDATE, encode(action, payload), 1, ReplicationLevel.SENT, null, delivery));
+        return await(delivery.future);
+    }
+
+    /**
+     * Sends an update to all members including this one without waiting.
+     *
+     * @param action the update action
+     * @param payload the payload
+     * @param level when to complete the future, in addition to the local delivery
+     * @return the future completing with the result of applying the update
+     */
+    public <T> ReplicationFuture<T> sendOrderedAsync(A action, P payload, ReplicationLevel level) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("sendOrderedAsync(" + action + ", " + payload + ", " + level + ")");
+        final SettableReplicationFuture<Void> acknowledged =
+                level == ReplicationLevel.SENT ? null : new SettableReplicationFuture<Void>(null);
+        final Delivery<T> delivery = new Delivery<T>(acknowledged);
+        queue(new Outgoing(UPDATE, encode(action, payload), 1, level,
+                acknowledged == null ? null : Collections.<SettableReplicationFuture<?>>singletonList(acknowledged),
+                delivery));
+        return delivery.future;
+    }
+
+    /**
+     * Waits for a future of this manager, at most for the request timeout.
+     *
+     * @param future the future, may be {@code null}
+     * @return the result of the future, {@code null} if there is none
+     * @throws IllegalStateException if the future failed or did not complete in time
+     */
+    public <T> T await(ReplicationFuture<T> future) {
+        if (future == null) {
+            return null;
+        }
         try {
-            buffer = Util.objectToByteBuffer(update);
-        /* CHECKSTYLE:OFF */
-        } catch (Exception e) {
-        /* CHECKSTYLE:ON */
+            return future.get(requestTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("update of " + name + " not confirmed within " + requestTimeout + "ms");
+        }
+    }
+
+    /**
+     * Sends an update to the cluster members without waiting for the
+     * network. The update is encoded right away and sent by a background
+     * thread, or with the next batch if batching is enabled; either way, it is
+     * sent before any later update of this collection.
+     *
+     * @param action the update action
+     * @param payload the payload
+     * @param level when to complete the future
+     * @param result the result of the future
+     * @return the future completing once the update reached the level
+     */
+    public <T> ReplicationFuture<T> sendUpdateAsync(A action, P payload, ReplicationLevel level, T result) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("sendUpdateAsync(" + action + ", " + payload + ", " + level + ")");
+        final SettableReplicationFuture<T> future = new SettableReplicationFuture<T>(result);
+        if (batchSize <= 1) {
+            queue(new Outgoing(UPDATE, encode(action, payload), 1, level,
+                    Collections.<SettableReplicationFuture<?>>singletonList(future), null));
+        } else {
+            enqueue(action, payload, future, level);
+        }
+        return future;
+    }
+
+    /**
+     * Hands a message to the background sender.
+     */
+    private void queue(Outgoing message) {
+        outbox.add(message);
+        if (outboxScheduled.compareAndSet(false, true)) {
+            Sender.INSTANCE.execute(drainer);
+        }
+    }
+
+    private MessageBuffer encode(A action, P payload) {
+        checkOpen();
+        final MessageBuffer buffer = new MessageBuffer(prefix, 64);
+        try {
+            encode(action, payload, new DataOutputStream(buffer), buffer);
+        } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
+        return buffer;
+    }
+
+    /**
+     * Adds an update to the current batch.
+     */
+    private void enqueue(A action, P payload, SettableReplicationFuture<?> future, ReplicationLevel level) {
+        checkOpen();
+        synchronized (batchLock) {
+            final Object key = managed.coalesceKey(action, payload);
+            if (key != null) {
+                final Integer previous = batchIndex.put(key, batch.size());
+                if (previous != null) {
+                    batch.set(previous, null);
+                    batchCount--;
+                }
+            }
+            batch.add(new ClusterUpdate<A, P>(action, payload));
+            batchCount++;
+            if (future != null) {
+                batchFutures.add(future);
+            }
+            if (level.compareTo(batchLevel) > 0) {
+                batchLevel = level;
+            }
+            if (metrics != null) {
+                metrics.batchQueueChanged(name, batchCount);
+            }
+
+            if (batchCount >= batchSize) {
+                flush();
+            } else if (batchFlush == null) {
+                batchFlush = Scheduler.INSTANCE.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            flush();
+                        /* CHECKSTYLE:OFF */
+                        } catch (RuntimeException e) {
+                        /* CHECKSTYLE:ON */
+                            LOG.error("cannot flush update batch", e);
+                        }
+                    }
+                }, batchDelay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException(name + " is closed");
+        }
+    }
+
+    /**
+     * Sends all queued updates as one message.
+     */
+    void flush() {
+        synchronized (batchLock) {
+            if (batchFlush != null) {
+                batchFlush.cancel(false);
+                batchFlush = null;
+            }
+            if (batchCount == 0) {
+                return;
+            }
+            if (LOG.isTraceEnabled())
+                LOG.trace("flush(" + batchCount + ")");
+
+            final MessageBuffer buffer = new MessageBuffer(prefix, 64 * batchCount);
+            final DataOutputStream out = new DataOutputStream(buffer);
+            final int count = batchCount;
+            final ReplicationLevel level = batchLevel;
+            final List<SettableReplicationFuture<?>> futures = batchFutures.isEmpty() ? null
+                    : new ArrayList<SettableReplicationFuture<?>>(batchFutures);
+            try {
+                Varints.writeUnsignedInt(out, batchCount);
+                for (ClusterUpdate<A, P> update: batch) {
+                    if (update != null) {
+                        encode(update.getActionIdentifier(), update.getPayload(), out, buffer);
+                    }
+                }
+            } catch (IOException e) {
+                fail(futures, e);
+                throw new IllegalArgumentException(e);
+            } finally {
+                batch.clear();
+                batchIndex.clear();
+                batchCount = 0;
+                batchFutures.clear();
+                batchLevel = ReplicationLevel.SENT;
+                if (metrics != null) {
+                    metrics.batchQueueChanged(name, 0);
+                }
+            }
+            send(new Outgoing(BATCH, buffer, count, level, futures, null));
+        }
+    }
+
+    private void encode(A action, P payload, DataOutputStream out, MessageBuffer buffer) throws IOException {
+        if (metrics == null) {
+            codec.writeUpdate(action, payload, out);
+            return;
+        }
+        final int size = buffer.size();
+        final long start = System.nanoTime();
+        codec.writeUpdate(action, payload, out);
+        metrics.updateEncoded(name, action, buffer.size() - size, System.nanoTime() - start);
+    }
+
+    /**
+     * Sends a message right away, after all asynchronous ones queued before.
+     */
+    private void send(Outgoing message) {
+        synchronized (sendLock) {
+            drainOutbox();
+            transmit(message);
+        }
+    }
+
+    /**
+     * Sends all queued asynchronous messages. Their futures get failed if
+     * sending fails. The caller has to hold the send lock.
+     */
+    private void drainOutbox() {
+        Outgoing message;
+        while ((message = outbox.poll()) != null) {
+            try {
+                transmit(message);
+            /* CHECKSTYLE:OFF */
+            } catch (RuntimeException e) {
+            /* CHECKSTYLE:ON */
+                LOG.error("cannot send asynchronous update of " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Numbers and sends a message. The caller has to hold the send lock.
+     */
+    private void transmit(Outgoing message) {
+        final long next = sequence + 1;
+        final MessageBuffer buffer = message.buffer;
+        PendingAck ack = null;
+        int type = message.type;
+        if (message.level != ReplicationLevel.SENT) {
+            ack = new PendingAck(message.level, hostingMembers(), message.futures);
+            if (!ack.isSatisfied()) {
+                type |= ACK_REQUESTED;
+                // register first, the acknowledgements may arrive before send returns
+                pendingAcks.put(next, ack);
+            }
+        }
+        if (message.delivery != null) {
+            deliveries.put(next, message.delivery);
+        }
+        final int offset = buffer.writeHeader(type, memberId, next);
+        final int length = buffer.size() - offset;
         try {
-            channel.send(new Message(null, null, buffer));
-        } catch (ChannelNotConnectedException e) {
-            throw new IllegalStateException(e);
-        } catch (ChannelClosedException e) {
-            throw new IllegalStateException(e);
+            context.send(null, buffer.array(), offset, length);
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            pendingAcks.remove(next);
+            fail(message.futures, e);
+            if (message.delivery != null) {
+                deliveries.remove(next);
+                message.delivery.future.fail(e);
+            }
+            throw e;
+        }
+        if (metrics != null) {
+            metrics.messageSent(name, message.updates, length);
+        }
+        sequence = next;
+        if (!isOrdered()) {
+            // we do not receive our own messages, so log them directly
+            logApplied(memberId, next, buffer.array(), offset + prefix.length, length - prefix.length);
+        }
+        if (ack == null || ack.isSatisfied()) {
+            succeed(message.futures);
+        }
+    }
+
+    /**
+     * @return the other members of the view which host the collection
+     */
+    private List<Address> hostingMembers() {
+        final Channel channel = context.getChannel();
+        final View view = channel.getView();
+        final List<Address> members = new ArrayList<Address>();
+        if (view != null) {
+            for (Address member: view.getMembers()) {
+                if (hosts.contains(member) && !member.equals(channel.getAddress())) {
+                    members.add(member);
+                }
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Records a member which hosts the collection, e.g. because it sent an update.
+     */
+    private void hosted(Address member) {
+        if (member != null && !member.equals(context.getChannel().getAddress())) {
+            hosts.add(member);
+        }
+    }
+
+    /**
+     * Stops waiting for members which do not host the collection anymore.
+     */
+    private void hostsChanged() {
+        final List<Address> members = hostingMembers();
+        for (Map.Entry<Long, PendingAck> entry: pendingAcks.entrySet()) {
+            final PendingAck ack = entry.getValue();
+            if (ack.membersChanged(members) && pendingAcks.remove(entry.getKey(), ack)) {
+                succeed(ack.futures);
+            }
+        }
+    }
+
+    private static void succeed(List<SettableReplicationFuture<?>> futures) {
+        if (futures != null) {
+            for (SettableReplicationFuture<?> future: futures) {
+                future.succeed();
+            }
         }
     }
 
+    private static void fail(List<SettableReplicationFuture<?>> futures, Throwable cause) {
+        if (futures != null) {
+            for (SettableReplicationFuture<?> future: futures) {
+                future.fail(cause);
+            }
+        }
+    }
+
+    /**
+     * Tells the sender of an update that it was applied.
+     */
+    private void acknowledge(Address target, long member, long seq) {
+        sendControl(target, ACK, member, seq);
+    }
+
+    /**
+     * Sends a message without updates.
+     *
+     * @param target the receiver, {@code null} for all members
+     */
+    private void sendControl(Address target, int type, long member, long seq) {
+        final byte[] message = new byte[prefix.length + 1 + 8 + Varints.sizeOfUnsignedLong(seq)];
+        System.arraycopy(prefix, 0, message, 0, prefix.length);
+        int position = prefix.length;
+        message[position++] = (byte) type;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            message[position++] = (byte) (member >>> shift);
+        }
+        Varints.writeUnsignedLong(message, position, seq);
+        context.send(target, message, 0, message.length);
+    }
+
+    /**
+     * Counts an acknowledgement of one of our updates.
+     */
+    private void acknowledged(Address source, long seq) {
+        final PendingAck ack = pendingAcks.get(seq);
+        if (ack != null && ack.acknowledge(source) && pendingAcks.remove(seq) != null) {
+            succeed(ack.futures);
+        }
+    }
+
+    /**
+     * Applies an update message, or queues it during a state transfer.
+     */
     @Override
-    public void viewAccepted(View new_view) {
-        if (LOG.isTraceEnabled())
-            LOG.trace("viewAccepted(" + new_view + ")");
+    public void receive(Address source, byte[] buffer, int offset, int length) {
+        final Received<A, P> received = applier == null ? null : decode(source, buffer, offset, length);
+        synchronized (stateLock) {
+            if (heldBack != null) {
+                heldBack.add(new Message(null, source, buffer, offset, length));
+                if (metrics != null) {
+                    metrics.heldBackQueueChanged(name, heldBack.size());
+                }
+                return;
+            }
+            if (applier != null) {
+                // queue while holding the lock, so that holding back waits for everything queued before
+                enqueue(received);
+                return;
+            }
+        }
+        process(source, buffer, offset, length);
     }
 
     @Override
-    public void suspect(Address suspected_mbr) {
+    public void viewAccepted(View view) {
+        // merges are handled by the context, only stop waiting for members which left
+        hosts.retainAll(view.getMembers());
+        hostsChanged();
+        if (view instanceof MergeView) {
+            // the hosts of the other partitions never heard of us
+            sendControl(null, HOSTED | ACK_REQUESTED, memberId, 0);
+        }
+    }
+
+    /**
+     * Queues all received updates until {@link #releaseUpdates()} gets called.
+     */
+    private void holdBackUpdates() {
+        synchronized (stateLock) {
+            heldBack = new ArrayList<Message>();
+        }
+        if (applier != null) {
+            // the state must not be overtaken by updates received before
+            applier.awaitIdle();
+        }
+    }
+
+    /**
+     * Applies all held back updates and resumes direct processing.
+     */
+    private void releaseUpdates() {
+        synchronized (stateLock) {
+            if (heldBack == null) {
+                return;
+            }
+            if (LOG.isTraceEnabled())
+                LOG.trace("releaseUpdates(" + heldBack.size() + ")");
+            // keep the lock, so that no newer update overtakes the held back ones
+            final List<Message> messages = heldBack;
+            heldBack = null;
+            for (Message message: messages) {
+                if (applier != null) {
+                    enqueue(decode(message.getSrc(), message.getRawBuffer(), message.getOffset(), message.getLength()));
+                } else {
+                    process(message);
+                }
+            }
+            if (metrics != null) {
+                metrics.heldBackQueueChanged(name, 0);
+            }
+        }
+    }
+
+    private void process(Message msg) {
+        process(msg.getSrc(), msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+    }
+
+    /**
+     * Applies an update message.
+     *
+     * @param source the sender to acknowledge the update to, {@code null} if
+     *               the message is replayed from a state
+     */
+    private void process(Address source, byte[] buffer, int offset, int length) {
+        final Received<A, P> received = decode(source, buffer, offset, length);
+        if (received != null) {
+            apply(received);
+        }
+    }
+
+    /**
+     * Queues a decoded message for the apply executor.
+     */
+    private void enqueue(final Received<A, P> received) {
+        if (received != null) {
+            applier.execute(new Runnable() {
+                @Override
+                public void run() {
+                    apply(received);
+                }
+            });
+        }
+    }
+
+    /**
+     * Decodes an update message. Acknowledgements are handled right away.
+     *
+     * @param source the sender to acknowledge the update to, {@code null} if
+     *               the message is replayed from a state
+     * @return the decoded message or {@code null} if there is nothing to apply
+     */
+    private Received<A, P> decode(Address source, byte[] buffer, int offset, int length) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, offset, length));
+        try {
+            final int flags = in.readUnsignedByte();
+            final int type = flags & ~ACK_REQUESTED;
+            final long member = in.readLong();
+            final long seq = Varints.readUnsignedLong(in);
+            if (type == HOSTED || type == UNHOSTED) {
+                if (member != memberId) {
+                    if (type == HOSTED) {
+                        hosted(source);
+                    } else if (source != null && hosts.remove(source)) {
+                        hostsChanged();
+                    }
+                    if ((flags & ACK_REQUESTED) != 0 && source != null) {
+                        sendControl(source, HOSTED, memberId, 0);
+                    }
+                }
+                return null;
+            }
+            if (type == ACK) {
+                // may be sent after the announcement of a close, so it does not count as hosting
+                if (member == memberId) {
+                    acknowledged(source, seq);
+                }
+                return null;
+            }
+            hosted(source);
+            final boolean acknowledge = (flags & ACK_REQUESTED) != 0 && source != null && member != memberId;
+            if (skipApplied(source, member, seq, acknowledge)) {
+                return null;
+            }
+            final List<ClusterUpdate<A, P>> updates;
+            switch (type) {
+                case UPDATE:
+                    updates = Collections.singletonList(decode(in));
+                    break;
+                case BATCH:
+                    final int count = Varints.readUnsignedInt(in);
+                    updates = new ArrayList<ClusterUpdate<A, P>>(count);
+                    for (int n = 0; n < count; n++) {
+                        updates.add(decode(in));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown message type " + type);
+            }
+            return new Received<A, P>(source, type, member, seq, acknowledge, updates, buffer, offset, length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Checks for a duplicate, which is only acknowledged again.
+     */
+    private boolean skipApplied(Address source, long member, long seq, boolean acknowledge) {
+        if (!updateLog.isApplied(member, seq)) {
+            return false;
+        }
         if (LOG.isTraceEnabled())
-            LOG.trace("suspect(" + suspected_mbr + ")");
+            LOG.trace("skipping already applied update " + Long.toHexString(member) + ":" + seq);
+        if (acknowledge) {
+            acknowledge(source, member, seq);
+        }
+        return true;
+    }
+
+    /**
+     * Applies a decoded message.
+     */
+    private void apply(Received<A, P> received) {
+        // a queued message may have been applied meanwhile, e.g. as part of a state
+        if (applier != null && skipApplied(received.source, received.member, received.seq, received.acknowledge)) {
+            return;
+        }
+        final long start = metrics == null ? 0 : System.nanoTime();
+        // always recorded, a listener or query may be added while the update is applied
+        final ClusterEvents<?, ?> observed = events;
+        if (observed != null) {
+            observed.begin(received.source, received.seq);
+        }
+        Object result = null;
+        RuntimeException failure = null;
+        Runnable delivery = null;
+        // a state copy must not see the update without its version or the other way round
+        synchronized (applyLock) {
+            try {
+                if (received.type == UPDATE) {
+                    final ClusterUpdate<A, P> update = received.updates.get(0);
+                    if (isOrdered()) {
+                        try {
+                            result = managed.handleUpdate(update.getActionIdentifier(), update.getPayload());
+                        /* CHECKSTYLE:OFF */
+                        } catch (RuntimeException e) {
+                        /* CHECKSTYLE:ON */
+                            // every member fails the same way, the sender gets to know it
+                            if (LOG.isDebugEnabled())
+                                LOG.debug("cannot apply ordered update of " + name, e);
+                            failure = e;
+                        }
+                    } else {
+                        result = managed.handleUpdate(update.getActionIdentifier(), update.getPayload());
+                    }
+                } else {
+                    managed.handleUpdates(received.updates);
+                }
+            /* CHECKSTYLE:OFF */
+            } catch (RuntimeException e) {
+            /* CHECKSTYLE:ON */
+                // the version still counts, otherwise the following updates of the sender would wait for it
+                LOG.error("cannot apply update of " + name, e);
+            } finally {
+                if (observed != null) {
+                    delivery = observed.end();
+                }
+            }
+            logApplied(received.member, received.seq, received.buffer, received.offset, received.length);
+        }
+        if (metrics != null) {
+            metrics.messageReceived(name, received.updates.size(), received.length, System.nanoTime() - start);
+        }
+        if (received.acknowledge) {
+            acknowledge(received.source, received.member, received.seq);
+        }
+        if (received.member == memberId) {
+            final Delivery<?> ordered = deliveries.remove(received.seq);
+            if (ordered != null && failure != null) {
+                ordered.failed(failure);
+            } else if (ordered != null) {
+                ordered.delivered(result);
+            }
+        }
+        if (delivery != null) {
+            if (callbacks == null) {
+                delivery.run();
+            } else {
+                // events must not get lost, so they ignore the overflow policy
+                callbacks.execute(delivery);
+            }
+        }
+    }
+
+    /**
+     * Lets the collection report the changes of the applied updates.
+     *
+     * @param events the events of the collection
+     */
+    void observe(ClusterEvents<?, ?> events) {
+        this.events = events;
+    }
+
+    /**
+     * Records an applied update message in the update log and the persistent state.
+     */
+    private void logApplied(long member, long seq, byte[] buffer, int offset, int length) {
+        updateLog.append(member, seq, buffer, offset, length);
+        if (persistentState != null) {
+            persistentState.append(buffer, offset, length);
+        }
+    }
+
+    private ClusterUpdate<A, P> decode(DataInputStream in) throws IOException {
+        if (metrics == null) {
+            return codec.readUpdate(in);
+        }
+        final int available = in.available();
+        final long start = System.nanoTime();
+        final ClusterUpdate<A, P> update = codec.readUpdate(in);
+        metrics.updateDecoded(name, update.getActionIdentifier(), available - in.available(),
+                System.nanoTime() - start);
+        return update;
     }
 
+    /**
+     * Invokes the update callback of the collection, or queues it for the
+     * callback executor.
+     *
+     * @param callback the callback
+     */
+    void notifyCallback(final ClusterUpdateCallback callback) {
+        if (callbacks == null) {
+            invokeCallback(callback);
+            return;
+        }
+        final boolean queued = callbacks.submit(new Runnable() {
+            @Override
+            public void run() {
+                invokeCallback(callback);
+            }
+        }, callbackOverflow);
+        if (!queued && LOG.isTraceEnabled())
+            LOG.trace("discarding callback of " + name);
+    }
+
+    private void invokeCallback(ClusterUpdateCallback callback) {
+        if (metrics == null) {
+            callback.clusterUpdated();
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            callback.clusterUpdated();
+        } finally {
+            metrics.callbackInvoked(name, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Provides the state for another member.
+     *
+     * @param versions the encoded version vector of the requesting member
+     * @return the state
+     */
     @Override
-    public void block() {
+    public byte[] getState(String versions) {
         if (LOG.isTraceEnabled())
-            LOG.trace("block()");
+            LOG.trace("getState(" + name + ", " + versions + ")");
+        final long start = metrics == null ? 0 : System.nanoTime();
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final boolean delta;
+        try {
+            delta = writeState(versions, new DataOutputStream(buffer), false);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        if (metrics != null) {
+            metrics.stateSent(name, delta, buffer.size(), System.nanoTime() - start);
+        }
+        return buffer.toByteArray();
     }
 
+    /**
+     * Applies the state provided by another member.
+     *
+     * @param state the state
+     */
     @Override
-    @SuppressWarnings("unchecked")
-    public void receive(Message msg) {
+    public void setState(byte[] state) {
         if (LOG.isTraceEnabled())
-            LOG.trace("receive(" + msg + ")");
-
-        final ClusterUpdate<A, P> update;
+            LOG.trace("setState(" + name + ", ...)");
+        final long start = metrics == null ? 0 : System.nanoTime();
+        final boolean delta;
         try {
-            update = (ClusterUpdate) Util.objectFromByteBuffer(msg.getBuffer());
-        /* CHECKSTYLE:OFF */
-        } catch (Exception e) {
-        /* CHECKSTYLE:ON */
+            delta = readState(new DataInputStream(new ByteArrayInputStream(state)), false);
+        } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
-
-        managed.handleUpdate(update.getActionIdentifier(), update.getPayload());
+        if (metrics != null) {
+            metrics.stateReceived(name, delta, state.length, System.nanoTime() - start);
+        }
     }
 
+    /**
+     * Streams the state in chunks to another member and closes the stream.
+     *
+     * @param versions the encoded version vector of the requesting member
+     * @param ostream the target
+     */
     @Override
-    public byte[] getState() {
+    public void getState(String versions, OutputStream ostream) {
         if (LOG.isTraceEnabled())
-            LOG.trace("getState()");
+            LOG.trace("getState(" + name + ", " + versions + ", OutputStream)");
+        final long start = metrics == null ? 0 : System.nanoTime();
+        final CountingOutputStream counter = metrics == null ? null : new CountingOutputStream(ostream);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                counter == null ? ostream : counter));
         try {
-            return Util.objectToByteBuffer(managed.provideClusterState());
-        /* CHECKSTYLE:OFF */
-        } catch (Exception e) {
-        /* CHECKSTYLE:ON */
+            final boolean delta = writeState(versions, out, true);
+            out.flush();
+            if (counter != null) {
+                metrics.stateSent(name, delta, counter.count, System.nanoTime() - start);
+            }
+        } catch (IOException e) {
             throw new IllegalArgumentException(e);
+        } finally {
+            close(out);
         }
     }
 
+    /**
+     * Applies a streamed state and closes the stream.
+     *
+     * @param istream the source
+     */
     @Override
-    @SuppressWarnings("unchecked")
-    public void setState(byte[] state) {
+    public void setState(InputStream istream) {
         if (LOG.isTraceEnabled())
-            LOG.trace("setState(...)");
+            LOG.trace("setState(" + name + ", InputStream)");
+        final long start = metrics == null ? 0 : System.nanoTime();
+        final CountingInputStream counter = metrics == null ? null : new CountingInputStream(istream);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(counter == null ? istream : counter));
+        try {
+            final boolean delta = readState(in, true);
+            if (counter != null) {
+                metrics.stateReceived(name, delta, counter.count, System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes either the updates the requesting member misses or the complete state.
+     *
+     * @param versions the encoded version vector of the requesting member
+     * @param out the target
+     * @param chunked whether to split the complete state into chunks
+     * @return whether only the missed updates were written
+     * @throws IOException if writing fails
+     */
+    private boolean writeState(String versions, DataOutputStream out, boolean chunked) throws IOException {
+        final List<UpdateLog.Entry> delta = updateLog.getDelta(UpdateLog.fromStateId(versions));
+        if (delta != null) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("providing " + delta.size() + " missed updates");
+            out.writeByte(DELTA_STATE);
+            Varints.writeUnsignedInt(out, delta.size());
+            for (UpdateLog.Entry entry: delta) {
+                Varints.writeUnsignedInt(out, entry.length);
+                out.write(entry.buffer, entry.offset, entry.length);
+            }
+            return true;
+        }
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("providing complete state");
+        out.writeByte(FULL_STATE);
+        writeCompleteState(out, chunked);
+        return false;
+    }
+
+    /**
+     * Writes the version vector followed by the state of the collection. A
+     * chunked state is written while the collection stays locked, so that the
+     * chunks can be read from the live collection instead of a copy.
+     */
+    private void writeCompleteState(DataOutputStream out, boolean chunked) throws IOException {
+        final StateCopy copy = new StateCopy(chunked ? out : null);
+        synchronized (applyLock) {
+            managed.runExclusively(copy);
+        }
+        if (copy.failure != null) {
+            throw copy.failure;
+        }
+        if (!chunked) {
+            UpdateLog.writeVersions(out, copy.versions);
+            codec.writeState(copy.state, out);
+        }
+    }
+
+    /**
+     * Reads what {@link #writeState(String, DataOutputStream, boolean)} wrote.
+     *
+     * @param in the source
+     * @param chunked whether the complete state is split into chunks
+     * @return whether only the missed updates were read
+     * @throws IOException if reading fails
+     */
+    private boolean readState(DataInputStream in, boolean chunked) throws IOException {
+        final int type = in.readUnsignedByte();
+        switch (type) {
+            case DELTA_STATE:
+                final int count = Varints.readUnsignedInt(in);
+                for (int n = 0; n < count; n++) {
+                    final byte[] message = new byte[Varints.readUnsignedInt(in)];
+                    in.readFully(message);
+                    process(null, message, 0, message.length);
+                }
+                return true;
+            case FULL_STATE:
+                readCompleteState(in, chunked);
+                if (persistentState != null) {
+                    // the logged updates do not lead to this state
+                    persistentState.reset();
+                }
+                return false;
+            default:
+                throw new IllegalArgumentException("unknown state type " + type);
+        }
+    }
+
+    /**
+     * Reads what {@link #writeCompleteState(DataOutputStream, boolean)} wrote.
+     */
+    private void readCompleteState(DataInputStream in, boolean chunked) throws IOException {
+        final Map<Long, Long> versions = UpdateLog.readVersions(in);
+        synchronized (applyLock) {
+            if (chunked) {
+                managed.beginClusterState();
+                while (in.readBoolean()) {
+                    managed.applyClusterStateChunk(codec.readState(in));
+                }
+                managed.endClusterState();
+            } else {
+                managed.updateClusterState(codec.readState(in));
+            }
+            updateLog.reset(versions);
+        }
+    }
+
+    /**
+     * In {@link ConsistencyMode#TOTAL_ORDER}, updates are applied when they
+     * come back from the group, so the manager receives its own messages.
+     */
+    @Override
+    public boolean receivesOwnMessages() {
+        return isOrdered();
+    }
+
+    /**
+     * Sends the pending updates, announces that this member stops hosting the
+     * collection and unregisters the statistics of the collection. Later
+     * updates are rejected.
+     */
+    @Override
+    public void close() {
+        closed = true;
         try {
-            managed.updateClusterState((S) Util.objectFromByteBuffer(state));
+            flush();
+            synchronized (sendLock) {
+                drainOutbox();
+                sendControl(null, UNHOSTED, memberId, 0);
+            }
         /* CHECKSTYLE:OFF */
-        } catch (Exception e) {
+        } catch (RuntimeException e) {
         /* CHECKSTYLE:ON */
-            throw new IllegalArgumentException(e);
+            LOG.debug("cannot announce the close of " + name, e);
+        }
+        if (statistics != null) {
+            statistics.unregister();
+        }
+        if (persistentState != null) {
+            persistentState.close();
+        }
+        final IllegalStateException closed = new IllegalStateException("closed before acknowledged");
+        for (Long seq: pendingAcks.keySet()) {
+            final PendingAck ack = pendingAcks.remove(seq);
+            if (ack != null) {
+                fail(ack.futures, closed);
+            }
+        }
+        for (Long seq: deliveries.keySet()) {
+            final Delivery<?> delivery = deliveries.remove(seq);
+            if (delivery != null) {
+                delivery.future.fail(closed);
+            }
+        }
+    }
+
+    static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.warn("cannot close state stream", e);
+        }
+    }
+
+    /**
+     * Lazily creates the single timer thread which flushes the batches and
+     * runs the housekeeping of all instances.
+     */
+    static final class Scheduler {
+        static final ScheduledExecutorService INSTANCE = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ClusterManager-Scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sends the asynchronous updates of all instances.
+     */
+    private static final class Sender {
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ClusterManager-Sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * An encoded message waiting to be numbered and sent.
+     */
+    private static final class Outgoing {
+        final int type;
+        final MessageBuffer buffer;
+        final int updates;
+        final ReplicationLevel level;
+        final List<SettableReplicationFuture<?>> futures;
+
+        final Delivery<?> delivery;
+
+        Outgoing(int type, MessageBuffer buffer, int updates, ReplicationLevel level,
+                 List<SettableReplicationFuture<?>> futures, Delivery<?> delivery) {
+            this.type = type;
+            this.buffer = buffer;
+            this.updates = updates;
+            this.level = level;
+            this.futures = futures;
+            this.delivery = delivery;
+        }
+    }
+
+    /**
+     * Takes the version vector together with a copy of the state. Runs while
+     * neither remote nor local updates can change the collection, and sends
+     * the pending local updates first, so that the versions count exactly
+     * the updates the copy contains. A chunked state is written right away
+     * instead of being copied.
+     */
+    private final class StateCopy implements Runnable {
+        private final DataOutputStream chunkedOut;
+        private Map<Long, Long> versions;
+        private S state;
+        private IOException failure;
+
+        StateCopy(DataOutputStream chunkedOut) {
+            this.chunkedOut = chunkedOut;
+        }
+
+        @Override
+        public void run() {
+            flush();
+            synchronized (sendLock) {
+                drainOutbox();
+                versions = updateLog.getVersions();
+            }
+            if (chunkedOut == null) {
+                state = managed.provideClusterState();
+                return;
+            }
+            try {
+                UpdateLog.writeVersions(chunkedOut, versions);
+                final Iterator<S> chunks = managed.provideClusterStateChunks(stateChunkSize);
+                while (chunks.hasNext()) {
+                    chunkedOut.writeBoolean(true);
+                    codec.writeState(chunks.next(), chunkedOut);
+                }
+                chunkedOut.writeBoolean(false);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * A decoded update message waiting to be applied.
+     */
+    private static final class Received<A, P> {
+        final Address source;
+        final int type;
+        final long member;
+        final long seq;
+        final boolean acknowledge;
+        final List<ClusterUpdate<A, P>> updates;
+        final byte[] buffer;
+        final int offset;
+        final int length;
+
+        Received(Address source, int type, long member, long seq, boolean acknowledge,
+                 List<ClusterUpdate<A, P>> updates, byte[] buffer, int offset, int length) {
+            this.source = source;
+            this.type = type;
+            this.member = member;
+            this.seq = seq;
+            this.acknowledge = acknowledge;
+            this.updates = updates;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * An ordered update waiting to be delivered back, and optionally to be
+     * acknowledged by the other members.
+     */
+    private static final class Delivery<T> implements Runnable {
+        final SettableReplicationFuture<T> future = new SettableReplicationFuture<T>(null);
+        private final SettableReplicationFuture<Void> acknowledged;
+        private boolean delivered;
+        private T result;
+
+        Delivery(SettableReplicationFuture<Void> acknowledged) {
+            this.acknowledged = acknowledged;
+            if (acknowledged != null) {
+                acknowledged.addListener(this, SettableReplicationFuture.DIRECT);
+            }
+        }
+
+        void failed(Throwable cause) {
+            future.fail(cause);
+        }
+
+        @SuppressWarnings("unchecked")
+        void delivered(Object value) {
+            synchronized (this) {
+                delivered = true;
+                result = (T) value;
+            }
+            run();
+        }
+
+        @Override
+        public void run() {
+            if (acknowledged != null && acknowledged.isDone()) {
+                try {
+                    acknowledged.get();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                } catch (ExecutionException e) {
+                    future.fail(e.getCause());
+                    return;
+                }
+            }
+            final T value;
+            synchronized (this) {
+                if (!delivered || (acknowledged != null && !acknowledged.isDone())) {
+                    return;
+                }
+                value = result;
+            }
+            future.succeed(value);
+        }
+    }
+
+    /**
+     * The hosting members which still have to acknowledge a sent update. The
+     * required number is recomputed over the remaining hosts whenever hosts
+     * leave.
+     */
+    private static final class PendingAck {
+        final List<SettableReplicationFuture<?>> futures;
+        private final ReplicationLevel level;
+        private final Set<Address> awaited;
+        private final Set<Address> acknowledged = new HashSet<Address>();
+
+        PendingAck(ReplicationLevel level, List<Address> hosts, List<SettableReplicationFuture<?>> futures) {
+            this.level = level;
+            this.awaited = new HashSet<Address>(hosts);
+            this.futures = futures;
+        }
+
+        synchronized boolean acknowledge(Address source) {
+            if (awaited.remove(source)) {
+                acknowledged.add(source);
+            }
+            return isSatisfied();
+        }
+
+        synchronized boolean membersChanged(List<Address> hosts) {
+            awaited.retainAll(hosts);
+            acknowledged.retainAll(hosts);
+            return isSatisfied();
+        }
+
+        synchronized boolean isSatisfied() {
+            if (level == ReplicationLevel.ALL) {
+                return awaited.isEmpty();
+            }
+            // a majority of the remaining hosts including ourself
+            return acknowledged.size() >= (acknowledged.size() + awaited.size() + 1) / 2;
+        }
+    }
+
+    /**
+     * Counts the bytes of a streamed state.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Counts the bytes of a streamed state.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = in.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Leaves room in front of the encoded updates, so that the header can be
+     * written once the sequence is known without copying the message.
+     */
+    private static final class MessageBuffer extends ByteArrayOutputStream {
+
+        private final byte[] prefix;
+
+        MessageBuffer(byte[] prefix, int size) {
+            super(prefix.length + HEADER_SIZE + size);
+            this.prefix = prefix;
+            count = prefix.length + HEADER_SIZE;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        /**
+         * Writes the collection name and the header directly in front of the
+         * encoded updates.
+         *
+         * @return the offset of the message
+         */
+        int writeHeader(int type, long member, long sequence) {
+            final int offset = HEADER_SIZE - 9 - Varints.sizeOfUnsignedLong(sequence);
+            int position = offset + prefix.length;
+            System.arraycopy(prefix, 0, buf, offset, prefix.length);
+            buf[position++] = (byte) type;
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[position++] = (byte) (member >>> shift);
+            }
+            Varints.writeUnsignedLong(buf, position, sequence);
+            return offset;
         }
     }
 
     @Override
     public String toString() {
         return "ClusterManager{" +
-                "channel=" + channel +
+                "name=" + name +
+                ", channel=" + context.getChannel() +
                 '}';
     }
 }
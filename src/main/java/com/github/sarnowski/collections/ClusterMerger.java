@@ -0,0 +1,39 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.Serializable;
+
+/**
+ * Combines the current value of a key with a given one for
+ * {@link ClusteredConcurrentMap#mergeReplicated(Object, Object, ClusterMerger)}. With
+ * {@link ConsistencyMode#TOTAL_ORDER} every member applies the merger
+ * itself, which is why it has to be serializable and deterministic.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <V> the value type
+ */
+public interface ClusterMerger<V> extends Serializable {
+
+    /**
+     * @param value the current value
+     * @param given the value passed to the merge
+     * @return the new value, {@code null} to remove the key
+     */
+    V merge(V value, V given);
+
+}
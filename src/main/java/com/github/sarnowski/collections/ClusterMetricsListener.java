@@ -0,0 +1,119 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * Receives the measurements of a replicated collection, for example to feed
+ * them into a metrics registry. The methods are called on the replication
+ * path, so implementations have to be thread safe and fast; they must not
+ * throw.
+ *
+ * <p>
+ * All times are in nanoseconds, all sizes in bytes. The action is the
+ * action identifier of the collection, for example
+ * {@code ReplicatedClusteredMap.MapActions.PUT}, and can be used as a tag.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterConfiguration#setMetricsListener(ClusterMetricsListener)
+ */
+public interface ClusterMetricsListener {
+
+    /**
+     * An update was serialized for sending.
+     *
+     * @param collection the collection name
+     * @param action the action of the update
+     * @param bytes the size of the serialized update
+     * @param nanos the serialization time
+     */
+    void updateEncoded(String collection, Object action, int bytes, long nanos);
+
+    /**
+     * A received update was deserialized.
+     *
+     * @param collection the collection name
+     * @param action the action of the update
+     * @param bytes the size of the serialized update
+     * @param nanos the deserialization time
+     */
+    void updateDecoded(String collection, Object action, int bytes, long nanos);
+
+    /**
+     * A message with one or more updates was sent.
+     *
+     * @param collection the collection name
+     * @param updates the number of updates in the message
+     * @param bytes the size of the message
+     */
+    void messageSent(String collection, int updates, int bytes);
+
+    /**
+     * A message with one or more updates was received and applied.
+     *
+     * @param collection the collection name
+     * @param updates the number of updates in the message
+     * @param bytes the size of the message
+     * @param nanos the time to apply the updates, including the update callback
+     */
+    void messageReceived(String collection, int updates, int bytes, long nanos);
+
+    /**
+     * The update callback of the collection returned.
+     *
+     * @param collection the collection name
+     * @param nanos the time spent in the callback
+     */
+    void callbackInvoked(String collection, long nanos);
+
+    /**
+     * The state was provided to another member.
+     *
+     * @param collection the collection name
+     * @param delta whether only missed updates were sent
+     * @param bytes the size of the state
+     * @param nanos the time to write the state
+     */
+    void stateSent(String collection, boolean delta, long bytes, long nanos);
+
+    /**
+     * A state was received and applied.
+     *
+     * @param collection the collection name
+     * @param delta whether only missed updates were received
+     * @param bytes the size of the state
+     * @param nanos the time to read and apply the state
+     */
+    void stateReceived(String collection, boolean delta, long bytes, long nanos);
+
+    /**
+     * The number of updates waiting for the next batch changed.
+     *
+     * @param collection the collection name
+     * @param depth the number of queued updates
+     */
+    void batchQueueChanged(String collection, int depth);
+
+    /**
+     * The number of messages held back during a state transfer changed.
+     *
+     * @param collection the collection name
+     * @param depth the number of held back messages
+     */
+    void heldBackQueueChanged(String collection, int depth);
+
+}
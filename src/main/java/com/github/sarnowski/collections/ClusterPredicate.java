@@ -0,0 +1,41 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.Serializable;
+
+/**
+ * Selects the entries of a {@link ContinuousQuery}. The predicate is
+ * evaluated while an update is applied, so it has to be fast and must not
+ * access the map. A partitioned map sends it to the members owning the
+ * entries, which is why it has to be serializable.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusteredMap#addContinuousQuery(ClusterPredicate, ClusterEventListener)
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public interface ClusterPredicate<K, V> extends Serializable {
+
+    /**
+     * @param key the key of the entry
+     * @param value the value of the entry, never {@code null}
+     * @return if the entry belongs to the result
+     */
+    boolean evaluate(K key, V value);
+
+}
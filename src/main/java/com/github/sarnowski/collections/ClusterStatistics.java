@@ -0,0 +1,337 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates the measurements of one collection for JMX and passes them on
+ * to the configured listener.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterStatisticsMXBean
+ */
+final class ClusterStatistics implements ClusterMetricsListener, ClusterStatisticsMXBean {
+
+    private static final Log LOG = LogFactory.getLog(ClusterStatistics.class);
+
+    private static final String DOMAIN = "com.github.sarnowski.collections";
+
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final ConcurrentMap<Object, ActionCounter> sent = new ConcurrentHashMap<Object, ActionCounter>();
+    private final ConcurrentMap<Object, ActionCounter> received = new ConcurrentHashMap<Object, ActionCounter>();
+    private final Histogram encodeTime = new Histogram();
+    private final Histogram decodeTime = new Histogram();
+    private final Histogram applyTime = new Histogram();
+    private final Histogram callbackTime = new Histogram();
+    private final AtomicLong statesSent = new AtomicLong();
+    private final AtomicLong statesReceived = new AtomicLong();
+    private final Histogram stateSize = new Histogram();
+    private final Histogram stateTransferTime = new Histogram();
+    private volatile int batchQueueDepth;
+    private volatile int heldBackQueueDepth;
+
+    private final ClusterMetricsListener delegate;
+    private ObjectName objectName;
+
+    /**
+     * @param delegate the configured listener, may be {@code null}
+     */
+    ClusterStatistics(ClusterMetricsListener delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Registers the statistics with the platform MBean server. A failed
+     * registration is logged, the collection works without it.
+     *
+     * @param cluster the cluster name
+     * @param collection the collection name
+     * @param member the address of the local member
+     */
+    void register(String cluster, String collection, String member) {
+        try {
+            final ObjectName name = new ObjectName(DOMAIN + ":type=ClusterStatistics" +
+                    ",cluster=" + ObjectName.quote(String.valueOf(cluster)) +
+                    ",collection=" + ObjectName.quote(collection) +
+                    ",member=" + ObjectName.quote(String.valueOf(member)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            LOG.warn("cannot register statistics of " + collection, e);
+        }
+    }
+
+    /**
+     * Removes the statistics from the platform MBean server.
+     */
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOG.warn("cannot unregister " + objectName, e);
+        }
+        objectName = null;
+    }
+
+    private static ActionCounter counterOf(ConcurrentMap<Object, ActionCounter> counters, Object action) {
+        ActionCounter counter = counters.get(action);
+        if (counter == null) {
+            final ActionCounter created = new ActionCounter();
+            counter = counters.putIfAbsent(action, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    @Override
+    public void updateEncoded(String collection, Object action, int bytes, long nanos) {
+        counterOf(sent, action).add(bytes);
+        encodeTime.record(nanos);
+        if (delegate != null) {
+            delegate.updateEncoded(collection, action, bytes, nanos);
+        }
+    }
+
+    @Override
+    public void updateDecoded(String collection, Object action, int bytes, long nanos) {
+        counterOf(received, action).add(bytes);
+        decodeTime.record(nanos);
+        if (delegate != null) {
+            delegate.updateDecoded(collection, action, bytes, nanos);
+        }
+    }
+
+    @Override
+    public void messageSent(String collection, int updates, int bytes) {
+        messagesSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+        if (delegate != null) {
+            delegate.messageSent(collection, updates, bytes);
+        }
+    }
+
+    @Override
+    public void messageReceived(String collection, int updates, int bytes, long nanos) {
+        messagesReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+        applyTime.record(nanos);
+        if (delegate != null) {
+            delegate.messageReceived(collection, updates, bytes, nanos);
+        }
+    }
+
+    @Override
+    public void callbackInvoked(String collection, long nanos) {
+        callbackTime.record(nanos);
+        if (delegate != null) {
+            delegate.callbackInvoked(collection, nanos);
+        }
+    }
+
+    @Override
+    public void stateSent(String collection, boolean delta, long bytes, long nanos) {
+        statesSent.incrementAndGet();
+        stateSize.record(bytes);
+        stateTransferTime.record(nanos);
+        if (delegate != null) {
+            delegate.stateSent(collection, delta, bytes, nanos);
+        }
+    }
+
+    @Override
+    public void stateReceived(String collection, boolean delta, long bytes, long nanos) {
+        statesReceived.incrementAndGet();
+        stateSize.record(bytes);
+        stateTransferTime.record(nanos);
+        if (delegate != null) {
+            delegate.stateReceived(collection, delta, bytes, nanos);
+        }
+    }
+
+    @Override
+    public void batchQueueChanged(String collection, int depth) {
+        batchQueueDepth = depth;
+        if (delegate != null) {
+            delegate.batchQueueChanged(collection, depth);
+        }
+    }
+
+    @Override
+    public void heldBackQueueChanged(String collection, int depth) {
+        heldBackQueueDepth = depth;
+        if (delegate != null) {
+            delegate.heldBackQueueChanged(collection, depth);
+        }
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public Map<String, Long> getUpdatesSent() {
+        return countsOf(sent, false);
+    }
+
+    @Override
+    public Map<String, Long> getUpdateBytesSent() {
+        return countsOf(sent, true);
+    }
+
+    @Override
+    public Map<String, Long> getUpdatesReceived() {
+        return countsOf(received, false);
+    }
+
+    @Override
+    public Map<String, Long> getUpdateBytesReceived() {
+        return countsOf(received, true);
+    }
+
+    private static Map<String, Long> countsOf(Map<Object, ActionCounter> counters, boolean bytes) {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<Object, ActionCounter> entry: counters.entrySet()) {
+            final ActionCounter counter = entry.getValue();
+            result.put(String.valueOf(entry.getKey()), bytes ? counter.bytes.get() : counter.updates.get());
+        }
+        return result;
+    }
+
+    @Override
+    public HistogramSnapshot getEncodeTime() {
+        return encodeTime.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getDecodeTime() {
+        return decodeTime.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getApplyTime() {
+        return applyTime.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getCallbackTime() {
+        return callbackTime.snapshot();
+    }
+
+    @Override
+    public long getStatesSent() {
+        return statesSent.get();
+    }
+
+    @Override
+    public long getStatesReceived() {
+        return statesReceived.get();
+    }
+
+    @Override
+    public HistogramSnapshot getStateSize() {
+        return stateSize.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getStateTransferTime() {
+        return stateTransferTime.snapshot();
+    }
+
+    @Override
+    public int getBatchQueueDepth() {
+        return batchQueueDepth;
+    }
+
+    @Override
+    public int getHeldBackQueueDepth() {
+        return heldBackQueueDepth;
+    }
+
+    @Override
+    public void reset() {
+        messagesSent.set(0);
+        bytesSent.set(0);
+        messagesReceived.set(0);
+        bytesReceived.set(0);
+        sent.clear();
+        received.clear();
+        encodeTime.reset();
+        decodeTime.reset();
+        applyTime.reset();
+        callbackTime.reset();
+        statesSent.set(0);
+        statesReceived.set(0);
+        stateSize.reset();
+        stateTransferTime.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterStatistics{" +
+                "objectName=" + objectName +
+                ", messagesSent=" + messagesSent +
+                ", messagesReceived=" + messagesReceived +
+                '}';
+    }
+
+    private static final class ActionCounter {
+        final AtomicLong updates = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        void add(int size) {
+            updates.incrementAndGet();
+            bytes.addAndGet(size);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Map;
+
+/**
+ * The JMX view on the statistics of a replicated collection. One bean is
+ * registered per collection and member under
+ * {@code com.github.sarnowski.collections:type=ClusterStatistics,cluster=...,collection=...,member=...}.
+ * All times are in nanoseconds, all sizes in bytes.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterConfiguration#setJmxEnabled(boolean)
+ */
+public interface ClusterStatisticsMXBean {
+
+    long getMessagesSent();
+
+    long getBytesSent();
+
+    long getMessagesReceived();
+
+    long getBytesReceived();
+
+    /**
+     * @return the number of sent updates per action
+     */
+    Map<String, Long> getUpdatesSent();
+
+    /**
+     * @return the serialized size of the sent updates per action
+     */
+    Map<String, Long> getUpdateBytesSent();
+
+    /**
+     * @return the number of received updates per action
+     */
+    Map<String, Long> getUpdatesReceived();
+
+    /**
+     * @return the serialized size of the received updates per action
+     */
+    Map<String, Long> getUpdateBytesReceived();
+
+    HistogramSnapshot getEncodeTime();
+
+    HistogramSnapshot getDecodeTime();
+
+    /**
+     * @return the time to apply a received message, including the callback
+     */
+    HistogramSnapshot getApplyTime();
+
+    HistogramSnapshot getCallbackTime();
+
+    long getStatesSent();
+
+    long getStatesReceived();
+
+    /**
+     * @return the sizes of sent and received states
+     */
+    HistogramSnapshot getStateSize();
+
+    /**
+     * @return the durations of sent and received states
+     */
+    HistogramSnapshot getStateTransferTime();
+
+    /**
+     * @return the number of updates waiting for the next batch
+     */
+    int getBatchQueueDepth();
+
+    /**
+     * @return the number of messages held back during a state transfer
+     */
+    int getHeldBackQueueDepth();
+
+    /**
+     * Starts all counters and histograms over.
+     */
+    void reset();
+
+}
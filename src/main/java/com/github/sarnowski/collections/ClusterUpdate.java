@@ -15,21 +15,19 @@
  */
 package com.github.sarnowski.collections;
 
-import java.io.Serializable;
-
 /**
- * The transport object of the {@link ClusterManager} within the cluster.
+ * The transport object of the {@link ClusterManager} within the cluster. Its
+ * wire format is defined by the {@link ClusterCodec} of the managed collection.
  *
  * @author Tobias Sarnowski
  * @since 1.0
  * @see ClusterManager
+ * @see ClusterCodec
  * @param <A> generic action type
  * @param <P> generic payload type
  */
-final class ClusterUpdate<A, P> implements Serializable {
-    
-    private static final long serialVersionUID = 4851107754378987870L;
-    
+final class ClusterUpdate<A, P> {
+
     private final A actionIdentifier;
     private final P payload;
 
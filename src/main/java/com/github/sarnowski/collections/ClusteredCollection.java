@@ -26,4 +26,46 @@ import java.util.Collection;
  */
 public interface ClusteredCollection<T> extends Collection<T>, Clustered {
 
+    /**
+     * Adds an element like {@link #add(Object)} without waiting for the
+     * network.
+     *
+     * @param element the element to add
+     * @return the future of the result of {@link #add(Object)}, completing once the update was sent
+     * @since 1.1
+     */
+    ReplicationFuture<Boolean> addAsync(T element);
+
+    /**
+     * Adds an element like {@link #add(Object)} without waiting for the
+     * network.
+     *
+     * @param element the element to add
+     * @param level when to complete the future
+     * @return the future of the result of {@link #add(Object)}
+     * @since 1.1
+     */
+    ReplicationFuture<Boolean> addAsync(T element, ReplicationLevel level);
+
+    /**
+     * Removes an element like {@link #remove(Object)} without waiting for
+     * the network.
+     *
+     * @param element the element to remove
+     * @return the future of the result of {@link #remove(Object)}, completing once the update was sent
+     * @since 1.1
+     */
+    ReplicationFuture<Boolean> removeAsync(Object element);
+
+    /**
+     * Removes an element like {@link #remove(Object)} without waiting for
+     * the network.
+     *
+     * @param element the element to remove
+     * @param level when to complete the future
+     * @return the future of the result of {@link #remove(Object)}
+     * @since 1.1
+     */
+    ReplicationFuture<Boolean> removeAsync(Object element, ReplicationLevel level);
+
 }
@@ -23,6 +23,7 @@ import org.w3c.dom.Element;
 
 import java.io.File;
 import java.net.URL;
+import java.util.Comparator;
 
 /**
  * This factory is the entry point for working with a clustered collection
@@ -40,6 +41,60 @@ import java.net.URL;
  * </pre>
  * </p>
  *
+ * <p>
+ * Elements are encoded with java serialization by default. Pass a
+ * {@link Serializer} (see {@link Serializers}) to use a compact encoding:
+ * <pre>
+ * Map&lt;String,Long&gt; counts = ClusteredCollections.newReplicatedClusteredMap("MyClusterMap", new JChannel(),
+ *         Serializers.stringSerializer(), Serializers.longSerializer());
+ * </pre>
+ * </p>
+ *
+ * <p>
+ * A {@link ClusterConfiguration} tunes the replication, e.g. to send updates
+ * in batches.
+ * </p>
+ *
+ * <p>
+ * A replicated map can be bounded by an {@link EvictionPolicy}, which
+ * limits the number of entries or their weight and lets entries expire.
+ * </p>
+ *
+ * <p>
+ * A partitioned map spreads its entries over the members instead of copying
+ * them to every member, so its capacity grows with the cluster (see
+ * {@link ClusterConfiguration#setBackupCount(int)}).
+ * </p>
+ *
+ * <p>
+ * An off-heap map keeps its entries serialized in direct memory, which
+ * keeps large maps out of the garbage collector's way.
+ * </p>
+ *
+ * <p>
+ * {@link ClusteredLongLongMap}, {@link ClusteredLongSet} and
+ * {@link ClusteredIntList} hold primitive numbers in plain arrays, without
+ * boxing them and without a serializer.
+ * </p>
+ *
+ * <p>
+ * Convergent collections never coordinate their writes: concurrent writes,
+ * even from separated partitions, are merged the same way on every member.
+ * The set lets an add win over a concurrent remove, the list keeps
+ * concurrent inserts in the same order everywhere, the map keeps the last
+ * write and the {@link ClusteredCounter} counts every change.
+ * </p>
+ *
+ * <p>
+ * Every collection created from a channel or channel configuration runs its
+ * own protocol stack. Applications with many collections should share one
+ * channel through a {@link ClusterContext} instead:
+ * <pre>
+ * ClusterContext context = new ClusterContext("MyCluster");
+ * List&lt;String&gt; myList = ClusteredCollections.newReplicatedClusteredList(context, "MyList");
+ * </pre>
+ * </p>
+ *
  * @author Tobias Sarnowski
  * @since 1.0
  * @see org.jgroups.JChannel
@@ -52,6 +107,28 @@ public final class ClusteredCollections {
         return new ReplicatedClusteredList<T>(clusterName, channel);
     }
 
+    public static <T> ClusteredList<T> newReplicatedClusteredList(String clusterName, Channel channel, Serializer<T> serializer) throws ChannelException {
+        return new ReplicatedClusteredList<T>(clusterName, channel, serializer);
+    }
+
+    public static <T> ClusteredList<T> newReplicatedClusteredList(String clusterName, Channel channel, Serializer<T> serializer,
+                                                                  ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedClusteredList<T>(clusterName, channel, serializer, configuration);
+    }
+
+    public static <T> ClusteredList<T> newReplicatedClusteredList(ClusterContext context, String name) throws ChannelException {
+        return new ReplicatedClusteredList<T>(context, name, Serializers.<T>javaSerializer(), new ClusterConfiguration());
+    }
+
+    public static <T> ClusteredList<T> newReplicatedClusteredList(ClusterContext context, String name, Serializer<T> serializer) throws ChannelException {
+        return new ReplicatedClusteredList<T>(context, name, serializer, new ClusterConfiguration());
+    }
+
+    public static <T> ClusteredList<T> newReplicatedClusteredList(ClusterContext context, String name, Serializer<T> serializer,
+                                                                  ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedClusteredList<T>(context, name, serializer, configuration);
+    }
+
     public static <T> ClusteredList<T> newReplicatedClusteredList(String clusterName) throws ChannelException {
         return new ReplicatedClusteredList<T>(clusterName, new JChannel());
     }
@@ -81,6 +158,28 @@ public final class ClusteredCollections {
         return new ReplicatedClusteredSet<T>(clusterName, channel);
     }
 
+    public static <T> ClusteredSet<T> newReplicatedClusteredSet(String clusterName, Channel channel, Serializer<T> serializer) throws ChannelException {
+        return new ReplicatedClusteredSet<T>(clusterName, channel, serializer);
+    }
+
+    public static <T> ClusteredSet<T> newReplicatedClusteredSet(String clusterName, Channel channel, Serializer<T> serializer,
+                                                                ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedClusteredSet<T>(clusterName, channel, serializer, configuration);
+    }
+
+    public static <T> ClusteredSet<T> newReplicatedClusteredSet(ClusterContext context, String name) throws ChannelException {
+        return new ReplicatedClusteredSet<T>(context, name, Serializers.<T>javaSerializer(), new ClusterConfiguration());
+    }
+
+    public static <T> ClusteredSet<T> newReplicatedClusteredSet(ClusterContext context, String name, Serializer<T> serializer) throws ChannelException {
+        return new ReplicatedClusteredSet<T>(context, name, serializer, new ClusterConfiguration());
+    }
+
+    public static <T> ClusteredSet<T> newReplicatedClusteredSet(ClusterContext context, String name, Serializer<T> serializer,
+                                                                ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedClusteredSet<T>(context, name, serializer, configuration);
+    }
+
     public static <T> ClusteredSet<T> newReplicatedClusteredSet(String clusterName) throws ChannelException {
         return new ReplicatedClusteredSet<T>(clusterName, new JChannel());
     }
@@ -106,31 +205,232 @@ public final class ClusteredCollections {
     }
 
 
-    public static <K,V> ClusteredMap<K,V> newReplicatedClusteredMap(String clusterName, Channel channel) throws ChannelException {
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(String clusterName, Channel channel) throws ChannelException {
         return new ReplicatedClusteredMap<K,V>(clusterName, channel);
     }
 
-    public static <K,V> ClusteredMap<K,V> newReplicatedClusteredMap(String clusterName) throws ChannelException {
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(String clusterName, Channel channel,
+                                                                  Serializer<K> keySerializer, Serializer<V> valueSerializer) throws ChannelException {
+        return new ReplicatedClusteredMap<K,V>(clusterName, channel, keySerializer, valueSerializer);
+    }
+
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(String clusterName, Channel channel,
+                                                                  Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                                                  ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedClusteredMap<K,V>(clusterName, channel, keySerializer, valueSerializer, configuration);
+    }
+
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(ClusterContext context, String name) throws ChannelException {
+        return new ReplicatedClusteredMap<K,V>(context, name, Serializers.<K>javaSerializer(), Serializers.<V>javaSerializer(),
+                new ClusterConfiguration());
+    }
+
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(ClusterContext context, String name,
+                                                                  Serializer<K> keySerializer, Serializer<V> valueSerializer) throws ChannelException {
+        return new ReplicatedClusteredMap<K,V>(context, name, keySerializer, valueSerializer, new ClusterConfiguration());
+    }
+
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(ClusterContext context, String name,
+                                                                  Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                                                  ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedClusteredMap<K,V>(context, name, keySerializer, valueSerializer, configuration);
+    }
+
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(String clusterName, Channel channel,
+                                                                  Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                                                  EvictionPolicy<K,V> evictionPolicy,
+                                                                  ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedClusteredMap<K,V>(new ClusterContext(clusterName, channel), clusterName,
+                keySerializer, valueSerializer, evictionPolicy, configuration);
+    }
+
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(ClusterContext context, String name,
+                                                                  Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                                                  EvictionPolicy<K,V> evictionPolicy,
+                                                                  ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedClusteredMap<K,V>(context, name, keySerializer, valueSerializer, evictionPolicy, configuration);
+    }
+
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(String clusterName) throws ChannelException {
         return new ReplicatedClusteredMap<K,V>(clusterName, new JChannel());
     }
 
-    public static <K,V> ClusteredMap<K,V> newReplicatedClusteredMap(String clusterName, File properties) throws ChannelException {
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(String clusterName, File properties) throws ChannelException {
         return new ReplicatedClusteredMap<K,V>(clusterName, new JChannel(properties));
     }
 
-    public static <K,V> ClusteredMap<K,V> newReplicatedClusteredMap(String clusterName, URL properties) throws ChannelException {
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(String clusterName, URL properties) throws ChannelException {
         return new ReplicatedClusteredMap<K,V>(clusterName, new JChannel(properties));
     }
 
-    public static <K,V> ClusteredMap<K,V> newReplicatedClusteredMap(String clusterName, Element properties) throws ChannelException {
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(String clusterName, Element properties) throws ChannelException {
         return new ReplicatedClusteredMap<K,V>(clusterName, new JChannel(properties));
     }
 
-    public static <K,V> ClusteredMap<K,V> newReplicatedClusteredMap(String clusterName, String properties) throws ChannelException {
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(String clusterName, String properties) throws ChannelException {
         return new ReplicatedClusteredMap<K,V>(clusterName, new JChannel(properties));
     }
 
-    public static <K,V> ClusteredMap<K,V> newReplicatedClusteredMap(String clusterName, ProtocolStackConfigurator configurator) throws ChannelException {
+    public static <K,V> IndexedMap<K,V> newReplicatedClusteredMap(String clusterName, ProtocolStackConfigurator configurator) throws ChannelException {
         return new ReplicatedClusteredMap<K,V>(clusterName, new JChannel(configurator));
     }
+
+
+    public static <K,V> PartitionedMap<K,V> newPartitionedClusteredMap(String clusterName, Channel channel) throws ChannelException {
+        return new PartitionedClusteredMap<K,V>(clusterName, channel, Serializers.<K>javaSerializer(), Serializers.<V>javaSerializer(),
+                new ClusterConfiguration());
+    }
+
+    public static <K,V> PartitionedMap<K,V> newPartitionedClusteredMap(String clusterName, Channel channel,
+                                                                     Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                                                     ClusterConfiguration configuration) throws ChannelException {
+        return new PartitionedClusteredMap<K,V>(clusterName, channel, keySerializer, valueSerializer, configuration);
+    }
+
+    public static <K,V> PartitionedMap<K,V> newPartitionedClusteredMap(ClusterContext context, String name) {
+        return new PartitionedClusteredMap<K,V>(context, name, Serializers.<K>javaSerializer(), Serializers.<V>javaSerializer(),
+                new ClusterConfiguration());
+    }
+
+    public static <K,V> PartitionedMap<K,V> newPartitionedClusteredMap(ClusterContext context, String name,
+                                                                     Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        return new PartitionedClusteredMap<K,V>(context, name, keySerializer, valueSerializer, new ClusterConfiguration());
+    }
+
+    public static <K,V> PartitionedMap<K,V> newPartitionedClusteredMap(ClusterContext context, String name,
+                                                                     Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                                                     ClusterConfiguration configuration) {
+        return new PartitionedClusteredMap<K,V>(context, name, keySerializer, valueSerializer, configuration);
+    }
+
+    public static <T> ClusteredSet<T> newConvergentClusteredSet(ClusterContext context, String name) throws ChannelException {
+        return new ConvergentClusteredSet<T>(context, name, Serializers.<T>javaSerializer(), new ClusterConfiguration());
+    }
+
+    public static <T> ClusteredSet<T> newConvergentClusteredSet(ClusterContext context, String name,
+                                                              Serializer<T> serializer) throws ChannelException {
+        return new ConvergentClusteredSet<T>(context, name, serializer, new ClusterConfiguration());
+    }
+
+    public static <T> ClusteredSet<T> newConvergentClusteredSet(ClusterContext context, String name,
+                                                              Serializer<T> serializer,
+                                                              ClusterConfiguration configuration) throws ChannelException {
+        return new ConvergentClusteredSet<T>(context, name, serializer, configuration);
+    }
+
+    public static <T> ClusteredList<T> newConvergentClusteredList(ClusterContext context, String name) throws ChannelException {
+        return new ConvergentClusteredList<T>(context, name, Serializers.<T>javaSerializer(), new ClusterConfiguration());
+    }
+
+    public static <T> ClusteredList<T> newConvergentClusteredList(ClusterContext context, String name,
+                                                                Serializer<T> serializer) throws ChannelException {
+        return new ConvergentClusteredList<T>(context, name, serializer, new ClusterConfiguration());
+    }
+
+    public static <T> ClusteredList<T> newConvergentClusteredList(ClusterContext context, String name,
+                                                                Serializer<T> serializer,
+                                                                ClusterConfiguration configuration) throws ChannelException {
+        return new ConvergentClusteredList<T>(context, name, serializer, configuration);
+    }
+
+    public static <K,V> ClusteredMap<K,V> newConvergentClusteredMap(ClusterContext context, String name) throws ChannelException {
+        return new ConvergentClusteredMap<K,V>(context, name, Serializers.<K>javaSerializer(), Serializers.<V>javaSerializer(),
+                new ClusterConfiguration());
+    }
+
+    public static <K,V> ClusteredMap<K,V> newConvergentClusteredMap(ClusterContext context, String name,
+                                                                  Serializer<K> keySerializer, Serializer<V> valueSerializer)
+            throws ChannelException {
+        return new ConvergentClusteredMap<K,V>(context, name, keySerializer, valueSerializer, new ClusterConfiguration());
+    }
+
+    public static <K,V> ClusteredMap<K,V> newConvergentClusteredMap(ClusterContext context, String name,
+                                                                  Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                                                  ClusterConfiguration configuration) throws ChannelException {
+        return new ConvergentClusteredMap<K,V>(context, name, keySerializer, valueSerializer, configuration);
+    }
+
+    public static ClusteredCounter newConvergentClusteredCounter(ClusterContext context, String name) throws ChannelException {
+        return new ConvergentClusteredCounter(context, name, new ClusterConfiguration());
+    }
+
+    public static ClusteredCounter newConvergentClusteredCounter(ClusterContext context, String name,
+                                                                 ClusterConfiguration configuration) throws ChannelException {
+        return new ConvergentClusteredCounter(context, name, configuration);
+    }
+
+    public static <K,V> ClusteredMap<K,V> newOffHeapClusteredMap(ClusterContext context, String name,
+                                                               Serializer<K> keySerializer, Serializer<V> valueSerializer)
+            throws ChannelException {
+        return new OffHeapClusteredMap<K,V>(context, name, keySerializer, valueSerializer, new ClusterConfiguration());
+    }
+
+    public static <K,V> ClusteredMap<K,V> newOffHeapClusteredMap(ClusterContext context, String name,
+                                                               Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                                               ClusterConfiguration configuration) throws ChannelException {
+        return new OffHeapClusteredMap<K,V>(context, name, keySerializer, valueSerializer, configuration);
+    }
+
+    public static ClusteredLongLongMap newReplicatedLongLongMap(ClusterContext context, String name) throws ChannelException {
+        return new ReplicatedLongLongMap(context, name, new ClusterConfiguration());
+    }
+
+    public static ClusteredLongLongMap newReplicatedLongLongMap(ClusterContext context, String name,
+                                                                ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedLongLongMap(context, name, configuration);
+    }
+
+    public static ClusteredLongSet newReplicatedLongSet(ClusterContext context, String name) throws ChannelException {
+        return new ReplicatedLongSet(context, name, new ClusterConfiguration());
+    }
+
+    public static ClusteredLongSet newReplicatedLongSet(ClusterContext context, String name,
+                                                        ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedLongSet(context, name, configuration);
+    }
+
+    public static ClusteredIntList newReplicatedIntList(ClusterContext context, String name) throws ChannelException {
+        return new ReplicatedIntList(context, name, new ClusterConfiguration());
+    }
+
+    public static ClusteredIntList newReplicatedIntList(ClusterContext context, String name,
+                                                        ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedIntList(context, name, configuration);
+    }
+
+    public static <K,V> ClusteredNavigableMap<K,V> newReplicatedNavigableMap(ClusterContext context, String name)
+            throws ChannelException {
+        return new ReplicatedNavigableMap<K,V>(context, name, Serializers.<K>javaSerializer(), Serializers.<V>javaSerializer(),
+                null, new ClusterConfiguration());
+    }
+
+    public static <K,V> ClusteredNavigableMap<K,V> newReplicatedNavigableMap(ClusterContext context, String name,
+                                                                           Serializer<K> keySerializer, Serializer<V> valueSerializer)
+            throws ChannelException {
+        return new ReplicatedNavigableMap<K,V>(context, name, keySerializer, valueSerializer, null, new ClusterConfiguration());
+    }
+
+    public static <K,V> ClusteredNavigableMap<K,V> newReplicatedNavigableMap(ClusterContext context, String name,
+                                                                           Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                                                           Comparator<? super K> comparator,
+                                                                           ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedNavigableMap<K,V>(context, name, keySerializer, valueSerializer, comparator, configuration);
+    }
+
+    public static <T> ClusteredNavigableSet<T> newReplicatedNavigableSet(ClusterContext context, String name)
+            throws ChannelException {
+        return new ReplicatedNavigableSet<T>(context, name, Serializers.<T>javaSerializer(), null, new ClusterConfiguration());
+    }
+
+    public static <T> ClusteredNavigableSet<T> newReplicatedNavigableSet(ClusterContext context, String name,
+                                                                       Serializer<T> serializer) throws ChannelException {
+        return new ReplicatedNavigableSet<T>(context, name, serializer, null, new ClusterConfiguration());
+    }
+
+    public static <T> ClusteredNavigableSet<T> newReplicatedNavigableSet(ClusterContext context, String name,
+                                                                       Serializer<T> serializer,
+                                                                       Comparator<? super T> comparator,
+                                                                       ClusterConfiguration configuration) throws ChannelException {
+        return new ReplicatedNavigableSet<T>(context, name, serializer, comparator, configuration);
+    }
 }
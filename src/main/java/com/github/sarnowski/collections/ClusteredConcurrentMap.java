@@ -0,0 +1,57 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link ClusteredMap} with conditional writes. Each operation is sent as
+ * a single update. With {@link ConsistencyMode#TOTAL_ORDER}, every member
+ * evaluates it against its copy in the same order, so that the operations
+ * are atomic across the cluster and the returned result is the one all
+ * members agreed on. Otherwise an operation is only atomic for the local
+ * copy and its outcome replicates like a plain write.
+ * <p>
+ * The replicated functions have names of their own, so that they do not
+ * overload {@code Map.compute} and {@code Map.merge} of Java 8.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> generic key type
+ * @param <V> generic value type
+ */
+public interface ClusteredConcurrentMap<K, V> extends ClusteredMap<K, V>, ConcurrentMap<K, V> {
+
+    /**
+     * Replaces the value of a key with a computed one.
+     *
+     * @param key the key
+     * @param computation computes the new value from the current one
+     * @return the new value, {@code null} if the key was removed
+     */
+    V computeReplicated(K key, ClusterComputation<? super K, V> computation);
+
+    /**
+     * Stores a value for an absent key, or combines it with the current one.
+     *
+     * @param key the key
+     * @param value the value to store or combine
+     * @param merger combines the current value with the given one
+     * @return the new value, {@code null} if the key was removed
+     */
+    V mergeReplicated(K key, V value, ClusterMerger<V> merger);
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * A counter shared by the cluster members. Every member may change it at
+ * any time without coordination; all members see the same value once they
+ * received the same changes.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public interface ClusteredCounter extends Clustered {
+
+    /**
+     * @return the current value as known by this member
+     */
+    long get();
+
+    /**
+     * Adds a delta to the counter.
+     *
+     * @param delta the value to add, may be negative
+     * @return the new value as known by this member
+     */
+    long addAndGet(long delta);
+
+    /**
+     * Adds one to the counter.
+     *
+     * @return the new value as known by this member
+     */
+    long incrementAndGet();
+
+    /**
+     * Subtracts one from the counter.
+     *
+     * @return the new value as known by this member
+     */
+    long decrementAndGet();
+
+}
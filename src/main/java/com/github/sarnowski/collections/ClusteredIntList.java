@@ -0,0 +1,89 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * A clustered list of primitive ints. Neither reads nor writes box the
+ * elements.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public interface ClusteredIntList extends Clustered {
+
+    /**
+     * @return the number of elements
+     */
+    int size();
+
+    /**
+     * @return if the list contains no elements
+     */
+    boolean isEmpty();
+
+    /**
+     * @param index the index
+     * @return the element at the index
+     * @throws IndexOutOfBoundsException if there is no such element
+     */
+    int get(int index);
+
+    /**
+     * Replaces an element.
+     *
+     * @param index the index
+     * @param element the new element
+     * @return the replaced element
+     * @throws IndexOutOfBoundsException if there is no such element
+     */
+    int set(int index, int element);
+
+    /**
+     * Appends an element.
+     *
+     * @param element the element
+     */
+    void add(int element);
+
+    /**
+     * Inserts an element and shifts the following ones.
+     *
+     * @param index the index of the new element
+     * @param element the element
+     * @throws IndexOutOfBoundsException if the index is greater than the size
+     */
+    void insert(int index, int element);
+
+    /**
+     * Removes an element and shifts the following ones.
+     *
+     * @param index the index
+     * @return the removed element
+     * @throws IndexOutOfBoundsException if there is no such element
+     */
+    int removeAt(int index);
+
+    /**
+     * Removes all elements.
+     */
+    void clear();
+
+    /**
+     * @return a copy of the elements
+     */
+    int[] toArray();
+
+}
@@ -26,4 +26,54 @@ import java.util.List;
  */
 public interface ClusteredList<T> extends ClusteredCollection<T>, List<T> {
 
+    /**
+     * Replaces an element like {@link #set(int, Object)} without waiting for
+     * the network.
+     *
+     * @param index the index of the element
+     * @param element the new element
+     * @param level when to complete the future
+     * @return the future of the replaced element
+     * @since 1.1
+     */
+    ReplicationFuture<T> setAsync(int index, T element, ReplicationLevel level);
+
+    /**
+     * Inserts an element like {@link #add(int, Object)} without waiting for
+     * the network.
+     *
+     * @param index the index to insert at
+     * @param element the new element
+     * @param level when to complete the future
+     * @return the future completing once the update reached the level
+     * @since 1.1
+     */
+    ReplicationFuture<Void> addAsync(int index, T element, ReplicationLevel level);
+
+    /**
+     * Registers a listener for the changes applied for other members. The
+     * key of an event is the index of the element at the time of the change.
+     *
+     * @param listener the listener
+     * @since 1.1
+     */
+    void addEventListener(ClusterEventListener<Integer, T> listener);
+
+    /**
+     * Registers a listener for the changes of some indices.
+     *
+     * @param listener the listener
+     * @param filter selects the indices, {@code null} for all indices
+     * @since 1.1
+     */
+    void addEventListener(ClusterEventListener<Integer, T> listener, ClusterEventFilter<? super Integer> filter);
+
+    /**
+     * Unregisters a listener from all its subscriptions.
+     *
+     * @param listener the listener
+     * @since 1.1
+     */
+    void removeEventListener(ClusterEventListener<Integer, T> listener);
+
 }
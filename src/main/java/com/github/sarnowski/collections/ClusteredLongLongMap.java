@@ -0,0 +1,87 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * A clustered map of primitive long keys to long values. Neither reads nor
+ * writes box the keys or values.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public interface ClusteredLongLongMap extends Clustered {
+
+    /**
+     * @return the number of keys
+     */
+    int size();
+
+    /**
+     * @return if the map contains no keys
+     */
+    boolean isEmpty();
+
+    /**
+     * @param key the key
+     * @return if the map contains the key
+     */
+    boolean containsKey(long key);
+
+    /**
+     * @param key the key
+     * @param defaultValue the value to return if the key is missing
+     * @return the value of the key or the default value
+     */
+    long get(long key, long defaultValue);
+
+    /**
+     * Stores a value.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    void put(long key, long value);
+
+    /**
+     * Adds a delta to the value of a key, missing keys count as 0. The delta
+     * is replicated instead of the result, so concurrent additions of
+     * different members add up.
+     *
+     * @param key the key
+     * @param delta the value to add, may be negative
+     * @return the new value as known by this member
+     */
+    long addAndGet(long key, long delta);
+
+    /**
+     * Removes a key.
+     *
+     * @param key the key
+     * @return if the key was present
+     */
+    boolean remove(long key);
+
+    /**
+     * Removes all keys.
+     */
+    void clear();
+
+    /**
+     * @return a copy of the keys in no particular order
+     */
+    long[] keys();
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * A clustered set of primitive longs. Neither reads nor writes box the
+ * elements.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public interface ClusteredLongSet extends Clustered {
+
+    /**
+     * @return the number of elements
+     */
+    int size();
+
+    /**
+     * @return if the set contains no elements
+     */
+    boolean isEmpty();
+
+    /**
+     * @param element the element
+     * @return if the set contains the element
+     */
+    boolean contains(long element);
+
+    /**
+     * Adds an element.
+     *
+     * @param element the element
+     * @return if the element was added
+     */
+    boolean add(long element);
+
+    /**
+     * Removes an element.
+     *
+     * @param element the element
+     * @return if the element was present
+     */
+    boolean remove(long element);
+
+    /**
+     * Removes all elements.
+     */
+    void clear();
+
+    /**
+     * @return a copy of the elements in no particular order
+     */
+    long[] toArray();
+
+}
@@ -27,4 +27,87 @@ import java.util.Map;
  */
 public interface ClusteredMap<K, V> extends Clustered, Map<K, V> {
 
+    /**
+     * Stores a value like {@link #put(Object, Object)} without waiting for
+     * the network.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the future of the previous value, completing once the update was sent
+     * @since 1.1
+     */
+    ReplicationFuture<V> putAsync(K key, V value);
+
+    /**
+     * Stores a value like {@link #put(Object, Object)} without waiting for
+     * the network.
+     *
+     * @param key the key
+     * @param value the value
+     * @param level when to complete the future
+     * @return the future of the previous value
+     * @since 1.1
+     */
+    ReplicationFuture<V> putAsync(K key, V value, ReplicationLevel level);
+
+    /**
+     * Removes a key like {@link #remove(Object)} without waiting for the
+     * network.
+     *
+     * @param key the key
+     * @return the future of the previous value, completing once the update was sent
+     * @since 1.1
+     */
+    ReplicationFuture<V> removeAsync(Object key);
+
+    /**
+     * Removes a key like {@link #remove(Object)} without waiting for the
+     * network.
+     *
+     * @param key the key
+     * @param level when to complete the future
+     * @return the future of the previous value
+     * @since 1.1
+     */
+    ReplicationFuture<V> removeAsync(Object key, ReplicationLevel level);
+
+    /**
+     * Registers a listener for the changes applied for other members.
+     *
+     * @param listener the listener
+     * @since 1.1
+     */
+    void addEventListener(ClusterEventListener<K, V> listener);
+
+    /**
+     * Registers a listener for the changes of some keys. The filter is
+     * asked before an event gets created, so that changes of other keys
+     * cost nothing.
+     *
+     * @param listener the listener
+     * @param filter selects the keys, {@code null} for all keys
+     * @since 1.1
+     */
+    void addEventListener(ClusterEventListener<K, V> listener, ClusterEventFilter<? super K> filter);
+
+    /**
+     * Unregisters a listener from all its subscriptions.
+     *
+     * @param listener the listener
+     * @since 1.1
+     */
+    void removeEventListener(ClusterEventListener<K, V> listener);
+
+    /**
+     * Maintains the entries matching a predicate. The result starts with
+     * the current matches and follows every later change of the map.
+     *
+     * @param predicate selects the entries
+     * @param listener gets told how the result changed, may be {@code null}
+     * @return the query, to be closed once it is not needed anymore
+     * @since 1.1
+     */
+    ContinuousQuery<K, V> addContinuousQuery(ClusterPredicate<? super K, ? super V> predicate,
+                                             ClusterEventListener<K, V> listener);
+
 }
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.NavigableMap;
+
+/**
+ * A {@link ClusteredConcurrentMap} sorted by its keys. Lookups and range
+ * views are served by the local copy in O(log n); writes through a view
+ * replicate like writes to the map, clearing a view replicates a single
+ * range removal. Listeners and callbacks registered on a view apply to the
+ * whole map.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> generic key type
+ * @param <V> generic value type
+ * @see ClusteredCollections#newReplicatedNavigableMap(ClusterContext, String)
+ */
+public interface ClusteredNavigableMap<K, V> extends ClusteredConcurrentMap<K, V>, NavigableMap<K, V> {
+
+    @Override
+    ClusteredNavigableMap<K, V> descendingMap();
+
+    @Override
+    ClusteredNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive);
+
+    @Override
+    ClusteredNavigableMap<K, V> headMap(K toKey, boolean inclusive);
+
+    @Override
+    ClusteredNavigableMap<K, V> tailMap(K fromKey, boolean inclusive);
+
+    @Override
+    ClusteredNavigableMap<K, V> subMap(K fromKey, K toKey);
+
+    @Override
+    ClusteredNavigableMap<K, V> headMap(K toKey);
+
+    @Override
+    ClusteredNavigableMap<K, V> tailMap(K fromKey);
+
+}
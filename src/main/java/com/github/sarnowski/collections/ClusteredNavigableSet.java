@@ -0,0 +1,53 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.NavigableSet;
+
+/**
+ * A {@link ClusteredSet} sorted by its elements. Lookups and range views
+ * are served by the local copy in O(log n); clearing a view replicates a
+ * single range removal.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <T> generic element type
+ * @see ClusteredCollections#newReplicatedNavigableSet(ClusterContext, String)
+ */
+public interface ClusteredNavigableSet<T> extends ClusteredSet<T>, NavigableSet<T> {
+
+    @Override
+    ClusteredNavigableSet<T> descendingSet();
+
+    @Override
+    ClusteredNavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive);
+
+    @Override
+    ClusteredNavigableSet<T> headSet(T toElement, boolean inclusive);
+
+    @Override
+    ClusteredNavigableSet<T> tailSet(T fromElement, boolean inclusive);
+
+    @Override
+    ClusteredNavigableSet<T> subSet(T fromElement, T toElement);
+
+    @Override
+    ClusteredNavigableSet<T> headSet(T toElement);
+
+    @Override
+    ClusteredNavigableSet<T> tailSet(T fromElement);
+
+}
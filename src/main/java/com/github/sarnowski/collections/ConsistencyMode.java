@@ -0,0 +1,62 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * Defines how the updates of a replicated collection are ordered and when a
+ * modifying call returns. The mode is chosen per collection with
+ * {@link ClusterConfiguration#setConsistencyMode(ConsistencyMode)}; reads
+ * always use the local copy.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterConfiguration
+ */
+public enum ConsistencyMode {
+
+    /**
+     * Applies an update locally and hands it to the channel without waiting.
+     * A call costs the local update plus the encoding. The members apply
+     * the updates of each sender in order, but concurrent updates of the
+     * same element by different members may be applied in different orders,
+     * which leaves the copies diverged until the element is written again.
+     */
+    ASYNC,
+
+    /**
+     * Sends an update to all members including the sender, which applies it
+     * only when it is delivered back. The protocol stack has to contain
+     * {@code SEQUENCER}, which delivers all messages in the same order to
+     * every member, otherwise creating the collection fails; then all copies
+     * apply the same updates in the same order and never diverge. A call waits for its own update, which costs
+     * the way through the sequencer and back: about one round trip, two if
+     * the caller is not the coordinator. Batching is not used in this mode,
+     * and a callback must not modify the collection, because it would wait
+     * for a delivery queued behind itself.
+     */
+    TOTAL_ORDER,
+
+    /**
+     * Applies an update locally, sends it and waits until a majority of the
+     * members applied it. A call costs a round trip to the slowest member of
+     * the majority, bounded by
+     * {@link ClusterConfiguration#getRequestTimeout(java.util.concurrent.TimeUnit)}.
+     * An acknowledged update survives the failure of the minority, but
+     * concurrent updates are not ordered, just as with {@link #ASYNC}.
+     */
+    SYNCHRONOUS
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Address;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps hashes to the members of a view. Every member is placed on a ring at
+ * several pseudo random points; a hash is owned by the member of the next
+ * point clockwise, its backups by the following distinct members. Adding or
+ * removing a member therefore only moves the hashes next to its points.
+ *
+ * <p>
+ * All members compute the same ring from the same view as long as the
+ * addresses have a stable hash code, which is the case for the JGroups
+ * address implementations.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see PartitionedClusteredMap
+ */
+final class ConsistentHash {
+
+    /**
+     * Number of points per member, more points spread the hashes more evenly.
+     */
+    private static final int VIRTUAL_NODES = 64;
+
+    private final List<Address> members;
+    private final int[] points;
+    private final Address[] owners;
+
+    ConsistentHash(List<Address> members) {
+        this.members = Collections.unmodifiableList(new ArrayList<Address>(members));
+
+        // pack point and member index into one long to sort them together
+        final long[] ring = new long[members.size() * VIRTUAL_NODES];
+        int position = 0;
+        for (int index = 0; index < members.size(); index++) {
+            final int seed = members.get(index).hashCode();
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring[position++] = ((long) mix(seed * 31 + node) << 32) | index;
+            }
+        }
+        Arrays.sort(ring);
+
+        points = new int[ring.length];
+        owners = new Address[ring.length];
+        for (int n = 0; n < ring.length; n++) {
+            points[n] = (int) (ring[n] >> 32);
+            owners[n] = members.get((int) (ring[n] & 0xFFFFFFFFL));
+        }
+    }
+
+    /**
+     * @return the members of the ring in view order
+     */
+    List<Address> getMembers() {
+        return members;
+    }
+
+    /**
+     * Finds the owner and the backups of a hash.
+     *
+     * @param hash the hash, see {@link #hash(byte[], int, int)}
+     * @param count the requested number of members
+     * @return the owner followed by the backups, at most as many as there are members
+     */
+    List<Address> getOwners(int hash, int count) {
+        final int size = Math.min(count, members.size());
+        final List<Address> result = new ArrayList<Address>(size);
+        if (size == 0) {
+            return result;
+        }
+        int position = Arrays.binarySearch(points, hash);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        for (int n = 0; n < owners.length && result.size() < size; n++) {
+            final Address owner = owners[(position + n) % owners.length];
+            if (!result.contains(owner)) {
+                result.add(owner);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the owner of a hash.
+     *
+     * @param hash the hash
+     * @return the owner or {@code null} if the ring is empty
+     */
+    Address getOwner(int hash) {
+        final List<Address> result = getOwners(hash, 1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Hashes serialized data, so that all members agree on the hash
+     * independent of the {@link Object#hashCode()} implementation.
+     *
+     * @param data the buffer
+     * @param offset the offset of the data
+     * @param length the length of the data
+     * @return the hash
+     */
+    static int hash(byte[] data, int offset, int length) {
+        // FNV-1a, finished with the murmur3 mixer to spread the bits over the ring
+        int hash = 0x811C9DC5;
+        for (int n = offset; n < offset + length; n++) {
+            hash ^= data[n] & 0xFF;
+            hash *= 0x01000193;
+        }
+        return mix(hash);
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "ConsistentHash{" +
+                "members=" + members +
+                '}';
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Map;
+
+/**
+ * The live result of a {@link ClusterPredicate} over a map. Every change of
+ * the map, local or received, is checked against the predicate and the
+ * result follows it. The listener of the query learns which entries entered
+ * ({@link ClusterEvent.Type#ADDED}), changed within
+ * ({@link ClusterEvent.Type#UPDATED}) or left
+ * ({@link ClusterEvent.Type#REMOVED}) the result.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusteredMap#addContinuousQuery(ClusterPredicate, ClusterEventListener)
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public interface ContinuousQuery<K, V> {
+
+    /**
+     * @return the unmodifiable, live view of the matching entries
+     */
+    Map<K, V> getResult();
+
+    /**
+     * Stops maintaining the result. The result keeps its last content.
+     */
+    void close();
+
+}
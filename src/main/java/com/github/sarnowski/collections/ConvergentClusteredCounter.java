@@ -0,0 +1,323 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Implements a {@link ClusteredCounter} as a positive-negative counter, a
+ * conflict free replicated data type. Every member only changes its own
+ * totals of increments and decrements and sends them; the receivers keep
+ * the highest totals per member. The value is the sum of all increments
+ * minus all decrements, so duplicated or reordered updates do not matter.
+ *
+ * <p>
+ * A transferred state is merged into the local totals. When partitions
+ * merge, the members of the smaller partitions send their totals back, so
+ * that the changes of all partitions count.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+final class ConvergentClusteredCounter implements
+        ClusteredCounter,
+        ClusterManaged<ConvergentClusteredCounter.CounterActions,Map<Long,ConvergentClusteredCounter.Totals>,
+                Map<Long,ConvergentClusteredCounter.Totals>> {
+
+    private static final Log LOG = LogFactory.getLog(ConvergentClusteredCounter.class);
+
+    private final long replicaId = UUID.randomUUID().getLeastSignificantBits();
+    private final Object lock = new Object();
+    private final Map<Long,Totals> totals = new HashMap<Long,Totals>();
+    private volatile long value = 0;
+
+    private final ClusterManager<CounterActions,Map<Long,Totals>,Map<Long,Totals>> clusterManager;
+    private Map<Long,Totals> unpushed;
+    private volatile ClusterUpdateCallback updateCallback = null;
+
+    public ConvergentClusteredCounter(ClusterContext context, String name, ClusterConfiguration configuration)
+            throws ChannelException {
+        clusterManager = new ClusterManager<CounterActions,Map<Long,Totals>,Map<Long,Totals>>(
+                context, name, this, new CounterCodec(), configuration);
+        if (unpushed != null) {
+            clusterManager.sendUpdateDeferred(CounterActions.MERGE, unpushed);
+            unpushed = null;
+        }
+    }
+
+    @Override
+    public Channel getChannel() {
+        return clusterManager.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        updateCallback = callback;
+    }
+
+    @Override
+    public Object handleUpdate(CounterActions action, Map<Long,Totals> payload) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdate(" + action + ", " + payload + ")");
+        synchronized (lock) {
+            merge(payload);
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+        return null;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<CounterActions,Map<Long,Totals>>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        synchronized (lock) {
+            for (ClusterUpdate<CounterActions,Map<Long,Totals>> update: updates) {
+                merge(update.getPayload());
+            }
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+    }
+
+    /**
+     * Keeps the highest totals per member. The caller has to hold the lock.
+     *
+     * @param other the totals to merge
+     * @return whether the other totals missed some of the local ones
+     */
+    private boolean merge(Map<Long,Totals> other) {
+        long delta = 0;
+        for (Map.Entry<Long,Totals> entry: other.entrySet()) {
+            final Totals current = totals.get(entry.getKey());
+            final Totals merged = current == null ? entry.getValue() : current.max(entry.getValue());
+            if (current != merged) {
+                delta += merged.value() - (current == null ? 0 : current.value());
+                totals.put(entry.getKey(), merged);
+            }
+        }
+        value += delta;
+        for (Map.Entry<Long,Totals> entry: totals.entrySet()) {
+            final Totals known = other.get(entry.getKey());
+            if (known == null || known.max(entry.getValue()) != known) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Object coalesceKey(CounterActions action, Map<Long,Totals> payload) {
+        // later totals of the same member include the earlier ones
+        return payload.size() == 1 ? payload.keySet().iterator().next() : null;
+    }
+
+    @Override
+    public void updateClusterState(Map<Long,Totals> state) {
+        final Map<Long,Totals> merged;
+        synchronized (lock) {
+            merged = merge(state) ? new HashMap<Long,Totals>(totals) : null;
+        }
+        if (merged != null && clusterManager == null) {
+            // the initial state met changes restored from disk, send them once the manager exists
+            unpushed = merged;
+        } else if (merged != null) {
+            // the provider missed some changes, e.g. while partitioned
+            clusterManager.sendUpdateDeferred(CounterActions.MERGE, merged);
+        }
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        synchronized (lock) {
+            action.run();
+        }
+    }
+
+    @Override
+    public Map<Long,Totals> provideClusterState() {
+        synchronized (lock) {
+            return new HashMap<Long,Totals>(totals);
+        }
+    }
+
+    @Override
+    public Iterator<Map<Long,Totals>> provideClusterStateChunks(int chunkSize) {
+        // one entry per member, never worth splitting
+        return Collections.singletonList(provideClusterState()).iterator();
+    }
+
+    @Override
+    public void beginClusterState() {
+    }
+
+    @Override
+    public void applyClusterStateChunk(Map<Long,Totals> chunk) {
+        updateClusterState(chunk);
+    }
+
+    @Override
+    public void endClusterState() {
+    }
+
+    @Override
+    public long get() {
+        return value;
+    }
+
+    @Override
+    public long addAndGet(long delta) {
+        if (delta == 0) {
+            return value;
+        }
+        final ReplicationFuture<Void> replicated;
+        final long result;
+        synchronized (lock) {
+            final Totals current = totals.get(replicaId);
+            final Totals changed = current == null ? new Totals(0, 0).add(delta) : current.add(delta);
+            totals.put(replicaId, changed);
+            result = value += delta;
+            replicated = clusterManager.sendUpdateDeferred(CounterActions.UPDATE,
+                    Collections.singletonMap(replicaId, changed));
+        }
+        clusterManager.await(replicated);
+        return result;
+    }
+
+    @Override
+    public long incrementAndGet() {
+        return addAndGet(1);
+    }
+
+    @Override
+    public long decrementAndGet() {
+        return addAndGet(-1);
+    }
+
+    @Override
+    public String toString() {
+        return "ConvergentClusteredCounter{" +
+                "value=" + value +
+                ", cluster=" + clusterManager +
+                '}';
+    }
+
+    public static enum CounterActions {
+        UPDATE,
+        MERGE
+    }
+
+    /**
+     * The totals of increments and decrements of one member, both only grow.
+     */
+    static final class Totals {
+        final long increments;
+        final long decrements;
+
+        Totals(long increments, long decrements) {
+            this.increments = increments;
+            this.decrements = decrements;
+        }
+
+        long value() {
+            return increments - decrements;
+        }
+
+        Totals add(long delta) {
+            return delta >= 0 ? new Totals(increments + delta, decrements) : new Totals(increments, decrements - delta);
+        }
+
+        /**
+         * @return this, the other or combined totals, whichever is the highest
+         */
+        Totals max(Totals other) {
+            if (increments >= other.increments && decrements >= other.decrements) {
+                return this;
+            }
+            if (other.increments >= increments && other.decrements >= decrements) {
+                return other;
+            }
+            return new Totals(Math.max(increments, other.increments), Math.max(decrements, other.decrements));
+        }
+
+        @Override
+        public String toString() {
+            return "+" + increments + "-" + decrements;
+        }
+    }
+
+    /**
+     * Encodes the action as a single byte tag followed by the totals per member.
+     */
+    static final class CounterCodec implements ClusterCodec<CounterActions,Map<Long,Totals>,Map<Long,Totals>> {
+        private static final CounterActions[] ACTIONS = CounterActions.values();
+
+        @Override
+        public void writeUpdate(CounterActions action, Map<Long,Totals> payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            writeState(payload, out);
+        }
+
+        @Override
+        public ClusterUpdate<CounterActions,Map<Long,Totals>> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown counter action " + tag);
+            }
+            return new ClusterUpdate<CounterActions,Map<Long,Totals>>(ACTIONS[tag], readState(in));
+        }
+
+        @Override
+        public void writeState(Map<Long,Totals> state, DataOutput out) throws IOException {
+            Varints.writeUnsignedInt(out, state.size());
+            for (Map.Entry<Long,Totals> entry: state.entrySet()) {
+                out.writeLong(entry.getKey());
+                Varints.writeUnsignedLong(out, entry.getValue().increments);
+                Varints.writeUnsignedLong(out, entry.getValue().decrements);
+            }
+        }
+
+        @Override
+        public Map<Long,Totals> readState(DataInput in) throws IOException {
+            final int size = Varints.readUnsignedInt(in);
+            final Map<Long,Totals> state = new HashMap<Long,Totals>();
+            for (int n = 0; n < size; n++) {
+                final long member = in.readLong();
+                final long increments = Varints.readUnsignedLong(in);
+                state.put(member, new Totals(increments, Varints.readUnsignedLong(in)));
+            }
+            return state;
+        }
+    }
+}
@@ -0,0 +1,929 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Implements a clustered {@link List} as a replicated growable array, a
+ * conflict free replicated data type. Every element gets a unique position
+ * when it is inserted: a logical clock and the id of the inserting member.
+ * Updates refer to these positions instead of indices, so concurrent
+ * inserts and removes on different members commute and all members end up
+ * with the same order. Modifications never wait for other members.
+ *
+ * <p>
+ * An insert is placed behind the element it was inserted after, skipping the
+ * elements with a higher position which were inserted behind the same
+ * element concurrently. Removed elements stay in the sequence without their
+ * value, so that later inserts can still refer to them. Replacing an element
+ * keeps its position; concurrent replacements are resolved by their
+ * clocks. Updates arriving before the element they refer to wait for it.
+ * </p>
+ *
+ * <p>
+ * The elements live in a {@link SequenceTree}, so that inserts, removes and
+ * reads at any index take logarithmic time. A transferred state is merged
+ * into the local copy instead of replacing it. When partitions merge, the
+ * members of the smaller partitions send back what the largest partition
+ * missed.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <T> generic element type
+ */
+final class ConvergentClusteredList<T> extends AbstractList<T> implements
+        ClusteredList<T>,
+        ClusterManaged<ConvergentClusteredList.ListActions,List<ConvergentClusteredList.Operation<T>>,
+                List<ConvergentClusteredList.Operation<T>>> {
+
+    private static final Log LOG = LogFactory.getLog(ConvergentClusteredList.class);
+
+    private final long replicaId = UUID.randomUUID().getLeastSignificantBits();
+    private final Object lock = new Object();
+    private final SequenceTree<Element<T>> sequence = new SequenceTree<Element<T>>();
+    private final Map<Position,SequenceTree.Node<Element<T>>> nodes =
+            new HashMap<Position,SequenceTree.Node<Element<T>>>();
+    private final Map<Position,List<Waiting<T>>> waiting = new HashMap<Position,List<Waiting<T>>>();
+    private long clock = 0;
+    private List<Operation<T>> incomingState;
+
+    private final ClusterManager<ListActions,List<Operation<T>>,List<Operation<T>>> clusterManager;
+    private List<Operation<T>> unpushed;
+    private volatile ClusterUpdateCallback updateCallback = null;
+    private final ClusterEvents<Integer,T> events = new ClusterEvents<Integer,T>();
+
+    public ConvergentClusteredList(ClusterContext context, String name, Serializer<T> serializer,
+                                   ClusterConfiguration configuration) throws ChannelException {
+        clusterManager = new ClusterManager<ListActions,List<Operation<T>>,List<Operation<T>>>(
+                context, name, this, new ListCodec<T>(serializer), configuration);
+        clusterManager.observe(events);
+        if (unpushed != null) {
+            clusterManager.sendUpdateDeferred(ListActions.INSERT, unpushed);
+            unpushed = null;
+        }
+    }
+
+    @Override
+    public Channel getChannel() {
+        return clusterManager.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        updateCallback = callback;
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<Integer,T> listener) {
+        events.addListener(listener, null);
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<Integer,T> listener, ClusterEventFilter<? super Integer> filter) {
+        events.addListener(listener, filter);
+    }
+
+    @Override
+    public void removeEventListener(ClusterEventListener<Integer,T> listener) {
+        events.removeListener(listener);
+    }
+
+    @Override
+    public Object handleUpdate(ListActions action, List<Operation<T>> payload) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdate(" + action + ", " + payload.size() + ")");
+        synchronized (lock) {
+            apply(action, payload);
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+        return null;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<ListActions,List<Operation<T>>>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        synchronized (lock) {
+            for (ClusterUpdate<ListActions,List<Operation<T>>> update: updates) {
+                apply(update.getActionIdentifier(), update.getPayload());
+            }
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+    }
+
+    /**
+     * Applies operations and the operations which were waiting for the
+     * elements they insert. The caller has to hold the lock.
+     */
+    private void apply(ListActions action, List<Operation<T>> operations) {
+        final Deque<Waiting<T>> queue = new ArrayDeque<Waiting<T>>(operations.size());
+        for (Operation<T> operation: operations) {
+            queue.addLast(new Waiting<T>(action, operation));
+        }
+        while (!queue.isEmpty()) {
+            final Waiting<T> next = queue.removeFirst();
+            final Position inserted = apply(next.action, next.operation);
+            if (inserted != null) {
+                final List<Waiting<T>> ready = waiting.remove(inserted);
+                if (ready != null) {
+                    queue.addAll(ready);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a single operation. The caller has to hold the lock.
+     *
+     * @return the position of a newly inserted element, {@code null} otherwise
+     */
+    private Position apply(ListActions action, Operation<T> operation) {
+        clock = Math.max(clock, Math.max(operation.id.clock, operation.version.clock));
+        final SequenceTree.Node<Element<T>> node = nodes.get(operation.id);
+        switch (action) {
+            case INSERT:
+                if (node == null) {
+                    return insert(operation);
+                }
+                if (operation.removed) {
+                    hide(node);
+                }
+                replace(node, operation);
+                return null;
+            case REMOVE:
+                if (node == null) {
+                    await(operation.id, action, operation);
+                } else {
+                    hide(node);
+                }
+                return null;
+            case SET:
+                if (node == null) {
+                    await(operation.id, action, operation);
+                } else {
+                    replace(node, operation);
+                }
+                return null;
+            default:
+                throw new UnsupportedOperationException(action.name());
+        }
+    }
+
+    private Position insert(Operation<T> operation) {
+        SequenceTree.Node<Element<T>> previous = null;
+        if (operation.anchor != null) {
+            previous = nodes.get(operation.anchor);
+            if (previous == null) {
+                await(operation.anchor, ListActions.INSERT, operation);
+                return null;
+            }
+        }
+        // concurrent inserts behind the same element order by position, newest first
+        SequenceTree.Node<Element<T>> next = previous == null ? sequence.first() : sequence.next(previous);
+        while (next != null && next.item.id.compareTo(operation.id) > 0) {
+            previous = next;
+            next = sequence.next(next);
+        }
+        final Element<T> element = new Element<T>(operation.id, operation.anchor);
+        element.value = operation.removed ? null : operation.element;
+        element.version = operation.version;
+        final SequenceTree.Node<Element<T>> node = sequence.insertAfter(previous, element, !operation.removed);
+        nodes.put(operation.id, node);
+        if (!operation.removed) {
+            report(ClusterEvent.Type.ADDED, node, null, element.value);
+        }
+        return operation.id;
+    }
+
+    private void replace(SequenceTree.Node<Element<T>> node, Operation<T> operation) {
+        if (node.isVisible() && operation.version.compareTo(node.item.version) > 0) {
+            final T previous = node.item.value;
+            node.item.value = operation.element;
+            node.item.version = operation.version;
+            report(ClusterEvent.Type.UPDATED, node, previous, operation.element);
+        }
+    }
+
+    private void hide(SequenceTree.Node<Element<T>> node) {
+        if (node.isVisible()) {
+            report(ClusterEvent.Type.REMOVED, node, node.item.value, null);
+            sequence.setVisible(node, false);
+        }
+    }
+
+    /**
+     * Reports a change of a visible element at its current index.
+     */
+    private void report(ClusterEvent.Type type, SequenceTree.Node<Element<T>> node, T previous, T element) {
+        if (events.isRecording()) {
+            final Integer index = sequence.visibleIndexOf(node);
+            if (events.isObserved(index)) {
+                events.add(type, index, previous, element);
+            }
+        }
+    }
+
+    private void await(Position missing, ListActions action, Operation<T> operation) {
+        List<Waiting<T>> list = waiting.get(missing);
+        if (list == null) {
+            list = new ArrayList<Waiting<T>>(1);
+            waiting.put(missing, list);
+        }
+        list.add(new Waiting<T>(action, operation));
+    }
+
+    private Position nextPosition() {
+        return new Position(++clock, replicaId);
+    }
+
+    @Override
+    public Object coalesceKey(ListActions action, List<Operation<T>> payload) {
+        // operations refer to each other, none may be dropped
+        return null;
+    }
+
+    @Override
+    public void updateClusterState(List<Operation<T>> state) {
+        final List<Operation<T>> missed;
+        synchronized (lock) {
+            missed = sequence.size() == 0 ? Collections.<Operation<T>>emptyList() : missedBy(state);
+            apply(ListActions.INSERT, state);
+        }
+        if (!missed.isEmpty() && clusterManager == null) {
+            // the initial state met elements restored from disk, send them once the manager exists
+            unpushed = missed;
+        } else if (!missed.isEmpty()) {
+            // the provider missed these, e.g. while partitioned
+            clusterManager.sendUpdateDeferred(ListActions.INSERT, missed);
+        }
+    }
+
+    /**
+     * Collects the local elements, removes and replacements a state lacks,
+     * in sequence order. The caller has to hold the lock.
+     */
+    private List<Operation<T>> missedBy(List<Operation<T>> state) {
+        final Map<Position,Operation<T>> known = new HashMap<Position,Operation<T>>((int) (state.size() / .75f) + 1);
+        for (Operation<T> operation: state) {
+            known.put(operation.id, operation);
+        }
+        final List<Operation<T>> missed = new ArrayList<Operation<T>>();
+        for (SequenceTree.Node<Element<T>> node = sequence.first(); node != null; node = sequence.next(node)) {
+            final Operation<T> other = known.get(node.item.id);
+            if (other == null
+                    || (!node.isVisible() && !other.removed)
+                    || (node.isVisible() && !other.removed && node.item.version.compareTo(other.version) > 0)) {
+                missed.add(toOperation(node));
+            }
+        }
+        return missed;
+    }
+
+    private Operation<T> toOperation(SequenceTree.Node<Element<T>> node) {
+        final Element<T> element = node.item;
+        return new Operation<T>(element.id, element.anchor, element.version, element.value, !node.isVisible());
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        synchronized (lock) {
+            action.run();
+        }
+    }
+
+    @Override
+    public List<Operation<T>> provideClusterState() {
+        synchronized (lock) {
+            final List<Operation<T>> state = new ArrayList<Operation<T>>(sequence.size());
+            for (SequenceTree.Node<Element<T>> node = sequence.first(); node != null; node = sequence.next(node)) {
+                state.add(toOperation(node));
+            }
+            return state;
+        }
+    }
+
+    @Override
+    public Iterator<List<Operation<T>>> provideClusterStateChunks(int chunkSize) {
+        final List<Operation<T>> state = provideClusterState();
+        if (state.isEmpty()) {
+            return Collections.singletonList(state).iterator();
+        }
+        return new StateChunkIterator<Operation<T>,List<Operation<T>>>(state.iterator(), chunkSize) {
+            @Override
+            protected List<Operation<T>> newChunk(int expectedSize) {
+                return new ArrayList<Operation<T>>(expectedSize);
+            }
+
+            @Override
+            protected void add(List<Operation<T>> chunk, Operation<T> element) {
+                chunk.add(element);
+            }
+        };
+    }
+
+    @Override
+    public void beginClusterState() {
+        incomingState = new ArrayList<Operation<T>>();
+    }
+
+    @Override
+    public void applyClusterStateChunk(List<Operation<T>> chunk) {
+        incomingState.addAll(chunk);
+    }
+
+    @Override
+    public void endClusterState() {
+        updateClusterState(incomingState);
+        incomingState = null;
+    }
+
+    @Override
+    public int size() {
+        synchronized (lock) {
+            return sequence.visibleSize();
+        }
+    }
+
+    @Override
+    public T get(int index) {
+        synchronized (lock) {
+            return sequence.getVisible(index).item.value;
+        }
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final List<SequenceTree.Node<Element<T>>> snapshot;
+        final List<T> values;
+        synchronized (lock) {
+            snapshot = new ArrayList<SequenceTree.Node<Element<T>>>(sequence.visibleSize());
+            values = new ArrayList<T>(sequence.visibleSize());
+            for (SequenceTree.Node<Element<T>> node = sequence.first(); node != null; node = sequence.next(node)) {
+                if (node.isVisible()) {
+                    snapshot.add(node);
+                    values.add(node.item.value);
+                }
+            }
+        }
+        return new Iterator<T>() {
+            private int index = 0;
+            private SequenceTree.Node<Element<T>> next;
+
+            @Override
+            public boolean hasNext() {
+                return index < snapshot.size();
+            }
+
+            @Override
+            public T next() {
+                if (index >= snapshot.size()) {
+                    throw new NoSuchElementException();
+                }
+                next = snapshot.get(index);
+                return values.get(index++);
+            }
+
+            @Override
+            public void remove() {
+                if (next == null) {
+                    throw new IllegalStateException();
+                }
+                removeNodes(Collections.singletonList(next));
+                next = null;
+            }
+        };
+    }
+
+    @Override
+    public T set(int index, T element) {
+        final ReplicationFuture<Void> replicated;
+        final T previous;
+        synchronized (lock) {
+            final SequenceTree.Node<Element<T>> node = sequence.getVisible(index);
+            previous = node.item.value;
+            replicated = clusterManager.sendUpdateDeferred(ListActions.SET, replaceLocally(node, element));
+        }
+        clusterManager.await(replicated);
+        return previous;
+    }
+
+    @Override
+    public ReplicationFuture<T> setAsync(int index, T element, ReplicationLevel level) {
+        synchronized (lock) {
+            final SequenceTree.Node<Element<T>> node = sequence.getVisible(index);
+            final T previous = node.item.value;
+            return clusterManager.sendUpdateAsync(ListActions.SET, replaceLocally(node, element), level, previous);
+        }
+    }
+
+    @Override
+    public boolean add(T element) {
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            replicated = clusterManager.sendUpdateDeferred(ListActions.INSERT,
+                    insertLocally(sequence.visibleSize(), Collections.singletonList(element)));
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public void add(int index, T element) {
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            replicated = clusterManager.sendUpdateDeferred(ListActions.INSERT,
+                    insertLocally(index, Collections.singletonList(element)));
+        }
+        clusterManager.await(replicated);
+    }
+
+    @Override
+    public ReplicationFuture<Void> addAsync(int index, T element, ReplicationLevel level) {
+        synchronized (lock) {
+            return clusterManager.sendUpdateAsync(ListActions.INSERT,
+                    insertLocally(index, Collections.singletonList(element)), level, null);
+        }
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> addAsync(T element) {
+        return addAsync(element, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> addAsync(T element, ReplicationLevel level) {
+        synchronized (lock) {
+            return clusterManager.sendUpdateAsync(ListActions.INSERT,
+                    insertLocally(sequence.visibleSize(), Collections.singletonList(element)), level, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        if (c.isEmpty()) {
+            return false;
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            replicated = clusterManager.sendUpdateDeferred(ListActions.INSERT,
+                    insertLocally(sequence.visibleSize(), new ArrayList<T>(c)));
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends T> c) {
+        final List<T> elements = new ArrayList<T>(c);
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            final List<Operation<T>> inserted = insertLocally(index, elements);
+            if (inserted.isEmpty()) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(ListActions.INSERT, inserted);
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public T remove(int index) {
+        final ReplicationFuture<Void> replicated;
+        final T previous;
+        synchronized (lock) {
+            final SequenceTree.Node<Element<T>> node = sequence.getVisible(index);
+            previous = node.item.value;
+            replicated = clusterManager.sendUpdateDeferred(ListActions.REMOVE,
+                    removeLocally(Collections.singletonList(node)));
+        }
+        clusterManager.await(replicated);
+        return previous;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            final SequenceTree.Node<Element<T>> node = find(o);
+            if (node == null) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(ListActions.REMOVE,
+                    removeLocally(Collections.singletonList(node)));
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> removeAsync(Object element) {
+        return removeAsync(element, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> removeAsync(Object element, ReplicationLevel level) {
+        synchronized (lock) {
+            final SequenceTree.Node<Element<T>> node = find(element);
+            if (node == null) {
+                return SettableReplicationFuture.completed(Boolean.FALSE);
+            }
+            return clusterManager.sendUpdateAsync(ListActions.REMOVE,
+                    removeLocally(Collections.singletonList(node)), level, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        return removeMatching(c, true);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        return removeMatching(c, false);
+    }
+
+    @Override
+    public void clear() {
+        removeMatching(Collections.emptySet(), false);
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        final List<SequenceTree.Node<Element<T>>> matching = new ArrayList<SequenceTree.Node<Element<T>>>();
+        synchronized (lock) {
+            for (int index = fromIndex; index < toIndex; index++) {
+                matching.add(sequence.getVisible(index));
+            }
+        }
+        removeNodes(matching);
+    }
+
+    private boolean removeMatching(Collection<?> c, boolean contained) {
+        final List<SequenceTree.Node<Element<T>>> matching = new ArrayList<SequenceTree.Node<Element<T>>>();
+        synchronized (lock) {
+            for (SequenceTree.Node<Element<T>> node = sequence.first(); node != null; node = sequence.next(node)) {
+                if (node.isVisible() && c.contains(node.item.value) == contained) {
+                    matching.add(node);
+                }
+            }
+        }
+        return removeNodes(matching);
+    }
+
+    /**
+     * Removes the still visible nodes with a single update.
+     *
+     * @return whether a node was removed
+     */
+    private boolean removeNodes(List<SequenceTree.Node<Element<T>>> matching) {
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            final List<SequenceTree.Node<Element<T>>> visible = new ArrayList<SequenceTree.Node<Element<T>>>();
+            for (SequenceTree.Node<Element<T>> node: matching) {
+                if (node.isVisible()) {
+                    visible.add(node);
+                }
+            }
+            if (visible.isEmpty()) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(ListActions.REMOVE, removeLocally(visible));
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    private SequenceTree.Node<Element<T>> find(Object o) {
+        for (SequenceTree.Node<Element<T>> node = sequence.first(); node != null; node = sequence.next(node)) {
+            if (node.isVisible() && (o == null ? node.item.value == null : o.equals(node.item.value))) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Inserts elements one after another. The caller has to hold the lock.
+     *
+     * @param index the index of the first element
+     * @param elements the elements
+     * @return the insert operations
+     */
+    private List<Operation<T>> insertLocally(int index, List<? extends T> elements) {
+        final int size = sequence.visibleSize();
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        Position anchor = index == 0 ? null : sequence.getVisible(index - 1).item.id;
+        final List<Operation<T>> operations = new ArrayList<Operation<T>>(elements.size());
+        for (T element: elements) {
+            final Position id = nextPosition();
+            final Operation<T> operation = new Operation<T>(id, anchor, id, element, false);
+            insert(operation);
+            operations.add(operation);
+            anchor = id;
+        }
+        return operations;
+    }
+
+    /**
+     * Hides visible nodes. The caller has to hold the lock.
+     *
+     * @return the remove operations
+     */
+    private List<Operation<T>> removeLocally(List<SequenceTree.Node<Element<T>>> removed) {
+        final List<Operation<T>> operations = new ArrayList<Operation<T>>(removed.size());
+        for (SequenceTree.Node<Element<T>> node: removed) {
+            sequence.setVisible(node, false);
+            node.item.value = null;
+            operations.add(new Operation<T>(node.item.id, null, node.item.version, null, true));
+        }
+        return operations;
+    }
+
+    /**
+     * Replaces the value of a node. The caller has to hold the lock.
+     *
+     * @return the set operation
+     */
+    private List<Operation<T>> replaceLocally(SequenceTree.Node<Element<T>> node, T element) {
+        final Operation<T> operation = new Operation<T>(node.item.id, null, nextPosition(), element, false);
+        replace(node, operation);
+        return Collections.singletonList(operation);
+    }
+
+    @Override
+    public String toString() {
+        return "ConvergentClusteredList{" +
+                "listSize=" + size() +
+                ", cluster=" + clusterManager +
+                '}';
+    }
+
+    public static enum ListActions {
+        INSERT,
+        REMOVE,
+        SET
+    }
+
+    /**
+     * Identifies an element or a value: a logical clock, which is higher than
+     * every clock its member had seen, and the id of the member.
+     */
+    static final class Position implements Comparable<Position> {
+        final long clock;
+        final long member;
+
+        Position(long clock, long member) {
+            this.clock = clock;
+            this.member = member;
+        }
+
+        @Override
+        public int compareTo(Position other) {
+            if (clock != other.clock) {
+                return clock < other.clock ? -1 : 1;
+            }
+            return member < other.member ? -1 : (member == other.member ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Position)) {
+                return false;
+            }
+            final Position position = (Position) o;
+            return clock == position.clock && member == position.member;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (member ^ (member >>> 32)) + (int) (clock ^ (clock >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return clock + ":" + Long.toHexString(member);
+        }
+    }
+
+    /**
+     * An element of the sequence: its position, the position it was
+     * inserted after and its current value with the position of the write.
+     */
+    private static final class Element<T> {
+        final Position id;
+        final Position anchor;
+        T value;
+        Position version;
+
+        Element(Position id, Position anchor) {
+            this.id = id;
+            this.anchor = anchor;
+        }
+    }
+
+    /**
+     * An operation which waits for the element it refers to.
+     */
+    private static final class Waiting<T> {
+        final ListActions action;
+        final Operation<T> operation;
+
+        Waiting(ListActions action, Operation<T> operation) {
+            this.action = action;
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * An operation on the element at {@code id}. Inserts carry the position
+     * they were inserted after, inserts and sets the value with its
+     * version. A state is the sequence of inserts of all elements, with the
+     * removed ones marked.
+     */
+    static final class Operation<T> {
+        final Position id;
+        final Position anchor;
+        final Position version;
+        final T element;
+        final boolean removed;
+
+        Operation(Position id, Position anchor, Position version, T element, boolean removed) {
+            this.id = id;
+            this.anchor = anchor;
+            this.version = version;
+            this.element = element;
+            this.removed = removed;
+        }
+
+        @Override
+        public String toString() {
+            return "Operation{" +
+                    "id=" + id +
+                    ", anchor=" + anchor +
+                    ", version=" + version +
+                    ", removed=" + removed +
+                    '}';
+        }
+    }
+
+    /**
+     * Encodes the action as a single byte tag followed by the operations.
+     * Removes only carry the position; the state has the format of inserts.
+     */
+    static final class ListCodec<T> implements ClusterCodec<ListActions,List<Operation<T>>,List<Operation<T>>> {
+        private static final ListActions[] ACTIONS = ListActions.values();
+
+        private final Serializer<T> serializer;
+
+        ListCodec(Serializer<T> serializer) {
+            this.serializer = serializer;
+        }
+
+        @Override
+        public void writeUpdate(ListActions action, List<Operation<T>> payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            Varints.writeUnsignedInt(out, payload.size());
+            for (Operation<T> operation: payload) {
+                writePosition(operation.id, out);
+                switch (action) {
+                    case INSERT:
+                        writeInsert(operation, out);
+                        break;
+                    case REMOVE:
+                        break;
+                    case SET:
+                        writePosition(operation.version, out);
+                        serializer.write(operation.element, out);
+                        break;
+                    default:
+                        throw new UnsupportedOperationException(action.name());
+                }
+            }
+        }
+
+        @Override
+        public ClusterUpdate<ListActions,List<Operation<T>>> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown list action " + tag);
+            }
+            final ListActions action = ACTIONS[tag];
+            final int size = Varints.readUnsignedInt(in);
+            final List<Operation<T>> payload = new ArrayList<Operation<T>>(size);
+            for (int n = 0; n < size; n++) {
+                final Position id = readPosition(in);
+                switch (action) {
+                    case INSERT:
+                        payload.add(readInsert(id, in));
+                        break;
+                    case REMOVE:
+                        payload.add(new Operation<T>(id, null, id, null, true));
+                        break;
+                    case SET:
+                        final Position version = readPosition(in);
+                        payload.add(new Operation<T>(id, null, version, serializer.read(in), false));
+                        break;
+                    default:
+                        throw new UnsupportedOperationException(action.name());
+                }
+            }
+            return new ClusterUpdate<ListActions,List<Operation<T>>>(action, payload);
+        }
+
+        @Override
+        public void writeState(List<Operation<T>> state, DataOutput out) throws IOException {
+            Varints.writeUnsignedInt(out, state.size());
+            for (Operation<T> operation: state) {
+                writePosition(operation.id, out);
+                writeInsert(operation, out);
+            }
+        }
+
+        @Override
+        public List<Operation<T>> readState(DataInput in) throws IOException {
+            final int size = Varints.readUnsignedInt(in);
+            final List<Operation<T>> state = new ArrayList<Operation<T>>(size);
+            for (int n = 0; n < size; n++) {
+                state.add(readInsert(readPosition(in), in));
+            }
+            return state;
+        }
+
+        private void writeInsert(Operation<T> operation, DataOutput out) throws IOException {
+            out.writeBoolean(operation.anchor != null);
+            if (operation.anchor != null) {
+                writePosition(operation.anchor, out);
+            }
+            out.writeBoolean(operation.removed);
+            if (!operation.removed) {
+                writePosition(operation.version, out);
+                serializer.write(operation.element, out);
+            }
+        }
+
+        private Operation<T> readInsert(Position id, DataInput in) throws IOException {
+            final Position anchor = in.readBoolean() ? readPosition(in) : null;
+            if (in.readBoolean()) {
+                return new Operation<T>(id, anchor, id, null, true);
+            }
+            final Position version = readPosition(in);
+            return new Operation<T>(id, anchor, version, serializer.read(in), false);
+        }
+
+        private static void writePosition(Position position, DataOutput out) throws IOException {
+            Varints.writeUnsignedLong(out, position.clock);
+            out.writeLong(position.member);
+        }
+
+        private static Position readPosition(DataInput in) throws IOException {
+            final long clock = Varints.readUnsignedLong(in);
+            return new Position(clock, in.readLong());
+        }
+    }
+}
@@ -0,0 +1,731 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implements a clustered {@link Map} as a last writer wins map, a conflict
+ * free replicated data type. Every write carries a timestamp and the id of
+ * the writing member; all members keep the write with the highest
+ * timestamp, the member id breaking ties, no matter in which order the
+ * writes arrive. Modifications never wait for other members.
+ *
+ * <p>
+ * The timestamps come from a hybrid clock: the wall clock, but never less
+ * than a timestamp seen before. A write therefore always wins against the
+ * writes its member knew about, even if the clocks of the members drift.
+ * Removed keys are remembered as tombstones for the
+ * {@link ClusterConfiguration#setTombstoneRetention(long, TimeUnit) tombstone retention},
+ * so that an older write arriving later does not bring them back.
+ * </p>
+ *
+ * <p>
+ * A transferred state is merged into the local copy instead of replacing
+ * it. When partitions merge, the members of the smaller partitions send the
+ * entries back which they have newer than the largest partition.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> generic key type
+ * @param <V> generic value type
+ */
+final class ConvergentClusteredMap<K,V> extends AbstractMap<K,V> implements
+        ClusteredMap<K,V>,
+        ClusterManaged<ConvergentClusteredMap.MapActions,Map<K,ConvergentClusteredMap.Versioned<V>>,
+                Map<K,ConvergentClusteredMap.Versioned<V>>> {
+
+    private static final Log LOG = LogFactory.getLog(ConvergentClusteredMap.class);
+
+    private final long replicaId = UUID.randomUUID().getLeastSignificantBits();
+    private final long tombstoneRetention;
+    private final Object lock = new Object();
+    private final ConcurrentHashMap<K,Versioned<V>> localMap = new ConcurrentHashMap<K,Versioned<V>>();
+    private final Map<K,Versioned<V>> tombstones = new HashMap<K,Versioned<V>>();
+    private long clock = 0;
+    private long nextPurge = 0;
+
+    private Set<K> incomingKeys;
+    private Map<K,Versioned<V>> incomingNewer;
+
+    private final ClusterManager<MapActions,Map<K,Versioned<V>>,Map<K,Versioned<V>>> clusterManager;
+    private Map<K,Versioned<V>> unpushed;
+    private volatile ClusterUpdateCallback updateCallback = null;
+    private final ClusterEvents<K,V> events = new ClusterEvents<K,V>();
+
+    public ConvergentClusteredMap(ClusterContext context, String name,
+                                  Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                  ClusterConfiguration configuration) throws ChannelException {
+        tombstoneRetention = configuration.getTombstoneRetention(TimeUnit.MILLISECONDS);
+        clusterManager = new ClusterManager<MapActions,Map<K,Versioned<V>>,Map<K,Versioned<V>>>(
+                context, name, this, new MapCodec<K,V>(keySerializer, valueSerializer), configuration);
+        clusterManager.observe(events);
+        if (unpushed != null) {
+            clusterManager.sendUpdateDeferred(MapActions.WRITE, unpushed);
+            unpushed = null;
+        }
+    }
+
+    @Override
+    public Channel getChannel() {
+        return clusterManager.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        updateCallback = callback;
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<K,V> listener) {
+        events.addListener(listener, null);
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<K,V> listener, ClusterEventFilter<? super K> filter) {
+        events.addListener(listener, filter);
+    }
+
+    @Override
+    public void removeEventListener(ClusterEventListener<K,V> listener) {
+        events.removeListener(listener);
+    }
+
+    @Override
+    public ContinuousQuery<K,V> addContinuousQuery(ClusterPredicate<? super K,? super V> predicate,
+                                                   ClusterEventListener<K,V> listener) {
+        synchronized (lock) {
+            return events.addQuery(predicate, listener, entrySet());
+        }
+    }
+
+    @Override
+    public Object handleUpdate(MapActions action, Map<K,Versioned<V>> payload) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdate(" + action + ", " + payload.size() + ")");
+        synchronized (lock) {
+            merge(payload, null, null);
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+        return null;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<MapActions,Map<K,Versioned<V>>>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        synchronized (lock) {
+            for (ClusterUpdate<MapActions,Map<K,Versioned<V>>> update: updates) {
+                merge(update.getPayload(), null, null);
+            }
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+    }
+
+    /**
+     * Keeps the newer of the local and the given writes. The caller has to
+     * hold the lock.
+     *
+     * @param writes the writes to merge
+     * @param received collects the merged keys, may be {@code null}
+     * @param newer collects the local writes which won, may be {@code null}
+     */
+    private void merge(Map<K,Versioned<V>> writes, Set<K> received, Map<K,Versioned<V>> newer) {
+        for (Map.Entry<K,Versioned<V>> write: writes.entrySet()) {
+            final K key = write.getKey();
+            final Versioned<V> incoming = write.getValue();
+            if (received != null) {
+                received.add(key);
+            }
+            if (incoming.timestamp > clock) {
+                clock = incoming.timestamp;
+            }
+            final Versioned<V> current = versionOf(key);
+            if (current == null || incoming.isNewerThan(current)) {
+                store(key, incoming);
+            } else if (newer != null && current.isNewerThan(incoming)) {
+                newer.put(key, current);
+            }
+        }
+    }
+
+    private void report(K key, V previous, V value) {
+        if ((previous != null || value != null) && events.isObserved(key)) {
+            final ClusterEvent.Type type;
+            if (value == null) {
+                type = ClusterEvent.Type.REMOVED;
+            } else if (previous == null) {
+                type = ClusterEvent.Type.ADDED;
+            } else {
+                type = ClusterEvent.Type.UPDATED;
+            }
+            events.add(type, key, previous, value);
+        }
+    }
+
+    private Versioned<V> versionOf(K key) {
+        final Versioned<V> current = localMap.get(key);
+        return current != null ? current : tombstones.get(key);
+    }
+
+    private void store(K key, Versioned<V> version) {
+        final Versioned<V> previous;
+        if (version.value == null) {
+            previous = localMap.remove(key);
+            tombstones.put(key, version);
+        } else {
+            tombstones.remove(key);
+            previous = localMap.put(key, version);
+        }
+        report(key, previous == null ? null : previous.value, version.value);
+    }
+
+    /**
+     * Runs the delivery of the recorded events, the caller must not hold the lock.
+     */
+    private static void deliver(Runnable changes) {
+        if (changes != null) {
+            changes.run();
+        }
+    }
+
+    /**
+     * Creates the version of a local write and purges expired tombstones
+     * from time to time. The caller has to hold the lock.
+     *
+     * @param value the written value, {@code null} for a remove
+     * @return the version
+     */
+    private Versioned<V> nextVersion(V value) {
+        final long now = System.currentTimeMillis();
+        clock = Math.max(now, clock + 1);
+        if (now >= nextPurge) {
+            final Iterator<Versioned<V>> iterator = tombstones.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().timestamp < now - tombstoneRetention) {
+                    iterator.remove();
+                }
+            }
+            nextPurge = now + tombstoneRetention / 2;
+        }
+        return new Versioned<V>(value, clock, replicaId);
+    }
+
+    @Override
+    public Object coalesceKey(MapActions action, Map<K,Versioned<V>> payload) {
+        // a later write of the same key has a higher timestamp anyway
+        return payload.size() == 1 ? payload.keySet().iterator().next() : null;
+    }
+
+    @Override
+    public void updateClusterState(Map<K,Versioned<V>> state) {
+        final Map<K,Versioned<V>> newer = new HashMap<K,Versioned<V>>();
+        Runnable changes = null;
+        synchronized (lock) {
+            // the queries follow the merge, the listeners only see update messages
+            final boolean recording = events.beginLocal();
+            try {
+                final Set<K> received = new HashSet<K>((int) (state.size() / .75f) + 1);
+                merge(state, received, newer);
+                collectMissing(received, newer);
+            } finally {
+                if (recording) {
+                    changes = events.endLocal();
+                }
+            }
+        }
+        deliver(changes);
+        pushBack(newer);
+    }
+
+    /**
+     * Collects the local writes of keys the provider of a state did not
+     * know. The caller has to hold the lock.
+     */
+    private void collectMissing(Set<K> received, Map<K,Versioned<V>> newer) {
+        for (Map.Entry<K,Versioned<V>> entry: localMap.entrySet()) {
+            if (!received.contains(entry.getKey())) {
+                newer.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<K,Versioned<V>> entry: tombstones.entrySet()) {
+            if (!received.contains(entry.getKey())) {
+                newer.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void pushBack(Map<K,Versioned<V>> newer) {
+        if (newer.isEmpty()) {
+            return;
+        }
+        if (clusterManager == null) {
+            // the initial state met writes restored from disk, send them once the manager exists
+            if (unpushed == null) {
+                unpushed = new HashMap<K,Versioned<V>>();
+            }
+            unpushed.putAll(newer);
+        } else {
+            // the provider missed these writes, e.g. while partitioned
+            clusterManager.sendUpdateDeferred(MapActions.WRITE, newer);
+        }
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        synchronized (lock) {
+            action.run();
+        }
+    }
+
+    @Override
+    public Map<K,Versioned<V>> provideClusterState() {
+        synchronized (lock) {
+            final Map<K,Versioned<V>> state = new HashMap<K,Versioned<V>>(localMap);
+            state.putAll(tombstones);
+            return state;
+        }
+    }
+
+    @Override
+    public Iterator<Map<K,Versioned<V>>> provideClusterStateChunks(int chunkSize) {
+        final Map<K,Versioned<V>> state = provideClusterState();
+        return new StateChunkIterator<Map.Entry<K,Versioned<V>>,Map<K,Versioned<V>>>(state.entrySet().iterator(),
+                chunkSize) {
+            @Override
+            protected Map<K,Versioned<V>> newChunk(int expectedSize) {
+                return new HashMap<K,Versioned<V>>((int) (expectedSize / .75f) + 1);
+            }
+
+            @Override
+            protected void add(Map<K,Versioned<V>> chunk, Map.Entry<K,Versioned<V>> element) {
+                chunk.put(element.getKey(), element.getValue());
+            }
+        };
+    }
+
+    @Override
+    public void beginClusterState() {
+        incomingKeys = new HashSet<K>();
+        incomingNewer = new HashMap<K,Versioned<V>>();
+    }
+
+    @Override
+    public void applyClusterStateChunk(Map<K,Versioned<V>> chunk) {
+        Runnable changes = null;
+        synchronized (lock) {
+            final boolean recording = events.beginLocal();
+            try {
+                merge(chunk, incomingKeys, incomingNewer);
+            } finally {
+                if (recording) {
+                    changes = events.endLocal();
+                }
+            }
+        }
+        deliver(changes);
+    }
+
+    @Override
+    public void endClusterState() {
+        synchronized (lock) {
+            collectMissing(incomingKeys, incomingNewer);
+        }
+        pushBack(incomingNewer);
+        incomingKeys = null;
+        incomingNewer = null;
+    }
+
+    @Override
+    public Set<Entry<K,V>> entrySet() {
+        return new AbstractSet<Entry<K,V>>() {
+
+            @Override
+            public Iterator<Entry<K,V>> iterator() {
+                final Iterator<Entry<K,Versioned<V>>> iterator = localMap.entrySet().iterator();
+                return new Iterator<Entry<K,V>>() {
+                    private K next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K,V> next() {
+                        final Entry<K,Versioned<V>> entry = iterator.next();
+                        next = entry.getKey();
+                        return new SimpleImmutableEntry<K,V>(next, entry.getValue().value);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (next == null) {
+                            throw new IllegalStateException();
+                        }
+                        ConvergentClusteredMap.this.remove(next);
+                        next = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return localMap.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry)) {
+                    return false;
+                }
+                final Entry<?,?> entry = (Entry<?,?>) o;
+                final V value = get(entry.getKey());
+                return value != null && value.equals(entry.getValue());
+            }
+
+            @Override
+            public void clear() {
+                ConvergentClusteredMap.this.clear();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return localMap.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return localMap.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return localMap.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        final Versioned<V> version = localMap.get(key);
+        return version == null ? null : version.value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        final ReplicationFuture<Void> replicated;
+        final Versioned<V> previous;
+        Runnable changes = null;
+        synchronized (lock) {
+            final boolean recording = events.beginLocal();
+            try {
+                final Versioned<V> version = nextVersion(value);
+                previous = localMap.get(key);
+                store(key, version);
+                replicated = clusterManager.sendUpdateDeferred(MapActions.WRITE, Collections.singletonMap(key, version));
+            } finally {
+                if (recording) {
+                    changes = events.endLocal();
+                }
+            }
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+        return previous == null ? null : previous.value;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (!localMap.containsKey(key)) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        final K typedKey = (K) key;
+        final ReplicationFuture<Void> replicated;
+        final Versioned<V> previous;
+        Runnable changes = null;
+        synchronized (lock) {
+            previous = localMap.get(key);
+            if (previous == null) {
+                return null;
+            }
+            final boolean recording = events.beginLocal();
+            try {
+                final Versioned<V> version = nextVersion(null);
+                store(typedKey, version);
+                replicated = clusterManager.sendUpdateDeferred(MapActions.WRITE,
+                        Collections.singletonMap(typedKey, version));
+            } finally {
+                if (recording) {
+                    changes = events.endLocal();
+                }
+            }
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+        return previous.value;
+    }
+
+    @Override
+    public ReplicationFuture<V> putAsync(K key, V value) {
+        return putAsync(key, value, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<V> putAsync(K key, V value, ReplicationLevel level) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        final ReplicationFuture<V> future;
+        Runnable changes = null;
+        synchronized (lock) {
+            final boolean recording = events.beginLocal();
+            try {
+                final Versioned<V> version = nextVersion(value);
+                final Versioned<V> previous = localMap.get(key);
+                store(key, version);
+                future = clusterManager.sendUpdateAsync(MapActions.WRITE, Collections.singletonMap(key, version),
+                        level, previous == null ? null : previous.value);
+            } finally {
+                if (recording) {
+                    changes = events.endLocal();
+                }
+            }
+        }
+        deliver(changes);
+        return future;
+    }
+
+    @Override
+    public ReplicationFuture<V> removeAsync(Object key) {
+        return removeAsync(key, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<V> removeAsync(Object key, ReplicationLevel level) {
+        final ReplicationFuture<V> future;
+        Runnable changes = null;
+        synchronized (lock) {
+            final Versioned<V> previous = localMap.get(key);
+            if (previous == null) {
+                return SettableReplicationFuture.completed(null);
+            }
+            @SuppressWarnings("unchecked")
+            final K typedKey = (K) key;
+            final boolean recording = events.beginLocal();
+            try {
+                final Versioned<V> version = nextVersion(null);
+                store(typedKey, version);
+                future = clusterManager.sendUpdateAsync(MapActions.WRITE, Collections.singletonMap(typedKey, version),
+                        level, previous.value);
+            } finally {
+                if (recording) {
+                    changes = events.endLocal();
+                }
+            }
+        }
+        deliver(changes);
+        return future;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (m.isEmpty()) {
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        Runnable changes = null;
+        synchronized (lock) {
+            final Map<K,Versioned<V>> writes = new HashMap<K,Versioned<V>>((int) (m.size() / .75f) + 1);
+            for (Entry<? extends K, ? extends V> entry: m.entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null) {
+                    throw new NullPointerException();
+                }
+                writes.put(entry.getKey(), nextVersion(entry.getValue()));
+            }
+            final boolean recording = events.beginLocal();
+            try {
+                for (Entry<K,Versioned<V>> write: writes.entrySet()) {
+                    store(write.getKey(), write.getValue());
+                }
+                replicated = clusterManager.sendUpdateDeferred(MapActions.WRITE, writes);
+            } finally {
+                if (recording) {
+                    changes = events.endLocal();
+                }
+            }
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+    }
+
+    @Override
+    public void clear() {
+        final ReplicationFuture<Void> replicated;
+        Runnable changes = null;
+        synchronized (lock) {
+            if (localMap.isEmpty()) {
+                return;
+            }
+            final Map<K,Versioned<V>> writes = new HashMap<K,Versioned<V>>();
+            final Versioned<V> version = nextVersion(null);
+            for (K key: localMap.keySet()) {
+                writes.put(key, version);
+            }
+            final boolean recording = events.beginLocal();
+            try {
+                for (K key: writes.keySet()) {
+                    store(key, version);
+                }
+                replicated = clusterManager.sendUpdateDeferred(MapActions.WRITE, writes);
+            } finally {
+                if (recording) {
+                    changes = events.endLocal();
+                }
+            }
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+    }
+
+    @Override
+    public String toString() {
+        return "ConvergentClusteredMap{" +
+                "mapSize=" + localMap.size() +
+                ", cluster=" + clusterManager +
+                '}';
+    }
+
+    public static enum MapActions {
+        WRITE
+    }
+
+    /**
+     * A written value with the timestamp and the id of its writer, the
+     * value is {@code null} for a remove.
+     */
+    static final class Versioned<V> {
+        final V value;
+        final long timestamp;
+        final long member;
+
+        Versioned(V value, long timestamp, long member) {
+            this.value = value;
+            this.timestamp = timestamp;
+            this.member = member;
+        }
+
+        boolean isNewerThan(Versioned<?> other) {
+            return timestamp > other.timestamp || (timestamp == other.timestamp && member > other.member);
+        }
+
+        @Override
+        public String toString() {
+            return (value == null ? "removed" : String.valueOf(value)) +
+                    "@" + timestamp + ":" + Long.toHexString(member);
+        }
+    }
+
+    /**
+     * Encodes updates and states the same way: the number of writes followed
+     * by key, writer, timestamp and, unless it is a remove, the value.
+     */
+    static final class MapCodec<K,V> implements ClusterCodec<MapActions,Map<K,Versioned<V>>,Map<K,Versioned<V>>> {
+        private static final MapActions[] ACTIONS = MapActions.values();
+
+        private final Serializer<K> keySerializer;
+        private final Serializer<V> valueSerializer;
+
+        MapCodec(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+        }
+
+        @Override
+        public void writeUpdate(MapActions action, Map<K,Versioned<V>> payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            writeState(payload, out);
+        }
+
+        @Override
+        public ClusterUpdate<MapActions,Map<K,Versioned<V>>> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown map action " + tag);
+            }
+            return new ClusterUpdate<MapActions,Map<K,Versioned<V>>>(ACTIONS[tag], readState(in));
+        }
+
+        @Override
+        public void writeState(Map<K,Versioned<V>> state, DataOutput out) throws IOException {
+            Varints.writeUnsignedInt(out, state.size());
+            for (Map.Entry<K,Versioned<V>> entry: state.entrySet()) {
+                final Versioned<V> version = entry.getValue();
+                keySerializer.write(entry.getKey(), out);
+                out.writeLong(version.member);
+                Varints.writeUnsignedLong(out, version.timestamp);
+                out.writeBoolean(version.value != null);
+                if (version.value != null) {
+                    valueSerializer.write(version.value, out);
+                }
+            }
+        }
+
+        @Override
+        public Map<K,Versioned<V>> readState(DataInput in) throws IOException {
+            final int size = Varints.readUnsignedInt(in);
+            final Map<K,Versioned<V>> state = new HashMap<K,Versioned<V>>((int) (size / .75f) + 1);
+            for (int n = 0; n < size; n++) {
+                final K key = keySerializer.read(in);
+                final long member = in.readLong();
+                final long timestamp = Varints.readUnsignedLong(in);
+                final V value = in.readBoolean() ? valueSerializer.read(in) : null;
+                state.put(key, new Versioned<V>(value, timestamp, member));
+            }
+            return state;
+        }
+    }
+}
@@ -0,0 +1,686 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Implements a clustered {@link Set} as an observed-remove set, a conflict
+ * free replicated data type. Every add tags the element with a unique dot
+ * of the adding member and a remove only removes the dots it has observed.
+ * A concurrent add and remove of the same element therefore ends the same
+ * way on every member, the add wins, no matter in which order the updates
+ * arrive. Modifications never wait for other members.
+ *
+ * <p>
+ * Every member counts its adds; the highest count seen per member tells
+ * which dots a copy already reflects. A remove which arrives before the add
+ * it observed is remembered until the add arrives. Adding an element which
+ * is present already replaces its dots, so that this add wins over a
+ * concurrent remove as well.
+ * </p>
+ *
+ * <p>
+ * A transferred state is merged into the local copy instead of replacing
+ * it. When partitions merge, the members of the smaller partitions merge the
+ * state of the largest one and send the result back, so that the writes of
+ * all partitions survive.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <T> generic element type
+ */
+final class ConvergentClusteredSet<T> extends AbstractSet<T> implements
+        ClusteredSet<T>,
+        ClusterManaged<ConvergentClusteredSet.SetActions,ConvergentClusteredSet.SetState<T>,
+                ConvergentClusteredSet.SetState<T>> {
+
+    private static final Log LOG = LogFactory.getLog(ConvergentClusteredSet.class);
+
+    private final long replicaId = UUID.randomUUID().getLeastSignificantBits();
+    private final Object lock = new Object();
+    private final SetState<T> localState = new SetState<T>();
+    private SetState<T> incomingState;
+
+    private final ClusterManager<SetActions,SetState<T>,SetState<T>> clusterManager;
+    private SetState<T> unpushed;
+    private volatile ClusterUpdateCallback updateCallback = null;
+
+    public ConvergentClusteredSet(ClusterContext context, String name, Serializer<T> serializer,
+                                  ClusterConfiguration configuration) throws ChannelException {
+        clusterManager = new ClusterManager<SetActions,SetState<T>,SetState<T>>(
+                context, name, this, new SetCodec<T>(serializer), configuration);
+        if (unpushed != null) {
+            clusterManager.sendUpdateDeferred(SetActions.MERGE, unpushed);
+            unpushed = null;
+        }
+    }
+
+    @Override
+    public Channel getChannel() {
+        return clusterManager.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        updateCallback = callback;
+    }
+
+    @Override
+    public Object handleUpdate(SetActions action, SetState<T> payload) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdate(" + action + ", " + payload + ")");
+        synchronized (lock) {
+            applyUpdate(action, payload);
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+        return null;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<SetActions,SetState<T>>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        synchronized (lock) {
+            for (ClusterUpdate<SetActions,SetState<T>> update: updates) {
+                applyUpdate(update.getActionIdentifier(), update.getPayload());
+            }
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+    }
+
+    private void applyUpdate(SetActions action, SetState<T> payload) {
+        switch (action) {
+            case ADD:
+                for (Map.Entry<T,Set<Dot>> element: payload.elements.entrySet()) {
+                    for (Dot dot: element.getValue()) {
+                        localState.add(element.getKey(), dot);
+                    }
+                }
+                break;
+            case REMOVE:
+                for (Map.Entry<T,Set<Dot>> element: payload.elements.entrySet()) {
+                    localState.remove(element.getKey(), element.getValue());
+                }
+                break;
+            case MERGE:
+                localState.merge(payload);
+                break;
+            default:
+                throw new UnsupportedOperationException(action.name());
+        }
+    }
+
+    @Override
+    public Object coalesceKey(SetActions action, SetState<T> payload) {
+        // every dot counts, nothing supersedes anything
+        return null;
+    }
+
+    @Override
+    public void updateClusterState(SetState<T> state) {
+        final SetState<T> merged;
+        synchronized (lock) {
+            final boolean missed = localState.knowsMoreThan(state);
+            localState.merge(state);
+            merged = missed ? localState.copy() : null;
+        }
+        if (merged != null && clusterManager == null) {
+            // the initial state met writes restored from disk, send them once the manager exists
+            unpushed = merged;
+        } else if (merged != null) {
+            // the provider may miss our writes, e.g. after a partition
+            clusterManager.sendUpdateDeferred(SetActions.MERGE, merged);
+        }
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        synchronized (lock) {
+            action.run();
+        }
+    }
+
+    @Override
+    public SetState<T> provideClusterState() {
+        synchronized (lock) {
+            return localState.copy();
+        }
+    }
+
+    @Override
+    public Iterator<SetState<T>> provideClusterStateChunks(int chunkSize) {
+        final SetState<T> state = provideClusterState();
+        if (state.elements.isEmpty()) {
+            return Collections.singletonList(state).iterator();
+        }
+        return new StateChunkIterator<Map.Entry<T,Set<Dot>>,SetState<T>>(state.elements.entrySet().iterator(),
+                chunkSize) {
+            private boolean first = true;
+
+            @Override
+            protected SetState<T> newChunk(int expectedSize) {
+                final SetState<T> chunk = new SetState<T>();
+                if (first) {
+                    // the first chunk carries the counters
+                    chunk.seen.putAll(state.seen);
+                    chunk.removedEarly.addAll(state.removedEarly);
+                    first = false;
+                }
+                return chunk;
+            }
+
+            @Override
+            protected void add(SetState<T> chunk, Map.Entry<T,Set<Dot>> element) {
+                chunk.elements.put(element.getKey(), element.getValue());
+            }
+        };
+    }
+
+    @Override
+    public void beginClusterState() {
+        incomingState = new SetState<T>();
+    }
+
+    @Override
+    public void applyClusterStateChunk(SetState<T> chunk) {
+        incomingState.elements.putAll(chunk.elements);
+        incomingState.seen.putAll(chunk.seen);
+        incomingState.removedEarly.addAll(chunk.removedEarly);
+    }
+
+    @Override
+    public void endClusterState() {
+        updateClusterState(incomingState);
+        incomingState = null;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Iterator<T> iterator;
+        synchronized (lock) {
+            iterator = new ArrayList<T>(localState.elements.keySet()).iterator();
+        }
+        return new Iterator<T>() {
+            private T next;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return next = iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                ConvergentClusteredSet.this.remove(next);
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        synchronized (lock) {
+            return localState.elements.size();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        synchronized (lock) {
+            return localState.elements.containsKey(o);
+        }
+    }
+
+    @Override
+    public boolean add(T t) {
+        final ReplicationFuture<Void> replicated;
+        final boolean changed;
+        synchronized (lock) {
+            changed = !localState.elements.containsKey(t);
+            replicated = clusterManager.sendUpdateDeferred(SetActions.ADD, addLocally(Collections.singleton(t)));
+        }
+        clusterManager.await(replicated);
+        return changed;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            final SetState<T> removed = removeLocally(Collections.singleton(o), true);
+            if (removed == null) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(SetActions.REMOVE, removed);
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> addAsync(T element) {
+        return addAsync(element, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> addAsync(T element, ReplicationLevel level) {
+        synchronized (lock) {
+            final boolean changed = !localState.elements.containsKey(element);
+            return clusterManager.sendUpdateAsync(SetActions.ADD, addLocally(Collections.singleton(element)), level,
+                    changed);
+        }
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> removeAsync(Object element) {
+        return removeAsync(element, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> removeAsync(Object element, ReplicationLevel level) {
+        synchronized (lock) {
+            final SetState<T> removed = removeLocally(Collections.singleton(element), true);
+            if (removed == null) {
+                return SettableReplicationFuture.completed(Boolean.FALSE);
+            }
+            return clusterManager.sendUpdateAsync(SetActions.REMOVE, removed, level, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        if (c.isEmpty()) {
+            return false;
+        }
+        final ReplicationFuture<Void> replicated;
+        final boolean changed;
+        synchronized (lock) {
+            changed = !localState.elements.keySet().containsAll(c);
+            replicated = clusterManager.sendUpdateDeferred(SetActions.ADD, addLocally(c));
+        }
+        clusterManager.await(replicated);
+        return changed;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        return removeMatching(c, true);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        return removeMatching(c, false);
+    }
+
+    @Override
+    public void clear() {
+        removeMatching(Collections.emptySet(), false);
+    }
+
+    private boolean removeMatching(Collection<?> c, boolean contained) {
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            final SetState<T> removed = removeLocally(c, contained);
+            if (removed == null) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(SetActions.REMOVE, removed);
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    /**
+     * Tags the elements with new dots. The dots of present elements are
+     * replaced, which is sent as remove ahead of the add. The caller has to
+     * hold the lock.
+     *
+     * @param elements the elements to add
+     * @return the added elements with their new dots
+     */
+    private SetState<T> addLocally(Collection<? extends T> elements) {
+        final SetState<T> added = new SetState<T>();
+        final SetState<T> replaced = new SetState<T>();
+        for (T element: elements) {
+            if (added.elements.containsKey(element)) {
+                continue;
+            }
+            final Set<Dot> observed = localState.elements.remove(element);
+            if (observed != null) {
+                replaced.elements.put(element, observed);
+            }
+            final Dot dot = new Dot(replicaId, localState.seen(replicaId) + 1);
+            localState.add(element, dot);
+            added.elements.put(element, Collections.singleton(dot));
+        }
+        if (!replaced.elements.isEmpty()) {
+            // updates arrive in order, waiting for the add covers the remove
+            clusterManager.sendUpdateDeferred(SetActions.REMOVE, replaced);
+        }
+        return added;
+    }
+
+    /**
+     * Removes the present elements which are or are not contained in a
+     * collection. The caller has to hold the lock.
+     *
+     * @param c the collection to match against
+     * @param contained whether to remove the contained or the other elements
+     * @return the removed elements with their observed dots, {@code null} if none was removed
+     */
+    private SetState<T> removeLocally(Collection<?> c, boolean contained) {
+        final SetState<T> removed = new SetState<T>();
+        final Iterator<Map.Entry<T,Set<Dot>>> elements = localState.elements.entrySet().iterator();
+        while (elements.hasNext()) {
+            final Map.Entry<T,Set<Dot>> element = elements.next();
+            if (c.contains(element.getKey()) == contained) {
+                removed.elements.put(element.getKey(), element.getValue());
+                elements.remove();
+            }
+        }
+        return removed.elements.isEmpty() ? null : removed;
+    }
+
+    @Override
+    public String toString() {
+        return "ConvergentClusteredSet{" +
+                "setSize=" + size() +
+                ", cluster=" + clusterManager +
+                '}';
+    }
+
+    public static enum SetActions {
+        ADD,
+        REMOVE,
+        MERGE
+    }
+
+    /**
+     * Identifies a single add: the member and its count of adds.
+     */
+    static final class Dot {
+        final long member;
+        final long counter;
+
+        Dot(long member, long counter) {
+            this.member = member;
+            this.counter = counter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Dot)) {
+                return false;
+            }
+            final Dot dot = (Dot) o;
+            return member == dot.member && counter == dot.counter;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (member ^ (member >>> 32)) + (int) (counter ^ (counter >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return Long.toHexString(member) + ":" + counter;
+        }
+    }
+
+    /**
+     * The dots of the present elements, the highest count seen per member and
+     * the dots removed before their add arrived. Updates use the same
+     * structure, carrying the added or removed elements only.
+     */
+    static final class SetState<T> {
+        final Map<T,Set<Dot>> elements = new HashMap<T,Set<Dot>>();
+        final Map<Long,Long> seen = new HashMap<Long,Long>();
+        final Set<Dot> removedEarly = new HashSet<Dot>();
+
+        long seen(long member) {
+            final Long counter = seen.get(member);
+            return counter == null ? 0 : counter;
+        }
+
+        /**
+         * Applies an add; dots which are reflected already are ignored.
+         */
+        void add(T element, Dot dot) {
+            if (dot.counter <= seen(dot.member)) {
+                return;
+            }
+            seen.put(dot.member, dot.counter);
+            if (removedEarly.remove(dot)) {
+                return;
+            }
+            Set<Dot> dots = elements.get(element);
+            if (dots == null) {
+                dots = new HashSet<Dot>(4);
+                elements.put(element, dots);
+            }
+            dots.add(dot);
+        }
+
+        /**
+         * Applies a remove of the observed dots of an element.
+         */
+        void remove(T element, Collection<Dot> observed) {
+            final Set<Dot> dots = elements.get(element);
+            for (Dot dot: observed) {
+                if (dots != null && dots.remove(dot)) {
+                    continue;
+                }
+                if (dot.counter > seen(dot.member)) {
+                    // the add is still on its way
+                    removedEarly.add(dot);
+                }
+            }
+            if (dots != null && dots.isEmpty()) {
+                elements.remove(element);
+            }
+        }
+
+        /**
+         * Merges another state: a dot survives if both know it, or if the
+         * side which lacks it has never seen it.
+         */
+        void merge(SetState<T> other) {
+            final Set<Dot> removed = new HashSet<Dot>(removedEarly);
+            removed.addAll(other.removedEarly);
+            final Set<T> keys = new HashSet<T>(elements.keySet());
+            keys.addAll(other.elements.keySet());
+            for (T element: keys) {
+                final Set<Dot> mine = dotsOf(element);
+                final Set<Dot> theirs = other.dotsOf(element);
+                final Set<Dot> merged = new HashSet<Dot>(4);
+                for (Dot dot: mine) {
+                    if (theirs.contains(dot) || dot.counter > other.seen(dot.member)) {
+                        merged.add(dot);
+                    }
+                }
+                for (Dot dot: theirs) {
+                    if (dot.counter > seen(dot.member)) {
+                        merged.add(dot);
+                    }
+                }
+                merged.removeAll(removed);
+                if (merged.isEmpty()) {
+                    elements.remove(element);
+                } else {
+                    elements.put(element, merged);
+                }
+            }
+            for (Map.Entry<Long,Long> counter: other.seen.entrySet()) {
+                if (counter.getValue() > seen(counter.getKey())) {
+                    seen.put(counter.getKey(), counter.getValue());
+                }
+            }
+            removedEarly.clear();
+            for (Dot dot: removed) {
+                if (dot.counter > seen(dot.member)) {
+                    removedEarly.add(dot);
+                }
+            }
+        }
+
+        /**
+         * Checks if another state misses adds or removes of this one.
+         */
+        boolean knowsMoreThan(SetState<T> other) {
+            for (Map.Entry<Long,Long> counter: seen.entrySet()) {
+                if (counter.getValue() > other.seen(counter.getKey())) {
+                    return true;
+                }
+            }
+            for (Map.Entry<T,Set<Dot>> element: other.elements.entrySet()) {
+                final Set<Dot> mine = dotsOf(element.getKey());
+                for (Dot dot: element.getValue()) {
+                    if (!mine.contains(dot) && dot.counter <= seen(dot.member)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private Set<Dot> dotsOf(T element) {
+            final Set<Dot> dots = elements.get(element);
+            return dots == null ? Collections.<Dot>emptySet() : dots;
+        }
+
+        SetState<T> copy() {
+            final SetState<T> copy = new SetState<T>();
+            for (Map.Entry<T,Set<Dot>> element: elements.entrySet()) {
+                copy.elements.put(element.getKey(), new HashSet<Dot>(element.getValue()));
+            }
+            copy.seen.putAll(seen);
+            copy.removedEarly.addAll(removedEarly);
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "SetState{" +
+                    "elements=" + elements.size() +
+                    ", seen=" + seen.size() +
+                    ", removedEarly=" + removedEarly.size() +
+                    '}';
+        }
+    }
+
+    /**
+     * Encodes the action as a single byte tag followed by the state: the
+     * elements with their dots, the counters and the early removed dots.
+     */
+    static final class SetCodec<T> implements ClusterCodec<SetActions,SetState<T>,SetState<T>> {
+        private static final SetActions[] ACTIONS = SetActions.values();
+
+        private final Serializer<T> serializer;
+
+        SetCodec(Serializer<T> serializer) {
+            this.serializer = serializer;
+        }
+
+        @Override
+        public void writeUpdate(SetActions action, SetState<T> payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            writeState(payload, out);
+        }
+
+        @Override
+        public ClusterUpdate<SetActions,SetState<T>> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown set action " + tag);
+            }
+            return new ClusterUpdate<SetActions,SetState<T>>(ACTIONS[tag], readState(in));
+        }
+
+        @Override
+        public void writeState(SetState<T> state, DataOutput out) throws IOException {
+            Varints.writeUnsignedInt(out, state.elements.size());
+            for (Map.Entry<T,Set<Dot>> element: state.elements.entrySet()) {
+                serializer.write(element.getKey(), out);
+                writeDots(element.getValue(), out);
+            }
+            UpdateLog.writeVersions(out, state.seen);
+            writeDots(state.removedEarly, out);
+        }
+
+        @Override
+        public SetState<T> readState(DataInput in) throws IOException {
+            final SetState<T> state = new SetState<T>();
+            final int size = Varints.readUnsignedInt(in);
+            for (int n = 0; n < size; n++) {
+                final T element = serializer.read(in);
+                final Set<Dot> dots = new HashSet<Dot>(4);
+                readDots(dots, in);
+                state.elements.put(element, dots);
+            }
+            state.seen.putAll(UpdateLog.readVersions(in));
+            readDots(state.removedEarly, in);
+            return state;
+        }
+
+        private static void writeDots(Set<Dot> dots, DataOutput out) throws IOException {
+            Varints.writeUnsignedInt(out, dots.size());
+            for (Dot dot: dots) {
+                out.writeLong(dot.member);
+                Varints.writeUnsignedLong(out, dot.counter);
+            }
+        }
+
+        private static void readDots(Set<Dot> dots, DataInput in) throws IOException {
+            final int size = Varints.readUnsignedInt(in);
+            for (int n = 0; n < size; n++) {
+                final long member = in.readLong();
+                dots.add(new Dot(member, Varints.readUnsignedLong(in)));
+            }
+        }
+    }
+}
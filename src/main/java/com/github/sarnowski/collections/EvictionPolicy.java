@@ -0,0 +1,190 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds a replicated map. A fresh instance does not bound anything; the
+ * policy is read once when the map is created and has to be the same on
+ * every member.
+ *
+ * <p>
+ * If the map exceeds the maximum number of entries or the maximum weight,
+ * the entries which were written least recently are removed. The coordinator
+ * decides, based on the order in which it applied the writes, and replicates
+ * the removals, so that all members evict the same entries even if they
+ * applied concurrent writes in different orders.
+ * </p>
+ *
+ * <p>
+ * Entries expire after the time to live, measured from the write time of
+ * the writing member, and after they were not read by any member for the
+ * maximum idle time. Reads are exchanged in periodic digests. Expired
+ * entries are not returned anymore and the coordinator removes them in the
+ * background.
+ * </p>
+ *
+ * <p>
+ * <strong>Example:</strong>
+ * <pre>
+ * EvictionPolicy&lt;String,String&gt; policy = new EvictionPolicy&lt;String,String&gt;();
+ * policy.setMaxWeight(64 * 1024 * 1024);
+ * policy.setWeigher(new Weigher&lt;String,String&gt;() {
+ *     public int weigh(String key, String value) {
+ *         return key.length() + value.length();
+ *     }
+ * });
+ * policy.setTimeToLive(10, TimeUnit.MINUTES);
+ * </pre>
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> generic key type
+ * @param <V> generic value type
+ * @see ClusteredCollections#newReplicatedClusteredMap(ClusterContext, String, Serializer, Serializer, EvictionPolicy, ClusterConfiguration)
+ */
+public final class EvictionPolicy<K, V> {
+
+    private int maxEntries = 0;
+    private long maxWeight = 0;
+    private Weigher<? super K, ? super V> weigher = null;
+    private long timeToLive = 0;
+    private long maxIdle = 0;
+
+    /**
+     * The maximum number of entries.
+     *
+     * @return the maximum number of entries, 0 if unbounded
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the maximum number of entries. A value of 0 does not bound the
+     * number of entries. Defaults to 0.
+     *
+     * @param maxEntries the maximum number of entries
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries must not be negative");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * The maximum sum of the weights of all entries.
+     *
+     * @return the maximum weight, 0 if unbounded
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Sets the maximum sum of the weights of all entries as calculated by the
+     * {@link #setWeigher(Weigher) weigher}. A value of 0 does not bound the
+     * weight. Defaults to 0.
+     *
+     * @param maxWeight the maximum weight
+     */
+    public void setMaxWeight(long maxWeight) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("maxWeight must not be negative");
+        }
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * The weigher of the entries.
+     *
+     * @return the weigher, {@code null} if every entry weighs 1
+     */
+    public Weigher<? super K, ? super V> getWeigher() {
+        return weigher;
+    }
+
+    /**
+     * Sets the weigher of the entries. Without a weigher, every entry weighs 1.
+     *
+     * @param weigher the weigher
+     */
+    public void setWeigher(Weigher<? super K, ? super V> weigher) {
+        this.weigher = weigher;
+    }
+
+    /**
+     * The maximum time an entry lives after it was written.
+     *
+     * @param unit the requested unit
+     * @return the time to live, 0 if entries do not expire
+     */
+    public long getTimeToLive(TimeUnit unit) {
+        return unit.convert(timeToLive, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the maximum time an entry lives after it was written. A value of
+     * 0 lets entries live forever. Defaults to 0.
+     *
+     * @param timeToLive the time to live
+     * @param unit the unit of the time to live
+     */
+    public void setTimeToLive(long timeToLive, TimeUnit unit) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("timeToLive must not be negative");
+        }
+        this.timeToLive = unit.toMillis(timeToLive);
+    }
+
+    /**
+     * The maximum time an entry lives without being read or written.
+     *
+     * @param unit the requested unit
+     * @return the maximum idle time, 0 if entries do not expire
+     */
+    public long getMaxIdle(TimeUnit unit) {
+        return unit.convert(maxIdle, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the maximum time an entry lives without being read or written on
+     * any member. A value of 0 lets idle entries live forever. Defaults to 0.
+     *
+     * @param maxIdle the maximum idle time
+     * @param unit the unit of the idle time
+     */
+    public void setMaxIdle(long maxIdle, TimeUnit unit) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle must not be negative");
+        }
+        this.maxIdle = unit.toMillis(maxIdle);
+    }
+
+    @Override
+    public String toString() {
+        return "EvictionPolicy{" +
+                "maxEntries=" + maxEntries +
+                ", maxWeight=" + maxWeight +
+                ", weigher=" + weigher +
+                ", timeToLive=" + timeToLive + "ms" +
+                ", maxIdle=" + maxIdle + "ms" +
+                '}';
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the entries of a bounded {@link ReplicatedClusteredMap} and decides
+ * which ones have to go. The evictor never removes anything itself, it
+ * returns the victims to the map. Every member records the writes, but only
+ * the coordinator collects victims, which it replicates to all members, so
+ * that they evict the same entries although they apply concurrent writes in
+ * different orders.
+ *
+ * <p>
+ * The write order is kept in an insertion ordered map guarded by the
+ * evictor's monitor; the expiry data is additionally kept in a concurrent map,
+ * so that reads can check and touch entries without locking.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see EvictionPolicy
+ */
+final class Evictor<K,V> {
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private final long timeToLive;
+    private final long maxIdle;
+
+    private final LinkedHashMap<K,Meta<V>> order = new LinkedHashMap<K,Meta<V>>();
+    private final ConcurrentMap<K,Meta<V>> metas = new ConcurrentHashMap<K,Meta<V>>();
+    private final ConcurrentMap<K,Boolean> touched = new ConcurrentHashMap<K,Boolean>();
+    private long weight = 0;
+
+    Evictor(EvictionPolicy<K,V> policy) {
+        maxEntries = policy.getMaxEntries();
+        maxWeight = policy.getMaxWeight();
+        weigher = policy.getWeigher();
+        timeToLive = policy.getTimeToLive(TimeUnit.MILLISECONDS);
+        maxIdle = policy.getMaxIdle(TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return whether entries expire at all
+     */
+    boolean isTimed() {
+        return timeToLive > 0 || maxIdle > 0;
+    }
+
+    /**
+     * @return whether reads have to be exchanged between the members
+     */
+    boolean isIdleTracked() {
+        return maxIdle > 0;
+    }
+
+    /**
+     * Records a written entry. The victims are collected separately, only
+     * by the member which decides for all.
+     *
+     * @param key the key
+     * @param value the new value
+     * @param timestamp the write time of the writing member
+     */
+    synchronized void written(K key, V value, long timestamp) {
+        final Meta<V> meta = new Meta<V>(value, timestamp, weigher == null ? 1 : weigher.weigh(key, value));
+        final Meta<V> previous = order.remove(key);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        order.put(key, meta);
+        metas.put(key, meta);
+        weight += meta.weight;
+    }
+
+    /**
+     * Collects and forgets the entries exceeding the bounds, the least
+     * recently written first. The last written entry is never a victim.
+     *
+     * @return the victims, empty if the map is within its bounds
+     */
+    synchronized Map<K,V> overflow() {
+        Map<K,V> victims = null;
+        final Iterator<Map.Entry<K,Meta<V>>> iterator = order.entrySet().iterator();
+        while (order.size() > 1 && exceeded() && iterator.hasNext()) {
+            final Map.Entry<K,Meta<V>> eldest = iterator.next();
+            iterator.remove();
+            metas.remove(eldest.getKey());
+            touched.remove(eldest.getKey());
+            weight -= eldest.getValue().weight;
+            if (victims == null) {
+                victims = new HashMap<K,V>();
+            }
+            victims.put(eldest.getKey(), eldest.getValue().value);
+        }
+        return victims == null ? Collections.<K,V>emptyMap() : victims;
+    }
+
+    private boolean exceeded() {
+        return (maxEntries > 0 && order.size() > maxEntries) || (maxWeight > 0 && weight > maxWeight);
+    }
+
+    /**
+     * Forgets a removed entry.
+     *
+     * @param key the key
+     */
+    synchronized void removed(Object key) {
+        final Meta<V> meta = order.remove(key);
+        if (meta != null) {
+            metas.remove(key);
+            touched.remove(key);
+            weight -= meta.weight;
+        }
+    }
+
+    /**
+     * Forgets all entries.
+     */
+    synchronized void cleared() {
+        order.clear();
+        metas.clear();
+        touched.clear();
+        weight = 0;
+    }
+
+    /**
+     * Checks if an entry expired.
+     *
+     * @param key the key
+     * @param now the current time
+     * @return whether the entry is known and expired
+     */
+    boolean isExpired(Object key, long now) {
+        final Meta<V> meta = metas.get(key);
+        return meta != null && isExpired(meta, now);
+    }
+
+    private boolean isExpired(Meta<V> meta, long now) {
+        return (timeToLive > 0 && now - meta.written >= timeToLive)
+                || (maxIdle > 0 && now - meta.accessed >= maxIdle);
+    }
+
+    /**
+     * Records a local read, which is announced to the other members with the
+     * next digest.
+     *
+     * @param key the key
+     * @param now the current time
+     */
+    @SuppressWarnings("unchecked")
+    void touch(Object key, long now) {
+        if (maxIdle == 0) {
+            return;
+        }
+        final Meta<V> meta = metas.get(key);
+        if (meta != null) {
+            meta.access(now);
+            touched.put((K) key, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Applies the read digest of another member.
+     *
+     * @param keys the keys read by the member
+     * @param time the time of the digest
+     */
+    void touch(Collection<K> keys, long time) {
+        for (K key: keys) {
+            final Meta<V> meta = metas.get(key);
+            if (meta != null) {
+                meta.access(time);
+            }
+        }
+    }
+
+    /**
+     * Collects the keys read since the last call.
+     *
+     * @return the keys for the next digest
+     */
+    List<K> drainTouched() {
+        final List<K> keys = new ArrayList<K>();
+        final Iterator<K> iterator = touched.keySet().iterator();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+            iterator.remove();
+        }
+        return keys;
+    }
+
+    /**
+     * Collects and forgets all expired entries.
+     *
+     * @param now the current time
+     * @return the expired entries
+     */
+    synchronized Map<K,V> expired(long now) {
+        final Map<K,V> victims = new HashMap<K,V>();
+        final Iterator<Map.Entry<K,Meta<V>>> iterator = order.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<K,Meta<V>> entry = iterator.next();
+            final Meta<V> meta = entry.getValue();
+            if (isExpired(meta, now)) {
+                iterator.remove();
+                metas.remove(entry.getKey());
+                touched.remove(entry.getKey());
+                weight -= meta.weight;
+                victims.put(entry.getKey(), meta.value);
+            } else if (maxIdle == 0) {
+                // without idle expiry, the write order is roughly the expiry order
+                break;
+            }
+        }
+        return victims;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Evictor{" +
+                "entries=" + order.size() +
+                ", weight=" + weight +
+                '}';
+    }
+
+    /**
+     * The eviction data of a single entry.
+     */
+    private static final class Meta<V> {
+        final V value;
+        final long written;
+        final int weight;
+        volatile long accessed;
+
+        Meta(V value, long written, int weight) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("weight must not be negative");
+            }
+            this.value = value;
+            this.written = written;
+            this.weight = weight;
+            this.accessed = written;
+        }
+
+        void access(long time) {
+            // a lost race only loses a slightly newer time
+            if (time > accessed) {
+                accessed = time;
+            }
+        }
+    }
+}
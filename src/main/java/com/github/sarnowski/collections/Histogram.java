@@ -0,0 +1,117 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of non-negative values lock free. Values are
+ * counted in logarithmic buckets with eight linear sub buckets each, so
+ * percentiles are accurate to about 12.5%.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterStatistics
+ */
+final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, negative values are recorded as 0.
+     *
+     * @param value the value
+     */
+    void record(long value) {
+        final long v = Math.max(0, value);
+        counts.incrementAndGet(indexOf(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long current = max.get();
+        while (v > current && !max.compareAndSet(current, v)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Forgets all recorded values.
+     */
+    void reset() {
+        for (int n = 0; n < BUCKETS; n++) {
+            counts.set(n, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return a consistent enough copy for monitoring
+     */
+    HistogramSnapshot snapshot() {
+        final long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int n = 0; n < BUCKETS; n++) {
+            copy[n] = counts.get(n);
+            total += copy[n];
+        }
+        return new HistogramSnapshot(total, total == 0 ? 0 : (double) sum.get() / count.get(), max.get(),
+                percentile(copy, total, 0.5), percentile(copy, total, 0.99), percentile(copy, total, 0.999));
+    }
+
+    private static long percentile(long[] copy, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int n = 0; n < copy.length; n++) {
+            seen += copy[n];
+            if (seen >= rank) {
+                return upperBoundOf(n);
+            }
+        }
+        return upperBoundOf(copy.length - 1);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long sub = index % SUB_BUCKETS;
+        final long upper = ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        // the last bucket ends beyond the long range
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
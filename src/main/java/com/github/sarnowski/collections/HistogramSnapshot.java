@@ -0,0 +1,81 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The distribution of a measurement of {@link ClusterStatisticsMXBean}.
+ * Percentiles are accurate to about 12.5%.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class HistogramSnapshot {
+
+    private final long count;
+    private final double mean;
+    private final long max;
+    private final long median;
+    private final long percentile99;
+    private final long percentile999;
+
+    @ConstructorProperties({"count", "mean", "max", "median", "percentile99", "percentile999"})
+    public HistogramSnapshot(long count, double mean, long max, long median, long percentile99, long percentile999) {
+        this.count = count;
+        this.mean = mean;
+        this.max = max;
+        this.median = median;
+        this.percentile99 = percentile99;
+        this.percentile999 = percentile999;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMedian() {
+        return median;
+    }
+
+    public long getPercentile99() {
+        return percentile99;
+    }
+
+    public long getPercentile999() {
+        return percentile999;
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramSnapshot{" +
+                "count=" + count +
+                ", mean=" + mean +
+                ", max=" + max +
+                ", median=" + median +
+                ", percentile99=" + percentile99 +
+                ", percentile999=" + percentile999 +
+                '}';
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * A {@link ClusteredConcurrentMap} which can look up its entries by
+ * attributes of their values. Every member maintains its own indexes, they
+ * are not replicated.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> generic key type
+ * @param <V> generic value type
+ * @see ClusteredCollections#newReplicatedClusteredMap(ClusterContext, String)
+ */
+public interface IndexedMap<K, V> extends ClusteredConcurrentMap<K, V> {
+
+    /**
+     * Adds an index for lookups of equal attributes.
+     *
+     * @param extractor extracts the indexed attribute
+     * @return the index, filled with the current entries
+     */
+    <A> MapIndex<K, V, A> addHashIndex(ValueExtractor<? super V, ? extends A> extractor);
+
+    /**
+     * Adds an index for lookups of equal attributes and ranges of them.
+     *
+     * @param extractor extracts the indexed attribute
+     * @return the index, filled with the current entries
+     */
+    <A extends Comparable<? super A>> MapIndex<K, V, A> addSortedIndex(ValueExtractor<? super V, ? extends A> extractor);
+
+    /**
+     * Stops maintaining an index.
+     *
+     * @param index the index
+     */
+    void removeIndex(MapIndex<K, V, ?> index);
+
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/**
+ * The bounds of a range of sorted keys, e.g. of a view of a
+ * {@link ClusteredNavigableMap} or of a replicated range removal.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> the key type
+ */
+final class KeyRange<K> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // null for an open bound
+    private final K from;
+    private final boolean fromInclusive;
+    private final K to;
+    private final boolean toInclusive;
+
+    KeyRange(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        this.from = from;
+        this.fromInclusive = fromInclusive;
+        this.to = to;
+        this.toInclusive = toInclusive;
+    }
+
+    static <K> KeyRange<K> all() {
+        return new KeyRange<K>(null, false, null, false);
+    }
+
+    K getFrom() {
+        return from;
+    }
+
+    boolean isFromInclusive() {
+        return fromInclusive;
+    }
+
+    K getTo() {
+        return to;
+    }
+
+    boolean isToInclusive() {
+        return toInclusive;
+    }
+
+    boolean isAll() {
+        return from == null && to == null;
+    }
+
+    /**
+     * Narrows the range like {@link java.util.NavigableMap#subMap(Object, boolean, Object, boolean)}.
+     *
+     * @param from the new lower bound, {@code null} to keep the current one
+     * @param to the new upper bound, {@code null} to keep the current one
+     * @throws IllegalArgumentException if a bound lies outside of this range
+     */
+    KeyRange<K> narrow(Comparator<? super K> comparator, K from, boolean fromInclusive, K to, boolean toInclusive) {
+        if (from == null) {
+            from = this.from;
+            fromInclusive = this.fromInclusive;
+        } else if (this.from != null) {
+            final int c = compare(comparator, from, this.from);
+            if (c < 0 || (c == 0 && !this.fromInclusive && fromInclusive)) {
+                throw new IllegalArgumentException("key out of range");
+            }
+        }
+        if (to == null) {
+            to = this.to;
+            toInclusive = this.toInclusive;
+        } else if (this.to != null) {
+            final int c = compare(comparator, to, this.to);
+            if (c > 0 || (c == 0 && !this.toInclusive && toInclusive)) {
+                throw new IllegalArgumentException("key out of range");
+            }
+        }
+        if (from != null && to != null && compare(comparator, from, to) > 0) {
+            throw new IllegalArgumentException("inconsistent range");
+        }
+        return new KeyRange<K>(from, fromInclusive, to, toInclusive);
+    }
+
+    boolean contains(Comparator<? super K> comparator, K key) {
+        if (from != null) {
+            final int c = compare(comparator, key, from);
+            if (c < 0 || (c == 0 && !fromInclusive)) {
+                return false;
+            }
+        }
+        if (to != null) {
+            final int c = compare(comparator, key, to);
+            if (c > 0 || (c == 0 && !toInclusive)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the view of the range within the map
+     */
+    <V> ConcurrentNavigableMap<K, V> of(ConcurrentNavigableMap<K, V> map) {
+        if (from == null) {
+            return to == null ? map : map.headMap(to, toInclusive);
+        }
+        return to == null ? map.tailMap(from, fromInclusive) : map.subMap(from, fromInclusive, to, toInclusive);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K> int compare(Comparator<? super K> comparator, K a, K b) {
+        if (comparator == null) {
+            return ((Comparable<? super K>) a).compareTo(b);
+        }
+        return comparator.compare(a, b);
+    }
+
+    @Override
+    public String toString() {
+        return (from == null ? "(" : (fromInclusive ? "[" : "(") + from) + ".."
+                + (to == null ? ")" : to + (toInclusive ? "]" : ")"));
+    }
+
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Address;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The result of a {@link ContinuousQuery}. The map feeds every change into
+ * the query while it holds the lock of the changed key, the query turns it
+ * into an event for its listener which the map delivers after unlocking.
+ *
+ * <p>
+ * A partitioned map fills the result from the answers of the owners while
+ * their changes already arrive; keys changed meanwhile keep the newer
+ * change, see {@link #beginFill()}.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterEvents
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class LiveQuery<K, V> implements ContinuousQuery<K, V> {
+
+    private static final Log LOG = LogFactory.getLog(LiveQuery.class);
+
+    private final ClusterPredicate<? super K, ? super V> predicate;
+    private final ClusterEventListener<K, V> listener;
+    private final Owner<K, V> owner;
+    private final ConcurrentMap<K, V> result = new ConcurrentHashMap<K, V>();
+    private final Map<K, V> view = Collections.unmodifiableMap(result);
+    private volatile boolean closed = false;
+    // keys changed while the result is filled, null once it is complete
+    private Set<K> touched;
+
+    LiveQuery(ClusterPredicate<? super K, ? super V> predicate, ClusterEventListener<K, V> listener, Owner<K, V> owner) {
+        if (predicate == null) {
+            throw new IllegalArgumentException("predicate must not be null");
+        }
+        this.predicate = predicate;
+        this.listener = listener;
+        this.owner = owner;
+    }
+
+    ClusterPredicate<? super K, ? super V> getPredicate() {
+        return predicate;
+    }
+
+    /**
+     * Evaluates a predicate; a failing predicate does not match, so that it
+     * cannot break the update.
+     *
+     * @param value the value, {@code null} never matches
+     */
+    static <K, V> boolean matches(ClusterPredicate<? super K, ? super V> predicate, K key, V value) {
+        if (value == null) {
+            return false;
+        }
+        try {
+            return predicate.evaluate(key, value);
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            LOG.error("predicate " + predicate + " failed for " + key, e);
+            return false;
+        }
+    }
+
+    /**
+     * Fills the result initially.
+     */
+    synchronized void fill(Iterable<Map.Entry<K, V>> contents) {
+        for (Map.Entry<K, V> entry: contents) {
+            if (matches(predicate, entry.getKey(), entry.getValue())) {
+                fill(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds an entry which is known to match to the initial result, unless
+     * the key changed meanwhile.
+     */
+    synchronized void fill(K key, V value) {
+        if (touched == null || !touched.contains(key)) {
+            result.put(key, value);
+        }
+    }
+
+    /**
+     * Starts remembering the changed keys, so that older initial entries do
+     * not override them.
+     */
+    synchronized void beginFill() {
+        touched = new HashSet<K>();
+    }
+
+    synchronized void endFill() {
+        touched = null;
+    }
+
+    /**
+     * Applies a changed entry.
+     *
+     * @param value the new value, {@code null} if the key was removed
+     * @return the event of the result, {@code null} if the result did not change
+     */
+    ClusterEvent<K, V> changed(K key, V value, Address origin, long sequence) {
+        if (matches(predicate, key, value)) {
+            return matched(key, value, origin, sequence);
+        }
+        return left(key, origin, sequence);
+    }
+
+    /**
+     * Applies an entry which is known to match.
+     *
+     * @return the event of the result, {@code null} if the result did not change
+     */
+    synchronized ClusterEvent<K, V> matched(K key, V value, Address origin, long sequence) {
+        if (closed) {
+            return null;
+        }
+        if (touched != null) {
+            touched.add(key);
+        }
+        final V previous = result.put(key, value);
+        if (previous == null) {
+            return new ClusterEvent<K, V>(ClusterEvent.Type.ADDED, key, null, value, origin, sequence);
+        }
+        if (previous.equals(value)) {
+            return null;
+        }
+        return new ClusterEvent<K, V>(ClusterEvent.Type.UPDATED, key, previous, value, origin, sequence);
+    }
+
+    /**
+     * Removes an entry which does not match anymore.
+     *
+     * @return the event of the result, {@code null} if the entry was not part of it
+     */
+    synchronized ClusterEvent<K, V> left(K key, Address origin, long sequence) {
+        if (closed) {
+            return null;
+        }
+        if (touched != null) {
+            touched.add(key);
+        }
+        final V previous = result.remove(key);
+        if (previous == null) {
+            return null;
+        }
+        return new ClusterEvent<K, V>(ClusterEvent.Type.REMOVED, key, previous, null, origin, sequence);
+    }
+
+    /**
+     * Empties the result.
+     *
+     * @param events collects an event per removed entry
+     */
+    synchronized void cleared(List<ClusterEvent<K, V>> events, Address origin, long sequence) {
+        if (closed) {
+            return;
+        }
+        final Iterator<Map.Entry<K, V>> iterator = result.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<K, V> entry = iterator.next();
+            iterator.remove();
+            events.add(new ClusterEvent<K, V>(ClusterEvent.Type.REMOVED, entry.getKey(), entry.getValue(), null,
+                    origin, sequence));
+        }
+    }
+
+    /**
+     * Recomputes the result after the whole content was replaced, e.g. by a
+     * state received from another member.
+     *
+     * @param events collects the differences to the previous result
+     */
+    synchronized void reset(Iterable<Map.Entry<K, V>> contents, List<ClusterEvent<K, V>> events) {
+        if (closed) {
+            return;
+        }
+        final Map<K, V> stale = new HashMap<K, V>(result);
+        for (Map.Entry<K, V> entry: contents) {
+            if (matches(predicate, entry.getKey(), entry.getValue())) {
+                stale.remove(entry.getKey());
+                final ClusterEvent<K, V> event = matched(entry.getKey(), entry.getValue(), null, 0);
+                if (event != null) {
+                    events.add(event);
+                }
+            }
+        }
+        for (K key: stale.keySet()) {
+            final ClusterEvent<K, V> event = left(key, null, 0);
+            if (event != null) {
+                events.add(event);
+            }
+        }
+    }
+
+    /**
+     * Hands events to the listener.
+     */
+    void deliver(List<ClusterEvent<K, V>> events) {
+        if (listener == null || events.isEmpty() || closed) {
+            return;
+        }
+        try {
+            listener.clusterChanged(Collections.unmodifiableList(events));
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            LOG.error("query listener " + listener + " failed", e);
+        }
+    }
+
+    @Override
+    public Map<K, V> getResult() {
+        return view;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            owner.closed(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LiveQuery{" +
+                "predicate=" + predicate +
+                ", resultSize=" + result.size() +
+                ", closed=" + closed +
+                '}';
+    }
+
+    /**
+     * Maintains queries.
+     */
+    interface Owner<K, V> {
+
+        /**
+         * Stops feeding a closed query.
+         */
+        void closed(LiveQuery<K, V> query);
+    }
+}
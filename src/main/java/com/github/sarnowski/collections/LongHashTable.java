@@ -0,0 +1,313 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An open addressing hash table of primitive long keys with optional long
+ * values, stored in plain arrays without boxing. Slots with the key 0 are
+ * free, the key 0 itself is kept aside. Removed keys are filled by shifting
+ * the following keys back, so lookups never pass markers.
+ *
+ * <p>
+ * The table is not thread safe.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ReplicatedLongLongMap
+ * @see ReplicatedLongSet
+ */
+final class LongHashTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final boolean withValues;
+    private long[] keys;
+    private long[] values;
+    private int size = 0;
+    private boolean hasZero = false;
+    private long zeroValue = 0;
+
+    /**
+     * @param withValues whether to store a value per key
+     * @param expectedSize the number of keys to make room for
+     */
+    LongHashTable(boolean withValues, int expectedSize) {
+        this.withValues = withValues;
+        allocate(capacityFor(expectedSize));
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(long key) {
+        return key == 0 ? hasZero : keys[find(key)] != 0;
+    }
+
+    /**
+     * @param key the key
+     * @param defaultValue the value to return if the key is missing
+     * @return the value of the key or the default value
+     */
+    long get(long key, long defaultValue) {
+        if (key == 0) {
+            return hasZero ? zeroValue : defaultValue;
+        }
+        final int slot = find(key);
+        return keys[slot] != 0 ? values[slot] : defaultValue;
+    }
+
+    /**
+     * Adds a key or replaces its value.
+     *
+     * @param key the key
+     * @param value the value, ignored by tables without values
+     * @return whether the key was added
+     */
+    boolean put(long key, long value) {
+        if (key == 0) {
+            final boolean added = !hasZero;
+            hasZero = true;
+            zeroValue = value;
+            size += added ? 1 : 0;
+            return added;
+        }
+        int slot = find(key);
+        if (keys[slot] != 0) {
+            if (withValues) {
+                values[slot] = value;
+            }
+            return false;
+        }
+        if (size + 1 > keys.length * 3 / 4) {
+            rehash(keys.length << 1);
+            slot = find(key);
+        }
+        keys[slot] = key;
+        if (withValues) {
+            values[slot] = value;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Adds a delta to the value of a key, missing keys count as 0.
+     *
+     * @param key the key
+     * @param delta the delta
+     * @return the new value
+     */
+    long add(long key, long delta) {
+        final long value = get(key, 0) + delta;
+        put(key, value);
+        return value;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key the key
+     * @return whether the key was present
+     */
+    boolean remove(long key) {
+        if (key == 0) {
+            final boolean removed = hasZero;
+            hasZero = false;
+            zeroValue = 0;
+            size -= removed ? 1 : 0;
+            return removed;
+        }
+        int hole = find(key);
+        if (keys[hole] == 0) {
+            return false;
+        }
+        final int mask = keys.length - 1;
+        for (int next = (hole + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            final int home = mix(keys[next]) & mask;
+            final boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!stays) {
+                keys[hole] = keys[next];
+                if (withValues) {
+                    values[hole] = values[next];
+                }
+                hole = next;
+            }
+        }
+        keys[hole] = 0;
+        size--;
+        return true;
+    }
+
+    void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+        hasZero = false;
+        zeroValue = 0;
+    }
+
+    /**
+     * @return the keys in no particular order
+     */
+    long[] keys() {
+        final long[] result = new long[size];
+        int position = 0;
+        if (hasZero) {
+            result[position++] = 0;
+        }
+        for (long key: keys) {
+            if (key != 0) {
+                result[position++] = key;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Calls the visitor for every entry.
+     *
+     * @param visitor the visitor
+     */
+    void forEach(Visitor visitor) {
+        if (hasZero) {
+            visitor.visit(0, zeroValue);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                visitor.visit(keys[slot], withValues ? values[slot] : 0);
+            }
+        }
+    }
+
+    LongHashTable copy() {
+        final LongHashTable copy = new LongHashTable(withValues, 0);
+        copy.keys = keys.clone();
+        copy.values = withValues ? values.clone() : null;
+        copy.size = size;
+        copy.hasZero = hasZero;
+        copy.zeroValue = zeroValue;
+        return copy;
+    }
+
+    /**
+     * Splits the entries lazily into tables of a bounded size.
+     *
+     * @param chunkSize the maximum number of entries per table
+     * @return the tables
+     */
+    Iterator<LongHashTable> chunks(final int chunkSize) {
+        return new Iterator<LongHashTable>() {
+            private int slot = -1;
+            private int remaining = size;
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public LongHashTable next() {
+                if (remaining == 0) {
+                    throw new NoSuchElementException();
+                }
+                final LongHashTable chunk = new LongHashTable(withValues, Math.min(chunkSize, remaining));
+                if (slot < 0) {
+                    if (hasZero) {
+                        chunk.put(0, zeroValue);
+                    }
+                    slot = 0;
+                }
+                for (; slot < keys.length && chunk.size < chunkSize; slot++) {
+                    if (keys[slot] != 0) {
+                        chunk.put(keys[slot], withValues ? values[slot] : 0);
+                    }
+                }
+                remaining -= chunk.size;
+                return chunk;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private int find(long key) {
+        final int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        allocate(capacity);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != 0) {
+                final int target = find(oldKeys[slot]);
+                keys[target] = oldKeys[slot];
+                if (withValues) {
+                    values[target] = oldValues[slot];
+                }
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = withValues ? new long[capacity] : null;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * @return the hash of a key, its lower bits are the home slot
+     */
+    static int mix(long key) {
+        // spreads sequential ids, which are common keys, over the table
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "LongHashTable{" +
+                "size=" + size +
+                ", capacity=" + keys.length +
+                '}';
+    }
+
+    /**
+     * Receives the entries of a table.
+     */
+    interface Visitor {
+        void visit(long key, long value);
+    }
+}
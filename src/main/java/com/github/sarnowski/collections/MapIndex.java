@@ -0,0 +1,52 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Map;
+
+/**
+ * A secondary index of an {@link IndexedMap}, mapping an attribute of the
+ * values to their keys. The index is maintained while the updates are
+ * applied, a lookup only reads the local copy.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> the key type
+ * @param <V> the value type
+ * @param <A> the attribute type
+ */
+public interface MapIndex<K, V, A> {
+
+    /**
+     * Looks up the entries with an attribute.
+     *
+     * @param attribute the attribute
+     * @return a snapshot of the matching entries
+     */
+    Map<K, V> get(A attribute);
+
+    /**
+     * Looks up the entries with an attribute within a range, in the order
+     * of the attributes. Only sorted indexes support ranges.
+     *
+     * @param from the lowest attribute, inclusive, {@code null} for no lower bound
+     * @param to the highest attribute, exclusive, {@code null} for no upper bound
+     * @return a snapshot of the matching entries
+     * @throws UnsupportedOperationException if the index is not sorted
+     */
+    Map<K, V> range(A from, A to);
+
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded local cache of values owned by other members. The entries are
+ * spread over lock stripes, so that concurrent readers of different keys do
+ * not contend. Within a stripe, the least recently used entry is dropped when
+ * the stripe is full; entries expire after a fixed time to live. The owners
+ * invalidate entries when they change.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see PartitionedClusteredMap
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class NearCache<K, V> implements NearCacheStatistics {
+
+    /**
+     * Maximum number of lock stripes, has to be a power of two.
+     */
+    private static final int MAX_STRIPES = 16;
+
+    /**
+     * Minimum number of entries per stripe, smaller caches use fewer stripes.
+     */
+    private static final int MIN_STRIPE_SIZE = 32;
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final Stripe<K, V>[] stripes;
+
+    /**
+     * @param maxSize the maximum number of entries
+     * @param timeToLive the time to live in nanoseconds, 0 to keep entries until evicted
+     */
+    NearCache(int maxSize, long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        int count = 1;
+        while (count < MAX_STRIPES && count * 2 * MIN_STRIPE_SIZE <= maxSize) {
+            count *= 2;
+        }
+        stripes = newStripes(count);
+        for (int n = 0; n < count; n++) {
+            // the first stripes take the remainder, so that the sizes add up to maxSize
+            stripes[n] = new Stripe<K, V>(maxSize / count + (n < maxSize % count ? 1 : 0));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Stripe<K, V>[] newStripes(int count) {
+        return (Stripe<K, V>[]) new Stripe<?, ?>[count];
+    }
+
+    private Stripe<K, V> stripeFor(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    /**
+     * Looks up a value and counts a hit or miss.
+     *
+     * @param key the key
+     * @return the cached value or {@code null}
+     */
+    V get(Object key) {
+        final Stripe<K, V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            final Cached<V> cached = stripe.entries.get(key);
+            if (cached != null && (timeToLive == 0 || System.nanoTime() - cached.created < timeToLive)) {
+                stripe.hits++;
+                return cached.value;
+            }
+            if (cached != null) {
+                stripe.entries.remove(key);
+            }
+            stripe.misses++;
+            return null;
+        }
+    }
+
+    /**
+     * Stores a value fetched from its owner, unless the key's stripe was
+     * invalidated while it was fetched.
+     *
+     * @param key the key
+     * @param value the value, {@code null} values are not cached
+     * @param version the {@link #getVersion(Object) version} before the value was fetched
+     */
+    void put(K key, V value, long version) {
+        if (value == null) {
+            return;
+        }
+        final Stripe<K, V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            if (version == stripe.invalidations) {
+                stripe.entries.put(key, new Cached<V>(value, System.nanoTime()));
+            }
+        }
+    }
+
+    /**
+     * @param key the key to fetch
+     * @return a counter which changes with every invalidation of the key's stripe
+     */
+    long getVersion(Object key) {
+        final Stripe<K, V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.invalidations;
+        }
+    }
+
+    void invalidate(Object key) {
+        final Stripe<K, V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.invalidations++;
+            stripe.entries.remove(key);
+        }
+    }
+
+    void clear() {
+        for (Stripe<K, V> stripe: stripes) {
+            synchronized (stripe) {
+                stripe.invalidations++;
+                stripe.entries.clear();
+            }
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        long hits = 0;
+        for (Stripe<K, V> stripe: stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public long getMissCount() {
+        long misses = 0;
+        for (Stripe<K, V> stripe: stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (Stripe<K, V> stripe: stripes) {
+            synchronized (stripe) {
+                evictions += stripe.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        long invalidations = 0;
+        for (Stripe<K, V> stripe: stripes) {
+            synchronized (stripe) {
+                invalidations += stripe.invalidations;
+            }
+        }
+        return invalidations;
+    }
+
+    @Override
+    public int getSize() {
+        int size = 0;
+        for (Stripe<K, V> stripe: stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "NearCache{" +
+                "size=" + getSize() +
+                ", maxSize=" + maxSize +
+                ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() +
+                '}';
+    }
+
+    /**
+     * A part of the cache with its own lock, order and counters.
+     */
+    private static final class Stripe<K, V> {
+        final LinkedHashMap<K, Cached<V>> entries;
+        long hits;
+        long misses;
+        long evictions;
+        long invalidations;
+
+        Stripe(final int maxSize) {
+            entries = new LinkedHashMap<K, Cached<V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Cached<V>> eldest) {
+                    if (size() > maxSize) {
+                        evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    private static final class Cached<V> {
+        final V value;
+        final long created;
+
+        Cached(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * Counters of the near cache of a {@link PartitionedMap}. All counters
+ * stay 0 if the near cache is disabled.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterConfiguration#setNearCacheSize(int)
+ */
+public interface NearCacheStatistics {
+
+    /**
+     * @return the number of reads answered by the near cache
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of reads which had to ask the owner
+     */
+    long getMissCount();
+
+    /**
+     * @return the number of entries dropped because the near cache was full
+     */
+    long getEvictionCount();
+
+    /**
+     * @return the number of invalidations sent by the owners
+     */
+    long getInvalidationCount();
+
+    /**
+     * @return the current number of cached entries
+     */
+    int getSize();
+
+}
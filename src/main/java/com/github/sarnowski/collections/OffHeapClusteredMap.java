@@ -0,0 +1,722 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Implements a clustered {@link Map} which keeps its entries serialized
+ * outside of the Java heap, in an {@link OffHeapStore}. Keys and values are
+ * serialized once when they are written; the same bytes are sent to the
+ * other members and stored by them without deserializing them. A value is
+ * only deserialized when it is read. The state is transferred as the raw
+ * records of the store.
+ *
+ * <p>
+ * Reads share a read lock, writes take the write lock, so that sending and
+ * storing an update happen atomically. Every read deserializes the value
+ * again; frequently read maps with expensive values are better kept on the
+ * heap. Like {@link java.util.concurrent.ConcurrentHashMap}, the map does
+ * not support {@code null} keys or values. Iterators are weakly
+ * consistent: entries written while iterating may be missed or, if the
+ * index grows meanwhile, returned twice.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> generic key type
+ * @param <V> generic value type
+ */
+final class OffHeapClusteredMap<K,V> extends AbstractMap<K,V> implements
+        ClusteredMap<K,V>,
+        ClusterManaged<OffHeapClusteredMap.MapActions,List<OffHeapClusteredMap.Write>,OffHeapStore> {
+
+    private static final Log LOG = LogFactory.getLog(OffHeapClusteredMap.class);
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private OffHeapStore store = new OffHeapStore(OffHeapStore.DEFAULT_SLAB_SIZE, 0);
+
+    private final ClusterManager<MapActions,List<Write>,OffHeapStore> clusterManager;
+    // known before the manager exists, updates can arrive during its construction
+    private final boolean ordered;
+    private volatile ClusterUpdateCallback updateCallback = null;
+    private final ClusterEvents<K,V> events = new ClusterEvents<K,V>();
+
+    public OffHeapClusteredMap(ClusterContext context, String name,
+                               Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                               ClusterConfiguration configuration) throws ChannelException {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.ordered = configuration.getConsistencyMode() == ConsistencyMode.TOTAL_ORDER;
+        clusterManager = new ClusterManager<MapActions,List<Write>,OffHeapStore>(
+                context, name, this, new MapCodec(), configuration);
+        clusterManager.observe(events);
+    }
+
+    @Override
+    public Channel getChannel() {
+        return clusterManager.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        updateCallback = callback;
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<K,V> listener) {
+        events.addListener(listener, null);
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<K,V> listener, ClusterEventFilter<? super K> filter) {
+        events.addListener(listener, filter);
+    }
+
+    @Override
+    public void removeEventListener(ClusterEventListener<K,V> listener) {
+        events.removeListener(listener);
+    }
+
+    @Override
+    public ContinuousQuery<K,V> addContinuousQuery(ClusterPredicate<? super K,? super V> predicate,
+                                                   ClusterEventListener<K,V> listener) {
+        lock.writeLock().lock();
+        try {
+            return events.addQuery(predicate, listener, entrySet());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Object handleUpdate(MapActions action, List<Write> payload) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdate(" + action + ", " + payload.size() + ")");
+        final V previous;
+        lock.writeLock().lock();
+        try {
+            previous = applyUpdate(action, payload, ordered);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+        return previous;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<MapActions,List<Write>>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        lock.writeLock().lock();
+        try {
+            for (ClusterUpdate<MapActions,List<Write>> update: updates) {
+                applyUpdate(update.getActionIdentifier(), update.getPayload(), false);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+    }
+
+    /**
+     * Applies writes. The caller has to hold the write lock.
+     *
+     * @param previous whether to deserialize the previous value of a single write
+     * @return the previous value of a single write, if requested
+     */
+    private V applyUpdate(MapActions action, List<Write> writes, boolean previous) {
+        switch (action) {
+            case WRITE:
+                V result = null;
+                for (Write write: writes) {
+                    if (previous && writes.size() == 1) {
+                        final int slot = store.find(write.key, write.hash);
+                        result = slot < 0 ? null : store.read(slot, true, valueSerializer);
+                    }
+                    if (events.isRecording()) {
+                        report(write);
+                    }
+                    if (write.value == null) {
+                        store.remove(write.key, write.hash);
+                    } else {
+                        store.put(write.key, write.value, write.hash);
+                    }
+                }
+                return result;
+            case CLEAR:
+                store.clear();
+                if (events.isObserved(null)) {
+                    events.add(ClusterEvent.Type.CLEARED, null, null, null);
+                }
+                return null;
+            default:
+                throw new UnsupportedOperationException(action.name());
+        }
+    }
+
+    /**
+     * Reports a write before it gets applied; the values are only
+     * deserialized if a listener is interested in the key.
+     */
+    private void report(Write write) {
+        final K key = decode(keySerializer, write.key);
+        if (!events.isObserved(key)) {
+            return;
+        }
+        final V previous = read(write.key, write.hash);
+        if (write.value == null) {
+            if (previous != null) {
+                events.add(ClusterEvent.Type.REMOVED, key, previous, null);
+            }
+        } else {
+            events.add(previous == null ? ClusterEvent.Type.ADDED : ClusterEvent.Type.UPDATED,
+                    key, previous, decode(valueSerializer, write.value));
+        }
+    }
+
+    @Override
+    public Object coalesceKey(MapActions action, List<Write> payload) {
+        if (action == MapActions.WRITE && payload.size() == 1) {
+            // a later write of the same key overrides the earlier one
+            return ByteBuffer.wrap(payload.get(0).key);
+        }
+        return null;
+    }
+
+    @Override
+    public void updateClusterState(OffHeapStore state) {
+        final Runnable changes;
+        lock.writeLock().lock();
+        try {
+            // the old slabs are freed once they are garbage collected
+            store = state;
+            changes = events.reset(entrySet());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        deliver(changes);
+    }
+
+    /**
+     * Runs the delivery of the recorded events, the caller must not hold the lock.
+     */
+    private static void deliver(Runnable changes) {
+        if (changes != null) {
+            changes.run();
+        }
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        lock.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public OffHeapStore provideClusterState() {
+        lock.readLock().lock();
+        try {
+            return store.copy();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<OffHeapStore> provideClusterStateChunks(int chunkSize) {
+        // the records are streamed as they are, splitting would only copy them again
+        return Collections.singletonList(provideClusterState()).iterator();
+    }
+
+    @Override
+    public void beginClusterState() {
+    }
+
+    @Override
+    public void applyClusterStateChunk(OffHeapStore chunk) {
+        updateClusterState(chunk);
+    }
+
+    @Override
+    public void endClusterState() {
+    }
+
+    @Override
+    public Set<Entry<K,V>> entrySet() {
+        return new AbstractSet<Entry<K,V>>() {
+
+            @Override
+            public Iterator<Entry<K,V>> iterator() {
+                return new Iterator<Entry<K,V>>() {
+                    private int slot = 0;
+                    private Entry<K,V> next = advance();
+                    private K current;
+
+                    private Entry<K,V> advance() {
+                        lock.readLock().lock();
+                        try {
+                            slot = store.nextSlot(slot);
+                            if (slot < 0) {
+                                return null;
+                            }
+                            final Entry<K,V> entry = new SimpleImmutableEntry<K,V>(
+                                    store.read(slot, false, keySerializer), store.read(slot, true, valueSerializer));
+                            slot++;
+                            return entry;
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Entry<K,V> next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        final Entry<K,V> entry = next;
+                        current = entry.getKey();
+                        next = slot < 0 ? null : advance();
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (current == null) {
+                            throw new IllegalStateException();
+                        }
+                        OffHeapClusteredMap.this.remove(current);
+                        current = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return OffHeapClusteredMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry)) {
+                    return false;
+                }
+                final Entry<?,?> entry = (Entry<?,?>) o;
+                final V value = get(entry.getKey());
+                return value != null && value.equals(entry.getValue());
+            }
+
+            @Override
+            public void clear() {
+                OffHeapClusteredMap.this.clear();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return store.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return false;
+        }
+        final byte[] keyBytes = encodeKey(key);
+        lock.readLock().lock();
+        try {
+            return store.find(keyBytes, OffHeapStore.hash(keyBytes)) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        final byte[] keyBytes = encodeKey(key);
+        lock.readLock().lock();
+        try {
+            return read(keyBytes, OffHeapStore.hash(keyBytes));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        final Write write = new Write(encodeKey(key), encode(valueSerializer, value));
+        if (clusterManager.isOrdered()) {
+            return clusterManager.sendOrdered(MapActions.WRITE, Collections.singletonList(write));
+        }
+        final ReplicationFuture<Void> replicated;
+        final V previous;
+        Runnable changes = null;
+        lock.writeLock().lock();
+        final boolean recording = events.beginLocal();
+        try {
+            previous = read(write.key, write.hash);
+            replicated = clusterManager.sendUpdateDeferred(MapActions.WRITE, Collections.singletonList(write));
+            applyUpdate(MapActions.WRITE, Collections.singletonList(write), false);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.writeLock().unlock();
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+        return previous;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+        final Write write = new Write(encodeKey(key), null);
+        if (clusterManager.isOrdered()) {
+            return clusterManager.sendOrdered(MapActions.WRITE, Collections.singletonList(write));
+        }
+        final ReplicationFuture<Void> replicated;
+        final V previous;
+        Runnable changes = null;
+        lock.writeLock().lock();
+        final boolean recording = events.beginLocal();
+        try {
+            previous = read(write.key, write.hash);
+            if (previous == null) {
+                return null;
+            }
+            replicated = clusterManager.sendUpdateDeferred(MapActions.WRITE, Collections.singletonList(write));
+            applyUpdate(MapActions.WRITE, Collections.singletonList(write), false);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.writeLock().unlock();
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+        return previous;
+    }
+
+    @Override
+    public ReplicationFuture<V> putAsync(K key, V value) {
+        return putAsync(key, value, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<V> putAsync(K key, V value, ReplicationLevel level) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        final Write write = new Write(encodeKey(key), encode(valueSerializer, value));
+        if (clusterManager.isOrdered()) {
+            return clusterManager.sendOrderedAsync(MapActions.WRITE, Collections.singletonList(write), level);
+        }
+        final ReplicationFuture<V> future;
+        Runnable changes = null;
+        lock.writeLock().lock();
+        final boolean recording = events.beginLocal();
+        try {
+            future = clusterManager.sendUpdateAsync(MapActions.WRITE,
+                    Collections.singletonList(write), level, read(write.key, write.hash));
+            applyUpdate(MapActions.WRITE, Collections.singletonList(write), false);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.writeLock().unlock();
+        }
+        deliver(changes);
+        return future;
+    }
+
+    @Override
+    public ReplicationFuture<V> removeAsync(Object key) {
+        return removeAsync(key, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<V> removeAsync(Object key, ReplicationLevel level) {
+        if (key == null) {
+            return SettableReplicationFuture.completed(null);
+        }
+        final Write write = new Write(encodeKey(key), null);
+        if (clusterManager.isOrdered()) {
+            return clusterManager.sendOrderedAsync(MapActions.WRITE, Collections.singletonList(write), level);
+        }
+        final ReplicationFuture<V> future;
+        Runnable changes = null;
+        lock.writeLock().lock();
+        final boolean recording = events.beginLocal();
+        try {
+            final V previous = read(write.key, write.hash);
+            if (previous == null) {
+                return SettableReplicationFuture.completed(null);
+            }
+            future = clusterManager.sendUpdateAsync(MapActions.WRITE,
+                    Collections.singletonList(write), level, previous);
+            applyUpdate(MapActions.WRITE, Collections.singletonList(write), false);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.writeLock().unlock();
+        }
+        deliver(changes);
+        return future;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (m.isEmpty()) {
+            return;
+        }
+        final List<Write> writes = new ArrayList<Write>(m.size());
+        for (Entry<? extends K, ? extends V> entry: m.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new NullPointerException();
+            }
+            writes.add(new Write(encodeKey(entry.getKey()), encode(valueSerializer, entry.getValue())));
+        }
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(MapActions.WRITE, writes);
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        Runnable changes = null;
+        lock.writeLock().lock();
+        final boolean recording = events.beginLocal();
+        try {
+            replicated = clusterManager.sendUpdateDeferred(MapActions.WRITE, writes);
+            applyUpdate(MapActions.WRITE, writes, false);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.writeLock().unlock();
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+    }
+
+    @Override
+    public void clear() {
+        final List<Write> none = Collections.emptyList();
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(MapActions.CLEAR, none);
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        Runnable changes = null;
+        lock.writeLock().lock();
+        final boolean recording = events.beginLocal();
+        try {
+            if (store.size() == 0) {
+                return;
+            }
+            replicated = clusterManager.sendUpdateDeferred(MapActions.CLEAR, none);
+            applyUpdate(MapActions.CLEAR, none, false);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.writeLock().unlock();
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+    }
+
+    /**
+     * Reads the value of a serialized key. The caller has to hold a lock.
+     */
+    private V read(byte[] key, int hash) {
+        final int slot = store.find(key, hash);
+        return slot < 0 ? null : store.read(slot, true, valueSerializer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] encodeKey(Object key) {
+        return encode(keySerializer, (K) key);
+    }
+
+    private static <T> byte[] encode(Serializer<T> serializer, T object) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        try {
+            serializer.write(object, new DataOutputStream(buffer));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static <T> T decode(Serializer<T> serializer, byte[] data) {
+        try {
+            return serializer.read(new DataInputStream(new ByteArrayInputStream(data)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return "OffHeapClusteredMap{" +
+                    "mapSize=" + store.size() +
+                    ", offHeapBytes=" + store.allocated() +
+                    ", cluster=" + clusterManager +
+                    '}';
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public static enum MapActions {
+        WRITE,
+        CLEAR
+    }
+
+    /**
+     * A serialized key with its new serialized value, {@code null} for a remove.
+     */
+    static final class Write {
+        final byte[] key;
+        final byte[] value;
+        final int hash;
+
+        Write(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+            this.hash = OffHeapStore.hash(key);
+        }
+    }
+
+    /**
+     * Encodes the action as a single byte tag followed by the number of
+     * writes and the length prefixed bytes of every key and value. Values
+     * are prefixed with their length plus one, removes with 0. The state
+     * consists of the raw records of the store.
+     */
+    static final class MapCodec implements ClusterCodec<MapActions,List<Write>,OffHeapStore> {
+        private static final MapActions[] ACTIONS = MapActions.values();
+
+        @Override
+        public void writeUpdate(MapActions action, List<Write> payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            Varints.writeUnsignedInt(out, payload.size());
+            for (Write write: payload) {
+                Varints.writeUnsignedInt(out, write.key.length);
+                out.write(write.key);
+                if (write.value == null) {
+                    Varints.writeUnsignedInt(out, 0);
+                } else {
+                    Varints.writeUnsignedInt(out, write.value.length + 1);
+                    out.write(write.value);
+                }
+            }
+        }
+
+        @Override
+        public ClusterUpdate<MapActions,List<Write>> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown map action " + tag);
+            }
+            final int size = Varints.readUnsignedInt(in);
+            final List<Write> writes = new ArrayList<Write>(size);
+            for (int n = 0; n < size; n++) {
+                final byte[] key = new byte[Varints.readUnsignedInt(in)];
+                in.readFully(key);
+                final int valueLength = Varints.readUnsignedInt(in);
+                byte[] value = null;
+                if (valueLength > 0) {
+                    value = new byte[valueLength - 1];
+                    in.readFully(value);
+                }
+                writes.add(new Write(key, value));
+            }
+            return new ClusterUpdate<MapActions,List<Write>>(ACTIONS[tag], writes);
+        }
+
+        @Override
+        public void writeState(OffHeapStore state, DataOutput out) throws IOException {
+            state.writeTo(out);
+        }
+
+        @Override
+        public OffHeapStore readState(DataInput in) throws IOException {
+            return OffHeapStore.readFrom(in, OffHeapStore.DEFAULT_SLAB_SIZE);
+        }
+    }
+}
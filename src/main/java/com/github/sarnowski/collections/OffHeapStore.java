@@ -0,0 +1,451 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores serialized keys and values outside of the Java heap. The records
+ * are appended to direct {@link ByteBuffer} slabs; an open addressing index,
+ * itself a direct buffer, maps the hash of a serialized key to the address
+ * of its record. The heap only holds the list of slabs, so its footprint
+ * does not grow with the number of entries.
+ *
+ * <p>
+ * Overwritten and removed records stay in their slab until more than half
+ * of the appended bytes are garbage; the live records are then copied into
+ * fresh slabs. Released slabs are freed once they are garbage collected.
+ * Removed keys leave a marker in the index, so that entries only change
+ * their slot when the index is rebuilt.
+ * </p>
+ *
+ * <p>
+ * The store is not thread safe. Concurrent reads are fine as long as
+ * nothing is written meanwhile.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see OffHeapClusteredMap
+ */
+final class OffHeapStore {
+
+    static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    /**
+     * Hash, key length and value length in front of every record.
+     */
+    private static final int RECORD_HEADER = 12;
+    private static final int MIN_CAPACITY = 16;
+    private static final long REMOVED = -1;
+
+    private final int slabSize;
+    private List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private ByteBuffer index;
+    private int capacity;
+    private int size = 0;
+    private int removed = 0;
+    private long appended = 0;
+    private long garbage = 0;
+
+    /**
+     * @param slabSize the size of a slab, larger records get a slab of their own
+     * @param expectedSize the number of entries to make room for
+     */
+    OffHeapStore(int slabSize, int expectedSize) {
+        this.slabSize = slabSize;
+        capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        index = ByteBuffer.allocateDirect(capacity * 8);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the allocated bytes of slabs and index
+     */
+    long allocated() {
+        long bytes = index.capacity();
+        for (ByteBuffer slab: slabs) {
+            bytes += slab.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Searches a serialized key.
+     *
+     * @param key the serialized key
+     * @param hash the hash of the key, see {@link #hash(byte[])}
+     * @return the slot of the key or -1 if it is not stored
+     */
+    int find(byte[] key, int hash) {
+        final int mask = capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final long entry = index.getLong(slot * 8);
+            if (entry == 0) {
+                return -1;
+            }
+            if (entry != REMOVED && matches(entry - 1, key, hash)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Stores a serialized entry, replacing the record of an equal key.
+     *
+     * @param key the serialized key
+     * @param value the serialized value
+     * @param hash the hash of the key
+     */
+    void put(byte[] key, byte[] value, int hash) {
+        final int slot = find(key, hash);
+        if (slot >= 0) {
+            garbage += recordSize(index.getLong(slot * 8) - 1);
+            index.putLong(slot * 8, append(hash, key, 0, key.length, value, 0, value.length) + 1);
+        } else {
+            if (size + removed + 1 > capacity * 3 / 4) {
+                // grow if the entries need it, otherwise only drop the markers
+                resize(size + 1 > capacity * 3 / 8 ? capacity << 1 : capacity);
+            }
+            insert(hash, append(hash, key, 0, key.length, value, 0, value.length));
+            size++;
+        }
+        compactIfWasteful();
+    }
+
+    /**
+     * Removes a serialized key.
+     *
+     * @param key the serialized key
+     * @param hash the hash of the key
+     * @return whether the key was stored
+     */
+    boolean remove(byte[] key, int hash) {
+        final int slot = find(key, hash);
+        if (slot < 0) {
+            return false;
+        }
+        garbage += recordSize(index.getLong(slot * 8) - 1);
+        index.putLong(slot * 8, REMOVED);
+        size--;
+        removed++;
+        compactIfWasteful();
+        return true;
+    }
+
+    void clear() {
+        slabs = new ArrayList<ByteBuffer>();
+        capacity = MIN_CAPACITY;
+        index = ByteBuffer.allocateDirect(capacity * 8);
+        size = 0;
+        removed = 0;
+        appended = 0;
+        garbage = 0;
+    }
+
+    /**
+     * Finds the next occupied slot, to iterate over the entries.
+     *
+     * @param from the first slot to look at
+     * @return the slot or -1 if there are no more entries
+     */
+    int nextSlot(int from) {
+        for (int slot = from; slot < capacity; slot++) {
+            if (index.getLong(slot * 8) > 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Deserializes the key or the value of an entry directly from its slab.
+     *
+     * @param slot an occupied slot
+     * @param value whether to read the value instead of the key
+     * @param serializer the serializer of the key or value
+     * @return the deserialized object
+     */
+    <T> T read(int slot, boolean value, Serializer<T> serializer) {
+        final long address = index.getLong(slot * 8) - 1;
+        final ByteBuffer record = slab(address);
+        final int offset = offset(address);
+        final int keyLength = record.getInt(offset + 4);
+        final ByteBuffer view = record.duplicate();
+        view.position(offset + RECORD_HEADER + (value ? keyLength : 0));
+        view.limit(view.position() + (value ? record.getInt(offset + 8) : keyLength));
+        try {
+            return serializer.read(new DataInputStream(new SlabInput(view)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Copies the live records into a new store with tightly filled slabs.
+     *
+     * @return the copy
+     */
+    OffHeapStore copy() {
+        final OffHeapStore copy = new OffHeapStore(slabSize, size);
+        for (int slot = nextSlot(0); slot >= 0; slot = nextSlot(slot + 1)) {
+            final long address = index.getLong(slot * 8) - 1;
+            copy.insert(hashAt(address), copy.appendRecord(slab(address), offset(address), recordSize(address)));
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Writes the live records as they are: the number of entries followed by
+     * length and bytes of every key and value.
+     *
+     * @param out the target
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutput out) throws IOException {
+        Varints.writeUnsignedInt(out, size);
+        final byte[] transfer = new byte[8192];
+        for (int slot = nextSlot(0); slot >= 0; slot = nextSlot(slot + 1)) {
+            final long address = index.getLong(slot * 8) - 1;
+            final ByteBuffer record = slab(address);
+            final int offset = offset(address);
+            final int keyLength = record.getInt(offset + 4);
+            final int valueLength = record.getInt(offset + 8);
+            final ByteBuffer view = record.duplicate();
+            view.position(offset + RECORD_HEADER);
+            Varints.writeUnsignedInt(out, keyLength);
+            copy(view, keyLength, out, transfer);
+            Varints.writeUnsignedInt(out, valueLength);
+            copy(view, valueLength, out, transfer);
+        }
+    }
+
+    /**
+     * Reads what {@link #writeTo(DataOutput)} wrote.
+     *
+     * @param in the source
+     * @param slabSize the slab size of the new store
+     * @return the new store
+     * @throws IOException if reading fails
+     */
+    static OffHeapStore readFrom(DataInput in, int slabSize) throws IOException {
+        final int size = Varints.readUnsignedInt(in);
+        final OffHeapStore store = new OffHeapStore(slabSize, size);
+        byte[] key = new byte[64];
+        byte[] value = new byte[256];
+        for (int n = 0; n < size; n++) {
+            final int keyLength = Varints.readUnsignedInt(in);
+            if (keyLength > key.length) {
+                key = new byte[Math.max(keyLength, key.length * 2)];
+            }
+            in.readFully(key, 0, keyLength);
+            final int valueLength = Varints.readUnsignedInt(in);
+            if (valueLength > value.length) {
+                value = new byte[Math.max(valueLength, value.length * 2)];
+            }
+            in.readFully(value, 0, valueLength);
+            final int hash = ConsistentHash.hash(key, 0, keyLength);
+            store.insert(hash, store.append(hash, key, 0, keyLength, value, 0, valueLength));
+        }
+        store.size = size;
+        return store;
+    }
+
+    static int hash(byte[] key) {
+        return ConsistentHash.hash(key, 0, key.length);
+    }
+
+    private static void copy(ByteBuffer source, int length, DataOutput out, byte[] transfer) throws IOException {
+        while (length > 0) {
+            final int chunk = Math.min(length, transfer.length);
+            source.get(transfer, 0, chunk);
+            out.write(transfer, 0, chunk);
+            length -= chunk;
+        }
+    }
+
+    private boolean matches(long address, byte[] key, int hash) {
+        final ByteBuffer record = slab(address);
+        final int offset = offset(address);
+        if (record.getInt(offset) != hash || record.getInt(offset + 4) != key.length) {
+            return false;
+        }
+        final int start = offset + RECORD_HEADER;
+        for (int n = 0; n < key.length; n++) {
+            if (record.get(start + n) != key[n]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts an address into the first free slot of its hash.
+     */
+    private void insert(int hash, long address) {
+        final int mask = capacity - 1;
+        int slot = hash & mask;
+        long entry;
+        while ((entry = index.getLong(slot * 8)) > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (entry == REMOVED) {
+            removed--;
+        }
+        index.putLong(slot * 8, address + 1);
+    }
+
+    private void resize(int newCapacity) {
+        final ByteBuffer old = index;
+        final int oldCapacity = capacity;
+        index = ByteBuffer.allocateDirect(newCapacity * 8);
+        capacity = newCapacity;
+        removed = 0;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            final long entry = old.getLong(slot * 8);
+            if (entry > 0) {
+                insert(hashAt(entry - 1), entry - 1);
+            }
+        }
+    }
+
+    private long append(int hash, byte[] key, int keyOffset, int keyLength,
+                        byte[] value, int valueOffset, int valueLength) {
+        final int length = RECORD_HEADER + keyLength + valueLength;
+        final ByteBuffer slab = slabFor(length);
+        final long address = address(slabs.size() - 1, slab.position());
+        slab.putInt(hash).putInt(keyLength).putInt(valueLength);
+        slab.put(key, keyOffset, keyLength).put(value, valueOffset, valueLength);
+        appended += length;
+        return address;
+    }
+
+    private long appendRecord(ByteBuffer source, int offset, int length) {
+        final ByteBuffer slab = slabFor(length);
+        final long address = address(slabs.size() - 1, slab.position());
+        final ByteBuffer view = source.duplicate();
+        view.limit(offset + length).position(offset);
+        slab.put(view);
+        appended += length;
+        return address;
+    }
+
+    private ByteBuffer slabFor(int length) {
+        ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        if (slab == null || slab.remaining() < length) {
+            slab = ByteBuffer.allocateDirect(Math.max(slabSize, length));
+            slabs.add(slab);
+        }
+        return slab;
+    }
+
+    /**
+     * Moves the live records into fresh slabs, keeping their slots.
+     */
+    private void compactIfWasteful() {
+        if (garbage <= slabSize || garbage * 2 <= appended) {
+            return;
+        }
+        final List<ByteBuffer> old = slabs;
+        slabs = new ArrayList<ByteBuffer>();
+        appended = 0;
+        garbage = 0;
+        for (int slot = nextSlot(0); slot >= 0; slot = nextSlot(slot + 1)) {
+            final long address = index.getLong(slot * 8) - 1;
+            final ByteBuffer source = old.get((int) (address >>> 32));
+            final int offset = offset(address);
+            final int length = RECORD_HEADER + source.getInt(offset + 4) + source.getInt(offset + 8);
+            index.putLong(slot * 8, appendRecord(source, offset, length) + 1);
+        }
+    }
+
+    private int hashAt(long address) {
+        return slab(address).getInt(offset(address));
+    }
+
+    private int recordSize(long address) {
+        final ByteBuffer record = slab(address);
+        final int offset = offset(address);
+        return RECORD_HEADER + record.getInt(offset + 4) + record.getInt(offset + 8);
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> 32));
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapStore{" +
+                "size=" + size +
+                ", slabs=" + slabs.size() +
+                ", garbage=" + garbage +
+                '}';
+    }
+
+    /**
+     * Reads a slab region as stream, so that serializers read directly from
+     * the slab.
+     */
+    private static final class SlabInput extends InputStream {
+        private final ByteBuffer buffer;
+
+        SlabInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs tasks one after another in submission order on a pooled thread. At
+ * most one thread works on the queue at a time and none while it is empty,
+ * so many instances share a few threads.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterManager
+ */
+final class OrderedExecutor {
+
+    private static final Log LOG = LogFactory.getLog(OrderedExecutor.class);
+
+    private final String name;
+    private final BlockingQueue<Runnable> queue;
+    private boolean scheduled = false;
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param name the name used for logging
+     * @param capacity the maximum number of waiting tasks
+     */
+    OrderedExecutor(String name, int capacity) {
+        this.name = name;
+        this.queue = new LinkedBlockingQueue<Runnable>(capacity);
+    }
+
+    /**
+     * Queues a task, waiting while the queue is full.
+     *
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(task);
+                break;
+            } catch (InterruptedException e) {
+                // the task must not get lost, keep waiting
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        schedule();
+    }
+
+    /**
+     * Queues a task according to the policy.
+     *
+     * @param task the task
+     * @param policy what to do if the queue is full
+     * @return if the task was queued
+     */
+    boolean submit(Runnable task, OverflowPolicy policy) {
+        if (policy == OverflowPolicy.BLOCK) {
+            execute(task);
+            return true;
+        }
+        if (!queue.offer(task)) {
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        Workers.INSTANCE.execute(drainer);
+    }
+
+    private void drain() {
+        while (true) {
+            final Runnable task = queue.poll();
+            if (task == null) {
+                synchronized (this) {
+                    // a task may have been queued after polling
+                    if (queue.isEmpty()) {
+                        scheduled = false;
+                        notifyAll();
+                        return;
+                    }
+                }
+                continue;
+            }
+            try {
+                task.run();
+            /* CHECKSTYLE:OFF */
+            } catch (RuntimeException e) {
+            /* CHECKSTYLE:ON */
+                LOG.error("task of " + name + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Waits until all queued tasks ran.
+     */
+    void awaitIdle() {
+        boolean interrupted = false;
+        synchronized (this) {
+            while (scheduled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of waiting tasks
+     */
+    int size() {
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return "OrderedExecutor{" +
+                "name=" + name +
+                ", queued=" + queue.size() +
+                '}';
+    }
+
+    /**
+     * The threads shared by all instances.
+     */
+    private static final class Workers {
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "OrderedExecutor-Worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * Defines what happens to an update callback if the queue of a
+ * {@link ClusterConfiguration#setCallbackQueueSize(int) callback executor}
+ * is full, because the callbacks are slower than the updates.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterConfiguration#setCallbackOverflowPolicy(OverflowPolicy)
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Waits until the queue has room. The updates are applied no faster than
+     * the callbacks run; once the apply queue is full as well, the receiving
+     * thread waits and the flow control of the channel slows the senders
+     * down.
+     */
+    BLOCK,
+
+    /**
+     * Drops the callback. The callbacks in the queue still run after the
+     * update was applied, so the latest state is always seen; only the
+     * number of invocations shrinks. {@link ClusterEventListener}s are not
+     * affected, their events are never dropped.
+     */
+    DISCARD
+
+}
@@ -0,0 +1,1626 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Address;
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+import org.jgroups.MergeView;
+import org.jgroups.View;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implements a clustered {@link Map} which spreads its entries over the
+ * members instead of copying them to every member.
+ *
+ * <p>
+ * Every key is owned by one member, chosen by a {@link ConsistentHash} of
+ * the serialized key over the members of the view which host the map, and
+ * copied to {@link ClusterConfiguration#getBackupCount()} further members.
+ * Writes are sent to the owner, which applies them and forwards them to the
+ * backups. Reads are answered locally if this member holds a copy and by the
+ * owner otherwise. When a host joins or leaves, every member hands the
+ * entries it is responsible for to their new owners in the background. Until
+ * then reads of moved keys may miss. A handed over entry never replaces a
+ * write the new owner applied meanwhile: it is dropped if the key is present,
+ * was removed since the ring changed or was cleared after the entry was
+ * handed over.
+ * </p>
+ *
+ * <p>
+ * An optional {@link NearCache} keeps values fetched from other members. The
+ * owner remembers which members fetched a key and sends them an
+ * invalidation when the key changes. View changes clear the near caches, as
+ * the new owners do not know the previous readers.
+ * </p>
+ *
+ * <p>
+ * A {@link ContinuousQuery} sends its predicate to all members. Each owner
+ * evaluates it for its writes and only sends the changes of the result to
+ * the querying member.
+ * </p>
+ *
+ * <p>
+ * A member announces the map when it creates it and when it closes it, the
+ * hosts answer the announcement. Other members of the {@link ClusterContext}
+ * are never asked. A new host learns about the others from their answers;
+ * until then it owns the keys itself and hands them over afterwards. Like
+ * {@link java.util.concurrent.ConcurrentHashMap}, the map does not support
+ * {@code null} keys or values. {@link #size()} and the views ask all members
+ * and return a snapshot.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+final class PartitionedClusteredMap<K,V> extends AbstractMap<K,V> implements PartitionedMap<K,V>, ClusterEndpoint {
+
+    private static final Log LOG = LogFactory.getLog(PartitionedClusteredMap.class);
+
+    /**
+     * Number of lock stripes, has to be a power of two.
+     */
+    private static final int STRIPES = 64;
+
+    // message types, every message continues with a request id (0 if no answer is expected)
+    private static final int GET = 0;
+    private static final int PUT = 1;
+    private static final int REMOVE = 2;
+    private static final int CLEAR = 3;
+    private static final int BACKUP_PUT = 4;
+    private static final int BACKUP_REMOVE = 5;
+    private static final int COUNT = 6;
+    private static final int ENTRIES = 7;
+    private static final int RESPONSE = 8;
+    private static final int SYNC = 9;
+    private static final int INVALIDATE = 10;
+    private static final int QUERY = 11;
+    private static final int QUERY_CLOSE = 12;
+    private static final int QUERY_CHANGE = 13;
+    private static final int HAND_OVER = 14;
+    private static final int UNHOSTED = 15;
+
+    private final ClusterContext context;
+    private final String name;
+    private final byte[] prefix;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final int copies;
+    private final long requestTimeout;
+
+    private final ConcurrentMap<K,Stored<V>> store = new ConcurrentHashMap<K,Stored<V>>();
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    // keys removed since the view change with their removal time, late hand-overs must not bring them back
+    private final ConcurrentMap<K,Long> removed = new ConcurrentHashMap<K,Long>();
+    private final long tombstoneRetention;
+    private volatile long nextPurge;
+    // the number of clears seen, hand-overs of fewer clears are outdated
+    private final AtomicLong clears = new AtomicLong();
+    private volatile ConsistentHash ring;
+    // members which announced the map, including this one; changes of the ring are made under its lock
+    private final Set<Address> hosts = Collections.newSetFromMap(new ConcurrentHashMap<Address,Boolean>());
+    private volatile View view;
+    // the ring of the last change the rebalancer handled, only used by the rebalancer thread
+    private ConsistentHash balanced;
+    private volatile boolean closed;
+
+    private final AtomicLong requestIds = new AtomicLong();
+    private final ConcurrentMap<Long,PendingRequest> pending = new ConcurrentHashMap<Long,PendingRequest>();
+
+    private final boolean nearCacheEnabled;
+    private final NearCache<K,V> nearCache;
+    // members which cache a key owned by us
+    private final ConcurrentMap<K,Set<Address>> readers = new ConcurrentHashMap<K,Set<Address>>();
+
+    private volatile ClusterUpdateCallback updateCallback = null;
+    private final OrderedExecutor callbacks;
+    private final OverflowPolicy callbackOverflow;
+    private final ClusterEvents<K,V> events = new ClusterEvents<K,V>();
+    // the continuous queries of this member by id
+    private final ConcurrentMap<Long,LiveQuery<K,V>> queries = new ConcurrentHashMap<Long,LiveQuery<K,V>>();
+    // the queries of all members, evaluated against the owned entries
+    private final List<Subscription<K,V>> subscriptions = new CopyOnWriteArrayList<Subscription<K,V>>();
+    private final Serializer<ClusterPredicate<? super K,? super V>> predicateSerializer = Serializers.javaSerializer();
+
+    public PartitionedClusteredMap(String clusterName, Channel channel,
+                                   Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                   ClusterConfiguration configuration) throws ChannelException {
+        this(new ClusterContext(clusterName, channel), clusterName, keySerializer, valueSerializer, configuration);
+    }
+
+    public PartitionedClusteredMap(ClusterContext context, String name,
+                                   Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                   ClusterConfiguration configuration) {
+        this.context = context;
+        this.name = name;
+        this.prefix = ClusterContext.encodeName(name);
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.copies = 1 + configuration.getBackupCount();
+        this.requestTimeout = configuration.getRequestTimeout(TimeUnit.MILLISECONDS);
+        this.tombstoneRetention = configuration.getTombstoneRetention(TimeUnit.MILLISECONDS);
+        this.nearCacheEnabled = configuration.getNearCacheSize() > 0;
+        this.nearCache = new NearCache<K,V>(configuration.getNearCacheSize(),
+                configuration.getNearCacheTimeToLive(TimeUnit.NANOSECONDS));
+        this.callbacks = configuration.getCallbackQueueSize() == 0 ? null
+                : new OrderedExecutor(name + " callbacks", configuration.getCallbackQueueSize());
+        this.callbackOverflow = configuration.getCallbackOverflowPolicy();
+        for (int n = 0; n < STRIPES; n++) {
+            locks[n] = new ReentrantLock();
+        }
+
+        // the other hosts are added once they answer the announcement
+        hosts.add(self());
+        view = context.getChannel().getView();
+        ring = new ConsistentHash(Collections.singletonList(self()));
+        balanced = ring;
+        context.register(name, this);
+
+        // let the other members hand over the entries we own now
+        sendSync(null, true);
+    }
+
+    @Override
+    public Channel getChannel() {
+        return context.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        updateCallback = callback;
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<K,V> listener) {
+        events.addListener(listener, null);
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<K,V> listener, ClusterEventFilter<? super K> filter) {
+        events.addListener(listener, filter);
+    }
+
+    @Override
+    public void removeEventListener(ClusterEventListener<K,V> listener) {
+        events.removeListener(listener);
+    }
+
+    /**
+     * Subscribes to the owners and collects their matching entries. Changes
+     * arriving meanwhile win over the collected entries.
+     */
+    @Override
+    public ContinuousQuery<K,V> addContinuousQuery(ClusterPredicate<? super K,? super V> predicate,
+                                                   ClusterEventListener<K,V> listener) {
+        final long id = requestIds.incrementAndGet();
+        final LiveQuery<K,V> query = new LiveQuery<K,V>(predicate, listener, new LiveQuery.Owner<K,V>() {
+            @Override
+            public void closed(LiveQuery<K,V> closed) {
+                closeQuery(id);
+            }
+        });
+        final byte[] data = encodeQuery(id, predicate);
+        query.beginFill();
+        queries.put(id, query);
+        try {
+            for (Map.Entry<K,V> match: subscribe(new Subscription<K,V>(self(), id, predicate), 0)) {
+                query.fill(match.getKey(), match.getValue());
+            }
+            for (DataInputStream response: request(null, QUERY, data)) {
+                final int count = Varints.readUnsignedInt(response);
+                for (int n = 0; n < count; n++) {
+                    query.fill(keySerializer.read(response), valueSerializer.read(response));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            query.endFill();
+        }
+        return query;
+    }
+
+    private void closeQuery(long id) {
+        queries.remove(id);
+        unsubscribe(self(), id);
+        final MessageOutput close = new MessageOutput(QUERY_CLOSE, 0);
+        try {
+            Varints.writeUnsignedLong(close, id);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        close.send(null);
+    }
+
+    private byte[] encodeQuery(long id, ClusterPredicate<? super K,? super V> predicate) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            Varints.writeUnsignedLong(out, id);
+            predicateSerializer.write(predicate, out);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("cannot serialize " + predicate, e);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Registers a query and answers with the matching owned entries. Both
+     * happen under all locks, so that the answer reaches the subscriber
+     * before the first change.
+     *
+     * @param requestId the request to answer, 0 for no answer
+     * @return the matching owned entries
+     */
+    private List<Map.Entry<K,V>> subscribe(Subscription<K,V> subscription, long requestId) throws IOException {
+        final List<Map.Entry<K,V>> matches = new ArrayList<Map.Entry<K,V>>();
+        lockAll();
+        try {
+            unsubscribe(subscription.subscriber, subscription.id);
+            subscriptions.add(subscription);
+            for (Map.Entry<K,Stored<V>> entry: ownedEntries()) {
+                if (LiveQuery.matches(subscription.predicate, entry.getKey(), entry.getValue().value)) {
+                    matches.add(new SimpleImmutableEntry<K,V>(entry.getKey(), entry.getValue().value));
+                }
+            }
+            if (requestId != 0) {
+                final MessageOutput response = new MessageOutput(RESPONSE, requestId);
+                Varints.writeUnsignedInt(response, matches.size());
+                for (Map.Entry<K,V> match: matches) {
+                    keySerializer.write(match.getKey(), response);
+                    valueSerializer.write(match.getValue(), response);
+                }
+                response.send(subscription.subscriber);
+            }
+        } finally {
+            unlockAll();
+        }
+        return matches;
+    }
+
+    private void unsubscribe(Address subscriber) {
+        for (Subscription<K,V> subscription: subscriptions) {
+            if (subscription.subscriber.equals(subscriber)) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    private void unsubscribe(Address subscriber, long id) {
+        for (Subscription<K,V> subscription: subscriptions) {
+            if (subscription.id == id && subscription.subscriber.equals(subscriber)) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the queries for a write of an owned entry. The caller has to
+     * hold the lock of the key, so that the changes of a key reach the
+     * subscribers in order.
+     *
+     * @param previous the previous value, {@code null} if there was none
+     * @param value the new value, {@code null} for a removal
+     * @return the delivery of the changed local results, {@code null} if there are none
+     */
+    private Runnable publish(K key, V previous, V value) {
+        if (subscriptions.isEmpty()) {
+            return null;
+        }
+        final Address self = self();
+        final List<LiveQuery<K,V>> changed = new ArrayList<LiveQuery<K,V>>(1);
+        final List<ClusterEvent<K,V>> changes = new ArrayList<ClusterEvent<K,V>>(1);
+        try {
+            for (Subscription<K,V> subscription: subscriptions) {
+                final boolean matched = LiveQuery.matches(subscription.predicate, key, previous);
+                final boolean matches = LiveQuery.matches(subscription.predicate, key, value);
+                if (!matched && !matches) {
+                    continue;
+                }
+                if (subscription.subscriber.equals(self)) {
+                    final LiveQuery<K,V> query = queries.get(subscription.id);
+                    final ClusterEvent<K,V> event = query == null ? null
+                            : matches ? query.matched(key, value, self, 0) : query.left(key, self, 0);
+                    if (event != null) {
+                        changed.add(query);
+                        changes.add(event);
+                    }
+                } else {
+                    final MessageOutput change = new MessageOutput(QUERY_CHANGE, 0);
+                    Varints.writeUnsignedLong(change, subscription.id);
+                    keySerializer.write(key, change);
+                    change.writeBoolean(matches);
+                    if (matches) {
+                        valueSerializer.write(value, change);
+                    }
+                    change.send(subscription.subscriber);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        if (changed.isEmpty()) {
+            return null;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (int n = 0; n < changed.size(); n++) {
+                    changed.get(n).deliver(Collections.singletonList(changes.get(n)));
+                }
+            }
+        };
+    }
+
+    /**
+     * Empties the results of the local queries after the map was cleared.
+     */
+    private Runnable clearQueries(Address origin) {
+        if (queries.isEmpty()) {
+            return null;
+        }
+        final Map<LiveQuery<K,V>,List<ClusterEvent<K,V>>> cleared = new HashMap<LiveQuery<K,V>,List<ClusterEvent<K,V>>>();
+        for (LiveQuery<K,V> query: queries.values()) {
+            final List<ClusterEvent<K,V>> removed = new ArrayList<ClusterEvent<K,V>>();
+            query.cleared(removed, origin, 0);
+            cleared.put(query, removed);
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<LiveQuery<K,V>,List<ClusterEvent<K,V>>> entry: cleared.entrySet()) {
+                    entry.getKey().deliver(entry.getValue());
+                }
+            }
+        };
+    }
+
+    private static <K,V> Runnable deliveryOf(final LiveQuery<K,V> query, final ClusterEvent<K,V> event) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                query.deliver(Collections.singletonList(event));
+            }
+        };
+    }
+
+    /**
+     * Delivers events on the callback executor, if there is one.
+     */
+    private void dispatch(Runnable delivery) {
+        if (delivery == null) {
+            return;
+        }
+        if (callbacks == null) {
+            delivery.run();
+        } else {
+            // events must not get lost, so they ignore the overflow policy
+            callbacks.execute(delivery);
+        }
+    }
+
+    @Override
+    public NearCacheStatistics getNearCacheStatistics() {
+        return nearCache;
+    }
+
+    /**
+     * @param key the key
+     * @return whether this member stores the key, as owner or as backup
+     */
+    boolean holds(Object key) {
+        return store.containsKey(key);
+    }
+
+    /**
+     * @return the members the entries are spread over
+     */
+    List<Address> getMembers() {
+        return ring.getMembers();
+    }
+
+    private Address self() {
+        return context.getChannel().getAddress();
+    }
+
+    private ReentrantLock lockFor(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return locks[hash & (STRIPES - 1)];
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock: locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int n = STRIPES - 1; n >= 0; n--) {
+            locks[n].unlock();
+        }
+    }
+
+    private void notifyCallback() {
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback == null) {
+            return;
+        }
+        if (callbacks == null) {
+            callback.clusterUpdated();
+            return;
+        }
+        final boolean queued = callbacks.submit(new Runnable() {
+            @Override
+            public void run() {
+                callback.clusterUpdated();
+            }
+        }, callbackOverflow);
+        if (!queued && LOG.isTraceEnabled())
+            LOG.trace("discarding callback of " + name);
+    }
+
+    private void report(K key, V previous, V value) {
+        if ((previous != null || value != null) && events.isObserved(key)) {
+            final ClusterEvent.Type type;
+            if (value == null) {
+                type = ClusterEvent.Type.REMOVED;
+            } else if (previous == null) {
+                type = ClusterEvent.Type.ADDED;
+            } else {
+                type = ClusterEvent.Type.UPDATED;
+            }
+            events.add(type, key, previous, value);
+        }
+    }
+
+    @Override
+    public V get(Object key) {
+        @SuppressWarnings("unchecked")
+        final K typedKey = (K) key;
+        final byte[] keyBytes = encode(typedKey, null);
+        final List<Address> owners = ring.getOwners(ConsistentHash.hash(keyBytes, 0, keyBytes.length), copies);
+        if (owners.isEmpty() || owners.contains(self())) {
+            return valueOf(store.get(key));
+        }
+        if (!nearCacheEnabled) {
+            return readValue(request(owners.get(0), GET, keyBytes).get(0));
+        }
+
+        final V cached = nearCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final long version = nearCache.getVersion(key);
+        final byte[] data = Arrays.copyOf(keyBytes, keyBytes.length + 1);
+        data[keyBytes.length] = 1;
+        final V value = readValue(request(owners.get(0), GET, data).get(0));
+        nearCache.put(typedKey, value, version);
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        final byte[] keyBytes = encode(key, null);
+        final byte[] entry = encode(key, value);
+        final int hash = ConsistentHash.hash(keyBytes, 0, keyBytes.length);
+        final List<Address> owners = ring.getOwners(hash, copies);
+        if (owners.isEmpty() || owners.get(0).equals(self())) {
+            return applyPut(key, value, hash, entry, 0, entry.length, owners);
+        }
+        if (nearCacheEnabled) {
+            nearCache.invalidate(key);
+        }
+        return readValue(request(owners.get(0), PUT, entry).get(0));
+    }
+
+    @Override
+    public V remove(Object key) {
+        @SuppressWarnings("unchecked")
+        final K typedKey = (K) key;
+        final byte[] keyBytes = encode(typedKey, null);
+        final int hash = ConsistentHash.hash(keyBytes, 0, keyBytes.length);
+        final List<Address> owners = ring.getOwners(hash, copies);
+        if (owners.isEmpty() || owners.get(0).equals(self())) {
+            return applyRemove(typedKey, keyBytes, 0, keyBytes.length, owners);
+        }
+        if (nearCacheEnabled) {
+            nearCache.invalidate(key);
+        }
+        return readValue(request(owners.get(0), REMOVE, keyBytes).get(0));
+    }
+
+    @Override
+    public ReplicationFuture<V> putAsync(K key, V value) {
+        return putAsync(key, value, ReplicationLevel.SENT);
+    }
+
+    /**
+     * The previous value is only known to the owner, so the future completes
+     * with the owner's answer for every level; the owner updates the backups
+     * on its own.
+     */
+    @Override
+    public ReplicationFuture<V> putAsync(K key, V value, ReplicationLevel level) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        final byte[] keyBytes = encode(key, null);
+        final byte[] entry = encode(key, value);
+        final int hash = ConsistentHash.hash(keyBytes, 0, keyBytes.length);
+        final List<Address> owners = ring.getOwners(hash, copies);
+        if (owners.isEmpty() || owners.get(0).equals(self())) {
+            return SettableReplicationFuture.completed(applyPut(key, value, hash, entry, 0, entry.length, owners));
+        }
+        if (nearCacheEnabled) {
+            nearCache.invalidate(key);
+        }
+        return requestAsync(owners.get(0), PUT, entry);
+    }
+
+    @Override
+    public ReplicationFuture<V> removeAsync(Object key) {
+        return removeAsync(key, ReplicationLevel.SENT);
+    }
+
+    /**
+     * Completes with the owner's answer for every level, see
+     * {@link #putAsync(Object, Object, ReplicationLevel)}.
+     */
+    @Override
+    public ReplicationFuture<V> removeAsync(Object key, ReplicationLevel level) {
+        @SuppressWarnings("unchecked")
+        final K typedKey = (K) key;
+        final byte[] keyBytes = encode(typedKey, null);
+        final int hash = ConsistentHash.hash(keyBytes, 0, keyBytes.length);
+        final List<Address> owners = ring.getOwners(hash, copies);
+        if (owners.isEmpty() || owners.get(0).equals(self())) {
+            return SettableReplicationFuture.completed(applyRemove(typedKey, keyBytes, 0, keyBytes.length, owners));
+        }
+        if (nearCacheEnabled) {
+            nearCache.invalidate(key);
+        }
+        return requestAsync(owners.get(0), REMOVE, keyBytes);
+    }
+
+    @Override
+    public void clear() {
+        final MessageOutput message = new MessageOutput(CLEAR, 0);
+        try {
+            Varints.writeUnsignedLong(message, clears.incrementAndGet());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        message.send(null);
+        clearStore();
+        readers.clear();
+        nearCache.clear();
+        dispatch(clearQueries(self()));
+    }
+
+    /**
+     * Drops all entries, excluding concurrent hand-overs which checked the
+     * clears before.
+     */
+    private void clearStore() {
+        lockAll();
+        try {
+            store.clear();
+            removed.clear();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Catches up with the clears another member has seen.
+     *
+     * @param seen the number of clears seen by the other member
+     */
+    private void advanceClears(long seen) {
+        long current = clears.get();
+        while (current < seen && !clears.compareAndSet(current, seen)) {
+            current = clears.get();
+        }
+    }
+
+    /**
+     * Announces the map to other members, or answers an announcement, and
+     * tells them the clears seen here.
+     *
+     * @param target the member to answer or {@code null} to announce the map
+     * @param announce whether this member just created the map
+     */
+    private void sendSync(Address target, boolean announce) {
+        final MessageOutput message = new MessageOutput(SYNC, 0);
+        try {
+            Varints.writeUnsignedLong(message, clears.get());
+            message.writeBoolean(announce);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        message.send(target);
+    }
+
+    @Override
+    public int size() {
+        int size = ownedEntries().size();
+        for (DataInputStream response: request(null, COUNT, new byte[0])) {
+            try {
+                size += Varints.readUnsignedInt(response);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public Set<Entry<K,V>> entrySet() {
+        final Map<K,V> snapshot = new HashMap<K,V>();
+        for (Map.Entry<K,Stored<V>> entry: ownedEntries()) {
+            snapshot.put(entry.getKey(), entry.getValue().value);
+        }
+        try {
+            for (DataInputStream response: request(null, ENTRIES, new byte[0])) {
+                final int count = Varints.readUnsignedInt(response);
+                for (int n = 0; n < count; n++) {
+                    final K key = keySerializer.read(response);
+                    snapshot.put(key, valueSerializer.read(response));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+
+        return new AbstractSet<Entry<K,V>>() {
+            @Override
+            public Iterator<Entry<K,V>> iterator() {
+                final Iterator<Entry<K,V>> iterator = snapshot.entrySet().iterator();
+                return new Iterator<Entry<K,V>>() {
+                    private Entry<K,V> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K,V> next() {
+                        final Entry<K,V> next = iterator.next();
+                        current = next;
+                        return new SimpleEntry<K,V>(next) {
+                            @Override
+                            public V setValue(V value) {
+                                super.setValue(value);
+                                return put(next.getKey(), value);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (current == null) {
+                            throw new IllegalStateException();
+                        }
+                        iterator.remove();
+                        PartitionedClusteredMap.this.remove(current.getKey());
+                        current = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return snapshot.size();
+            }
+        };
+    }
+
+    /**
+     * Applies a write as owner and forwards it to the backups.
+     */
+    private V applyPut(K key, V value, int hash, byte[] entry, int offset, int length, List<Address> owners) {
+        final V previous;
+        final Runnable changes;
+        final ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            previous = valueOf(store.put(key, new Stored<V>(hash, value)));
+            forward(BACKUP_PUT, entry, offset, length, owners);
+            invalidateReaders(key, entry, offset, length);
+            changes = publish(key, previous, value);
+        } finally {
+            lock.unlock();
+        }
+        dispatch(changes);
+        return previous;
+    }
+
+    /**
+     * Applies a removal as owner and forwards it to the backups.
+     */
+    private V applyRemove(K key, byte[] keyBytes, int offset, int length, List<Address> owners) {
+        final V previous;
+        Runnable changes = null;
+        final ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            previous = valueOf(store.remove(key));
+            entombed(key);
+            // the backups may still wait for the key to be handed over
+            forward(BACKUP_REMOVE, keyBytes, offset, length, owners);
+            if (previous != null) {
+                invalidateReaders(key, keyBytes, offset, length);
+                changes = publish(key, previous, null);
+            }
+        } finally {
+            lock.unlock();
+        }
+        dispatch(changes);
+        return previous;
+    }
+
+    /**
+     * Applies a backup copy of a write forwarded by the owner.
+     */
+    private V applyBackupPut(K key, int hash, V value) {
+        final ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            return valueOf(store.put(key, new Stored<V>(hash, value)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies a backup copy of a removal forwarded by the owner.
+     */
+    private V applyBackupRemove(K key) {
+        final ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            final V previous = valueOf(store.remove(key));
+            entombed(key);
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores an entry handed over by its previous holder, unless a write
+     * applied here meanwhile supersedes it.
+     *
+     * @param key the key
+     * @param hash the hash of the serialized key
+     * @param value the handed over value
+     * @param seenClears the clears the previous holder had seen when handing the entry over
+     * @return whether the entry was stored
+     */
+    boolean acceptHandOver(K key, int hash, V value, long seenClears) {
+        advanceClears(seenClears);
+        final Runnable changes;
+        final ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (seenClears < clears.get() || removed.containsKey(key)
+                    || store.putIfAbsent(key, new Stored<V>(hash, value)) != null) {
+                return false;
+            }
+            changes = publish(key, null, value);
+        } finally {
+            lock.unlock();
+        }
+        dispatch(changes);
+        return true;
+    }
+
+    /**
+     * Remembers a removed key and purges expired ones. The caller has to hold
+     * the lock of the key.
+     */
+    private void entombed(K key) {
+        final long now = System.currentTimeMillis();
+        removed.put(key, now);
+        if (now >= nextPurge) {
+            nextPurge = now + tombstoneRetention / 2;
+            final Iterator<Long> iterator = removed.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() < now - tombstoneRetention) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void forward(int type, byte[] data, int offset, int length, List<Address> owners) {
+        final Address self = self();
+        for (Address owner: owners) {
+            if (!owner.equals(self)) {
+                send(owner, type, 0, data, offset, length);
+            }
+        }
+    }
+
+    /**
+     * Tells all members which fetched a key that it changed. They have to
+     * fetch it again to get notified again.
+     *
+     * @param key the changed key
+     * @param data the buffer starting with the serialized key
+     * @param offset the offset of the serialized key
+     * @param length the length of the serialized key and anything behind it
+     */
+    private void invalidateReaders(K key, byte[] data, int offset, int length) {
+        final Set<Address> members = readers.remove(key);
+        if (members != null) {
+            for (Address member: members) {
+                send(member, INVALIDATE, 0, data, offset, length);
+            }
+        }
+    }
+
+    private void addReader(K key, Address member) {
+        Set<Address> members = readers.get(key);
+        if (members == null) {
+            final Set<Address> created = Collections.newSetFromMap(new ConcurrentHashMap<Address, Boolean>());
+            members = readers.putIfAbsent(key, created);
+            if (members == null) {
+                members = created;
+            }
+        }
+        members.add(member);
+    }
+
+    /**
+     * @return the local entries this member owns
+     */
+    private List<Map.Entry<K,Stored<V>>> ownedEntries() {
+        final ConsistentHash current = ring;
+        final Address self = self();
+        final List<Map.Entry<K,Stored<V>>> owned = new ArrayList<Map.Entry<K,Stored<V>>>();
+        for (Map.Entry<K,Stored<V>> entry: store.entrySet()) {
+            final Address owner = current.getOwner(entry.getValue().hash);
+            if (owner == null || owner.equals(self)) {
+                owned.add(entry);
+            }
+        }
+        return owned;
+    }
+
+    @Override
+    public void receive(final Address source, byte[] buffer, int offset, int length) {
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(buffer, offset, length);
+        final DataInputStream in = new DataInputStream(bytes);
+        final int end = offset + length;
+        boolean recording = false;
+        Runnable delivery = null;
+        try {
+            final int type = in.readUnsignedByte();
+            final long requestId = Varints.readUnsignedLong(in);
+            if (LOG.isTraceEnabled())
+                LOG.trace("receive(" + source + ", " + type + ", " + requestId + ")");
+            final int dataOffset = end - bytes.available();
+            // only changes of the entries stored here, owned or backed up, are reported
+            recording = (type >= PUT && type <= BACKUP_REMOVE || type == HAND_OVER) && events.hasListeners();
+            if (recording) {
+                events.begin(source, requestId);
+            }
+            switch (type) {
+                case RESPONSE:
+                    final PendingRequest request = pending.get(requestId);
+                    if (request != null) {
+                        request.complete(in);
+                    }
+                    break;
+                case GET:
+                    final K getKey = keySerializer.read(in);
+                    final V getValue = valueOf(store.get(getKey));
+                    if (getValue != null && bytes.available() > 0 && in.readBoolean()) {
+                        // the reader caches the value now
+                        addReader(getKey, source);
+                    }
+                    respondValue(source, requestId, getValue);
+                    break;
+                case PUT:
+                    final K putKey = keySerializer.read(in);
+                    final int putHash = ConsistentHash.hash(buffer, dataOffset, end - bytes.available() - dataOffset);
+                    final V putValue = valueSerializer.read(in);
+                    final List<Address> putOwners = ring.getOwners(putHash, copies);
+                    final V putPrevious = applyPut(putKey, putValue, putHash,
+                            buffer, dataOffset, end - dataOffset, putOwners);
+                    if (!putOwners.contains(self())) {
+                        dropIfForeign(putKey);
+                    }
+                    report(putKey, putPrevious, putValue);
+                    respondValue(source, requestId, putPrevious);
+                    notifyCallback();
+                    break;
+                case REMOVE:
+                    final K removeKey = keySerializer.read(in);
+                    final List<Address> owners = ring.getOwners(ConsistentHash.hash(buffer, dataOffset, end - dataOffset), copies);
+                    final V removePrevious = applyRemove(removeKey, buffer, dataOffset, end - dataOffset, owners);
+                    report(removeKey, removePrevious, null);
+                    respondValue(source, requestId, removePrevious);
+                    notifyCallback();
+                    break;
+                case CLEAR:
+                    // entries handed over before the clear are outdated from now on
+                    advanceClears(Varints.readUnsignedLong(in));
+                    clearStore();
+                    readers.clear();
+                    nearCache.clear();
+                    if (events.isObserved(null)) {
+                        events.add(ClusterEvent.Type.CLEARED, null, null, null);
+                    }
+                    dispatch(clearQueries(source));
+                    notifyCallback();
+                    break;
+                case BACKUP_PUT:
+                    final K backupKey = keySerializer.read(in);
+                    final int backupHash = ConsistentHash.hash(buffer, dataOffset, end - bytes.available() - dataOffset);
+                    final V backupValue = valueSerializer.read(in);
+                    final V backupPrevious = applyBackupPut(backupKey, backupHash, backupValue);
+                    if (!ring.getOwners(backupHash, copies).contains(self())) {
+                        dropIfForeign(backupKey);
+                    }
+                    report(backupKey, backupPrevious, backupValue);
+                    notifyCallback();
+                    break;
+                case BACKUP_REMOVE:
+                    final K backupRemoveKey = keySerializer.read(in);
+                    report(backupRemoveKey, applyBackupRemove(backupRemoveKey), null);
+                    notifyCallback();
+                    break;
+                case HAND_OVER:
+                    final long seenClears = Varints.readUnsignedLong(in);
+                    final int handedOffset = end - bytes.available();
+                    final K handedKey = keySerializer.read(in);
+                    final int handedHash = ConsistentHash.hash(buffer, handedOffset, end - bytes.available() - handedOffset);
+                    final V handedValue = valueSerializer.read(in);
+                    if (acceptHandOver(handedKey, handedHash, handedValue, seenClears)) {
+                        if (!ring.getOwners(handedHash, copies).contains(self())) {
+                            dropIfForeign(handedKey);
+                        }
+                        report(handedKey, null, handedValue);
+                        notifyCallback();
+                    }
+                    break;
+                case INVALIDATE:
+                    nearCache.invalidate(keySerializer.read(in));
+                    break;
+                case SYNC:
+                    advanceClears(Varints.readUnsignedLong(in));
+                    if (in.readBoolean()) {
+                        sendSync(source, false);
+                        // the new member evaluates our queries once it owns entries
+                        for (Map.Entry<Long,LiveQuery<K,V>> query: queries.entrySet()) {
+                            final byte[] announcement = encodeQuery(query.getKey(), query.getValue().getPredicate());
+                            send(source, QUERY, 0, announcement, 0, announcement.length);
+                        }
+                    }
+                    // an announcement or the answer to ours
+                    hosts.add(source);
+                    updateRing();
+                    break;
+                case UNHOSTED:
+                    unsubscribe(source);
+                    if (hosts.remove(source)) {
+                        updateRing();
+                    }
+                    break;
+                case QUERY:
+                    final long queryId = Varints.readUnsignedLong(in);
+                    subscribe(new Subscription<K,V>(source, queryId, predicateSerializer.read(in)), requestId);
+                    break;
+                case QUERY_CLOSE:
+                    unsubscribe(source, Varints.readUnsignedLong(in));
+                    break;
+                case QUERY_CHANGE:
+                    final LiveQuery<K,V> query = queries.get(Varints.readUnsignedLong(in));
+                    final K changedKey = keySerializer.read(in);
+                    final V changedValue = in.readBoolean() ? valueSerializer.read(in) : null;
+                    if (query != null) {
+                        final ClusterEvent<K,V> change = changedValue != null
+                                ? query.matched(changedKey, changedValue, source, 0)
+                                : query.left(changedKey, source, 0);
+                        if (change != null) {
+                            delivery = deliveryOf(query, change);
+                        }
+                    }
+                    break;
+                case COUNT:
+                    final MessageOutput count = new MessageOutput(RESPONSE, requestId);
+                    Varints.writeUnsignedInt(count, ownedEntries().size());
+                    count.send(source);
+                    break;
+                case ENTRIES:
+                    final List<Map.Entry<K,Stored<V>>> owned = ownedEntries();
+                    final MessageOutput entries = new MessageOutput(RESPONSE, requestId);
+                    Varints.writeUnsignedInt(entries, owned.size());
+                    for (Map.Entry<K,Stored<V>> entry: owned) {
+                        keySerializer.write(entry.getKey(), entries);
+                        valueSerializer.write(entry.getValue().value, entries);
+                    }
+                    entries.send(source);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown message type " + type);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            if (recording) {
+                delivery = events.end();
+            }
+        }
+        dispatch(delivery);
+    }
+
+    private void respondValue(Address target, long requestId, V value) throws IOException {
+        final MessageOutput response = new MessageOutput(RESPONSE, requestId);
+        response.writeBoolean(value != null);
+        if (value != null) {
+            valueSerializer.write(value, response);
+        }
+        response.send(target);
+    }
+
+    private V readValue(DataInputStream response) {
+        try {
+            return response.readBoolean() ? valueSerializer.read(response) : null;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Sends a request and waits for the answers.
+     *
+     * @param target the member to ask, {@code null} for all other members
+     * @param type the message type
+     * @param data the arguments
+     * @return the answers
+     */
+    private List<DataInputStream> request(Address target, int type, byte[] data) {
+        checkOpen();
+        final int expected = target != null ? 1 : ring.getMembers().size() - (ring.getMembers().contains(self()) ? 1 : 0);
+        if (expected == 0) {
+            return Collections.emptyList();
+        }
+        final long requestId = requestIds.incrementAndGet();
+        final PendingRequest request = new PendingRequest(expected);
+        pending.put(requestId, request);
+        try {
+            send(target, type, requestId, data, 0, data.length);
+            return request.await(requestTimeout);
+        } finally {
+            pending.remove(requestId);
+        }
+    }
+
+    /**
+     * Sends a request to a single member without waiting for the answer.
+     *
+     * @param target the member to ask
+     * @param type the message type
+     * @param data the arguments
+     * @return the future of the value the member answers with
+     */
+    private ReplicationFuture<V> requestAsync(Address target, int type, byte[] data) {
+        checkOpen();
+        final long requestId = requestIds.incrementAndGet();
+        final SettableReplicationFuture<V> future = new SettableReplicationFuture<V>(null);
+        final PendingRequest request = new PendingRequest(1);
+        request.onComplete(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(requestId) != null) {
+                    try {
+                        future.succeed(readValue(request.first()));
+                    /* CHECKSTYLE:OFF */
+                    } catch (RuntimeException e) {
+                    /* CHECKSTYLE:ON */
+                        future.fail(e);
+                    }
+                }
+            }
+        });
+        pending.put(requestId, request);
+        ClusterManager.Scheduler.INSTANCE.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(requestId) != null) {
+                    future.fail(new IllegalStateException("no response within " + requestTimeout + "ms"));
+                }
+            }
+        }, requestTimeout, TimeUnit.MILLISECONDS);
+        try {
+            send(target, type, requestId, data, 0, data.length);
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            pending.remove(requestId);
+            future.fail(e);
+        }
+        return future;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException(name + " is closed");
+        }
+    }
+
+    private void send(Address target, int type, long requestId, byte[] data, int offset, int length) {
+        final MessageOutput message = new MessageOutput(type, requestId);
+        try {
+            message.write(data, offset, length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        message.send(target);
+    }
+
+    /**
+     * Serializes a key and optionally a value.
+     */
+    private byte[] encode(K key, V value) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            keySerializer.write(key, out);
+            if (value != null) {
+                valueSerializer.write(value, out);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static <V> V valueOf(Stored<V> stored) {
+        return stored == null ? null : stored.value;
+    }
+
+    @Override
+    public boolean receivesOwnMessages() {
+        return false;
+    }
+
+    /**
+     * Announces that this member stops hosting the map, so that the others
+     * rebalance without it. Pending and later requests fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            new MessageOutput(UNHOSTED, 0).send(null);
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            LOG.debug("cannot announce the close of " + name, e);
+        }
+        final IllegalStateException failure = new IllegalStateException(name + " is closed");
+        for (PendingRequest request: pending.values()) {
+            request.fail(failure);
+        }
+    }
+
+    @Override
+    public void viewAccepted(View view) {
+        this.view = view;
+        hosts.retainAll(view.getMembers());
+        for (Subscription<K,V> subscription: subscriptions) {
+            if (!view.getMembers().contains(subscription.subscriber)) {
+                subscriptions.remove(subscription);
+            }
+        }
+        updateRing();
+        if (view instanceof MergeView) {
+            // the hosts of the other partitions never heard of us
+            sendSync(null, true);
+        }
+    }
+
+    /**
+     * Spreads the entries over the members of the current view which host
+     * the map. If that changes the ring, the entries are handed over in the
+     * background.
+     */
+    private void updateRing() {
+        synchronized (hosts) {
+            final View current = view;
+            final List<Address> members = new ArrayList<Address>();
+            if (current != null) {
+                for (Address member: current.getMembers()) {
+                    if (hosts.contains(member)) {
+                        members.add(member);
+                    }
+                }
+            }
+            if (members.isEmpty()) {
+                members.add(self());
+            }
+            final ConsistentHash previous = ring;
+            if (members.equals(previous.getMembers())) {
+                return;
+            }
+            final ConsistentHash next = new ConsistentHash(members);
+            ring = next;
+            readers.clear();
+            nearCache.clear();
+            // only hand-overs made before this change can be outdated by the removals
+            removed.clear();
+            rebalance(new Runnable() {
+                @Override
+                public void run() {
+                    handOver(previous, next);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs a rebalancing step on the shared rebalancer thread, so that all
+     * steps run one after another.
+     *
+     * @param step the step
+     */
+    private void rebalance(final Runnable step) {
+        Rebalancer.INSTANCE.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    step.run();
+                /* CHECKSTYLE:OFF */
+                } catch (RuntimeException e) {
+                /* CHECKSTYLE:ON */
+                    LOG.error("cannot rebalance " + name, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands the entries this member is responsible for to the members which
+     * became owners with a change of the ring.
+     *
+     * @param previous the ring before the change
+     * @param next the ring after the change
+     */
+    private void handOver(ConsistentHash previous, ConsistentHash next) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("handOver(" + name + ", " + next + ")");
+        balanced = next;
+
+        final Address self = self();
+        for (K key: store.keySet()) {
+            // read the clears first, so that a clear in between outdates the entry
+            final long seen = clears.get();
+            final Stored<V> stored = store.get(key);
+            if (stored == null) {
+                continue;
+            }
+            final List<Address> oldOwners = previous.getOwners(stored.hash, copies);
+
+            // the first surviving old owner hands the entry over
+            Address responsible = self;
+            for (Address owner: oldOwners) {
+                if (next.getMembers().contains(owner)) {
+                    responsible = owner;
+                    break;
+                }
+            }
+            if (responsible.equals(self)) {
+                byte[] data = null;
+                for (Address owner: next.getOwners(stored.hash, copies)) {
+                    if (!owner.equals(self) && !oldOwners.contains(owner)) {
+                        if (data == null) {
+                            data = encode(key, stored.value);
+                        }
+                        sendHandOver(owner, seen, data);
+                    }
+                }
+            }
+        }
+        dropForeignEntries(next);
+    }
+
+    /**
+     * Sends an entry to a member which became one of its holders.
+     *
+     * @param target the new holder
+     * @param seenClears the clears seen before the entry was read
+     * @param data the serialized key and value
+     */
+    private void sendHandOver(Address target, long seenClears, byte[] data) {
+        final MessageOutput message = new MessageOutput(HAND_OVER, 0);
+        try {
+            Varints.writeUnsignedLong(message, seenClears);
+            message.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        message.send(target);
+    }
+
+    /**
+     * Drops the entries this member does not hold anymore.
+     *
+     * @param current the current ring
+     */
+    private void dropForeignEntries(ConsistentHash current) {
+        for (Map.Entry<K,Stored<V>> entry: store.entrySet()) {
+            if (!isHolder(current, entry.getValue().hash)) {
+                store.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drops a copy which was written or handed over with an outdated ring
+     * after the rebalancer handled the view change already. The check waits
+     * for the request timeout, as this member may be the one which did not
+     * see the view change yet; it keeps the copy while the last handled ring
+     * still places it here, then the pending view change takes care of it.
+     *
+     * @param key the written key
+     */
+    private void dropIfForeign(final K key) {
+        final Runnable check = new Runnable() {
+            @Override
+            public void run() {
+                final Stored<V> stored = store.get(key);
+                if (stored != null && !isHolder(balanced, stored.hash) && !isHolder(ring, stored.hash)) {
+                    store.remove(key, stored);
+                }
+            }
+        };
+        ClusterManager.Scheduler.INSTANCE.schedule(new Runnable() {
+            @Override
+            public void run() {
+                rebalance(check);
+            }
+        }, requestTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return whether this member holds the entry in the ring
+     */
+    private boolean isHolder(ConsistentHash current, int hash) {
+        return current.getOwners(hash, copies).contains(self());
+    }
+
+    @Override
+    public void requestState(Address target) {
+        // entries are handed over on view changes
+    }
+
+    @Override
+    public byte[] getState(String versions) {
+        return null;
+    }
+
+    @Override
+    public void setState(byte[] state) {
+    }
+
+    @Override
+    public void getState(String versions, OutputStream ostream) {
+        ClusterManager.close(ostream);
+    }
+
+    @Override
+    public void setState(InputStream istream) {
+        ClusterManager.close(istream);
+    }
+
+    @Override
+    public String toString() {
+        return "PartitionedClusteredMap{" +
+                "name=" + name +
+                ", localSize=" + store.size() +
+                ", ring=" + ring +
+                (nearCacheEnabled ? ", nearCache=" + nearCache : "") +
+                '}';
+    }
+
+    /**
+     * A query of a member, evaluated against the entries owned here.
+     */
+    private static final class Subscription<K,V> {
+        final Address subscriber;
+        final long id;
+        final ClusterPredicate<? super K,? super V> predicate;
+
+        Subscription(Address subscriber, long id, ClusterPredicate<? super K,? super V> predicate) {
+            this.subscriber = subscriber;
+            this.id = id;
+            this.predicate = predicate;
+        }
+    }
+
+    /**
+     * A local copy of an entry together with the hash of its serialized key.
+     */
+    private static final class Stored<V> {
+        final int hash;
+        final V value;
+
+        Stored(int hash, V value) {
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Collects the answers to a request.
+     */
+    private static final class PendingRequest {
+        private final CountDownLatch latch;
+        private final List<DataInputStream> responses;
+        private Runnable listener;
+        private RuntimeException failure;
+
+        PendingRequest(int expected) {
+            latch = new CountDownLatch(expected);
+            responses = new ArrayList<DataInputStream>(expected);
+        }
+
+        /**
+         * Sets a listener which runs once all answers arrived, has to be set
+         * before the request is sent.
+         */
+        void onComplete(Runnable completed) {
+            listener = completed;
+        }
+
+        void complete(DataInputStream response) {
+            synchronized (responses) {
+                responses.add(response);
+            }
+            latch.countDown();
+            if (listener != null && latch.getCount() == 0) {
+                listener.run();
+            }
+        }
+
+        /**
+         * Completes the request without waiting for the missing answers.
+         */
+        void fail(RuntimeException cause) {
+            synchronized (responses) {
+                failure = cause;
+            }
+            while (latch.getCount() > 0) {
+                latch.countDown();
+            }
+            if (listener != null) {
+                listener.run();
+            }
+        }
+
+        DataInputStream first() {
+            synchronized (responses) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return responses.get(0);
+            }
+        }
+
+        List<DataInputStream> await(long timeout) {
+            try {
+                if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("no response within " + timeout + "ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            synchronized (responses) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return new ArrayList<DataInputStream>(responses);
+            }
+        }
+    }
+
+    /**
+     * Builds a message with the collection name, type and request id in front.
+     */
+    private final class MessageOutput extends DataOutputStream {
+
+        MessageOutput(int type, long requestId) {
+            super(new ByteArrayOutputStream(64));
+            try {
+                write(prefix);
+                writeByte(type);
+                Varints.writeUnsignedLong(this, requestId);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void send(Address target) {
+            final byte[] message = ((ByteArrayOutputStream) out).toByteArray();
+            context.send(target, message, 0, message.length);
+        }
+    }
+
+    /**
+     * Lazily creates the single thread which rebalances the entries of all
+     * instances.
+     */
+    private static final class Rebalancer {
+        static final ExecutorService INSTANCE = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "PartitionedClusteredMap-Rebalancer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * A {@link ClusteredMap} which spreads its entries over the cluster members.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> generic key type
+ * @param <V> generic value type
+ * @see ClusteredCollections#newPartitionedClusteredMap(ClusterContext, String)
+ */
+public interface PartitionedMap<K, V> extends ClusteredMap<K, V> {
+
+    /**
+     * Provides the counters of the near cache, which keeps values owned by
+     * other members locally.
+     *
+     * @return the near cache counters
+     */
+    NearCacheStatistics getNearCacheStatistics();
+
+}
@@ -0,0 +1,631 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a copy of a collection on the local disk, so that a restarted member
+ * only has to fetch the updates it missed instead of the complete state.
+ *
+ * <p>
+ * The directory contains a snapshot and a sequence of logs, numbered by a
+ * generation. Every applied update message is appended to the current log,
+ * framed by its length and checksum. Once a log holds
+ * {@link ClusterConfiguration#getSnapshotInterval()} messages, a new
+ * generation is started and a snapshot of the collection is written in the
+ * background through a memory mapped file; it replaces the older snapshot
+ * and logs. Recovering reads the snapshot and replays the logs of its
+ * generation and later ones, up to the first incomplete message.
+ * </p>
+ *
+ * <p>
+ * A complete state received from another member discards the files, since
+ * the logged updates cannot be applied to it. Nothing is logged until its
+ * snapshot is written.
+ * </p>
+ *
+ * <p>
+ * Logged messages are handed to the operating system but not forced to the
+ * disk, which survives a crash of the process but may lose the latest
+ * updates if the machine fails. The other members provide them again.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterManager
+ */
+final class PersistentState {
+
+    private static final Log LOG = LogFactory.getLog(PersistentState.class);
+
+    private static final int MAGIC = 0x43435331;
+    private static final String SNAPSHOT = "snapshot";
+    private static final String SNAPSHOT_TEMP = "snapshot.tmp";
+    private static final String LOG_PREFIX = "log-";
+    private static final String LOCK = "lock";
+
+    /**
+     * Length and checksum in front of every logged message.
+     */
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * Size of the regions a file is mapped in, files may be larger than a single mapping.
+     */
+    private static final int REGION_SIZE = 64 << 20;
+
+    private final File directory;
+    private final int snapshotInterval;
+    private final Source source;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    private long generation;
+    private FileChannel log;
+    private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+    private final CRC32 checksum = new CRC32();
+    private int logged;
+    private boolean logging = true;
+    private boolean snapshotting;
+    private boolean closed;
+
+    /**
+     * The collection whose state gets persisted.
+     */
+    interface Source {
+
+        /**
+         * Restores the state written by {@link #writeSnapshot(DataOutputStream)}.
+         *
+         * @param in the snapshot
+         * @throws IOException if reading fails
+         */
+        void readSnapshot(DataInputStream in) throws IOException;
+
+        /**
+         * Applies a logged update message again.
+         *
+         * @param buffer the buffer containing the message
+         * @param offset the offset of the message
+         * @param length the length of the message
+         */
+        void replay(byte[] buffer, int offset, int length);
+
+        /**
+         * Writes the current state including the version vector.
+         *
+         * @param out the target
+         * @throws IOException if writing fails
+         */
+        void writeSnapshot(DataOutputStream out) throws IOException;
+
+    }
+
+    /**
+     * Locks the directory, it must not be shared by running members.
+     *
+     * @param directory the directory, created if missing
+     * @param snapshotInterval the number of logged messages after which a snapshot is written
+     * @param source the persisted collection
+     * @throws IOException if the directory cannot be used
+     */
+    PersistentState(File directory, int snapshotInterval, Source source) throws IOException {
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        this.source = source;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        lockFile = new RandomAccessFile(new File(directory, LOCK), "rw");
+        FileLock acquired;
+        try {
+            acquired = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockFile.close();
+            throw new IOException(directory + " is used by another member");
+        }
+        lock = acquired;
+    }
+
+    /**
+     * Restores the snapshot, replays the logs and opens the current log.
+     *
+     * @throws IOException if the files cannot be read
+     */
+    synchronized void recover() throws IOException {
+        // the replayed messages are logged already
+        logging = false;
+        final File snapshot = new File(directory, SNAPSHOT);
+        delete(new File(directory, SNAPSHOT_TEMP));
+        generation = 0;
+        if (snapshot.isFile()) {
+            final DataInputStream in = new DataInputStream(new MappedInputStream(snapshot));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not a snapshot: " + snapshot);
+                }
+                generation = in.readLong();
+                source.readSnapshot(in);
+            } finally {
+                ClusterManager.close(in);
+            }
+        }
+
+        // without a snapshot, only logs starting with the very first update are usable
+        long next = generation;
+        boolean complete = true;
+        for (long logGeneration: listLogs()) {
+            final File file = logFile(logGeneration);
+            if (logGeneration != next || !complete) {
+                delete(file);
+                continue;
+            }
+            final long valid = replay(file);
+            if (valid < file.length()) {
+                LOG.warn("discarding incomplete end of " + file);
+                truncate(file, valid);
+                complete = false;
+            }
+            next++;
+        }
+        if (next > generation) {
+            generation = next - 1;
+        }
+        openLog();
+        logging = true;
+    }
+
+    /**
+     * Replays the messages of a log.
+     *
+     * @return the length of the complete messages
+     */
+    private long replay(File file) throws IOException {
+        final MappedInputStream mapped = new MappedInputStream(file);
+        final DataInputStream in = new DataInputStream(mapped);
+        final CRC32 crc = new CRC32();
+        long valid = 0;
+        try {
+            while (true) {
+                final int length;
+                final int expected;
+                final byte[] message;
+                try {
+                    length = in.readInt();
+                    expected = in.readInt();
+                    if (length < 0 || length > file.length() - mapped.position()) {
+                        break;
+                    }
+                    message = new byte[length];
+                    in.readFully(message);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(message, 0, length);
+                if ((int) crc.getValue() != expected) {
+                    break;
+                }
+                source.replay(message, 0, length);
+                valid = mapped.position();
+            }
+        } finally {
+            ClusterManager.close(in);
+        }
+        return valid;
+    }
+
+    /**
+     * Appends an applied update message to the current log and starts a
+     * snapshot in the background if the log is full.
+     *
+     * @param buffer the buffer containing the message
+     * @param offset the offset of the message
+     * @param length the length of the message
+     */
+    synchronized void append(byte[] buffer, int offset, int length) {
+        if (!logging || closed) {
+            return;
+        }
+        checksum.reset();
+        checksum.update(buffer, offset, length);
+        header.clear();
+        header.putInt(length).putInt((int) checksum.getValue()).flip();
+        try {
+            write(log, header, ByteBuffer.wrap(buffer, offset, length));
+        } catch (IOException e) {
+            failed(e);
+            return;
+        }
+        if (++logged >= snapshotInterval && !snapshotting) {
+            scheduleSnapshot();
+        }
+    }
+
+    /**
+     * Discards the files after a complete state was received and writes a
+     * snapshot of it in the background.
+     */
+    synchronized void reset() {
+        if (closed || !logging && snapshotting) {
+            return;
+        }
+        logging = false;
+        closeLog();
+        // without the snapshot the remaining logs are unusable, even if deleting them fails
+        delete(new File(directory, SNAPSHOT));
+        final List<Long> logs = listLogs();
+        Collections.reverse(logs);
+        for (long logGeneration: logs) {
+            delete(logFile(logGeneration));
+        }
+        if (!snapshotting) {
+            scheduleSnapshot();
+        }
+    }
+
+    private void scheduleSnapshot() {
+        snapshotting = true;
+        Writer.INSTANCE.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot();
+                /* CHECKSTYLE:OFF */
+                } catch (RuntimeException e) {
+                /* CHECKSTYLE:ON */
+                    LOG.error("cannot write snapshot to " + directory, e);
+                } finally {
+                    synchronized (PersistentState.this) {
+                        snapshotting = false;
+                        if (!logging && !closed) {
+                            // reset while writing, the new state needs a snapshot of its own
+                            scheduleSnapshot();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a new log and writes the state, which contains everything
+     * logged so far, as snapshot of the new generation.
+     */
+    private void snapshot() {
+        final long snapshotGeneration;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closeLog();
+            snapshotGeneration = generation + 1;
+            generation = snapshotGeneration;
+            try {
+                openLog();
+            } catch (IOException e) {
+                failed(e);
+                return;
+            }
+            logging = true;
+        }
+        if (LOG.isDebugEnabled())
+            LOG.debug("writing snapshot " + snapshotGeneration + " to " + directory);
+
+        final File temp = new File(directory, SNAPSHOT_TEMP);
+        try {
+            final MappedOutputStream mapped = new MappedOutputStream(temp);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(mapped, 1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(snapshotGeneration);
+                // taken after starting the new log, so the snapshot contains every older log; the
+                // versions are copied together with the state, so replaying skips what both contain
+                source.writeSnapshot(out);
+                out.flush();
+                mapped.force();
+            } finally {
+                ClusterManager.close(out);
+            }
+            synchronized (this) {
+                if (generation != snapshotGeneration || !logging) {
+                    // reset meanwhile, the snapshot is outdated
+                    delete(temp);
+                    return;
+                }
+                final File snapshot = new File(directory, SNAPSHOT);
+                if (!temp.renameTo(snapshot) && !(delete(snapshot) && temp.renameTo(snapshot))) {
+                    throw new IOException("cannot replace " + snapshot);
+                }
+                for (long logGeneration: listLogs()) {
+                    if (logGeneration < snapshotGeneration) {
+                        delete(logFile(logGeneration));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            delete(temp);
+            synchronized (this) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Stops persisting after a failed write. Without the snapshot, a
+     * restarted member fetches the complete state.
+     */
+    private void failed(IOException e) {
+        LOG.error("cannot persist to " + directory + ", a restart will fetch the complete state", e);
+        logging = false;
+        closed = true;
+        closeLog();
+        delete(new File(directory, SNAPSHOT));
+    }
+
+    private void openLog() throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(logFile(generation), "rw");
+        log = file.getChannel();
+        log.position(log.size());
+        logged = 0;
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.force(false);
+            } catch (IOException e) {
+                LOG.warn("cannot force " + logFile(generation), e);
+            }
+            ClusterManager.close(log);
+            log = null;
+        }
+    }
+
+    /**
+     * Closes the current log and releases the directory. A running snapshot
+     * is completed.
+     */
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            closeLog();
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            LOG.warn("cannot unlock " + directory, e);
+        }
+        ClusterManager.close(lockFile);
+    }
+
+    private List<Long> listLogs() {
+        final List<Long> generations = new ArrayList<Long>();
+        final String[] names = directory.list();
+        if (names != null) {
+            for (String name: names) {
+                if (name.startsWith(LOG_PREFIX)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(LOG_PREFIX.length()), 16));
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private File logFile(long logGeneration) {
+        // fixed width, so that the files are listed in order
+        final String hex = Long.toHexString(logGeneration);
+        return new File(directory, LOG_PREFIX + "0000000000000000".substring(hex.length()) + hex);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        final RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.setLength(length);
+        } finally {
+            access.close();
+        }
+    }
+
+    private static boolean delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LOG.warn("cannot delete " + file);
+            return false;
+        }
+        return true;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer... buffers) throws IOException {
+        final ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PersistentState{" +
+                "directory=" + directory +
+                ", generation=" + generation +
+                '}';
+    }
+
+    /**
+     * Writes the snapshots, one at a time for all instances.
+     */
+    private static final class Writer {
+        static final ExecutorService INSTANCE = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "PersistentState-Writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Reads a file through consecutive read only mappings.
+     */
+    static final class MappedInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long size;
+        private long regionStart = 0;
+        private MappedByteBuffer region;
+
+        MappedInputStream(File file) throws IOException {
+            channel = new RandomAccessFile(file, "r").getChannel();
+            size = channel.size();
+            region = map(0);
+        }
+
+        private MappedByteBuffer map(long start) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+        }
+
+        /**
+         * @return the number of bytes read
+         */
+        long position() {
+            return regionStart + region.position();
+        }
+
+        private boolean ensureAvailable() throws IOException {
+            if (region.hasRemaining()) {
+                return true;
+            }
+            if (regionStart + region.capacity() >= size) {
+                return false;
+            }
+            regionStart += region.capacity();
+            region = map(regionStart);
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureAvailable() ? region.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            final int count = Math.min(length, region.remaining());
+            region.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes a file through consecutive read write mappings and cuts it to
+     * the written length when closed.
+     */
+    static final class MappedOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long regionStart = 0;
+        private MappedByteBuffer region;
+
+        MappedOutputStream(File file) throws IOException {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.truncate(0);
+            region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        }
+
+        private void ensureRemaining() throws IOException {
+            if (!region.hasRemaining()) {
+                region.force();
+                regionStart += region.capacity();
+                region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+            }
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            ensureRemaining();
+            region.put((byte) value);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                ensureRemaining();
+                final int count = Math.min(length, region.remaining());
+                region.put(buffer, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        /**
+         * Forces the written bytes to the disk.
+         */
+        void force() {
+            region.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.truncate(regionStart + region.position());
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -20,9 +20,15 @@ import org.jgroups.ChannelException;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -38,14 +44,32 @@ final class ReplicatedClusteredList<T> extends AbstractList<T> implements
 
     private static final Log LOG = LogFactory.getLog(ReplicatedClusteredList.class);
 
+    private final Object lock = new Object();
     private List<T> localList = new ArrayList<T>();
+    private List<T> incomingState;
 
     private final ClusterManager<ListActions, ReplicatedClusteredList.ListPayload<T>, List<T>> clusterManager;
     private ClusterUpdateCallback updateCallback;
+    private final ClusterEvents<Integer, T> events = new ClusterEvents<Integer, T>();
 
     public ReplicatedClusteredList(String clusterName, Channel channel) throws ChannelException {
+        this(clusterName, channel, Serializers.<T>javaSerializer());
+    }
+
+    public ReplicatedClusteredList(String clusterName, Channel channel, Serializer<T> serializer) throws ChannelException {
+        this(clusterName, channel, serializer, new ClusterConfiguration());
+    }
+
+    public ReplicatedClusteredList(String clusterName, Channel channel, Serializer<T> serializer,
+                                   ClusterConfiguration configuration) throws ChannelException {
+        this(new ClusterContext(clusterName, channel), clusterName, serializer, configuration);
+    }
+
+    public ReplicatedClusteredList(ClusterContext context, String name, Serializer<T> serializer,
+                                   ClusterConfiguration configuration) throws ChannelException {
         clusterManager = new ClusterManager<ListActions, ReplicatedClusteredList.ListPayload<T>, List<T>>(
-                clusterName, channel, this);
+                context, name, this, new ListCodec<T>(serializer), configuration);
+        clusterManager.observe(events);
     }
 
     @Override
@@ -59,79 +83,472 @@ final class ReplicatedClusteredList<T> extends AbstractList<T> implements
     }
 
     @Override
-    public void handleUpdate(ListActions action, ListPayload<T> payload) {
+    public void addEventListener(ClusterEventListener<Integer, T> listener) {
+        events.addListener(listener, null);
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<Integer, T> listener, ClusterEventFilter<? super Integer> filter) {
+        events.addListener(listener, filter);
+    }
+
+    @Override
+    public void removeEventListener(ClusterEventListener<Integer, T> listener) {
+        events.removeListener(listener);
+    }
+
+    @Override
+    public Object handleUpdate(ListActions action, ListPayload<T> payload) {
         if (LOG.isTraceEnabled())
             LOG.trace("handleUpdate(" + action + ", " + payload + ")");
+        final T previous;
+        synchronized (lock) {
+            previous = applyUpdate(action, payload);
+        }
+        if (updateCallback != null) {
+            clusterManager.notifyCallback(updateCallback);
+        }
+        return previous;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<ListActions, ListPayload<T>>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        synchronized (lock) {
+            for (ClusterUpdate<ListActions, ListPayload<T>> update : updates) {
+                try {
+                    applyUpdate(update.getActionIdentifier(), update.getPayload());
+                /* CHECKSTYLE:OFF */
+                } catch (RuntimeException e) {
+                /* CHECKSTYLE:ON */
+                    // the rest of the batch still has to be applied
+                    LOG.error("cannot apply " + update.getActionIdentifier() + " " + update.getPayload(), e);
+                }
+            }
+        }
+        if (updateCallback != null) {
+            clusterManager.notifyCallback(updateCallback);
+        }
+    }
+
+    /**
+     * @return the replaced or removed element of a SET or REMOVE, {@code null} otherwise
+     */
+    private T applyUpdate(ListActions action, ListPayload<T> payload) {
         switch (action) {
             case SET:
-                localList.set(payload.getIndex(), payload.getElement());
-                break;
+                final T replaced = localList.set(payload.getIndex(), payload.getElement());
+                report(ClusterEvent.Type.UPDATED, payload.getIndex(), replaced, payload.getElement());
+                return replaced;
             case ADD:
                 localList.add(payload.getIndex(), payload.getElement());
+                report(ClusterEvent.Type.ADDED, payload.getIndex(), null, payload.getElement());
                 break;
             case REMOVE:
-                localList.remove(payload.getIndex());
-                break;
+                final T removed = localList.remove(payload.getIndex());
+                report(ClusterEvent.Type.REMOVED, payload.getIndex(), removed, null);
+                return removed;
             case CLEAR:
                 localList.clear();
+                report(ClusterEvent.Type.CLEARED, null, null, null);
+                break;
+            case ADD_ALL:
+                localList.addAll(payload.getIndex(), payload.getElements());
+                if (events.isRecording()) {
+                    int index = payload.getIndex();
+                    for (T element: payload.getElements()) {
+                        report(ClusterEvent.Type.ADDED, index++, null, element);
+                    }
+                }
+                break;
+            case REMOVE_ALL:
+                if (events.isRecording()) {
+                    // one after another, every removal shifts the following indices
+                    final int[] indices = payload.getIndices();
+                    for (int n = 0; n < indices.length; n++) {
+                        report(ClusterEvent.Type.REMOVED, indices[n] - n, localList.get(indices[n]), null);
+                    }
+                }
+                removeIndices(payload.getIndices());
                 break;
             default:
                 throw new UnsupportedOperationException(action.name());
         }
-        if (updateCallback != null) {
-            updateCallback.clusterUpdated();
+        return null;
+    }
+
+    private void report(ClusterEvent.Type type, Integer index, T previous, T element) {
+        if (events.isObserved(index)) {
+            events.add(type, index, previous, element);
+        }
+    }
+
+    /**
+     * Removes all elements at the given indices in one pass.
+     *
+     * @param indices the ascending indices to remove
+     */
+    private void removeIndices(int[] indices) {
+        final List<T> remaining = new ArrayList<T>(Math.max(10, localList.size() - indices.length));
+        int next = 0;
+        for (int index = 0; index < localList.size(); index++) {
+            if (next < indices.length && indices[next] == index) {
+                next++;
+            } else {
+                remaining.add(localList.get(index));
+            }
         }
+        localList = remaining;
+    }
+
+    @Override
+    public Object coalesceKey(ListActions action, ListPayload<T> payload) {
+        // index based updates depend on each other
+        return null;
     }
 
     @Override
     public void updateClusterState(List<T> state) {
-        localList = state;
+        synchronized (lock) {
+            localList = state;
+        }
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        synchronized (lock) {
+            action.run();
+        }
     }
 
     @Override
     public List<T> provideClusterState() {
-        return localList;
+        return new ArrayList<T>(localList);
+    }
+
+    @Override
+    public Iterator<List<T>> provideClusterStateChunks(int chunkSize) {
+        // the list stays locked until the last chunk, so no copy is needed
+        return new StateChunkIterator<T, List<T>>(localList.iterator(), chunkSize) {
+            @Override
+            protected List<T> newChunk(int expectedSize) {
+                return new ArrayList<T>(expectedSize);
+            }
+
+            @Override
+            protected void add(List<T> chunk, T element) {
+                chunk.add(element);
+            }
+        };
+    }
+
+    @Override
+    public void beginClusterState() {
+        incomingState = new ArrayList<T>();
+    }
+
+    @Override
+    public void applyClusterStateChunk(List<T> chunk) {
+        incomingState.addAll(chunk);
+    }
+
+    @Override
+    public void endClusterState() {
+        synchronized (lock) {
+            localList = incomingState;
+        }
+        incomingState = null;
     }
 
     @Override
     public int size() {
-        return localList.size();
+        synchronized (lock) {
+            return localList.size();
+        }
     }
 
     @Override
     public T get(int index) {
-        return localList.get(index);
+        synchronized (lock) {
+            return localList.get(index);
+        }
     }
 
     @Override
     public T set(int index, T element) {
-        clusterManager.sendUpdate(ListActions.SET, new ListPayload<T>(index, element));
-        return localList.set(index, element);
+        if (clusterManager.isOrdered()) {
+            return clusterManager.sendOrdered(ListActions.SET, new ListPayload<T>(index, element));
+        }
+        final ReplicationFuture<Void> replicated;
+        final T previous;
+        synchronized (lock) {
+            checkIndex(index);
+            replicated = clusterManager.sendUpdateDeferred(ListActions.SET, new ListPayload<T>(index, element));
+            previous = localList.set(index, element);
+        }
+        clusterManager.await(replicated);
+        return previous;
     }
 
 
     @Override
     public void add(int index, T element) {
-        clusterManager.sendUpdate(ListActions.ADD, new ListPayload<T>(index, element));
-        localList.add(index, element);
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(ListActions.ADD, new ListPayload<T>(index, element));
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            checkPosition(index);
+            replicated = clusterManager.sendUpdateDeferred(ListActions.ADD, new ListPayload<T>(index, element));
+            localList.add(index, element);
+        }
+        clusterManager.await(replicated);
     }
 
     @Override
     public T remove(int index) {
-        clusterManager.sendUpdate(ListActions.REMOVE, new ListPayload<T>(index, null));
-        return localList.remove(index);
+        if (clusterManager.isOrdered()) {
+            return clusterManager.sendOrdered(ListActions.REMOVE, new ListPayload<T>(index, (T) null));
+        }
+        final ReplicationFuture<Void> replicated;
+        final T removed;
+        synchronized (lock) {
+            checkIndex(index);
+            replicated = clusterManager.sendUpdateDeferred(ListActions.REMOVE, new ListPayload<T>(index, (T) null));
+            removed = localList.remove(index);
+        }
+        clusterManager.await(replicated);
+        return removed;
+    }
+
+    @Override
+    public ReplicationFuture<T> setAsync(int index, T element, ReplicationLevel level) {
+        if (clusterManager.isOrdered()) {
+            return clusterManager.sendOrderedAsync(ListActions.SET, new ListPayload<T>(index, element), level);
+        }
+        synchronized (lock) {
+            final T previous = localList.get(index);
+            final ReplicationFuture<T> future =
+                    clusterManager.sendUpdateAsync(ListActions.SET, new ListPayload<T>(index, element), level, previous);
+            localList.set(index, element);
+            return future;
+        }
+    }
+
+    @Override
+    public ReplicationFuture<Void> addAsync(int index, T element, ReplicationLevel level) {
+        synchronized (lock) {
+            checkPosition(index);
+            if (clusterManager.isOrdered()) {
+                return clusterManager.sendOrderedAsync(ListActions.ADD, new ListPayload<T>(index, element), level);
+            }
+            final ReplicationFuture<Void> future =
+                    clusterManager.sendUpdateAsync(ListActions.ADD, new ListPayload<T>(index, element), level, null);
+            localList.add(index, element);
+            return future;
+        }
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> addAsync(T element) {
+        return addAsync(element, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> addAsync(T element, ReplicationLevel level) {
+        synchronized (lock) {
+            if (clusterManager.isOrdered()) {
+                return SettableReplicationFuture.replacing(clusterManager.sendOrderedAsync(
+                        ListActions.ADD, new ListPayload<T>(localList.size(), element), level), Boolean.TRUE);
+            }
+            final ReplicationFuture<Boolean> future = clusterManager.sendUpdateAsync(
+                    ListActions.ADD, new ListPayload<T>(localList.size(), element), level, Boolean.TRUE);
+            localList.add(element);
+            return future;
+        }
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> removeAsync(Object element) {
+        return removeAsync(element, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> removeAsync(Object element, ReplicationLevel level) {
+        synchronized (lock) {
+            final int index = localList.indexOf(element);
+            if (index < 0) {
+                return SettableReplicationFuture.completed(Boolean.FALSE);
+            }
+            if (clusterManager.isOrdered()) {
+                return SettableReplicationFuture.replacing(clusterManager.sendOrderedAsync(
+                        ListActions.REMOVE, new ListPayload<T>(index, (T) null), level), Boolean.TRUE);
+            }
+            final ReplicationFuture<Boolean> future = clusterManager.sendUpdateAsync(
+                    ListActions.REMOVE, new ListPayload<T>(index, (T) null), level, Boolean.TRUE);
+            localList.remove(index);
+            return future;
+        }
     }
 
     @Override
     public void clear() {
-        clusterManager.sendUpdate(ListActions.CLEAR, null);
-        localList.clear();
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(ListActions.CLEAR, null);
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            replicated = clusterManager.sendUpdateDeferred(ListActions.CLEAR, null);
+            localList.clear();
+        }
+        clusterManager.await(replicated);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        final List<T> elements = new ArrayList<T>(c);
+        if (elements.isEmpty()) {
+            return false;
+        }
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(ListActions.ADD_ALL, new ListPayload<T>(size(), elements));
+            return true;
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            replicated = clusterManager.sendUpdateDeferred(ListActions.ADD_ALL,
+                    new ListPayload<T>(localList.size(), elements));
+            localList.addAll(elements);
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends T> c) {
+        final List<T> elements = new ArrayList<T>(c);
+        if (clusterManager.isOrdered()) {
+            checkPosition(index);
+            if (elements.isEmpty()) {
+                return false;
+            }
+            clusterManager.sendOrdered(ListActions.ADD_ALL, new ListPayload<T>(index, elements));
+            return true;
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            checkPosition(index);
+            if (elements.isEmpty()) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(ListActions.ADD_ALL, new ListPayload<T>(index, elements));
+            localList.addAll(index, elements);
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    private void checkPosition(int index) {
+        synchronized (lock) {
+            if (index < 0 || index > localList.size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + localList.size());
+            }
+        }
+    }
+
+    private void checkIndex(int index) {
+        synchronized (lock) {
+            if (index < 0 || index >= localList.size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + localList.size());
+            }
+        }
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        return removeMatching(c, true);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        return removeMatching(c, false);
+    }
+
+    private boolean removeMatching(Collection<?> c, boolean contained) {
+        if (clusterManager.isOrdered()) {
+            final int[] removed = matching(c, contained);
+            if (removed.length == 0) {
+                return false;
+            }
+            clusterManager.sendOrdered(ListActions.REMOVE_ALL, new ListPayload<T>(removed));
+            return true;
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            final int[] removed = matching(c, contained);
+            if (removed.length == 0) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(ListActions.REMOVE_ALL, new ListPayload<T>(removed));
+            removeIndices(removed);
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    /**
+     * @return the ascending indices of the elements which are or are not contained in the collection
+     */
+    private int[] matching(Collection<?> c, boolean contained) {
+        synchronized (lock) {
+            final int[] indices = new int[localList.size()];
+            int count = 0;
+            for (int index = 0; index < localList.size(); index++) {
+                if (c.contains(localList.get(index)) == contained) {
+                    indices[count++] = index;
+                }
+            }
+            return Arrays.copyOf(indices, count);
+        }
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) {
+            return;
+        }
+        final int[] removed = new int[toIndex - fromIndex];
+        for (int n = 0; n < removed.length; n++) {
+            removed[n] = fromIndex + n;
+        }
+        removeIndicesEverywhere(removed);
+    }
+
+    /**
+     * Removes all elements at the given indices with a single update.
+     *
+     * @param indices the ascending indices to remove
+     */
+    private void removeIndicesEverywhere(int[] indices) {
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(ListActions.REMOVE_ALL, new ListPayload<T>(indices));
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            replicated = clusterManager.sendUpdateDeferred(ListActions.REMOVE_ALL, new ListPayload<T>(indices));
+            removeIndices(indices);
+        }
+        clusterManager.await(replicated);
     }
 
     @Override
     public String toString() {
         return "ReplicatedClusteredList{" +
-                "listSize=" + localList.size() +
+                "listSize=" + size() +
                 ", cluster=" + clusterManager +
                 '}';
     }
@@ -140,7 +557,9 @@ final class ReplicatedClusteredList<T> extends AbstractList<T> implements
         SET,
         ADD,
         REMOVE,
-        CLEAR
+        CLEAR,
+        ADD_ALL,
+        REMOVE_ALL
     }
 
     public static class ListPayload<T> implements Serializable {
@@ -149,10 +568,28 @@ final class ReplicatedClusteredList<T> extends AbstractList<T> implements
         
         private final int index;
         private final T element;
+        private final List<T> elements;
+        private final int[] indices;
 
         public ListPayload(int index, T element) {
             this.index = index;
             this.element = element;
+            this.elements = null;
+            this.indices = null;
+        }
+
+        public ListPayload(int index, List<T> elements) {
+            this.index = index;
+            this.element = null;
+            this.elements = elements;
+            this.indices = null;
+        }
+
+        public ListPayload(int[] indices) {
+            this.index = -1;
+            this.element = null;
+            this.elements = null;
+            this.indices = indices;
         }
 
         public int getIndex() {
@@ -163,13 +600,131 @@ final class ReplicatedClusteredList<T> extends AbstractList<T> implements
             return element;
         }
 
+        public List<T> getElements() {
+            return elements;
+        }
+
+        public int[] getIndices() {
+            return indices;
+        }
+
         @Override
         public String toString() {
+            if (elements != null) {
+                return "ListPayload{index=" + index + ", elements=" + elements.size() + '}';
+            }
+            if (indices != null) {
+                return "ListPayload{indices=" + indices.length + '}';
+            }
             return "ListPayload{" +
                     "index=" + index +
                     ", element=" + element +
                     '}';
         }
     }
-    
+
+    /**
+     * Encodes the action as a single byte tag followed by the varint index
+     * and the element, where the action needs them. Removed indices of
+     * {@link ListActions#REMOVE_ALL} are delta encoded.
+     */
+    static final class ListCodec<T> implements ClusterCodec<ListActions, ListPayload<T>, List<T>> {
+        private static final ListActions[] ACTIONS = ListActions.values();
+
+        private final Serializer<T> serializer;
+
+        ListCodec(Serializer<T> serializer) {
+            this.serializer = serializer;
+        }
+
+        @Override
+        public void writeUpdate(ListActions action, ListPayload<T> payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            switch (action) {
+                case SET:
+                case ADD:
+                    Varints.writeUnsignedInt(out, payload.getIndex());
+                    serializer.write(payload.getElement(), out);
+                    break;
+                case REMOVE:
+                    Varints.writeUnsignedInt(out, payload.getIndex());
+                    break;
+                case CLEAR:
+                    break;
+                case ADD_ALL:
+                    Varints.writeUnsignedInt(out, payload.getIndex());
+                    writeState(payload.getElements(), out);
+                    break;
+                case REMOVE_ALL:
+                    final int[] indices = payload.getIndices();
+                    Varints.writeUnsignedInt(out, indices.length);
+                    int previous = 0;
+                    for (int index : indices) {
+                        Varints.writeUnsignedInt(out, index - previous);
+                        previous = index;
+                    }
+                    break;
+                default:
+                    throw new UnsupportedOperationException(action.name());
+            }
+        }
+
+        @Override
+        public ClusterUpdate<ListActions, ListPayload<T>> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown list action " + tag);
+            }
+            final ListActions action = ACTIONS[tag];
+            final ListPayload<T> payload;
+            switch (action) {
+                case SET:
+                case ADD:
+                    final int index = Varints.readUnsignedInt(in);
+                    payload = new ListPayload<T>(index, serializer.read(in));
+                    break;
+                case REMOVE:
+                    payload = new ListPayload<T>(Varints.readUnsignedInt(in), (T) null);
+                    break;
+                case CLEAR:
+                    payload = null;
+                    break;
+                case ADD_ALL:
+                    final int start = Varints.readUnsignedInt(in);
+                    payload = new ListPayload<T>(start, readState(in));
+                    break;
+                case REMOVE_ALL:
+                    final int[] indices = new int[Varints.readUnsignedInt(in)];
+                    int previous = 0;
+                    for (int n = 0; n < indices.length; n++) {
+                        previous += Varints.readUnsignedInt(in);
+                        indices[n] = previous;
+                    }
+                    payload = new ListPayload<T>(indices);
+                    break;
+                default:
+                    throw new UnsupportedOperationException(action.name());
+            }
+            return new ClusterUpdate<ListActions, ListPayload<T>>(action, payload);
+        }
+
+        @Override
+        public void writeState(List<T> state, DataOutput out) throws IOException {
+            Varints.writeUnsignedInt(out, state.size());
+            for (T element : state) {
+                serializer.write(element, out);
+            }
+        }
+
+        @Override
+        public List<T> readState(DataInput in) throws IOException {
+            final int size = Varints.readUnsignedInt(in);
+            final List<T> state = new ArrayList<T>(size);
+            for (int n = 0; n < size; n++) {
+                state.add(serializer.read(in));
+            }
+            return state;
+        }
+    }
+
 }
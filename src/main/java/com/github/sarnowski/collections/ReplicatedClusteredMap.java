@@ -20,33 +20,152 @@ import org.jgroups.ChannelException;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implements a clustered {@link Map}.
  *
+ * <p>
+ * The map is thread safe. Reads go lock free to a {@link ConcurrentHashMap};
+ * local writes and updates from the cluster are serialized per lock stripe
+ * of the key, so that sending and applying an update happen atomically for
+ * the key. Bulk updates and state transfers lock all stripes. Like
+ * {@link ConcurrentHashMap}, the map does not support {@code null} keys
+ * or values.
+ * </p>
+ *
+ * <p>
+ * With an {@link EvictionPolicy}, every write is also recorded by an
+ * {@link Evictor}. Members apply concurrent writes in different orders, so
+ * only the coordinator picks the entries over the bounds and the expired
+ * ones and replicates them as {@link MapActions#EVICT}, which every member
+ * applies as a conditional removal. Until then, the other members keep the
+ * entries, expired entries are hidden from reads though. A digest of the
+ * locally read keys is sent periodically for the idle expiry.
+ * </p>
+ *
+ * <p>
+ * Every write refreshes the written keys in the {@link MapIndex}es while the
+ * lock of the key is held; state transfers rebuild them.
+ * </p>
+ *
+ * <p>
+ * Conditional writes are evaluated under the lock of the key. With
+ * {@link ConsistencyMode#TOTAL_ORDER} every member evaluates them while
+ * applying the ordered update, otherwise the sending member evaluates them
+ * and replicates the outcome as a PUT or REMOVE.
+ * </p>
+ *
+ * <p>
+ * A sorted map keeps its entries in a {@link ConcurrentSkipListMap} instead,
+ * which {@link ReplicatedNavigableMap} serves its range views from. Range
+ * removals replicate as a single {@link MapActions#REMOVE_RANGE}.
+ * </p>
+ *
  * @author Tobias Sarnowski
  * @since 1.0
  */
 final class ReplicatedClusteredMap<K,V> extends AbstractMap<K,V> implements
-        ClusteredMap<K,V>,
+        IndexedMap<K,V>,
         ClusterManaged<ReplicatedClusteredMap.MapActions,ReplicatedClusteredMap.MapPayload<K,V>,Map<K,V>> {
 
     private final Log LOG = LogFactory.getLog(ReplicatedClusteredMap.class);
 
-    private Map<K,V> localMap = new HashMap<K,V>();
+    /**
+     * Number of lock stripes, has to be a power of two.
+     */
+    private static final int STRIPES = 64;
+
+    private volatile ConcurrentMap<K,V> localMap;
+    private final boolean sorted;
+    private final Comparator<? super K> comparator;
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private ConcurrentMap<K,V> incomingState;
 
     private final ClusterManager<ReplicatedClusteredMap.MapActions,MapPayload<K,V>,Map<K,V>> clusterManager;
-    private ClusterUpdateCallback updateCallback = null;
+    private volatile ClusterUpdateCallback updateCallback = null;
+    private final ClusterEvents<K,V> events = new ClusterEvents<K,V>();
+    private final List<ValueIndex<K,V,?>> indexes = new CopyOnWriteArrayList<ValueIndex<K,V,?>>();
+
+    /**
+     * Interval of purging expired entries and sending read digests.
+     */
+    private static final long PURGE_INTERVAL = 1000;
+
+    private final Evictor<K,V> evictor;
 
     public ReplicatedClusteredMap(String clusterName, Channel channel) throws ChannelException {
-        clusterManager = new ClusterManager<ReplicatedClusteredMap.MapActions,MapPayload<K,V>,Map<K,V>>(clusterName, channel, this);
+        this(clusterName, channel, Serializers.<K>javaSerializer(), Serializers.<V>javaSerializer());
+    }
+
+    public ReplicatedClusteredMap(String clusterName, Channel channel,
+                                  Serializer<K> keySerializer, Serializer<V> valueSerializer) throws ChannelException {
+        this(clusterName, channel, keySerializer, valueSerializer, new ClusterConfiguration());
+    }
+
+    public ReplicatedClusteredMap(String clusterName, Channel channel,
+                                  Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                  ClusterConfiguration configuration) throws ChannelException {
+        this(new ClusterContext(clusterName, channel), clusterName, keySerializer, valueSerializer, configuration);
+    }
+
+    public ReplicatedClusteredMap(ClusterContext context, String name,
+                                  Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                  ClusterConfiguration configuration) throws ChannelException {
+        this(context, name, keySerializer, valueSerializer, null, configuration);
+    }
+
+    public ReplicatedClusteredMap(ClusterContext context, String name,
+                                  Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                  EvictionPolicy<K,V> evictionPolicy,
+                                  ClusterConfiguration configuration) throws ChannelException {
+        this(context, name, keySerializer, valueSerializer, evictionPolicy, false, null, configuration);
+    }
+
+    /**
+     * @param sorted whether to keep the entries sorted, see {@link #navigableMap()}
+     * @param comparator the order of a sorted map, {@code null} for the natural order of the keys
+     */
+    ReplicatedClusteredMap(ClusterContext context, String name,
+                           Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                           EvictionPolicy<K,V> evictionPolicy, boolean sorted, Comparator<? super K> comparator,
+                           ClusterConfiguration configuration) throws ChannelException {
+        for (int n = 0; n < STRIPES; n++) {
+            locks[n] = new ReentrantLock();
+        }
+        this.sorted = sorted;
+        this.comparator = comparator;
+        localMap = newLocalMap();
+        evictor = evictionPolicy == null ? null : new Evictor<K,V>(evictionPolicy);
+        clusterManager = new ClusterManager<ReplicatedClusteredMap.MapActions,MapPayload<K,V>,Map<K,V>>(
+                context, name, this, new MapCodec<K,V>(keySerializer, valueSerializer, evictor != null),
+                configuration);
+        clusterManager.observe(events);
+        if (evictor != null && evictor.isTimed()) {
+            Purger.start(this);
+        }
     }
 
     @Override
@@ -60,40 +179,543 @@ final class ReplicatedClusteredMap<K,V> extends AbstractMap<K,V> implements
     }
 
     @Override
-    public void handleUpdate(ReplicatedClusteredMap.MapActions action, MapPayload<K,V> payload) {
+    public void addEventListener(ClusterEventListener<K,V> listener) {
+        events.addListener(listener, null);
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<K,V> listener, ClusterEventFilter<? super K> filter) {
+        events.addListener(listener, filter);
+    }
+
+    @Override
+    public void removeEventListener(ClusterEventListener<K,V> listener) {
+        events.removeListener(listener);
+    }
+
+    @Override
+    public ContinuousQuery<K,V> addContinuousQuery(ClusterPredicate<? super K,? super V> predicate,
+                                                   ClusterEventListener<K,V> listener) {
+        lockAll();
+        try {
+            return events.addQuery(predicate, listener, localMap.entrySet());
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    public <A> MapIndex<K,V,A> addHashIndex(ValueExtractor<? super V,? extends A> extractor) {
+        return addIndex(new ValueIndex<K,V,A>(extractor, false, this));
+    }
+
+    @Override
+    public <A extends Comparable<? super A>> MapIndex<K,V,A> addSortedIndex(ValueExtractor<? super V,? extends A> extractor) {
+        return addIndex(new ValueIndex<K,V,A>(extractor, true, this));
+    }
+
+    private <A> MapIndex<K,V,A> addIndex(ValueIndex<K,V,A> index) {
+        lockAll();
+        try {
+            index.rebuild(localMap);
+            indexes.add(index);
+        } finally {
+            unlockAll();
+        }
+        return index;
+    }
+
+    @Override
+    public void removeIndex(MapIndex<K,V,?> index) {
+        indexes.remove(index);
+    }
+
+    /**
+     * Indexes the current value of a key, the caller has to hold its lock.
+     */
+    private void reindex(K key) {
+        for (ValueIndex<K,V,?> index: indexes) {
+            index.refresh(key, localMap);
+        }
+    }
+
+    private void reindex(Collection<K> keys) {
+        if (!indexes.isEmpty()) {
+            for (K key: keys) {
+                reindex(key);
+            }
+        }
+    }
+
+    private void clearIndexes() {
+        for (ValueIndex<K,V,?> index: indexes) {
+            index.clear();
+        }
+    }
+
+    private ConcurrentMap<K,V> newLocalMap() {
+        if (sorted) {
+            return new ConcurrentSkipListMap<K,V>(comparator);
+        }
+        return new ConcurrentHashMap<K,V>();
+    }
+
+    /**
+     * Provides the local entries of a sorted map for reading. Writes have to
+     * go through the map.
+     *
+     * @return the current local entries
+     */
+    ConcurrentNavigableMap<K,V> navigableMap() {
+        return (ConcurrentNavigableMap<K,V>) localMap;
+    }
+
+    Comparator<? super K> comparator() {
+        return comparator;
+    }
+
+    private ReentrantLock lockFor(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return locks[hash & (STRIPES - 1)];
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock: locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int n = STRIPES - 1; n >= 0; n--) {
+            locks[n].unlock();
+        }
+    }
+
+    @Override
+    public Object handleUpdate(ReplicatedClusteredMap.MapActions action, MapPayload<K,V> payload) {
         if (LOG.isTraceEnabled())
             LOG.trace("handleUpdate(" + action + ", " + payload + ")");
+        final Object previous;
         switch (action) {
+            case TOUCH:
+                // only updates the access times, which are safe without locks
+                previous = applyUpdate(action, payload);
+                break;
             case PUT:
-                localMap.put(payload.getKey(), payload.getValue());
+            case REMOVE:
+            case PUT_IF_ABSENT:
+            case REPLACE:
+            case REPLACE_IF:
+            case REMOVE_IF:
+            case COMPUTE:
+            case MERGE:
+                final ReentrantLock lock = lockFor(payload.getKey());
+                lock.lock();
+                try {
+                    previous = applyUpdate(action, payload);
+                } finally {
+                    lock.unlock();
+                }
+                break;
+            default:
+                lockAll();
+                try {
+                    previous = applyUpdate(action, payload);
+                } finally {
+                    unlockAll();
+                }
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+        return previous;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<MapActions,MapPayload<K,V>>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        lockAll();
+        try {
+            for (ClusterUpdate<MapActions,MapPayload<K,V>> update: updates) {
+                try {
+                    applyUpdate(update.getActionIdentifier(), update.getPayload());
+                /* CHECKSTYLE:OFF */
+                } catch (RuntimeException e) {
+                /* CHECKSTYLE:ON */
+                    // the rest of the batch still has to be applied
+                    LOG.error("cannot apply " + update.getActionIdentifier() + " " + update.getPayload(), e);
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+    }
+
+    /**
+     * @return the previous value of a PUT or REMOVE, the result of a conditional write, {@code null} otherwise
+     */
+    private Object applyUpdate(ReplicatedClusteredMap.MapActions action, MapPayload<K,V> payload) {
+        V previous = null;
+        switch (action) {
+            case PUT:
+                previous = localMap.put(payload.getKey(), payload.getValue());
+                reindex(payload.getKey());
+                written(payload.getKey(), payload.getValue(), payload.getTimestamp());
+                reportPut(payload.getKey(), previous, payload.getValue());
                 break;
             case REMOVE:
-                localMap.remove(payload.getKey());
+                previous = localMap.remove(payload.getKey());
+                reindex(payload.getKey());
+                removed(payload.getKey());
+                reportRemove(payload.getKey(), previous);
+                break;
+            case PUT_ALL:
+                if (events.isRecording()) {
+                    for (Entry<K,V> entry: payload.getEntries().entrySet()) {
+                        reportPut(entry.getKey(), localMap.put(entry.getKey(), entry.getValue()), entry.getValue());
+                    }
+                } else {
+                    localMap.putAll(payload.getEntries());
+                }
+                reindex(payload.getEntries().keySet());
+                written(payload.getEntries(), payload.getTimestamp());
+                break;
+            case REMOVE_ALL:
+                for (K key: payload.getKeys()) {
+                    reportRemove(key, localMap.remove(key));
+                    removed(key);
+                }
+                reindex(payload.getKeys());
+                break;
+            case REMOVE_RANGE:
+                removeLocally(payload.getRange());
+                break;
+            case PUT_IF_ABSENT:
+            case REPLACE:
+            case REPLACE_IF:
+            case REMOVE_IF:
+            case COMPUTE:
+            case MERGE:
+                final Outcome<V> outcome = evaluate(action, payload);
+                store(payload.getKey(), outcome, payload.getTimestamp());
+                return outcome.result;
+            case CLEAR:
+                localMap.clear();
+                clearIndexes();
+                if (events.isObserved(null)) {
+                    events.add(ClusterEvent.Type.CLEARED, null, null, null);
+                }
+                if (evictor != null) {
+                    evictor.cleared();
+                }
                 break;
+            case TOUCH:
+                if (evictor != null) {
+                    evictor.touch(payload.getKeys(), payload.getTimestamp());
+                }
+                break;
+            case EVICT:
+                evict(payload.getEntries());
+                break;
+            default:
+                throw new UnsupportedOperationException(action.name());
+        }
+        return previous;
+    }
+
+    /**
+     * Evaluates a conditional write against the local copy, the caller has
+     * to hold the lock of the key.
+     */
+    @SuppressWarnings("unchecked")
+    private Outcome<V> evaluate(ReplicatedClusteredMap.MapActions action, MapPayload<K,V> payload) {
+        final K key = payload.getKey();
+        final V current = localMap.get(key);
+        final boolean expected = current != null && current.equals(payload.getExpected());
+        switch (action) {
+            case PUT_IF_ABSENT:
+                return new Outcome<V>(current, current == null ? payload.getValue() : current, current);
+            case REPLACE:
+                return new Outcome<V>(current, current == null ? null : payload.getValue(), current);
+            case REPLACE_IF:
+                return new Outcome<V>(current, expected ? payload.getValue() : current, expected);
+            case REMOVE_IF:
+                return new Outcome<V>(current, expected ? null : current, expected);
+            case COMPUTE:
+                final V computed = ((ClusterComputation<? super K,V>) payload.getFunction()).compute(key, current);
+                return new Outcome<V>(current, computed, computed);
+            case MERGE:
+                final V merged = current == null ? payload.getValue()
+                        : ((ClusterMerger<V>) payload.getFunction()).merge(current, payload.getValue());
+                return new Outcome<V>(current, merged, merged);
+            default:
+                throw new UnsupportedOperationException(action.name());
+        }
+    }
+
+    /**
+     * Applies the outcome of a conditional write, the caller has to hold the
+     * lock of the key.
+     */
+    private void store(K key, Outcome<V> outcome, long timestamp) {
+        if (!outcome.isChange()) {
+            return;
+        }
+        if (outcome.value == null) {
+            localMap.remove(key);
+            reindex(key);
+            removed(key);
+            reportRemove(key, outcome.previous);
+        } else {
+            localMap.put(key, outcome.value);
+            reindex(key);
+            written(key, outcome.value, timestamp);
+            reportPut(key, outcome.previous, outcome.value);
+        }
+    }
+
+    /**
+     * Removes the entries of a range of a sorted map, the caller has to hold
+     * all locks.
+     */
+    private void removeLocally(KeyRange<K> range) {
+        for (K key: range.of(navigableMap()).keySet()) {
+            reportRemove(key, localMap.remove(key));
+            removed(key);
+            reindex(key);
+        }
+    }
+
+    private void reportPut(K key, V previous, V value) {
+        if (events.isObserved(key)) {
+            events.add(previous == null ? ClusterEvent.Type.ADDED : ClusterEvent.Type.UPDATED, key, previous, value);
+        }
+    }
+
+    private void reportRemove(K key, V previous) {
+        if (previous != null && events.isObserved(key)) {
+            events.add(ClusterEvent.Type.REMOVED, key, previous, null);
+        }
+    }
+
+    /**
+     * Runs the delivery of the recorded events, the caller must not hold a lock.
+     */
+    private static void deliver(Runnable changes) {
+        if (changes != null) {
+            changes.run();
+        }
+    }
+
+    private void written(K key, V value, long timestamp) {
+        if (evictor != null) {
+            evictor.written(key, value, timestamp);
+            if (isCoordinator()) {
+                replicateEviction(evictor.overflow());
+            }
+        }
+    }
+
+    private void written(Map<K,V> entries, long timestamp) {
+        if (evictor != null) {
+            for (Entry<K,V> entry: entries.entrySet()) {
+                evictor.written(entry.getKey(), entry.getValue(), timestamp);
+            }
+            if (isCoordinator()) {
+                replicateEviction(evictor.overflow());
+            }
+        }
+    }
+
+    private void removed(Object key) {
+        if (evictor != null) {
+            evictor.removed(key);
+        }
+    }
+
+    /**
+     * Replicates the victims picked by the coordinator, the other members
+     * keep their entries until the coordinator's choice arrives.
+     *
+     * @param victims the entries to evict
+     */
+    private void replicateEviction(Map<K,V> victims) {
+        if (victims.isEmpty()) {
+            return;
+        }
+        if (!clusterManager.isOrdered()) {
+            // we do not receive our own updates
+            evict(victims);
+        }
+        // only the coordinator's choice, never worth waiting for
+        clusterManager.sendUpdateDeferred(MapActions.EVICT, new MapPayload<K,V>(victims));
+    }
+
+    /**
+     * @return whether this member picks the victims for all members, never
+     *         while the manager is still being created
+     */
+    private boolean isCoordinator() {
+        return clusterManager != null && clusterManager.isCoordinator();
+    }
+
+    /**
+     * Removes evicted or expired entries locally. The removal is conditional,
+     * so that it works without the lock of the victim and never removes a
+     * newer value.
+     *
+     * @param victims the entries to remove
+     */
+    private void evict(Map<K,V> victims) {
+        for (Entry<K,V> victim: victims.entrySet()) {
+            if (localMap.remove(victim.getKey(), victim.getValue())) {
+                reindex(victim.getKey());
+                removed(victim.getKey());
+                reportRemove(victim.getKey(), victim.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes the expired entries if this member is the coordinator and
+     * announces the locally read keys.
+     */
+    private void purge() {
+        final long now = System.currentTimeMillis();
+        final boolean recording = events.beginLocal();
+        Runnable changes = null;
+        try {
+            if (isCoordinator()) {
+                replicateEviction(evictor.expired(now));
+            }
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+        }
+        deliver(changes);
+        if (evictor.isIdleTracked()) {
+            final List<K> keys = evictor.drainTouched();
+            if (!keys.isEmpty()) {
+                // only a hint for the expiry, never worth waiting for
+                clusterManager.sendUpdateDeferred(MapActions.TOUCH, new MapPayload<K,V>(keys, now));
+            }
         }
-        if (updateCallback != null) {
-            updateCallback.clusterUpdated();
+    }
+
+    private boolean isExpired(Object key) {
+        return evictor != null && evictor.isTimed() && evictor.isExpired(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public Object coalesceKey(ReplicatedClusteredMap.MapActions action, MapPayload<K,V> payload) {
+        switch (action) {
+            case PUT:
+            case REMOVE:
+                // a later PUT or REMOVE of the same key overrides the earlier one
+                return payload.getKey();
+            default:
+                return null;
         }
     }
 
     @Override
     public void updateClusterState(Map<K,V> state) {
-        localMap = state;
+        final ConcurrentMap<K,V> newMap;
+        if (state == incomingState || (!sorted && state instanceof ConcurrentMap)) {
+            newMap = (ConcurrentMap<K,V>) state;
+        } else {
+            newMap = newLocalMap();
+            newMap.putAll(state);
+        }
+        final Runnable changes;
+        lockAll();
+        try {
+            if (evictor != null) {
+                // the write times are not transferred, the entries start over;
+                // which ones are evicted is still decided by the coordinator
+                evictor.cleared();
+                written(newMap, System.currentTimeMillis());
+            }
+            // readers keep using the old instance until the swap
+            localMap = newMap;
+            for (ValueIndex<K,V,?> index: indexes) {
+                index.rebuild(newMap);
+            }
+            changes = events.reset(newMap.entrySet());
+        } finally {
+            unlockAll();
+        }
+        deliver(changes);
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        lockAll();
+        try {
+            action.run();
+        } finally {
+            unlockAll();
+        }
     }
 
     @Override
     public Map<K,V> provideClusterState() {
-        return localMap;
+        return new HashMap<K,V>(localMap);
+    }
+
+    @Override
+    public Iterator<Map<K,V>> provideClusterStateChunks(int chunkSize) {
+        // the map stays locked until the last chunk, so no copy is needed
+        return new StateChunkIterator<Entry<K,V>,Map<K,V>>(localMap.entrySet().iterator(), chunkSize) {
+            @Override
+            protected Map<K,V> newChunk(int expectedSize) {
+                return new HashMap<K,V>((int) (expectedSize / .75f) + 1);
+            }
+
+            @Override
+            protected void add(Map<K,V> chunk, Entry<K,V> element) {
+                chunk.put(element.getKey(), element.getValue());
+            }
+        };
+    }
+
+    /**
+     * The chunks are collected in a new map, which replaces the current one
+     * after the last chunk, so readers never see a partial state. The
+     * receiving member therefore holds the old and the new state for a while.
+     */
+    @Override
+    public void beginClusterState() {
+        incomingState = newLocalMap();
+    }
+
+    @Override
+    public void applyClusterStateChunk(Map<K,V> chunk) {
+        incomingState.putAll(chunk);
+    }
+
+    @Override
+    public void endClusterState() {
+        updateClusterState(incomingState);
+        incomingState = null;
     }
 
     @Override
     public Set<Entry<K, V>> entrySet() {
-        final Set<Entry<K, V>> localEntrySet = localMap.entrySet();
         return new AbstractSet<Entry<K,V>>() {
 
             @Override
             public Iterator<Entry<K, V>> iterator() {
-                final Iterator<Entry<K, V>> iterator = localEntrySet.iterator();
+                final Iterator<Entry<K, V>> iterator = localMap.entrySet().iterator();
                 return new Iterator<Entry<K, V>>() {
                     private Entry<K, V> next;
 
@@ -109,63 +731,729 @@ final class ReplicatedClusteredMap<K,V> extends AbstractMap<K,V> implements
 
                     @Override
                     public void remove() {
-                        clusterManager.sendUpdate(
-                                ReplicatedClusteredMap.MapActions.REMOVE,
-                                new MapPayload<K, V>(next.getKey(), next.getValue()));
-                        iterator.remove();
+                        if (next == null) {
+                            throw new IllegalStateException();
+                        }
+                        ReplicatedClusteredMap.this.remove(next.getKey());
+                        next = null;
                     }
                 };
             }
 
             @Override
             public int size() {
-                return localEntrySet.size();
+                return localMap.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry)) {
+                    return false;
+                }
+                final Entry<?,?> entry = (Entry<?,?>) o;
+                final V value = get(entry.getKey());
+                return value != null && value.equals(entry.getValue());
             }
 
             @Override
-            public boolean add(Entry<K, V> t) {
-                boolean inserted = localEntrySet.add(t);
-                if (inserted) {
-                    clusterManager.sendUpdate(
-                            ReplicatedClusteredMap.MapActions.PUT,
-                            new MapPayload<K, V>(t.getKey(), t.getValue()));
+            public boolean add(Entry<K, V> entry) {
+                final V value = entry.getValue();
+                if (value.equals(get(entry.getKey()))) {
+                    return false;
                 }
-                return inserted;
+                put(entry.getKey(), value);
+                return true;
+            }
+
+            @Override
+            public boolean removeAll(Collection<?> c) {
+                return removeMatching(c, true, true);
+            }
+
+            @Override
+            public boolean retainAll(Collection<?> c) {
+                return removeMatching(c, true, false);
+            }
+
+            @Override
+            public void clear() {
+                ReplicatedClusteredMap.this.clear();
             }
         };
     }
 
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+
+            @Override
+            public Iterator<K> iterator() {
+                final Iterator<K> iterator = localMap.keySet().iterator();
+                return new Iterator<K>() {
+                    private K next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public K next() {
+                        return next = iterator.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (next == null) {
+                            throw new IllegalStateException();
+                        }
+                        ReplicatedClusteredMap.this.remove(next);
+                        next = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return localMap.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                return ReplicatedClusteredMap.this.remove(o) != null;
+            }
+
+            @Override
+            public boolean removeAll(Collection<?> c) {
+                return removeMatching(c, false, true);
+            }
+
+            @Override
+            public boolean retainAll(Collection<?> c) {
+                return removeMatching(c, false, false);
+            }
+
+            @Override
+            public void clear() {
+                ReplicatedClusteredMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Removes all matching entries with a single update.
+     *
+     * @param c the collection to match against
+     * @param entries whether the collection contains entries instead of keys
+     * @param contained whether to remove the contained or the other entries
+     * @return whether the map changed
+     */
+    private boolean removeMatching(Collection<?> c, boolean entries, boolean contained) {
+        final List<K> keys = new ArrayList<K>();
+        final ReplicationFuture<Void> replicated;
+        Runnable changes = null;
+        lockAll();
+        final boolean recording = events.beginLocal();
+        try {
+            for (Entry<K, V> entry: localMap.entrySet()) {
+                if (c.contains(entries ? entry : entry.getKey()) == contained) {
+                    keys.add(entry.getKey());
+                }
+            }
+            if (keys.isEmpty()) {
+                return false;
+            }
+            if (clusterManager.isOrdered()) {
+                replicated = null;
+            } else {
+                replicated = clusterManager.sendUpdateDeferred(ReplicatedClusteredMap.MapActions.REMOVE_ALL,
+                        new MapPayload<K, V>(keys));
+                for (K key: keys) {
+                    reportRemove(key, localMap.remove(key));
+                    removed(key);
+                }
+                reindex(keys);
+            }
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            unlockAll();
+        }
+        deliver(changes);
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(ReplicatedClusteredMap.MapActions.REMOVE_ALL, new MapPayload<K, V>(keys));
+        } else {
+            clusterManager.await(replicated);
+        }
+        return true;
+    }
+
     @Override
     public int size() {
         return localMap.size();
     }
 
+    @Override
+    public boolean isEmpty() {
+        return localMap.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return localMap.containsKey(key) && !isExpired(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return localMap.containsValue(value);
+    }
+
+    @Override
+    public V get(Object key) {
+        final V value = localMap.get(key);
+        if (value == null || evictor == null || !evictor.isTimed()) {
+            return value;
+        }
+        final long now = System.currentTimeMillis();
+        if (evictor.isExpired(key, now)) {
+            return null;
+        }
+        evictor.touch(key, now);
+        return value;
+    }
+
     @Override
     public V put(K key, V value) {
-        clusterManager.sendUpdate(ReplicatedClusteredMap.MapActions.PUT, new MapPayload<K, V>(key, value));
-        return localMap.put(key, value);
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        if (clusterManager.isOrdered()) {
+            return clusterManager.sendOrdered(ReplicatedClusteredMap.MapActions.PUT,
+                    new MapPayload<K, V>(key, value, System.currentTimeMillis()));
+        }
+        final ReplicationFuture<Void> replicated;
+        final V previous;
+        Runnable changes = null;
+        final ReentrantLock lock = lockFor(key);
+        lock.lock();
+        final boolean recording = events.beginLocal();
+        try {
+            final long now = System.currentTimeMillis();
+            replicated = clusterManager.sendUpdateDeferred(ReplicatedClusteredMap.MapActions.PUT,
+                    new MapPayload<K, V>(key, value, now));
+            previous = localMap.put(key, value);
+            reindex(key);
+            reportPut(key, previous, value);
+            written(key, value, now);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.unlock();
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+        return previous;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (!localMap.containsKey(key)) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        final K typedKey = (K) key;
+        if (clusterManager.isOrdered()) {
+            return clusterManager.sendOrdered(ReplicatedClusteredMap.MapActions.REMOVE,
+                    new MapPayload<K, V>(typedKey, null));
+        }
+        final ReplicationFuture<Void> replicated;
+        final V previous;
+        Runnable changes = null;
+        final ReentrantLock lock = lockFor(key);
+        lock.lock();
+        final boolean recording = events.beginLocal();
+        try {
+            if (!localMap.containsKey(key)) {
+                return null;
+            }
+            replicated = clusterManager.sendUpdateDeferred(ReplicatedClusteredMap.MapActions.REMOVE,
+                    new MapPayload<K, V>(typedKey, null));
+            removed(key);
+            previous = localMap.remove(key);
+            reindex(typedKey);
+            reportRemove(typedKey, previous);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.unlock();
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+        return previous;
+    }
+
+    @Override
+    public ReplicationFuture<V> putAsync(K key, V value) {
+        return putAsync(key, value, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<V> putAsync(K key, V value, ReplicationLevel level) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        if (clusterManager.isOrdered()) {
+            return clusterManager.sendOrderedAsync(ReplicatedClusteredMap.MapActions.PUT,
+                    new MapPayload<K, V>(key, value, System.currentTimeMillis()), level);
+        }
+        final ReplicationFuture<V> future;
+        Runnable changes = null;
+        final ReentrantLock lock = lockFor(key);
+        lock.lock();
+        final boolean recording = events.beginLocal();
+        try {
+            final long now = System.currentTimeMillis();
+            future = clusterManager.sendUpdateAsync(ReplicatedClusteredMap.MapActions.PUT,
+                    new MapPayload<K, V>(key, value, now), level, localMap.get(key));
+            reportPut(key, localMap.put(key, value), value);
+            reindex(key);
+            written(key, value, now);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.unlock();
+        }
+        deliver(changes);
+        return future;
+    }
+
+    @Override
+    public ReplicationFuture<V> removeAsync(Object key) {
+        return removeAsync(key, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<V> removeAsync(Object key, ReplicationLevel level) {
+        if (clusterManager.isOrdered()) {
+            if (!localMap.containsKey(key)) {
+                return SettableReplicationFuture.completed(null);
+            }
+            @SuppressWarnings("unchecked")
+            final K typedKey = (K) key;
+            return clusterManager.sendOrderedAsync(ReplicatedClusteredMap.MapActions.REMOVE,
+                    new MapPayload<K, V>(typedKey, null), level);
+        }
+        final ReplicationFuture<V> future;
+        Runnable changes = null;
+        final ReentrantLock lock = lockFor(key);
+        lock.lock();
+        final boolean recording = events.beginLocal();
+        try {
+            final V previous = localMap.get(key);
+            if (previous == null) {
+                return SettableReplicationFuture.completed(null);
+            }
+            @SuppressWarnings("unchecked")
+            final K typedKey = (K) key;
+            future = clusterManager.sendUpdateAsync(
+                    ReplicatedClusteredMap.MapActions.REMOVE, new MapPayload<K, V>(typedKey, null), level, previous);
+            removed(key);
+            localMap.remove(key);
+            reindex(typedKey);
+            reportRemove(typedKey, previous);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.unlock();
+        }
+        deliver(changes);
+        return future;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (m.isEmpty()) {
+            return;
+        }
+        final Map<K, V> entries = new ConcurrentHashMap<K, V>(m);
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(ReplicatedClusteredMap.MapActions.PUT_ALL,
+                    new MapPayload<K, V>(entries, System.currentTimeMillis()));
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        Runnable changes = null;
+        lockAll();
+        final boolean recording = events.beginLocal();
+        try {
+            final long now = System.currentTimeMillis();
+            replicated = clusterManager.sendUpdateDeferred(ReplicatedClusteredMap.MapActions.PUT_ALL,
+                    new MapPayload<K, V>(entries, now));
+            if (recording) {
+                for (Entry<K, V> entry: entries.entrySet()) {
+                    reportPut(entry.getKey(), localMap.put(entry.getKey(), entry.getValue()), entry.getValue());
+                }
+            } else {
+                localMap.putAll(entries);
+            }
+            reindex(entries.keySet());
+            written(entries, now);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            unlockAll();
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+    }
+
+    @Override
+    public void clear() {
+        if (localMap.isEmpty()) {
+            return;
+        }
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(ReplicatedClusteredMap.MapActions.CLEAR, null);
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        Runnable changes = null;
+        lockAll();
+        final boolean recording = events.beginLocal();
+        try {
+            if (localMap.isEmpty()) {
+                return;
+            }
+            replicated = clusterManager.sendUpdateDeferred(ReplicatedClusteredMap.MapActions.CLEAR, null);
+            localMap.clear();
+            clearIndexes();
+            if (evictor != null) {
+                evictor.cleared();
+            }
+            if (recording) {
+                events.add(ClusterEvent.Type.CLEARED, null, null, null);
+            }
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            unlockAll();
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        return this.<V>conditionally(MapActions.PUT_IF_ABSENT, new MapPayload<K, V>(key, null, value, null));
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        return this.<V>conditionally(MapActions.REPLACE, new MapPayload<K, V>(key, null, value, null));
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (key == null || oldValue == null || newValue == null) {
+            throw new NullPointerException();
+        }
+        return this.<Boolean>conditionally(MapActions.REPLACE_IF, new MapPayload<K, V>(key, oldValue, newValue, null));
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        if (value == null || !localMap.containsKey(key)) {
+            return false;
+        }
+        @SuppressWarnings("unchecked")
+        final K typedKey = (K) key;
+        @SuppressWarnings("unchecked")
+        final V typedValue = (V) value;
+        return this.<Boolean>conditionally(MapActions.REMOVE_IF, new MapPayload<K, V>(typedKey, typedValue, null, null));
+    }
+
+    @Override
+    public V computeReplicated(K key, ClusterComputation<? super K,V> computation) {
+        if (key == null || computation == null) {
+            throw new NullPointerException();
+        }
+        return this.<V>conditionally(MapActions.COMPUTE, new MapPayload<K, V>(key, null, null, computation));
+    }
+
+    @Override
+    public V mergeReplicated(K key, V value, ClusterMerger<V> merger) {
+        if (key == null || value == null || merger == null) {
+            throw new NullPointerException();
+        }
+        return this.<V>conditionally(MapActions.MERGE, new MapPayload<K, V>(key, null, value, merger));
+    }
+
+    /**
+     * Runs a conditional write. Ordered maps let every member evaluate it,
+     * others evaluate it here and only send a changed value.
+     *
+     * @return the result of the write
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T conditionally(ReplicatedClusteredMap.MapActions action, MapPayload<K, V> payload) {
+        if (clusterManager.isOrdered()) {
+            return clusterManager.<T>sendOrdered(action, payload);
+        }
+        final K key = payload.getKey();
+        ReplicationFuture<Void> replicated = null;
+        final Outcome<V> outcome;
+        Runnable changes = null;
+        final ReentrantLock lock = lockFor(key);
+        lock.lock();
+        final boolean recording = events.beginLocal();
+        try {
+            outcome = evaluate(action, payload);
+            if (outcome.isChange()) {
+                final long now = System.currentTimeMillis();
+                if (outcome.value == null) {
+                    replicated = clusterManager.sendUpdateDeferred(ReplicatedClusteredMap.MapActions.REMOVE,
+                            new MapPayload<K, V>(key, null));
+                } else {
+                    replicated = clusterManager.sendUpdateDeferred(ReplicatedClusteredMap.MapActions.PUT,
+                            new MapPayload<K, V>(key, outcome.value, now));
+                }
+                store(key, outcome, now);
+            }
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            lock.unlock();
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
+        return (T) outcome.result;
+    }
+
+    /**
+     * Removes a range of keys of a sorted map with a single update.
+     *
+     * @param range the keys to remove
+     */
+    void removeRange(KeyRange<K> range) {
+        if (range.isAll()) {
+            clear();
+            return;
+        }
+        if (range.of(navigableMap()).isEmpty()) {
+            return;
+        }
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(ReplicatedClusteredMap.MapActions.REMOVE_RANGE, new MapPayload<K, V>(range));
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        Runnable changes = null;
+        lockAll();
+        final boolean recording = events.beginLocal();
+        try {
+            if (range.of(navigableMap()).isEmpty()) {
+                return;
+            }
+            replicated = clusterManager.sendUpdateDeferred(ReplicatedClusteredMap.MapActions.REMOVE_RANGE,
+                    new MapPayload<K, V>(range));
+            removeLocally(range);
+        } finally {
+            if (recording) {
+                changes = events.endLocal();
+            }
+            unlockAll();
+        }
+        deliver(changes);
+        clusterManager.await(replicated);
     }
 
     @Override
     public String toString() {
-        return "ReplicatedClusteredSet{" +
+        return "ReplicatedClusteredMap{" +
                 "mapSize=" + localMap.size() +
+                (evictor == null ? "" : ", evictor=" + evictor) +
                 ", cluster=" + clusterManager +
                 '}';
     }
 
+    /**
+     * Purges a timed map periodically. The task only holds a weak reference,
+     * so that it stops once the map is not used anymore.
+     */
+    private static final class Purger implements Runnable {
+        private final WeakReference<ReplicatedClusteredMap<?,?>> map;
+        private volatile ScheduledFuture<?> future;
+
+        private Purger(ReplicatedClusteredMap<?,?> map) {
+            this.map = new WeakReference<ReplicatedClusteredMap<?,?>>(map);
+        }
+
+        static void start(ReplicatedClusteredMap<?,?> map) {
+            final Purger purger = new Purger(map);
+            purger.future = ClusterManager.Scheduler.INSTANCE.scheduleWithFixedDelay(
+                    purger, PURGE_INTERVAL, PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            final ReplicatedClusteredMap<?,?> target = map.get();
+            if (target == null) {
+                future.cancel(false);
+                return;
+            }
+            try {
+                target.purge();
+            } catch (RuntimeException e) {
+                target.LOG.warn("cannot purge expired entries", e);
+            }
+        }
+    }
+
     public static enum MapActions {
         PUT,
-        REMOVE
+        REMOVE,
+        PUT_ALL,
+        REMOVE_ALL,
+        CLEAR,
+        TOUCH,
+        REMOVE_RANGE,
+        PUT_IF_ABSENT,
+        REPLACE,
+        REPLACE_IF,
+        REMOVE_IF,
+        COMPUTE,
+        MERGE,
+        EVICT
+    }
+
+    /**
+     * The evaluation of a conditional write.
+     */
+    private static final class Outcome<V> {
+        final V previous;
+        // the value to store, null to remove the key
+        final V value;
+        // what the write returns
+        final Object result;
+
+        Outcome(V previous, V value, Object result) {
+            this.previous = previous;
+            this.value = value;
+            this.result = result;
+        }
+
+        boolean isChange() {
+            return value != previous;
+        }
     }
 
     public static class MapPayload<K,V> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         private final K key;
         private final V value;
+        private final Map<K,V> entries;
+        private final Collection<K> keys;
+        private final KeyRange<K> range;
+        private final V expected;
+        private final Object function;
+        private final long timestamp;
 
         public MapPayload(K key, V value) {
+            this(key, value, 0);
+        }
+
+        public MapPayload(K key, V value, long timestamp) {
+            this.key = key;
+            this.value = value;
+            this.entries = null;
+            this.keys = null;
+            this.range = null;
+            this.expected = null;
+            this.function = null;
+            this.timestamp = timestamp;
+        }
+
+        public MapPayload(Map<K,V> entries) {
+            this(entries, 0);
+        }
+
+        public MapPayload(Map<K,V> entries, long timestamp) {
+            this.key = null;
+            this.value = null;
+            this.entries = entries;
+            this.keys = null;
+            this.range = null;
+            this.expected = null;
+            this.function = null;
+            this.timestamp = timestamp;
+        }
+
+        public MapPayload(Collection<K> keys) {
+            this(keys, 0);
+        }
+
+        public MapPayload(Collection<K> keys, long timestamp) {
+            this.key = null;
+            this.value = null;
+            this.entries = null;
+            this.keys = keys;
+            this.range = null;
+            this.expected = null;
+            this.function = null;
+            this.timestamp = timestamp;
+        }
+
+        public MapPayload(KeyRange<K> range) {
+            this.key = null;
+            this.value = null;
+            this.entries = null;
+            this.keys = null;
+            this.range = range;
+            this.expected = null;
+            this.function = null;
+            this.timestamp = 0;
+        }
+
+        /**
+         * @param expected the value a conditional write expects
+         * @param function the {@link ClusterComputation} or {@link ClusterMerger}
+         */
+        public MapPayload(K key, V expected, V value, Object function) {
+            this(key, expected, value, function, System.currentTimeMillis());
+        }
+
+        public MapPayload(K key, V expected, V value, Object function, long timestamp) {
             this.key = key;
             this.value = value;
+            this.entries = null;
+            this.keys = null;
+            this.range = null;
+            this.expected = expected;
+            this.function = function;
+            this.timestamp = timestamp;
         }
 
         public K getKey() {
@@ -176,12 +1464,254 @@ final class ReplicatedClusteredMap<K,V> extends AbstractMap<K,V> implements
             return value;
         }
 
+        public Map<K,V> getEntries() {
+            return entries;
+        }
+
+        public Collection<K> getKeys() {
+            return keys;
+        }
+
+        KeyRange<K> getRange() {
+            return range;
+        }
+
+        public V getExpected() {
+            return expected;
+        }
+
+        public Object getFunction() {
+            return function;
+        }
+
+        /**
+         * @return the write time of the sending member, only used by bounded maps
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
         @Override
         public String toString() {
-            return "SetPayload{" +
+            if (entries != null) {
+                return "MapPayload{entries=" + entries.size() + '}';
+            }
+            if (keys != null) {
+                return "MapPayload{keys=" + keys.size() + '}';
+            }
+            if (range != null) {
+                return "MapPayload{range=" + range + '}';
+            }
+            return "MapPayload{" +
                     "key=" + key +
                     ", value=" + value +
                     '}';
         }
     }
+
+    /**
+     * Encodes the action as a single byte tag followed by the key and, for
+     * {@link MapActions#PUT}, the value. Bulk actions carry a varint count
+     * followed by the keys or entries. Bounded maps append the write time to
+     * puts; {@link MapActions#TOUCH} starts with the time of the digest.
+     * {@link MapActions#EVICT} carries the victims like a state, as the
+     * removals are conditional on their values.
+     * {@link MapActions#REMOVE_RANGE} carries a flag byte followed by the
+     * present bounds. Conditional writes carry the key, a flag byte telling
+     * which of the expected value, the value and the java serialized
+     * function follow, and the write time.
+     */
+    static final class MapCodec<K,V> implements ClusterCodec<MapActions,MapPayload<K,V>,Map<K,V>> {
+        private static final MapActions[] ACTIONS = MapActions.values();
+        private static final int RANGE_FROM = 1;
+        private static final int RANGE_FROM_INCLUSIVE = 2;
+        private static final int RANGE_TO = 4;
+        private static final int RANGE_TO_INCLUSIVE = 8;
+        private static final int WITH_EXPECTED = 1;
+        private static final int WITH_VALUE = 2;
+        private static final int WITH_FUNCTION = 4;
+        private static final Serializer<Object> FUNCTIONS = Serializers.javaSerializer();
+
+        private final Serializer<K> keySerializer;
+        private final Serializer<V> valueSerializer;
+        private final boolean timestamps;
+
+        MapCodec(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+            this(keySerializer, valueSerializer, false);
+        }
+
+        MapCodec(Serializer<K> keySerializer, Serializer<V> valueSerializer, boolean timestamps) {
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+            this.timestamps = timestamps;
+        }
+
+        @Override
+        public void writeUpdate(MapActions action, MapPayload<K,V> payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            switch (action) {
+                case PUT:
+                    keySerializer.write(payload.getKey(), out);
+                    valueSerializer.write(payload.getValue(), out);
+                    if (timestamps) {
+                        Varints.writeUnsignedLong(out, payload.getTimestamp());
+                    }
+                    break;
+                case REMOVE:
+                    keySerializer.write(payload.getKey(), out);
+                    break;
+                case PUT_ALL:
+                    writeState(payload.getEntries(), out);
+                    if (timestamps) {
+                        Varints.writeUnsignedLong(out, payload.getTimestamp());
+                    }
+                    break;
+                case EVICT:
+                    writeState(payload.getEntries(), out);
+                    break;
+                case TOUCH:
+                    Varints.writeUnsignedLong(out, payload.getTimestamp());
+                    writeKeys(payload.getKeys(), out);
+                    break;
+                case REMOVE_ALL:
+                    writeKeys(payload.getKeys(), out);
+                    break;
+                case REMOVE_RANGE:
+                    final KeyRange<K> range = payload.getRange();
+                    out.writeByte((range.getFrom() != null ? RANGE_FROM : 0)
+                            | (range.isFromInclusive() ? RANGE_FROM_INCLUSIVE : 0)
+                            | (range.getTo() != null ? RANGE_TO : 0)
+                            | (range.isToInclusive() ? RANGE_TO_INCLUSIVE : 0));
+                    if (range.getFrom() != null) {
+                        keySerializer.write(range.getFrom(), out);
+                    }
+                    if (range.getTo() != null) {
+                        keySerializer.write(range.getTo(), out);
+                    }
+                    break;
+                case PUT_IF_ABSENT:
+                case REPLACE:
+                case REPLACE_IF:
+                case REMOVE_IF:
+                case COMPUTE:
+                case MERGE:
+                    keySerializer.write(payload.getKey(), out);
+                    out.writeByte((payload.getExpected() != null ? WITH_EXPECTED : 0)
+                            | (payload.getValue() != null ? WITH_VALUE : 0)
+                            | (payload.getFunction() != null ? WITH_FUNCTION : 0));
+                    if (payload.getExpected() != null) {
+                        valueSerializer.write(payload.getExpected(), out);
+                    }
+                    if (payload.getValue() != null) {
+                        valueSerializer.write(payload.getValue(), out);
+                    }
+                    if (payload.getFunction() != null) {
+                        FUNCTIONS.write(payload.getFunction(), out);
+                    }
+                    Varints.writeUnsignedLong(out, payload.getTimestamp());
+                    break;
+                case CLEAR:
+                    break;
+                default:
+                    throw new UnsupportedOperationException(action.name());
+            }
+        }
+
+        @Override
+        public ClusterUpdate<MapActions,MapPayload<K,V>> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown map action " + tag);
+            }
+            final MapActions action = ACTIONS[tag];
+            final MapPayload<K,V> payload;
+            switch (action) {
+                case PUT:
+                    final K key = keySerializer.read(in);
+                    final V value = valueSerializer.read(in);
+                    payload = new MapPayload<K,V>(key, value, timestamps ? Varints.readUnsignedLong(in) : 0);
+                    break;
+                case REMOVE:
+                    payload = new MapPayload<K,V>(keySerializer.read(in), null);
+                    break;
+                case PUT_ALL:
+                    final Map<K,V> entries = readState(in);
+                    payload = new MapPayload<K,V>(entries, timestamps ? Varints.readUnsignedLong(in) : 0);
+                    break;
+                case EVICT:
+                    payload = new MapPayload<K,V>(readState(in));
+                    break;
+                case TOUCH:
+                    final long timestamp = Varints.readUnsignedLong(in);
+                    payload = new MapPayload<K,V>(readKeys(in), timestamp);
+                    break;
+                case REMOVE_ALL:
+                    payload = new MapPayload<K,V>(readKeys(in), 0);
+                    break;
+                case REMOVE_RANGE:
+                    final int flags = in.readUnsignedByte();
+                    final K from = (flags & RANGE_FROM) != 0 ? keySerializer.read(in) : null;
+                    final K to = (flags & RANGE_TO) != 0 ? keySerializer.read(in) : null;
+                    payload = new MapPayload<K,V>(new KeyRange<K>(from, (flags & RANGE_FROM_INCLUSIVE) != 0,
+                            to, (flags & RANGE_TO_INCLUSIVE) != 0));
+                    break;
+                case PUT_IF_ABSENT:
+                case REPLACE:
+                case REPLACE_IF:
+                case REMOVE_IF:
+                case COMPUTE:
+                case MERGE:
+                    final K conditionalKey = keySerializer.read(in);
+                    final int present = in.readUnsignedByte();
+                    final V expected = (present & WITH_EXPECTED) != 0 ? valueSerializer.read(in) : null;
+                    final V conditionalValue = (present & WITH_VALUE) != 0 ? valueSerializer.read(in) : null;
+                    final Object function = (present & WITH_FUNCTION) != 0 ? FUNCTIONS.read(in) : null;
+                    payload = new MapPayload<K,V>(conditionalKey, expected, conditionalValue, function,
+                            Varints.readUnsignedLong(in));
+                    break;
+                case CLEAR:
+                    payload = null;
+                    break;
+                default:
+                    throw new UnsupportedOperationException(action.name());
+            }
+            return new ClusterUpdate<MapActions,MapPayload<K,V>>(action, payload);
+        }
+
+        @Override
+        public void writeState(Map<K,V> state, DataOutput out) throws IOException {
+            Varints.writeUnsignedInt(out, state.size());
+            for (Entry<K,V> entry: state.entrySet()) {
+                keySerializer.write(entry.getKey(), out);
+                valueSerializer.write(entry.getValue(), out);
+            }
+        }
+
+        @Override
+        public Map<K,V> readState(DataInput in) throws IOException {
+            final int size = Varints.readUnsignedInt(in);
+            final Map<K,V> state = new ConcurrentHashMap<K,V>(Math.max(16, (int) (size / .75f) + 1));
+            for (int n = 0; n < size; n++) {
+                final K key = keySerializer.read(in);
+                state.put(key, valueSerializer.read(in));
+            }
+            return state;
+        }
+
+        private void writeKeys(Collection<K> keys, DataOutput out) throws IOException {
+            Varints.writeUnsignedInt(out, keys.size());
+            for (K key: keys) {
+                keySerializer.write(key, out);
+            }
+        }
+
+        private List<K> readKeys(DataInput in) throws IOException {
+            final int size = Varints.readUnsignedInt(in);
+            final List<K> keys = new ArrayList<K>(size);
+            for (int n = 0; n < size; n++) {
+                keys.add(keySerializer.read(in));
+            }
+            return keys;
+        }
+    }
 }
@@ -20,10 +20,18 @@ import org.jgroups.ChannelException;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implements a clustered {@link Set}.
@@ -33,17 +41,36 @@ import java.util.Set;
  */
 final class ReplicatedClusteredSet<T> extends AbstractSet<T> implements
         ClusteredSet<T>,
-        ClusterManaged<ReplicatedClusteredSet.SetActions,T,Set<T>> {
+        ClusterManaged<ReplicatedClusteredSet.SetActions,ReplicatedClusteredSet.SetPayload<T>,Set<T>> {
 
     private final Log LOG = LogFactory.getLog(ReplicatedClusteredMap.class);
 
-    private Set<T> localSet = new HashSet<T>();
+    private static final Object NULL_ELEMENT = new Object();
 
-    private final ClusterManager<ReplicatedClusteredSet.SetActions,T,Set<T>> clusterManager;
+    private final Object lock = new Object();
+    private Set<T> localSet = new ConcurrentSet<T>(0);
+    private Set<T> incomingState;
+
+    private final ClusterManager<ReplicatedClusteredSet.SetActions,SetPayload<T>,Set<T>> clusterManager;
     private ClusterUpdateCallback updateCallback = null;
 
     public ReplicatedClusteredSet(String clusterName, Channel channel) throws ChannelException {
-        clusterManager = new ClusterManager<SetActions,T,Set<T>>(clusterName, channel, this);
+        this(clusterName, channel, Serializers.<T>javaSerializer());
+    }
+
+    public ReplicatedClusteredSet(String clusterName, Channel channel, Serializer<T> serializer) throws ChannelException {
+        this(clusterName, channel, serializer, new ClusterConfiguration());
+    }
+
+    public ReplicatedClusteredSet(String clusterName, Channel channel, Serializer<T> serializer,
+                                  ClusterConfiguration configuration) throws ChannelException {
+        this(new ClusterContext(clusterName, channel), clusterName, serializer, configuration);
+    }
+
+    public ReplicatedClusteredSet(ClusterContext context, String name, Serializer<T> serializer,
+                                  ClusterConfiguration configuration) throws ChannelException {
+        clusterManager = new ClusterManager<SetActions,SetPayload<T>,Set<T>>(
+                context, name, this, new SetCodec<T>(serializer), configuration);
     }
 
     @Override
@@ -57,35 +84,138 @@ final class ReplicatedClusteredSet<T> extends AbstractSet<T> implements
     }
 
     @Override
-    public void handleUpdate(ReplicatedClusteredSet.SetActions action, T payload) {
+    public Object handleUpdate(ReplicatedClusteredSet.SetActions action, SetPayload<T> payload) {
         if (LOG.isTraceEnabled())
             LOG.trace("handleUpdate(" + action + ", " + payload + ")");
+        final boolean changed;
+        synchronized (lock) {
+            changed = applyUpdate(action, payload);
+        }
+        if (updateCallback != null) {
+            clusterManager.notifyCallback(updateCallback);
+        }
+        return changed;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<SetActions,SetPayload<T>>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        synchronized (lock) {
+            for (ClusterUpdate<SetActions,SetPayload<T>> update: updates) {
+                applyUpdate(update.getActionIdentifier(), update.getPayload());
+            }
+        }
+        if (updateCallback != null) {
+            clusterManager.notifyCallback(updateCallback);
+        }
+    }
+
+    /**
+     * @return whether the set changed
+     */
+    private boolean applyUpdate(ReplicatedClusteredSet.SetActions action, SetPayload<T> payload) {
         switch (action) {
             case ADD:
-                localSet.add(payload);
-                break;
+                return localSet.add(payload.getElement());
             case REMOVE:
-                localSet.remove(payload);
-                break;
+                return localSet.remove(payload.getElement());
+            case ADD_ALL:
+                return localSet.addAll(payload.getElements());
+            case REMOVE_ALL:
+                boolean changed = false;
+                for (T element: payload.getElements()) {
+                    changed |= localSet.remove(element);
+                }
+                return changed;
+            case CLEAR:
+                final boolean empty = localSet.isEmpty();
+                localSet.clear();
+                return !empty;
+            default:
+                throw new UnsupportedOperationException(action.name());
         }
-        if (updateCallback != null) {
-            updateCallback.clusterUpdated();
+    }
+
+    @Override
+    public Object coalesceKey(ReplicatedClusteredSet.SetActions action, SetPayload<T> payload) {
+        switch (action) {
+            case ADD:
+            case REMOVE:
+                // a later ADD or REMOVE of the same element overrides the earlier one
+                return payload.getElement() == null ? NULL_ELEMENT : payload.getElement();
+            default:
+                return null;
         }
     }
 
     @Override
     public void updateClusterState(Set<T> state) {
-        localSet = state;
+        final Set<T> newSet;
+        if (state instanceof ConcurrentSet) {
+            newSet = state;
+        } else {
+            newSet = new ConcurrentSet<T>(state.size());
+            newSet.addAll(state);
+        }
+        synchronized (lock) {
+            localSet = newSet;
+        }
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        synchronized (lock) {
+            action.run();
+        }
     }
 
     @Override
     public Set<T> provideClusterState() {
-        return localSet;
+        return new HashSet<T>(localSet);
+    }
+
+    @Override
+    public Iterator<Set<T>> provideClusterStateChunks(int chunkSize) {
+        // the set stays locked until the last chunk, so no copy is needed
+        return new StateChunkIterator<T,Set<T>>(localSet.iterator(), chunkSize) {
+            @Override
+            protected Set<T> newChunk(int expectedSize) {
+                return new HashSet<T>((int) (expectedSize / .75f) + 1);
+            }
+
+            @Override
+            protected void add(Set<T> chunk, T element) {
+                chunk.add(element);
+            }
+        };
+    }
+
+    @Override
+    public void beginClusterState() {
+        incomingState = new ConcurrentSet<T>(0);
+    }
+
+    @Override
+    public void applyClusterStateChunk(Set<T> chunk) {
+        incomingState.addAll(chunk);
+    }
+
+    @Override
+    public void endClusterState() {
+        synchronized (lock) {
+            localSet = incomingState;
+        }
+        incomingState = null;
     }
 
     @Override
     public Iterator<T> iterator() {
-        final Iterator<T> iterator = localSet.iterator();
+        final Iterator<T> iterator;
+        synchronized (lock) {
+            // weakly consistent, concurrent changes never make it fail
+            iterator = localSet.iterator();
+        }
         return new Iterator<T>() {
             private T next;
 
@@ -101,36 +231,394 @@ final class ReplicatedClusteredSet<T> extends AbstractSet<T> implements
 
             @Override
             public void remove() {
-                clusterManager.sendUpdate(SetActions.REMOVE, next);
-                iterator.remove();
+                ReplicatedClusteredSet.this.remove(next);
             }
         };
     }
 
     @Override
     public int size() {
-        return localSet.size();
+        synchronized (lock) {
+            return localSet.size();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        synchronized (lock) {
+            return localSet.contains(o);
+        }
     }
 
     @Override
     public boolean add(T t) {
-        boolean inserted = localSet.add(t);
-        if (inserted) {
-            clusterManager.sendUpdate(SetActions.ADD, t);
+        if (clusterManager.isOrdered()) {
+            return !contains(t) && clusterManager.<Boolean>sendOrdered(SetActions.ADD, new SetPayload<T>(t));
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            if (!localSet.add(t)) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(SetActions.ADD, new SetPayload<T>(t));
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) {
+            return false;
+        }
+        @SuppressWarnings("unchecked")
+        final T element = (T) o;
+        if (clusterManager.isOrdered()) {
+            return clusterManager.<Boolean>sendOrdered(SetActions.REMOVE, new SetPayload<T>(element));
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            if (!localSet.remove(o)) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(SetActions.REMOVE, new SetPayload<T>(element));
         }
-        return inserted;
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> addAsync(T element) {
+        return addAsync(element, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> addAsync(T element, ReplicationLevel level) {
+        synchronized (lock) {
+            if (clusterManager.isOrdered()) {
+                if (localSet.contains(element)) {
+                    return SettableReplicationFuture.completed(Boolean.FALSE);
+                }
+                return clusterManager.sendOrderedAsync(SetActions.ADD, new SetPayload<T>(element), level);
+            }
+            if (!localSet.add(element)) {
+                return SettableReplicationFuture.completed(Boolean.FALSE);
+            }
+            return clusterManager.sendUpdateAsync(SetActions.ADD, new SetPayload<T>(element), level, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> removeAsync(Object element) {
+        return removeAsync(element, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> removeAsync(Object element, ReplicationLevel level) {
+        @SuppressWarnings("unchecked")
+        final T typedElement = (T) element;
+        synchronized (lock) {
+            if (!localSet.contains(element)) {
+                return SettableReplicationFuture.completed(Boolean.FALSE);
+            }
+            if (clusterManager.isOrdered()) {
+                return clusterManager.sendOrderedAsync(SetActions.REMOVE, new SetPayload<T>(typedElement), level);
+            }
+            final ReplicationFuture<Boolean> future = clusterManager.sendUpdateAsync(
+                    SetActions.REMOVE, new SetPayload<T>(typedElement), level, Boolean.TRUE);
+            localSet.remove(element);
+            return future;
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        if (clusterManager.isOrdered()) {
+            final List<T> added = new ArrayList<T>(c);
+            return !added.isEmpty()
+                    && clusterManager.<Boolean>sendOrdered(SetActions.ADD_ALL, new SetPayload<T>(added));
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            final List<T> added = new ArrayList<T>();
+            for (T element: c) {
+                if (localSet.add(element)) {
+                    added.add(element);
+                }
+            }
+            if (added.isEmpty()) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(SetActions.ADD_ALL, new SetPayload<T>(added));
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        return removeMatching(c, true);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        return removeMatching(c, false);
+    }
+
+    /**
+     * Removes all elements which are or are not contained in the collection
+     * with a single update.
+     *
+     * @return whether the set changed
+     */
+    private boolean removeMatching(Collection<?> c, boolean contained) {
+        if (clusterManager.isOrdered()) {
+            final List<T> removed = matching(c, contained);
+            return !removed.isEmpty()
+                    && clusterManager.<Boolean>sendOrdered(SetActions.REMOVE_ALL, new SetPayload<T>(removed));
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            final List<T> removed = matching(c, contained);
+            if (removed.isEmpty()) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(SetActions.REMOVE_ALL, new SetPayload<T>(removed));
+            for (T element: removed) {
+                localSet.remove(element);
+            }
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    private List<T> matching(Collection<?> c, boolean contained) {
+        synchronized (lock) {
+            final List<T> elements = new ArrayList<T>();
+            for (T element: localSet) {
+                if (c.contains(element) == contained) {
+                    elements.add(element);
+                }
+            }
+            return elements;
+        }
+    }
+
+    @Override
+    public void clear() {
+        if (clusterManager.isOrdered()) {
+            if (!isEmpty()) {
+                clusterManager.sendOrdered(SetActions.CLEAR, null);
+            }
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        synchronized (lock) {
+            if (localSet.isEmpty()) {
+                return;
+            }
+            replicated = clusterManager.sendUpdateDeferred(SetActions.CLEAR, null);
+            localSet.clear();
+        }
+        clusterManager.await(replicated);
     }
 
     @Override
     public String toString() {
         return "ReplicatedClusteredSet{" +
-                "setSize=" + localSet.size() +
+                "setSize=" + size() +
                 ", cluster=" + clusterManager +
                 '}';
     }
 
     public static enum SetActions {
         ADD,
-        REMOVE
+        REMOVE,
+        ADD_ALL,
+        REMOVE_ALL,
+        CLEAR
+    }
+
+    public static class SetPayload<T> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final T element;
+        private final Collection<T> elements;
+
+        public SetPayload(T element) {
+            this.element = element;
+            this.elements = null;
+        }
+
+        public SetPayload(Collection<T> elements) {
+            this.element = null;
+            this.elements = elements;
+        }
+
+        public T getElement() {
+            return element;
+        }
+
+        public Collection<T> getElements() {
+            return elements;
+        }
+
+        @Override
+        public String toString() {
+            if (elements != null) {
+                return "SetPayload{elements=" + elements.size() + '}';
+            }
+            return "SetPayload{" +
+                    "element=" + element +
+                    '}';
+        }
+    }
+
+    /**
+     * Encodes the action as a single byte tag followed by the element. Bulk
+     * actions carry a varint count followed by the elements.
+     */
+    static final class SetCodec<T> implements ClusterCodec<SetActions,SetPayload<T>,Set<T>> {
+        private static final SetActions[] ACTIONS = SetActions.values();
+
+        private final Serializer<T> serializer;
+
+        SetCodec(Serializer<T> serializer) {
+            this.serializer = serializer;
+        }
+
+        @Override
+        public void writeUpdate(SetActions action, SetPayload<T> payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            switch (action) {
+                case ADD:
+                case REMOVE:
+                    serializer.write(payload.getElement(), out);
+                    break;
+                case ADD_ALL:
+                case REMOVE_ALL:
+                    Varints.writeUnsignedInt(out, payload.getElements().size());
+                    for (T element: payload.getElements()) {
+                        serializer.write(element, out);
+                    }
+                    break;
+                case CLEAR:
+                    break;
+                default:
+                    throw new UnsupportedOperationException(action.name());
+            }
+        }
+
+        @Override
+        public ClusterUpdate<SetActions,SetPayload<T>> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown set action " + tag);
+            }
+            final SetActions action = ACTIONS[tag];
+            final SetPayload<T> payload;
+            switch (action) {
+                case ADD:
+                case REMOVE:
+                    payload = new SetPayload<T>(serializer.read(in));
+                    break;
+                case ADD_ALL:
+                case REMOVE_ALL:
+                    final int size = Varints.readUnsignedInt(in);
+                    final List<T> elements = new ArrayList<T>(size);
+                    for (int n = 0; n < size; n++) {
+                        elements.add(serializer.read(in));
+                    }
+                    payload = new SetPayload<T>(elements);
+                    break;
+                case CLEAR:
+                    payload = null;
+                    break;
+                default:
+                    throw new UnsupportedOperationException(action.name());
+            }
+            return new ClusterUpdate<SetActions,SetPayload<T>>(action, payload);
+        }
+
+        @Override
+        public void writeState(Set<T> state, DataOutput out) throws IOException {
+            Varints.writeUnsignedInt(out, state.size());
+            for (T element: state) {
+                serializer.write(element, out);
+            }
+        }
+
+        @Override
+        public Set<T> readState(DataInput in) throws IOException {
+            final int size = Varints.readUnsignedInt(in);
+            final Set<T> state = new ConcurrentSet<T>(size);
+            for (int n = 0; n < size; n++) {
+                state.add(serializer.read(in));
+            }
+            return state;
+        }
+    }
+
+    /**
+     * A set with weakly consistent iterators which accepts {@code null}.
+     */
+    private static final class ConcurrentSet<T> extends AbstractSet<T> {
+        private final ConcurrentHashMap<Object, Boolean> elements;
+
+        ConcurrentSet(int expectedSize) {
+            elements = new ConcurrentHashMap<Object, Boolean>(Math.max(16, (int) (expectedSize / .75f) + 1));
+        }
+
+        private static Object mask(Object element) {
+            return element == null ? NULL_ELEMENT : element;
+        }
+
+        @Override
+        public boolean add(T element) {
+            return elements.putIfAbsent(mask(element), Boolean.TRUE) == null;
+        }
+
+        @Override
+        public boolean remove(Object element) {
+            return elements.remove(mask(element)) != null;
+        }
+
+        @Override
+        public boolean contains(Object element) {
+            return elements.containsKey(mask(element));
+        }
+
+        @Override
+        public int size() {
+            return elements.size();
+        }
+
+        @Override
+        public void clear() {
+            elements.clear();
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            final Iterator<Object> iterator = elements.keySet().iterator();
+            return new Iterator<T>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public T next() {
+                    final Object element = iterator.next();
+                    return element == NULL_ELEMENT ? null : (T) element;
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                }
+            };
+        }
     }
 }
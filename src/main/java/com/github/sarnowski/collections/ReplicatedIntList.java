@@ -0,0 +1,449 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Implements a {@link ClusteredIntList} on a growing {@code int} array.
+ * Updates are encoded with fixed width indices and elements.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+final class ReplicatedIntList implements
+        ClusteredIntList,
+        ClusterManaged<ReplicatedIntList.ListActions,ReplicatedIntList.ListPayload,int[]> {
+
+    private static final Log LOG = LogFactory.getLog(ReplicatedIntList.class);
+
+    private static final int[] EMPTY = new int[0];
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int[] elements = EMPTY;
+    private int size = 0;
+    private int[] incomingState;
+    private int incomingSize;
+
+    private final ClusterManager<ListActions,ListPayload,int[]> clusterManager;
+    private volatile ClusterUpdateCallback updateCallback = null;
+
+    public ReplicatedIntList(ClusterContext context, String name, ClusterConfiguration configuration)
+            throws ChannelException {
+        clusterManager = new ClusterManager<ListActions,ListPayload,int[]>(
+                context, name, this, new ListCodec(), configuration);
+    }
+
+    @Override
+    public Channel getChannel() {
+        return clusterManager.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        updateCallback = callback;
+    }
+
+    @Override
+    public Object handleUpdate(ListActions action, ListPayload payload) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdate(" + action + ", " + payload + ")");
+        final Object result;
+        lock.writeLock().lock();
+        try {
+            result = applyUpdate(action, payload);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+        return result;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<ListActions,ListPayload>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        lock.writeLock().lock();
+        try {
+            for (ClusterUpdate<ListActions,ListPayload> update: updates) {
+                try {
+                    applyUpdate(update.getActionIdentifier(), update.getPayload());
+                /* CHECKSTYLE:OFF */
+                } catch (RuntimeException e) {
+                /* CHECKSTYLE:ON */
+                    // the rest of the batch still has to be applied
+                    LOG.error("cannot apply " + update.getActionIdentifier() + " " + update.getPayload(), e);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+    }
+
+    /**
+     * @return the replaced or removed element of a SET or REMOVE, {@code null} otherwise
+     */
+    private Integer applyUpdate(ListActions action, ListPayload payload) {
+        switch (action) {
+            case SET:
+                checkIndex(payload.index, size - 1);
+                final int replaced = elements[payload.index];
+                elements[payload.index] = payload.element;
+                return replaced;
+            case INSERT:
+                final int index = payload.index < 0 ? size : payload.index;
+                checkIndex(index, size);
+                if (size == elements.length) {
+                    elements = Arrays.copyOf(elements, Math.max(10, size + (size >> 1)));
+                }
+                System.arraycopy(elements, index, elements, index + 1, size - index);
+                elements[index] = payload.element;
+                size++;
+                return null;
+            case REMOVE:
+                checkIndex(payload.index, size - 1);
+                final int removed = elements[payload.index];
+                System.arraycopy(elements, payload.index + 1, elements, payload.index, size - payload.index - 1);
+                size--;
+                return removed;
+            case CLEAR:
+                elements = EMPTY;
+                size = 0;
+                return null;
+            default:
+                throw new UnsupportedOperationException(action.name());
+        }
+    }
+
+    private void checkIndex(int index, int maximum) {
+        if (index < 0 || index > maximum) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    @Override
+    public Object coalesceKey(ListActions action, ListPayload payload) {
+        // inserts and removals shift indices, so nothing can be coalesced safely
+        return null;
+    }
+
+    @Override
+    public void updateClusterState(int[] state) {
+        lock.writeLock().lock();
+        try {
+            elements = state;
+            size = state.length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        lock.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int[] provideClusterState() {
+        return toArray();
+    }
+
+    @Override
+    public Iterator<int[]> provideClusterStateChunks(final int chunkSize) {
+        // the list stays locked until the last chunk, so no copy is needed
+        final int[] state = elements;
+        final int length = size;
+        return new Iterator<int[]>() {
+            private int offset = 0;
+
+            @Override
+            public boolean hasNext() {
+                return offset < length;
+            }
+
+            @Override
+            public int[] next() {
+                if (offset >= length) {
+                    throw new NoSuchElementException();
+                }
+                final int end = Math.min(length, offset + chunkSize);
+                final int[] chunk = Arrays.copyOfRange(state, offset, end);
+                offset = end;
+                return chunk;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void beginClusterState() {
+        incomingState = EMPTY;
+        incomingSize = 0;
+    }
+
+    @Override
+    public void applyClusterStateChunk(int[] chunk) {
+        if (incomingSize + chunk.length > incomingState.length) {
+            incomingState = Arrays.copyOf(incomingState, Math.max(incomingSize + chunk.length, incomingSize * 2));
+        }
+        System.arraycopy(chunk, 0, incomingState, incomingSize, chunk.length);
+        incomingSize += chunk.length;
+    }
+
+    @Override
+    public void endClusterState() {
+        updateClusterState(Arrays.copyOf(incomingState, incomingSize));
+        incomingState = null;
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public int get(int index) {
+        lock.readLock().lock();
+        try {
+            checkIndex(index, size - 1);
+            return elements[index];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int set(int index, int element) {
+        return update(ListActions.SET, new ListPayload(index, element));
+    }
+
+    @Override
+    public void add(int element) {
+        if (clusterManager.isOrdered()) {
+            // the size may change until the update gets delivered
+            clusterManager.sendOrdered(ListActions.INSERT, new ListPayload(-1, element));
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        lock.writeLock().lock();
+        try {
+            final ListPayload payload = new ListPayload(size, element);
+            replicated = clusterManager.sendUpdateDeferred(ListActions.INSERT, payload);
+            applyUpdate(ListActions.INSERT, payload);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        clusterManager.await(replicated);
+    }
+
+    @Override
+    public void insert(int index, int element) {
+        update(ListActions.INSERT, new ListPayload(index, element));
+    }
+
+    @Override
+    public int removeAt(int index) {
+        return update(ListActions.REMOVE, new ListPayload(index, 0));
+    }
+
+    @Override
+    public void clear() {
+        update(ListActions.CLEAR, null);
+    }
+
+    /**
+     * Applies and replicates an update after validating its index.
+     *
+     * @return the replaced or removed element, 0 otherwise
+     */
+    private int update(ListActions action, ListPayload payload) {
+        if (payload != null && payload.index < 0) {
+            // negative indices are reserved for appending
+            throw new IndexOutOfBoundsException("Index: " + payload.index);
+        }
+        if (clusterManager.isOrdered()) {
+            final Integer result = clusterManager.sendOrdered(action, payload);
+            return result == null ? 0 : result;
+        }
+        final ReplicationFuture<Void> replicated;
+        final Integer result;
+        lock.writeLock().lock();
+        try {
+            if (payload != null) {
+                checkIndex(payload.index, action == ListActions.INSERT ? size : size - 1);
+            }
+            replicated = clusterManager.sendUpdateDeferred(action, payload);
+            result = applyUpdate(action, payload);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        clusterManager.await(replicated);
+        return result == null ? 0 : result;
+    }
+
+    @Override
+    public int[] toArray() {
+        lock.readLock().lock();
+        try {
+            return Arrays.copyOf(elements, size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicatedIntList{" +
+                "listSize=" + size() +
+                ", cluster=" + clusterManager +
+                '}';
+    }
+
+    public static enum ListActions {
+        SET,
+        INSERT,
+        REMOVE,
+        CLEAR
+    }
+
+    /**
+     * An index with an element, an index of -1 appends.
+     */
+    static final class ListPayload {
+        final int index;
+        final int element;
+
+        ListPayload(int index, int element) {
+            this.index = index;
+            this.element = element;
+        }
+
+        @Override
+        public String toString() {
+            return index + ":" + element;
+        }
+    }
+
+    /**
+     * Encodes the action as a single byte tag followed by the index and, for
+     * {@link ListActions#SET} and {@link ListActions#INSERT}, the element,
+     * both as 4 bytes. The state is the number of elements followed by the
+     * elements.
+     */
+    static final class ListCodec implements ClusterCodec<ListActions,ListPayload,int[]> {
+        private static final ListActions[] ACTIONS = ListActions.values();
+
+        @Override
+        public void writeUpdate(ListActions action, ListPayload payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            switch (action) {
+                case SET:
+                case INSERT:
+                    out.writeInt(payload.index);
+                    out.writeInt(payload.element);
+                    break;
+                case REMOVE:
+                    out.writeInt(payload.index);
+                    break;
+                case CLEAR:
+                    break;
+                default:
+                    throw new UnsupportedOperationException(action.name());
+            }
+        }
+
+        @Override
+        public ClusterUpdate<ListActions,ListPayload> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown list action " + tag);
+            }
+            final ListActions action = ACTIONS[tag];
+            final ListPayload payload;
+            switch (action) {
+                case SET:
+                case INSERT:
+                    final int index = in.readInt();
+                    payload = new ListPayload(index, in.readInt());
+                    break;
+                case REMOVE:
+                    payload = new ListPayload(in.readInt(), 0);
+                    break;
+                case CLEAR:
+                    payload = null;
+                    break;
+                default:
+                    throw new UnsupportedOperationException(action.name());
+            }
+            return new ClusterUpdate<ListActions,ListPayload>(action, payload);
+        }
+
+        @Override
+        public void writeState(int[] state, DataOutput out) throws IOException {
+            out.writeInt(state.length);
+            for (int element: state) {
+                out.writeInt(element);
+            }
+        }
+
+        @Override
+        public int[] readState(DataInput in) throws IOException {
+            final int[] state = new int[in.readInt()];
+            for (int n = 0; n < state.length; n++) {
+                state[n] = in.readInt();
+            }
+            return state;
+        }
+    }
+}
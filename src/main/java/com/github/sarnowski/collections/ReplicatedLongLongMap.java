@@ -0,0 +1,438 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Implements a {@link ClusteredLongLongMap} on a {@link LongHashTable}.
+ * Updates are encoded with fixed width keys and values.
+ *
+ * <p>
+ * Reads share a read lock, writes take the write lock, so that sending and
+ * applying an update happen atomically.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+final class ReplicatedLongLongMap implements
+        ClusteredLongLongMap,
+        ClusterManaged<ReplicatedLongLongMap.MapActions,ReplicatedLongLongMap.MapPayload,LongHashTable> {
+
+    private static final Log LOG = LogFactory.getLog(ReplicatedLongLongMap.class);
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private LongHashTable table = new LongHashTable(true, 0);
+    private LongHashTable incomingState;
+
+    private final ClusterManager<MapActions,MapPayload,LongHashTable> clusterManager;
+    private volatile ClusterUpdateCallback updateCallback = null;
+
+    public ReplicatedLongLongMap(ClusterContext context, String name, ClusterConfiguration configuration)
+            throws ChannelException {
+        clusterManager = new ClusterManager<MapActions,MapPayload,LongHashTable>(
+                context, name, this, new MapCodec(), configuration);
+    }
+
+    @Override
+    public Channel getChannel() {
+        return clusterManager.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        updateCallback = callback;
+    }
+
+    @Override
+    public Object handleUpdate(MapActions action, MapPayload payload) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdate(" + action + ", " + payload + ")");
+        final Object result;
+        lock.writeLock().lock();
+        try {
+            result = applyUpdate(action, payload);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+        return result;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<MapActions,MapPayload>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        lock.writeLock().lock();
+        try {
+            for (ClusterUpdate<MapActions,MapPayload> update: updates) {
+                applyUpdate(update.getActionIdentifier(), update.getPayload());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+    }
+
+    /**
+     * @return the new value of an ADD, whether a REMOVE removed the key, {@code null} otherwise
+     */
+    private Object applyUpdate(MapActions action, MapPayload payload) {
+        switch (action) {
+            case PUT:
+                table.put(payload.key, payload.value);
+                return null;
+            case ADD:
+                return table.add(payload.key, payload.value);
+            case REMOVE:
+                return table.remove(payload.key);
+            case CLEAR:
+                table.clear();
+                return null;
+            default:
+                throw new UnsupportedOperationException(action.name());
+        }
+    }
+
+    @Override
+    public Object coalesceKey(MapActions action, MapPayload payload) {
+        switch (action) {
+            case PUT:
+            case REMOVE:
+                // a later PUT or REMOVE of the same key overrides the earlier one
+                return payload.key;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void updateClusterState(LongHashTable state) {
+        lock.writeLock().lock();
+        try {
+            table = state;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        lock.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public LongHashTable provideClusterState() {
+        lock.readLock().lock();
+        try {
+            return table.copy();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<LongHashTable> provideClusterStateChunks(int chunkSize) {
+        // the table stays locked until the last chunk, so no copy is needed
+        return table.chunks(chunkSize);
+    }
+
+    @Override
+    public void beginClusterState() {
+        incomingState = new LongHashTable(true, 0);
+    }
+
+    @Override
+    public void applyClusterStateChunk(LongHashTable chunk) {
+        chunk.forEach(new LongHashTable.Visitor() {
+            @Override
+            public void visit(long key, long value) {
+                incomingState.put(key, value);
+            }
+        });
+    }
+
+    @Override
+    public void endClusterState() {
+        updateClusterState(incomingState);
+        incomingState = null;
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return table.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        lock.readLock().lock();
+        try {
+            return table.contains(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long get(long key, long defaultValue) {
+        lock.readLock().lock();
+        try {
+            return table.get(key, defaultValue);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(long key, long value) {
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(MapActions.PUT, new MapPayload(key, value));
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        lock.writeLock().lock();
+        try {
+            replicated = clusterManager.sendUpdateDeferred(MapActions.PUT, new MapPayload(key, value));
+            table.put(key, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        clusterManager.await(replicated);
+    }
+
+    @Override
+    public long addAndGet(long key, long delta) {
+        if (clusterManager.isOrdered()) {
+            return clusterManager.<Long>sendOrdered(MapActions.ADD, new MapPayload(key, delta));
+        }
+        final ReplicationFuture<Void> replicated;
+        final long value;
+        lock.writeLock().lock();
+        try {
+            replicated = clusterManager.sendUpdateDeferred(MapActions.ADD, new MapPayload(key, delta));
+            value = table.add(key, delta);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        clusterManager.await(replicated);
+        return value;
+    }
+
+    @Override
+    public boolean remove(long key) {
+        if (!containsKey(key)) {
+            return false;
+        }
+        if (clusterManager.isOrdered()) {
+            return clusterManager.<Boolean>sendOrdered(MapActions.REMOVE, new MapPayload(key, 0));
+        }
+        final ReplicationFuture<Void> replicated;
+        lock.writeLock().lock();
+        try {
+            if (!table.contains(key)) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(MapActions.REMOVE, new MapPayload(key, 0));
+            table.remove(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        if (clusterManager.isOrdered()) {
+            clusterManager.sendOrdered(MapActions.CLEAR, null);
+            return;
+        }
+        final ReplicationFuture<Void> replicated;
+        lock.writeLock().lock();
+        try {
+            if (table.size() == 0) {
+                return;
+            }
+            replicated = clusterManager.sendUpdateDeferred(MapActions.CLEAR, null);
+            table.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        clusterManager.await(replicated);
+    }
+
+    @Override
+    public long[] keys() {
+        lock.readLock().lock();
+        try {
+            return table.keys();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicatedLongLongMap{" +
+                "mapSize=" + size() +
+                ", cluster=" + clusterManager +
+                '}';
+    }
+
+    public static enum MapActions {
+        PUT,
+        ADD,
+        REMOVE,
+        CLEAR
+    }
+
+    /**
+     * A key with a value or, for {@link MapActions#ADD}, a delta.
+     */
+    static final class MapPayload {
+        final long key;
+        final long value;
+
+        MapPayload(long key, long value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * Encodes the action as a single byte tag followed by the key and, for
+     * {@link MapActions#PUT} and {@link MapActions#ADD}, the value, both as
+     * 8 bytes. The state is the number of entries followed by the entries.
+     */
+    static final class MapCodec implements ClusterCodec<MapActions,MapPayload,LongHashTable> {
+        private static final MapActions[] ACTIONS = MapActions.values();
+
+        @Override
+        public void writeUpdate(MapActions action, MapPayload payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            switch (action) {
+                case PUT:
+                case ADD:
+                    out.writeLong(payload.key);
+                    out.writeLong(payload.value);
+                    break;
+                case REMOVE:
+                    out.writeLong(payload.key);
+                    break;
+                case CLEAR:
+                    break;
+                default:
+                    throw new UnsupportedOperationException(action.name());
+            }
+        }
+
+        @Override
+        public ClusterUpdate<MapActions,MapPayload> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown map action " + tag);
+            }
+            final MapActions action = ACTIONS[tag];
+            final MapPayload payload;
+            switch (action) {
+                case PUT:
+                case ADD:
+                    final long key = in.readLong();
+                    payload = new MapPayload(key, in.readLong());
+                    break;
+                case REMOVE:
+                    payload = new MapPayload(in.readLong(), 0);
+                    break;
+                case CLEAR:
+                    payload = null;
+                    break;
+                default:
+                    throw new UnsupportedOperationException(action.name());
+            }
+            return new ClusterUpdate<MapActions,MapPayload>(action, payload);
+        }
+
+        @Override
+        public void writeState(LongHashTable state, final DataOutput out) throws IOException {
+            out.writeInt(state.size());
+            final IOException[] failure = new IOException[1];
+            state.forEach(new LongHashTable.Visitor() {
+                @Override
+                public void visit(long key, long value) {
+                    if (failure[0] == null) {
+                        try {
+                            out.writeLong(key);
+                            out.writeLong(value);
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+
+        @Override
+        public LongHashTable readState(DataInput in) throws IOException {
+            final int size = in.readInt();
+            final LongHashTable state = new LongHashTable(true, size);
+            for (int n = 0; n < size; n++) {
+                final long key = in.readLong();
+                state.put(key, in.readLong());
+            }
+            return state;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Implements a {@link ClusteredLongSet} on a {@link LongHashTable} without
+ * values. Updates are encoded with fixed width elements.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+final class ReplicatedLongSet implements
+        ClusteredLongSet,
+        ClusterManaged<ReplicatedLongSet.SetActions,Long,LongHashTable> {
+
+    private static final Log LOG = LogFactory.getLog(ReplicatedLongSet.class);
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private LongHashTable table = new LongHashTable(false, 0);
+    private LongHashTable incomingState;
+
+    private final ClusterManager<SetActions,Long,LongHashTable> clusterManager;
+    private volatile ClusterUpdateCallback updateCallback = null;
+
+    public ReplicatedLongSet(ClusterContext context, String name, ClusterConfiguration configuration)
+            throws ChannelException {
+        clusterManager = new ClusterManager<SetActions,Long,LongHashTable>(
+                context, name, this, new SetCodec(), configuration);
+    }
+
+    @Override
+    public Channel getChannel() {
+        return clusterManager.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        updateCallback = callback;
+    }
+
+    @Override
+    public Object handleUpdate(SetActions action, Long payload) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdate(" + action + ", " + payload + ")");
+        final Object result;
+        lock.writeLock().lock();
+        try {
+            result = applyUpdate(action, payload);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+        return result;
+    }
+
+    @Override
+    public void handleUpdates(List<ClusterUpdate<SetActions,Long>> updates) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("handleUpdates(" + updates.size() + ")");
+        lock.writeLock().lock();
+        try {
+            for (ClusterUpdate<SetActions,Long> update: updates) {
+                applyUpdate(update.getActionIdentifier(), update.getPayload());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        final ClusterUpdateCallback callback = updateCallback;
+        if (callback != null) {
+            clusterManager.notifyCallback(callback);
+        }
+    }
+
+    /**
+     * @return whether the update changed the set
+     */
+    private Boolean applyUpdate(SetActions action, Long payload) {
+        switch (action) {
+            case ADD:
+                return table.put(payload, 0);
+            case REMOVE:
+                return table.remove(payload);
+            case CLEAR:
+                final boolean changed = table.size() > 0;
+                table.clear();
+                return changed;
+            default:
+                throw new UnsupportedOperationException(action.name());
+        }
+    }
+
+    @Override
+    public Object coalesceKey(SetActions action, Long payload) {
+        // the last ADD or REMOVE of an element decides whether it is present
+        return action == SetActions.CLEAR ? null : payload;
+    }
+
+    @Override
+    public void updateClusterState(LongHashTable state) {
+        lock.writeLock().lock();
+        try {
+            table = state;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void runExclusively(Runnable action) {
+        lock.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public LongHashTable provideClusterState() {
+        lock.readLock().lock();
+        try {
+            return table.copy();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<LongHashTable> provideClusterStateChunks(int chunkSize) {
+        // the table stays locked until the last chunk, so no copy is needed
+        return table.chunks(chunkSize);
+    }
+
+    @Override
+    public void beginClusterState() {
+        incomingState = new LongHashTable(false, 0);
+    }
+
+    @Override
+    public void applyClusterStateChunk(LongHashTable chunk) {
+        for (long element: chunk.keys()) {
+            incomingState.put(element, 0);
+        }
+    }
+
+    @Override
+    public void endClusterState() {
+        updateClusterState(incomingState);
+        incomingState = null;
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return table.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean contains(long element) {
+        lock.readLock().lock();
+        try {
+            return table.contains(element);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean add(long element) {
+        if (contains(element)) {
+            return false;
+        }
+        return update(SetActions.ADD, element);
+    }
+
+    @Override
+    public boolean remove(long element) {
+        if (!contains(element)) {
+            return false;
+        }
+        return update(SetActions.REMOVE, element);
+    }
+
+    @Override
+    public void clear() {
+        if (isEmpty()) {
+            return;
+        }
+        update(SetActions.CLEAR, null);
+    }
+
+    /**
+     * Applies and replicates an update unless it would not change the set.
+     */
+    private boolean update(SetActions action, Long element) {
+        if (clusterManager.isOrdered()) {
+            return clusterManager.<Boolean>sendOrdered(action, element);
+        }
+        final ReplicationFuture<Void> replicated;
+        lock.writeLock().lock();
+        try {
+            final boolean changed;
+            switch (action) {
+                case ADD:
+                    changed = !table.contains(element);
+                    break;
+                case REMOVE:
+                    changed = table.contains(element);
+                    break;
+                default:
+                    changed = table.size() > 0;
+            }
+            if (!changed) {
+                return false;
+            }
+            replicated = clusterManager.sendUpdateDeferred(action, element);
+            applyUpdate(action, element);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        clusterManager.await(replicated);
+        return true;
+    }
+
+    @Override
+    public long[] toArray() {
+        lock.readLock().lock();
+        try {
+            return table.keys();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicatedLongSet{" +
+                "setSize=" + size() +
+                ", cluster=" + clusterManager +
+                '}';
+    }
+
+    public static enum SetActions {
+        ADD,
+        REMOVE,
+        CLEAR
+    }
+
+    /**
+     * Encodes the action as a single byte tag followed by the element as
+     * 8 bytes. The state is the number of elements followed by the elements.
+     */
+    static final class SetCodec implements ClusterCodec<SetActions,Long,LongHashTable> {
+        private static final SetActions[] ACTIONS = SetActions.values();
+
+        @Override
+        public void writeUpdate(SetActions action, Long payload, DataOutput out) throws IOException {
+            out.writeByte(action.ordinal());
+            if (action != SetActions.CLEAR) {
+                out.writeLong(payload);
+            }
+        }
+
+        @Override
+        public ClusterUpdate<SetActions,Long> readUpdate(DataInput in) throws IOException {
+            final int tag = in.readUnsignedByte();
+            if (tag >= ACTIONS.length) {
+                throw new IOException("unknown set action " + tag);
+            }
+            final SetActions action = ACTIONS[tag];
+            final Long payload = action == SetActions.CLEAR ? null : in.readLong();
+            return new ClusterUpdate<SetActions,Long>(action, payload);
+        }
+
+        @Override
+        public void writeState(LongHashTable state, DataOutput out) throws IOException {
+            final long[] elements = state.keys();
+            out.writeInt(elements.length);
+            for (long element: elements) {
+                out.writeLong(element);
+            }
+        }
+
+        @Override
+        public LongHashTable readState(DataInput in) throws IOException {
+            final int size = in.readInt();
+            final LongHashTable state = new LongHashTable(false, size);
+            for (int n = 0; n < size; n++) {
+                state.put(in.readLong(), 0);
+            }
+            return state;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/**
+ * Implements a {@link ClusteredNavigableMap} on top of a sorted
+ * {@link ReplicatedClusteredMap}. The map and all its views share the
+ * replicated map; a view only adds the bounds of its keys and its
+ * direction. Reads go to the local skip list, which is looked up anew for
+ * every call, so that views stay valid across state transfers.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> generic key type
+ * @param <V> generic value type
+ */
+final class ReplicatedNavigableMap<K,V> extends AbstractMap<K,V> implements ClusteredNavigableMap<K,V> {
+
+    private final ReplicatedClusteredMap<K,V> map;
+    private final KeyRange<K> range;
+    private final boolean descending;
+
+    /**
+     * @param comparator the order of the keys, {@code null} for their natural order
+     */
+    public ReplicatedNavigableMap(ClusterContext context, String name,
+                                  Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                  Comparator<? super K> comparator,
+                                  ClusterConfiguration configuration) throws ChannelException {
+        this(new ReplicatedClusteredMap<K,V>(context, name, keySerializer, valueSerializer, null, true, comparator,
+                configuration), KeyRange.<K>all(), false);
+    }
+
+    private ReplicatedNavigableMap(ReplicatedClusteredMap<K,V> map, KeyRange<K> range, boolean descending) {
+        this.map = map;
+        this.range = range;
+        this.descending = descending;
+    }
+
+    private ConcurrentNavigableMap<K,V> local() {
+        final ConcurrentNavigableMap<K,V> entries = range.of(map.navigableMap());
+        return descending ? entries.descendingMap() : entries;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean inRange(Object key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        return range.contains(map.comparator(), (K) key);
+    }
+
+    private K checked(K key) {
+        if (!inRange(key)) {
+            throw new IllegalArgumentException("key out of range");
+        }
+        return key;
+    }
+
+    private ReplicatedNavigableMap<K,V> narrow(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        return new ReplicatedNavigableMap<K,V>(map,
+                range.narrow(map.comparator(), from, fromInclusive, to, toInclusive), descending);
+    }
+
+    @Override
+    public Channel getChannel() {
+        return map.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        map.setUpdateCallback(callback);
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<K,V> listener) {
+        map.addEventListener(listener);
+    }
+
+    @Override
+    public void addEventListener(ClusterEventListener<K,V> listener, ClusterEventFilter<? super K> filter) {
+        map.addEventListener(listener, filter);
+    }
+
+    @Override
+    public void removeEventListener(ClusterEventListener<K,V> listener) {
+        map.removeEventListener(listener);
+    }
+
+    @Override
+    public ContinuousQuery<K,V> addContinuousQuery(ClusterPredicate<? super K,? super V> predicate,
+                                                   ClusterEventListener<K,V> listener) {
+        return map.addContinuousQuery(predicate, listener);
+    }
+
+    @Override
+    public int size() {
+        return local().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return local().isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return inRange(key) && map.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        return inRange(key) ? map.get(key) : null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return map.put(checked(key), value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return inRange(key) ? map.remove(key) : null;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (K key: m.keySet()) {
+            checked(key);
+        }
+        map.putAll(m);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return map.putIfAbsent(checked(key), value);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return inRange(key) ? map.replace(key, value) : null;
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return inRange(key) && map.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return inRange(key) && map.remove(key, value);
+    }
+
+    @Override
+    public V computeReplicated(K key, ClusterComputation<? super K,V> computation) {
+        return map.computeReplicated(checked(key), computation);
+    }
+
+    @Override
+    public V mergeReplicated(K key, V value, ClusterMerger<V> merger) {
+        return map.mergeReplicated(checked(key), value, merger);
+    }
+
+    /**
+     * Replicates a single range removal, or a clear for the whole map.
+     */
+    @Override
+    public void clear() {
+        map.removeRange(range);
+    }
+
+    @Override
+    public ReplicationFuture<V> putAsync(K key, V value) {
+        return map.putAsync(checked(key), value);
+    }
+
+    @Override
+    public ReplicationFuture<V> putAsync(K key, V value, ReplicationLevel level) {
+        return map.putAsync(checked(key), value, level);
+    }
+
+    @Override
+    public ReplicationFuture<V> removeAsync(Object key) {
+        return inRange(key) ? map.removeAsync(key) : SettableReplicationFuture.<V>completed(null);
+    }
+
+    @Override
+    public ReplicationFuture<V> removeAsync(Object key, ReplicationLevel level) {
+        return inRange(key) ? map.removeAsync(key, level) : SettableReplicationFuture.<V>completed(null);
+    }
+
+    @Override
+    public Set<Entry<K,V>> entrySet() {
+        return new AbstractSet<Entry<K,V>>() {
+            @Override
+            public Iterator<Entry<K,V>> iterator() {
+                final Iterator<Entry<K,V>> iterator = local().entrySet().iterator();
+                return new Iterator<Entry<K,V>>() {
+                    private Entry<K,V> next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K,V> next() {
+                        return next = iterator.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (next == null) {
+                            throw new IllegalStateException();
+                        }
+                        map.remove(next.getKey());
+                        next = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return local().size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry)) {
+                    return false;
+                }
+                final Entry<?,?> entry = (Entry<?,?>) o;
+                final V value = get(entry.getKey());
+                return value != null && value.equals(entry.getValue());
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!contains(o)) {
+                    return false;
+                }
+                map.remove(((Entry<?,?>) o).getKey());
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                ReplicatedNavigableMap.this.clear();
+            }
+        };
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return navigableKeySet();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public NavigableSet<K> navigableKeySet() {
+        // without a value to store, the key set cannot add
+        return new ReplicatedNavigableSet<K>((ReplicatedNavigableMap<K,Object>) (ReplicatedNavigableMap<K,?>) this, null);
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return local().comparator();
+    }
+
+    @Override
+    public K firstKey() {
+        return local().firstKey();
+    }
+
+    @Override
+    public K lastKey() {
+        return local().lastKey();
+    }
+
+    @Override
+    public Entry<K,V> firstEntry() {
+        return local().firstEntry();
+    }
+
+    @Override
+    public Entry<K,V> lastEntry() {
+        return local().lastEntry();
+    }
+
+    @Override
+    public Entry<K,V> lowerEntry(K key) {
+        return local().lowerEntry(key);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return local().lowerKey(key);
+    }
+
+    @Override
+    public Entry<K,V> floorEntry(K key) {
+        return local().floorEntry(key);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return local().floorKey(key);
+    }
+
+    @Override
+    public Entry<K,V> ceilingEntry(K key) {
+        return local().ceilingEntry(key);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return local().ceilingKey(key);
+    }
+
+    @Override
+    public Entry<K,V> higherEntry(K key) {
+        return local().higherEntry(key);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return local().higherKey(key);
+    }
+
+    /**
+     * Removes the first entry. Another member may remove it concurrently,
+     * then the next one is tried.
+     */
+    @Override
+    public Entry<K,V> pollFirstEntry() {
+        while (true) {
+            final Entry<K,V> first = local().firstEntry();
+            if (first == null) {
+                return null;
+            }
+            final V removed = map.remove(first.getKey());
+            if (removed != null) {
+                return new SimpleImmutableEntry<K,V>(first.getKey(), removed);
+            }
+        }
+    }
+
+    @Override
+    public Entry<K,V> pollLastEntry() {
+        return descendingMap().pollFirstEntry();
+    }
+
+    @Override
+    public ClusteredNavigableMap<K,V> descendingMap() {
+        return new ReplicatedNavigableMap<K,V>(map, range, !descending);
+    }
+
+    @Override
+    public ClusteredNavigableMap<K,V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        if (fromKey == null || toKey == null) {
+            throw new NullPointerException();
+        }
+        if (descending) {
+            return narrow(toKey, toInclusive, fromKey, fromInclusive);
+        }
+        return narrow(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public ClusteredNavigableMap<K,V> headMap(K toKey, boolean inclusive) {
+        if (toKey == null) {
+            throw new NullPointerException();
+        }
+        if (descending) {
+            return narrow(toKey, inclusive, null, false);
+        }
+        return narrow(null, false, toKey, inclusive);
+    }
+
+    @Override
+    public ClusteredNavigableMap<K,V> tailMap(K fromKey, boolean inclusive) {
+        if (fromKey == null) {
+            throw new NullPointerException();
+        }
+        if (descending) {
+            return narrow(null, false, fromKey, inclusive);
+        }
+        return narrow(fromKey, inclusive, null, false);
+    }
+
+    @Override
+    public ClusteredNavigableMap<K,V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public ClusteredNavigableMap<K,V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public ClusteredNavigableMap<K,V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicatedNavigableMap{" +
+                "range=" + range +
+                ", descending=" + descending +
+                ", map=" + map +
+                '}';
+    }
+
+}
@@ -0,0 +1,285 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Implements a {@link ClusteredNavigableSet} as the key set of a
+ * {@link ReplicatedNavigableMap}, like {@link java.util.concurrent.ConcurrentSkipListSet}
+ * does. The values are not transferred at all. Without a value to store,
+ * the set serves as the key set of a map and cannot add.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <T> generic element type
+ */
+final class ReplicatedNavigableSet<T> extends AbstractSet<T> implements ClusteredNavigableSet<T> {
+
+    private final ReplicatedNavigableMap<T,Object> map;
+    // the value of added elements, null if the set cannot add
+    private final Object present;
+
+    /**
+     * @param comparator the order of the elements, {@code null} for their natural order
+     */
+    public ReplicatedNavigableSet(ClusterContext context, String name, Serializer<T> serializer,
+                                  Comparator<? super T> comparator,
+                                  ClusterConfiguration configuration) throws ChannelException {
+        this(new ReplicatedNavigableMap<T,Object>(context, name, serializer, new PresentSerializer(), comparator,
+                configuration), Boolean.TRUE);
+    }
+
+    ReplicatedNavigableSet(ReplicatedNavigableMap<T,Object> map, Object present) {
+        this.map = map;
+        this.present = present;
+    }
+
+    private Object present() {
+        if (present == null) {
+            throw new UnsupportedOperationException();
+        }
+        return present;
+    }
+
+    @Override
+    public Channel getChannel() {
+        return map.getChannel();
+    }
+
+    @Override
+    public void setUpdateCallback(ClusterUpdateCallback callback) {
+        map.setUpdateCallback(callback);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return map.containsKey(o);
+    }
+
+    @Override
+    public boolean add(T t) {
+        return map.put(t, present()) == null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return map.remove(o) != null;
+    }
+
+    /**
+     * Replicates a single range removal, or a clear for the whole set.
+     */
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> addAsync(T element) {
+        return addAsync(element, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> addAsync(T element, ReplicationLevel level) {
+        return changed(map.putAsync(element, present(), level), false);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> removeAsync(Object element) {
+        return removeAsync(element, ReplicationLevel.SENT);
+    }
+
+    @Override
+    public ReplicationFuture<Boolean> removeAsync(Object element, ReplicationLevel level) {
+        return changed(map.removeAsync(element, level), true);
+    }
+
+    /**
+     * @param existed whether the change needs a previous value
+     * @return a future telling whether the set changed
+     */
+    private static ReplicationFuture<Boolean> changed(final ReplicationFuture<Object> previous, final boolean existed) {
+        final SettableReplicationFuture<Boolean> future = new SettableReplicationFuture<Boolean>(null);
+        previous.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.succeed((previous.get() != null) == existed);
+                } catch (InterruptedException e) {
+                    future.fail(e);
+                } catch (ExecutionException e) {
+                    future.fail(e.getCause());
+                }
+            }
+        }, SettableReplicationFuture.DIRECT);
+        return future;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Iterator<Map.Entry<T,Object>> entries = map.entrySet().iterator();
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return entries.next().getKey();
+            }
+
+            @Override
+            public void remove() {
+                entries.remove();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<T> descendingIterator() {
+        return descendingSet().iterator();
+    }
+
+    @Override
+    public Comparator<? super T> comparator() {
+        return map.comparator();
+    }
+
+    @Override
+    public T first() {
+        return map.firstKey();
+    }
+
+    @Override
+    public T last() {
+        return map.lastKey();
+    }
+
+    @Override
+    public T lower(T t) {
+        return map.lowerKey(t);
+    }
+
+    @Override
+    public T floor(T t) {
+        return map.floorKey(t);
+    }
+
+    @Override
+    public T ceiling(T t) {
+        return map.ceilingKey(t);
+    }
+
+    @Override
+    public T higher(T t) {
+        return map.higherKey(t);
+    }
+
+    @Override
+    public T pollFirst() {
+        final Map.Entry<T,Object> first = map.pollFirstEntry();
+        return first == null ? null : first.getKey();
+    }
+
+    @Override
+    public T pollLast() {
+        final Map.Entry<T,Object> last = map.pollLastEntry();
+        return last == null ? null : last.getKey();
+    }
+
+    @Override
+    public ClusteredNavigableSet<T> descendingSet() {
+        return new ReplicatedNavigableSet<T>((ReplicatedNavigableMap<T,Object>) map.descendingMap(), present);
+    }
+
+    @Override
+    public ClusteredNavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive) {
+        return new ReplicatedNavigableSet<T>(
+                (ReplicatedNavigableMap<T,Object>) map.subMap(fromElement, fromInclusive, toElement, toInclusive),
+                present);
+    }
+
+    @Override
+    public ClusteredNavigableSet<T> headSet(T toElement, boolean inclusive) {
+        return new ReplicatedNavigableSet<T>((ReplicatedNavigableMap<T,Object>) map.headMap(toElement, inclusive),
+                present);
+    }
+
+    @Override
+    public ClusteredNavigableSet<T> tailSet(T fromElement, boolean inclusive) {
+        return new ReplicatedNavigableSet<T>((ReplicatedNavigableMap<T,Object>) map.tailMap(fromElement, inclusive),
+                present);
+    }
+
+    @Override
+    public ClusteredNavigableSet<T> subSet(T fromElement, T toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @Override
+    public ClusteredNavigableSet<T> headSet(T toElement) {
+        return headSet(toElement, false);
+    }
+
+    @Override
+    public ClusteredNavigableSet<T> tailSet(T fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicatedNavigableSet{" +
+                "map=" + map +
+                '}';
+    }
+
+    /**
+     * Stores nothing for the values, they are always {@link Boolean#TRUE}.
+     */
+    private static final class PresentSerializer implements Serializer<Object> {
+        @Override
+        public void write(Object object, DataOutput out) {
+            // the presence of the key says it all
+        }
+
+        @Override
+        public Object read(DataInput in) {
+            return Boolean.TRUE;
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * The result of an asynchronous update. The local collection is changed
+ * already when the future is returned; the future completes once the update
+ * reached its {@link ReplicationLevel} and carries the same result as the
+ * synchronous method, e.g. the previous value of a put. Replication cannot be
+ * cancelled.
+ *
+ * <p>
+ * <strong>Example:</strong>
+ * <pre>
+ * ReplicationFuture&lt;Long&gt; future = map.putAsync("counter", 42L, ReplicationLevel.QUORUM);
+ * future.addListener(new Runnable() {
+ *     public void run() {
+ *         // replicated to a majority
+ *     }
+ * }, executor);
+ * </pre>
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <T> the result type
+ */
+public interface ReplicationFuture<T> extends Future<T> {
+
+    /**
+     * Runs a listener once the future completed, successfully or not. If it
+     * completed already, the listener is run right away.
+     *
+     * @param listener the listener
+     * @param executor the executor to run the listener with
+     */
+    void addListener(Runnable listener, Executor executor);
+
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * Defines when the {@link ReplicationFuture} of an asynchronous update
+ * completes.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public enum ReplicationLevel {
+
+    /**
+     * The update was handed to the protocol stack, which takes care of the
+     * delivery. This is what the synchronous methods wait for.
+     */
+    SENT,
+
+    /**
+     * A majority of the current view, counting the local member, applied the
+     * update. The future fails if too many members leave before they
+     * acknowledged it.
+     */
+    QUORUM,
+
+    /**
+     * All members of the current view applied the update. Members which
+     * leave before they acknowledged it are not waited for.
+     */
+    ALL
+
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Random;
+
+/**
+ * Keeps items in a sequence and finds them by their position in
+ * logarithmic time. The sequence is a treap ordered by position, every node
+ * knows its parent and counts the nodes and the visible nodes below it, so
+ * that a node can be found by its visible index and the index of a node
+ * can be computed. Hidden nodes keep their place in the sequence.
+ *
+ * <p>
+ * The tree is not thread safe.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <T> generic item type
+ * @see ConvergentClusteredList
+ */
+final class SequenceTree<T> {
+
+    private final Random random = new Random();
+    private Node<T> root;
+
+    /**
+     * @return the number of nodes, hidden ones included
+     */
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * @return the number of visible nodes
+     */
+    int visibleSize() {
+        return visible(root);
+    }
+
+    /**
+     * @return the first node of the sequence or {@code null} if it is empty
+     */
+    Node<T> first() {
+        Node<T> node = root;
+        while (node != null && node.left != null) {
+            node = node.left;
+        }
+        return node;
+    }
+
+    /**
+     * @param node a node of the tree
+     * @return the following node or {@code null} if it is the last
+     */
+    Node<T> next(Node<T> node) {
+        if (node.right != null) {
+            node = node.right;
+            while (node.left != null) {
+                node = node.left;
+            }
+            return node;
+        }
+        while (node.parent != null && node.parent.right == node) {
+            node = node.parent;
+        }
+        return node.parent;
+    }
+
+    /**
+     * Finds a visible node by its index among the visible nodes.
+     *
+     * @param index the index
+     * @return the node
+     * @throws IndexOutOfBoundsException if there is no such node
+     */
+    Node<T> getVisible(int index) {
+        if (index < 0 || index >= visibleSize()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + visibleSize());
+        }
+        Node<T> node = root;
+        while (true) {
+            final int left = visible(node.left);
+            if (index < left) {
+                node = node.left;
+            } else if (index == left && node.visible) {
+                return node;
+            } else {
+                index -= left + (node.visible ? 1 : 0);
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Counts the visible nodes in front of a node.
+     *
+     * @param node a node of the tree
+     * @return the number of visible nodes before it
+     */
+    int visibleIndexOf(Node<T> node) {
+        int index = visible(node.left);
+        while (node.parent != null) {
+            if (node.parent.right == node) {
+                index += visible(node.parent.left) + (node.parent.visible ? 1 : 0);
+            }
+            node = node.parent;
+        }
+        return index;
+    }
+
+    /**
+     * Inserts an item directly behind a node.
+     *
+     * @param anchor the preceding node, {@code null} to insert in front
+     * @param item the item
+     * @param visible whether the new node is visible
+     * @return the new node
+     */
+    Node<T> insertAfter(Node<T> anchor, T item, boolean visible) {
+        final Node<T> node = new Node<T>(item, visible, random.nextInt());
+        final int position = anchor == null ? 0 : indexOf(anchor) + 1;
+        final Node<T>[] parts = newPair();
+        split(root, position, parts);
+        root = merge(merge(parts[0], node), parts[1]);
+        root.parent = null;
+        return node;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Node<T>[] newPair() {
+        return (Node<T>[]) new Node<?>[2];
+    }
+
+    /**
+     * Shows or hides a node.
+     *
+     * @param node a node of the tree
+     * @param visible whether the node is visible
+     */
+    void setVisible(Node<T> node, boolean visible) {
+        if (node.visible == visible) {
+            return;
+        }
+        node.visible = visible;
+        final int delta = visible ? 1 : -1;
+        for (Node<T> parent = node; parent != null; parent = parent.parent) {
+            parent.visibleCount += delta;
+        }
+    }
+
+    /**
+     * Removes all nodes.
+     */
+    void clear() {
+        root = null;
+    }
+
+    private int indexOf(Node<T> node) {
+        int index = size(node.left);
+        while (node.parent != null) {
+            if (node.parent.right == node) {
+                index += size(node.parent.left) + 1;
+            }
+            node = node.parent;
+        }
+        return index;
+    }
+
+    /**
+     * Splits a subtree into its first {@code count} nodes and the rest.
+     */
+    private void split(Node<T> node, int count, Node<T>[] parts) {
+        if (node == null) {
+            parts[0] = null;
+            parts[1] = null;
+            return;
+        }
+        if (size(node.left) < count) {
+            split(node.right, count - size(node.left) - 1, parts);
+            node.right = parts[0];
+            if (parts[0] != null) {
+                parts[0].parent = node;
+            }
+            update(node);
+            node.parent = null;
+            parts[0] = node;
+        } else {
+            split(node.left, count, parts);
+            node.left = parts[1];
+            if (parts[1] != null) {
+                parts[1].parent = node;
+            }
+            update(node);
+            node.parent = null;
+            parts[1] = node;
+        }
+    }
+
+    private Node<T> merge(Node<T> first, Node<T> second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            first.right.parent = first;
+            update(first);
+            return first;
+        } else {
+            second.left = merge(first, second.left);
+            second.left.parent = second;
+            update(second);
+            return second;
+        }
+    }
+
+    private static <T> void update(Node<T> node) {
+        node.size = size(node.left) + size(node.right) + 1;
+        node.visibleCount = visible(node.left) + visible(node.right) + (node.visible ? 1 : 0);
+    }
+
+    private static <T> int size(Node<T> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static <T> int visible(Node<T> node) {
+        return node == null ? 0 : node.visibleCount;
+    }
+
+    /**
+     * A position in the sequence.
+     */
+    static final class Node<T> {
+        final T item;
+        private final int priority;
+        private boolean visible;
+        private Node<T> left;
+        private Node<T> right;
+        private Node<T> parent;
+        private int size = 1;
+        private int visibleCount;
+
+        private Node(T item, boolean visible, int priority) {
+            this.item = item;
+            this.visible = visible;
+            this.priority = priority;
+            this.visibleCount = visible ? 1 : 0;
+        }
+
+        boolean isVisible() {
+            return visible;
+        }
+    }
+}
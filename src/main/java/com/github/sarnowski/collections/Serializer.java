@@ -0,0 +1,57 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts elements, keys and values of a clustered collection into their
+ * binary wire representation. Implementations have to support {@code null}
+ * if the collection should accept {@code null} elements.
+ *
+ * <p>
+ * Implementations must be thread safe; the same instance is used for
+ * sending and receiving updates.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <T> the supported type
+ * @see Serializers
+ */
+public interface Serializer<T> {
+
+    /**
+     * Writes the given object.
+     *
+     * @param object the object to write, may be {@code null}
+     * @param out the target
+     * @throws IOException if writing fails
+     */
+    void write(T object, DataOutput out) throws IOException;
+
+    /**
+     * Reads an object previously written with {@link #write(Object, DataOutput)}.
+     *
+     * @param in the source
+     * @return the read object, may be {@code null}
+     * @throws IOException if reading fails
+     */
+    T read(DataInput in) throws IOException;
+
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Provides {@link Serializer} implementations for common types.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see Serializer
+ */
+public final class Serializers {
+
+    private static final Serializer<Object> JAVA = new JavaSerializer();
+    private static final Serializer<String> STRING = new StringSerializer();
+    private static final Serializer<Long> LONG = new LongSerializer();
+    private static final Serializer<Integer> INTEGER = new IntegerSerializer();
+
+    private Serializers() {
+    }
+
+    /**
+     * Falls back to standard java serialization for every single object. This
+     * is the default if no other serializer is given.
+     *
+     * @param <T> the element type
+     * @return a serializer using java serialization
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Serializer<T> javaSerializer() {
+        return (Serializer<T>) JAVA;
+    }
+
+    /**
+     * Writes strings as length prefixed UTF-8.
+     *
+     * @return a serializer for strings
+     */
+    public static Serializer<String> stringSerializer() {
+        return STRING;
+    }
+
+    /**
+     * Writes longs as zigzag varints.
+     *
+     * @return a serializer for longs
+     */
+    public static Serializer<Long> longSerializer() {
+        return LONG;
+    }
+
+    /**
+     * Writes integers as zigzag varints.
+     *
+     * @return a serializer for integers
+     */
+    public static Serializer<Integer> integerSerializer() {
+        return INTEGER;
+    }
+
+    private static final class JavaSerializer implements Serializer<Object> {
+
+        @Override
+        public void write(Object object, DataOutput out) throws IOException {
+            final byte[] buffer;
+            try {
+                buffer = Util.objectToByteBuffer(object);
+            /* CHECKSTYLE:OFF */
+            } catch (Exception e) {
+            /* CHECKSTYLE:ON */
+                throw new IOException("java serialization failed", e);
+            }
+            Varints.writeUnsignedInt(out, buffer.length);
+            out.write(buffer);
+        }
+
+        @Override
+        public Object read(DataInput in) throws IOException {
+            final byte[] buffer = new byte[Varints.readUnsignedInt(in)];
+            in.readFully(buffer);
+            try {
+                return Util.objectFromByteBuffer(buffer);
+            /* CHECKSTYLE:OFF */
+            } catch (Exception e) {
+            /* CHECKSTYLE:ON */
+                throw new IOException("java deserialization failed", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "JavaSerializer";
+        }
+    }
+
+    private static final class StringSerializer implements Serializer<String> {
+
+        @Override
+        public void write(String object, DataOutput out) throws IOException {
+            if (object == null) {
+                Varints.writeUnsignedInt(out, 0);
+                return;
+            }
+            final byte[] buffer = object.getBytes("UTF-8");
+            Varints.writeUnsignedInt(out, buffer.length + 1);
+            out.write(buffer);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            final int length = Varints.readUnsignedInt(in);
+            if (length == 0) {
+                return null;
+            }
+            final byte[] buffer = new byte[length - 1];
+            in.readFully(buffer);
+            return new String(buffer, "UTF-8");
+        }
+
+        @Override
+        public String toString() {
+            return "StringSerializer";
+        }
+    }
+
+    private static final class LongSerializer implements Serializer<Long> {
+
+        @Override
+        public void write(Long object, DataOutput out) throws IOException {
+            out.writeBoolean(object != null);
+            if (object != null) {
+                Varints.writeSignedLong(out, object);
+            }
+        }
+
+        @Override
+        public Long read(DataInput in) throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return Varints.readSignedLong(in);
+        }
+
+        @Override
+        public String toString() {
+            return "LongSerializer";
+        }
+    }
+
+    private static final class IntegerSerializer implements Serializer<Integer> {
+
+        @Override
+        public void write(Integer object, DataOutput out) throws IOException {
+            out.writeBoolean(object != null);
+            if (object != null) {
+                Varints.writeSignedInt(out, object);
+            }
+        }
+
+        @Override
+        public Integer read(DataInput in) throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return Varints.readSignedInt(in);
+        }
+
+        @Override
+        public String toString() {
+            return "IntegerSerializer";
+        }
+    }
+
+}
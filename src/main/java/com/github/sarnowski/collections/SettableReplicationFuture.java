@@ -0,0 +1,227 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link ReplicationFuture} which gets completed by the replication code.
+ * The result of a replicated collection is usually known up front, because
+ * the local collection is changed before the update is sent; completing the
+ * future only releases it. Ordered updates set the result on delivery.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+final class SettableReplicationFuture<T> implements ReplicationFuture<T> {
+
+    private static final Log LOG = LogFactory.getLog(SettableReplicationFuture.class);
+
+    /**
+     * Runs listeners in the completing thread.
+     */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private T value;
+    private Throwable failure;
+    private boolean done;
+    private List<Listener> listeners = new ArrayList<Listener>(1);
+
+    /**
+     * @param value the result after the successful completion, if known up front
+     */
+    SettableReplicationFuture(T value) {
+        this.value = value;
+    }
+
+    /**
+     * @param value the result
+     * @return a successfully completed future
+     */
+    static <T> SettableReplicationFuture<T> completed(T value) {
+        final SettableReplicationFuture<T> future = new SettableReplicationFuture<T>(value);
+        future.succeed();
+        return future;
+    }
+
+    /**
+     * @param source the future to follow
+     * @param value the result once the source succeeded
+     * @return a future completing with the source, but with another result
+     */
+    static <T> SettableReplicationFuture<T> replacing(final ReplicationFuture<?> source, T value) {
+        final SettableReplicationFuture<T> future = new SettableReplicationFuture<T>(value);
+        source.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    source.get();
+                    future.succeed();
+                } catch (InterruptedException e) {
+                    future.fail(e);
+                } catch (ExecutionException e) {
+                    future.fail(e.getCause());
+                }
+            }
+        }, DIRECT);
+        return future;
+    }
+
+    /**
+     * Completes the future with its result.
+     */
+    void succeed() {
+        complete(null);
+    }
+
+    /**
+     * Completes the future with a result which was not known up front.
+     *
+     * @param result the result
+     */
+    void succeed(T result) {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            value = result;
+        }
+        complete(null);
+    }
+
+    /**
+     * Completes the future with a failure.
+     *
+     * @param cause the reason
+     */
+    void fail(Throwable cause) {
+        complete(cause);
+    }
+
+    private void complete(Throwable cause) {
+        final List<Listener> notified;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            failure = cause;
+            notified = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        for (Listener listener: notified) {
+            listener.run();
+        }
+    }
+
+    @Override
+    public void addListener(Runnable listener, Executor executor) {
+        final Listener added = new Listener(listener, executor);
+        synchronized (this) {
+            if (!done) {
+                listeners.add(added);
+                return;
+            }
+        }
+        added.run();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReplicationFuture{" +
+                "done=" + done +
+                (failure == null ? "" : ", failure=" + failure) +
+                '}';
+    }
+
+    private static final class Listener {
+        private final Runnable runnable;
+        private final Executor executor;
+
+        Listener(Runnable runnable, Executor executor) {
+            this.runnable = runnable;
+            this.executor = executor;
+        }
+
+        void run() {
+            try {
+                executor.execute(runnable);
+            /* CHECKSTYLE:OFF */
+            } catch (RuntimeException e) {
+            /* CHECKSTYLE:ON */
+                LOG.error("cannot run listener " + runnable, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits the elements of a state into partial states of a bounded size.
+ * The partial states are built lazily while iterating.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterManaged#provideClusterStateChunks(int)
+ * @param <E> the element type
+ * @param <S> the state type
+ */
+abstract class StateChunkIterator<E, S> implements Iterator<S> {
+
+    private final Iterator<? extends E> elements;
+    private final int chunkSize;
+
+    StateChunkIterator(Iterator<? extends E> elements, int chunkSize) {
+        this.elements = elements;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Creates a new, empty partial state.
+     *
+     * @param expectedSize the maximum number of elements it will receive
+     * @return the new partial state
+     */
+    protected abstract S newChunk(int expectedSize);
+
+    /**
+     * Adds an element to a partial state.
+     *
+     * @param chunk the partial state
+     * @param element the element to add
+     */
+    protected abstract void add(S chunk, E element);
+
+    @Override
+    public boolean hasNext() {
+        return elements.hasNext();
+    }
+
+    @Override
+    public S next() {
+        if (!elements.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final S chunk = newChunk(chunkSize);
+        for (int n = 0; n < chunkSize && elements.hasNext(); n++) {
+            add(chunk, elements.next());
+        }
+        return chunk;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which updates a {@link ClusterManager} has applied and keeps the
+ * most recent update messages. Every member numbers its updates with a
+ * monotonically increasing sequence; the version vector maps each member
+ * to the highest sequence applied from it.
+ *
+ * <p>
+ * A member which rejoins the cluster presents its version vector. If the log
+ * still contains every update the member missed, only those are sent
+ * instead of the whole state.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see ClusterManager
+ */
+final class UpdateLog {
+
+    private static final String PREFIX = "vv";
+
+    private final int capacity;
+    private final Map<Long, Long> versions = new HashMap<Long, Long>();
+    private final Map<Long, Long> truncated = new HashMap<Long, Long>();
+    private final Deque<Entry> entries = new ArrayDeque<Entry>();
+
+    /**
+     * @param capacity the maximum number of logged messages, 0 disables the log
+     */
+    UpdateLog(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Checks if an update was applied already.
+     *
+     * @param member the id of the sending member
+     * @param sequence the sequence of the update
+     * @return whether the update was applied before
+     */
+    synchronized boolean isApplied(long member, long sequence) {
+        final Long version = versions.get(member);
+        return version != null && sequence <= version;
+    }
+
+    /**
+     * Records an applied update message.
+     *
+     * @param member the id of the sending member
+     * @param sequence the sequence of the update
+     * @param buffer the buffer containing the message, must not be modified later
+     * @param offset the offset of the message within the buffer
+     * @param length the length of the message
+     */
+    synchronized void append(long member, long sequence, byte[] buffer, int offset, int length) {
+        versions.put(member, sequence);
+        if (capacity == 0) {
+            truncated.put(member, sequence);
+            return;
+        }
+        entries.addLast(new Entry(member, sequence, buffer, offset, length));
+        while (entries.size() > capacity) {
+            final Entry evicted = entries.removeFirst();
+            truncated.put(evicted.member, evicted.sequence);
+        }
+    }
+
+    /**
+     * @return a copy of the current version vector
+     */
+    synchronized Map<Long, Long> getVersions() {
+        return new HashMap<Long, Long>(versions);
+    }
+
+    /**
+     * Collects the updates a member with the given version vector misses.
+     *
+     * @param known the version vector of the requesting member
+     * @return the missing update messages in their original order or
+     *         {@code null} if the log cannot provide all of them
+     */
+    synchronized List<Entry> getDelta(Map<Long, Long> known) {
+        for (Map.Entry<Long, Long> version: known.entrySet()) {
+            final Long own = versions.get(version.getKey());
+            if (own == null || own < version.getValue()) {
+                // the requesting member knows updates we never saw
+                return null;
+            }
+        }
+        for (Map.Entry<Long, Long> version: truncated.entrySet()) {
+            final Long seen = known.get(version.getKey());
+            if ((seen == null ? 0 : seen) < version.getValue()) {
+                // some of the missing updates are not in the log anymore
+                return null;
+            }
+        }
+        final List<Entry> delta = new ArrayList<Entry>();
+        for (Entry entry: entries) {
+            final Long seen = known.get(entry.member);
+            if (seen == null || seen < entry.sequence) {
+                delta.add(entry);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Starts over with the version vector of a transferred full state. The
+     * updates leading to this state are not available in the log.
+     *
+     * @param state the version vector of the state
+     */
+    synchronized void reset(Map<Long, Long> state) {
+        versions.clear();
+        versions.putAll(state);
+        truncated.clear();
+        truncated.putAll(state);
+        entries.clear();
+    }
+
+    /**
+     * Encodes a version vector as JGroups state id.
+     *
+     * @param versions the version vector
+     * @return the state id
+     */
+    static String toStateId(Map<Long, Long> versions) {
+        final StringBuilder builder = new StringBuilder(PREFIX);
+        for (Map.Entry<Long, Long> version: versions.entrySet()) {
+            builder.append(',')
+                    .append(Long.toHexString(version.getKey()))
+                    .append(':')
+                    .append(Long.toHexString(version.getValue()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decodes a version vector from a JGroups state id.
+     *
+     * @param stateId the state id, may be {@code null}
+     * @return the version vector, empty if the state id contains none
+     */
+    static Map<Long, Long> fromStateId(String stateId) {
+        final Map<Long, Long> versions = new HashMap<Long, Long>();
+        if (stateId == null || !stateId.startsWith(PREFIX)) {
+            return versions;
+        }
+        for (String version: stateId.substring(PREFIX.length()).split(",")) {
+            final int separator = version.indexOf(':');
+            if (separator > 0) {
+                versions.put(parseHex(version.substring(0, separator)), parseHex(version.substring(separator + 1)));
+            }
+        }
+        return versions;
+    }
+
+    private static long parseHex(String value) {
+        // Long.parseLong cannot handle the full unsigned range
+        long result = 0;
+        for (int n = 0; n < value.length(); n++) {
+            result = (result << 4) | Character.digit(value.charAt(n), 16);
+        }
+        return result;
+    }
+
+    static void writeVersions(DataOutput out, Map<Long, Long> versions) throws IOException {
+        Varints.writeUnsignedInt(out, versions.size());
+        for (Map.Entry<Long, Long> version: versions.entrySet()) {
+            out.writeLong(version.getKey());
+            Varints.writeUnsignedLong(out, version.getValue());
+        }
+    }
+
+    static Map<Long, Long> readVersions(DataInput in) throws IOException {
+        final int size = Varints.readUnsignedInt(in);
+        final Map<Long, Long> versions = new HashMap<Long, Long>();
+        for (int n = 0; n < size; n++) {
+            final long member = in.readLong();
+            versions.put(member, Varints.readUnsignedLong(in));
+        }
+        return versions;
+    }
+
+    /**
+     * A logged update message.
+     */
+    static final class Entry {
+        final long member;
+        final long sequence;
+        final byte[] buffer;
+        final int offset;
+        final int length;
+
+        Entry(long member, long sequence, byte[] buffer, int offset, int length) {
+            this.member = member;
+            this.sequence = sequence;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * Extracts the attribute of a value a {@link MapIndex} is built on. The
+ * extractor is called while an update is applied, so it has to be fast and
+ * must not access the map.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @see IndexedMap#addHashIndex(ValueExtractor)
+ * @param <V> the value type
+ * @param <A> the attribute type
+ */
+public interface ValueExtractor<V, A> {
+
+    /**
+     * @param value the value, never {@code null}
+     * @return the attribute, {@code null} to leave the entry out of the index
+     */
+    A extract(V value);
+
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Implements a {@link MapIndex}. The map refreshes a key after every write
+ * to it; the index then reads the current value itself. Refreshes are
+ * serialized by the index, so that writes of several lock stripes or
+ * evictions without any lock cannot leave an outdated attribute behind.
+ * Lookups go lock free and skip entries which changed meanwhile.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> the key type
+ * @param <V> the value type
+ * @param <A> the attribute type
+ */
+final class ValueIndex<K, V, A> implements MapIndex<K, V, A> {
+
+    private static final Log LOG = LogFactory.getLog(ValueIndex.class);
+
+    private final ValueExtractor<? super V, ? extends A> extractor;
+    private final Map<K, V> map;
+    private final ConcurrentMap<A, Set<K>> keys;
+    // the same instance as keys for sorted indexes, null otherwise
+    private final ConcurrentNavigableMap<A, Set<K>> sorted;
+    private final ConcurrentMap<K, A> attributes = new ConcurrentHashMap<K, A>();
+
+    /**
+     * @param map serves the values of the lookups
+     */
+    ValueIndex(ValueExtractor<? super V, ? extends A> extractor, boolean sorted, Map<K, V> map) {
+        if (extractor == null) {
+            throw new IllegalArgumentException("extractor must not be null");
+        }
+        this.extractor = extractor;
+        this.map = map;
+        if (sorted) {
+            this.sorted = new ConcurrentSkipListMap<A, Set<K>>();
+            this.keys = this.sorted;
+        } else {
+            this.sorted = null;
+            this.keys = new ConcurrentHashMap<A, Set<K>>();
+        }
+    }
+
+    /**
+     * Extracts an attribute; a failing extractor leaves the entry out of
+     * the index, so that it cannot break the update.
+     */
+    private A extract(K key, V value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return extractor.extract(value);
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            LOG.error("extractor " + extractor + " failed for " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Indexes the current value of a key.
+     *
+     * @param source the map holding the current value
+     */
+    synchronized void refresh(K key, Map<K, V> source) {
+        final A attribute = extract(key, source.get(key));
+        final A previous = attribute == null ? attributes.remove(key) : attributes.put(key, attribute);
+        if (previous != null && previous.equals(attribute)) {
+            return;
+        }
+        if (previous != null) {
+            final Set<K> previousKeys = keys.get(previous);
+            previousKeys.remove(key);
+            if (previousKeys.isEmpty()) {
+                keys.remove(previous);
+            }
+        }
+        if (attribute != null) {
+            add(key, attribute);
+        }
+    }
+
+    /**
+     * Indexes all entries anew, e.g. after a state transfer.
+     */
+    synchronized void rebuild(Map<K, V> source) {
+        clear();
+        for (Map.Entry<K, V> entry: source.entrySet()) {
+            final A attribute = extract(entry.getKey(), entry.getValue());
+            if (attribute != null) {
+                attributes.put(entry.getKey(), attribute);
+                add(entry.getKey(), attribute);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        keys.clear();
+        attributes.clear();
+    }
+
+    private void add(K key, A attribute) {
+        Set<K> attributeKeys = keys.get(attribute);
+        if (attributeKeys == null) {
+            attributeKeys = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+            keys.put(attribute, attributeKeys);
+        }
+        attributeKeys.add(key);
+    }
+
+    @Override
+    public Map<K, V> get(A attribute) {
+        final Map<K, V> result = new LinkedHashMap<K, V>();
+        collect(attribute, keys.get(attribute), result);
+        return result;
+    }
+
+    @Override
+    public Map<K, V> range(A from, A to) {
+        if (sorted == null) {
+            throw new UnsupportedOperationException("ranges need a sorted index");
+        }
+        final ConcurrentNavigableMap<A, Set<K>> range;
+        if (from == null) {
+            range = to == null ? sorted : sorted.headMap(to, false);
+        } else {
+            range = to == null ? sorted.tailMap(from, true) : sorted.subMap(from, true, to, false);
+        }
+        final Map<K, V> result = new LinkedHashMap<K, V>();
+        for (Map.Entry<A, Set<K>> entry: range.entrySet()) {
+            collect(entry.getKey(), entry.getValue(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the entries which still have the attribute.
+     */
+    private void collect(A attribute, Set<K> attributeKeys, Map<K, V> result) {
+        if (attributeKeys == null) {
+            return;
+        }
+        for (K key: attributeKeys) {
+            final V value = map.get(key);
+            if (value != null && attribute.equals(extract(key, value))) {
+                result.put(key, value);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ValueIndex{" +
+                "extractor=" + extractor +
+                ", attributes=" + keys.size() +
+                ", sorted=" + (sorted != null) +
+                '}';
+    }
+
+}
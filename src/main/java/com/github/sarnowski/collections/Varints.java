@@ -0,0 +1,180 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Variable length integer encoding as used by the wire format of the
+ * {@link ClusterCodec} implementations. Small values need a single byte.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+final class Varints {
+
+    private Varints() {
+    }
+
+    /**
+     * Writes a non negative int using 1 to 5 bytes.
+     *
+     * @param out the target
+     * @param value the value, interpreted as unsigned
+     * @throws IOException if writing fails
+     */
+    static void writeUnsignedInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an int written by {@link #writeUnsignedInt(DataOutput, int)}.
+     *
+     * @param in the source
+     * @return the value
+     * @throws IOException if reading fails or the encoding is malformed
+     */
+    static int readUnsignedInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final int b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * Writes a non negative long using 1 to 10 bytes.
+     *
+     * @param out the target
+     * @param value the value, interpreted as unsigned
+     * @throws IOException if writing fails
+     */
+    static void writeUnsignedLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a long written by {@link #writeUnsignedLong(DataOutput, long)}.
+     *
+     * @param in the source
+     * @return the value
+     * @throws IOException if reading fails or the encoding is malformed
+     */
+    static long readUnsignedLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            final int b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varlong");
+    }
+
+    /**
+     * Writes a non negative long into an array using 1 to 10 bytes.
+     *
+     * @param target the target array
+     * @param offset the position of the first byte
+     * @param value the value, interpreted as unsigned
+     * @return the position after the last written byte
+     */
+    static int writeUnsignedLong(byte[] target, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Calculates the number of bytes {@link #writeUnsignedLong(DataOutput, long)} needs.
+     *
+     * @param value the value, interpreted as unsigned
+     * @return the encoded size in bytes
+     */
+    static int sizeOfUnsignedLong(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a signed int with zigzag encoding, so small negative values stay small.
+     *
+     * @param out the target
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    static void writeSignedInt(DataOutput out, int value) throws IOException {
+        writeUnsignedInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Reads an int written by {@link #writeSignedInt(DataOutput, int)}.
+     *
+     * @param in the source
+     * @return the value
+     * @throws IOException if reading fails
+     */
+    static int readSignedInt(DataInput in) throws IOException {
+        final int raw = readUnsignedInt(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    /**
+     * Writes a signed long with zigzag encoding, so small negative values stay small.
+     *
+     * @param out the target
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    static void writeSignedLong(DataOutput out, long value) throws IOException {
+        writeUnsignedLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Reads a long written by {@link #writeSignedLong(DataOutput, long)}.
+     *
+     * @param in the source
+     * @return the value
+     * @throws IOException if reading fails
+     */
+    static long readSignedLong(DataInput in) throws IOException {
+        final long raw = readUnsignedLong(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+}
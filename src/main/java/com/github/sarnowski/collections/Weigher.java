@@ -0,0 +1,40 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+/**
+ * Calculates the weight of a map entry for the
+ * {@link EvictionPolicy#setMaxWeight(long) maximum weight} of a bounded map,
+ * for example its approximate size in bytes. Every member has to calculate
+ * the same weight for the same entry.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ * @param <K> generic key type
+ * @param <V> generic value type
+ */
+public interface Weigher<K, V> {
+
+    /**
+     * Weighs an entry.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the weight, must not be negative
+     */
+    int weigh(K key, V value);
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import junit.framework.TestCase;
+
+import org.jgroups.ChannelException;
+import org.jgroups.View;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts several members of a cluster within one JVM. Every test uses a
+ * cluster of its own, all members are closed after the test.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public abstract class AbstractClusterTest extends TestCase {
+
+    /**
+     * Maximum time to wait for the members to converge.
+     */
+    protected static final long TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+
+    private final List<ClusterContext> contexts = new ArrayList<ClusterContext>();
+
+    /**
+     * Starts a new member of the test's cluster.
+     *
+     * @return the context of the new member
+     * @throws ChannelException if the member cannot connect
+     */
+    protected ClusterContext join() throws ChannelException {
+        final ClusterContext context = new ClusterContext(getClass().getSimpleName() + "-" + getName());
+        contexts.add(context);
+        return context;
+    }
+
+    /**
+     * Stops a member.
+     *
+     * @param context the member
+     */
+    protected void leave(ClusterContext context) {
+        contexts.remove(context);
+        context.close();
+    }
+
+    /**
+     * Waits until every member sees the given number of members.
+     *
+     * @param members the expected view size
+     */
+    protected void awaitView(final int members) {
+        assertEventually("view of " + members + " members", new Condition() {
+            @Override
+            public boolean holds() {
+                for (ClusterContext context: contexts) {
+                    final View view = context.getChannel().getView();
+                    if (view == null || view.getMembers().size() != members) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (int n = contexts.size() - 1; n >= 0; n--) {
+            contexts.get(n).close();
+        }
+        contexts.clear();
+        super.tearDown();
+    }
+
+    /**
+     * Polls a condition until it holds.
+     *
+     * @param message the failure message
+     * @param condition the condition
+     * @throws junit.framework.AssertionFailedError if the condition does not hold within {@link #TIMEOUT}
+     */
+    protected static void assertEventually(String message, Condition condition) {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(message);
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * A state the members converge to.
+     */
+    protected interface Condition {
+
+        boolean holds();
+
+    }
+
+    /**
+     * Records the number of updates of every sent message and the kind of
+     * every received state.
+     */
+    protected static final class SentMessages implements ClusterMetricsListener {
+
+        private final List<Integer> updates = new CopyOnWriteArrayList<Integer>();
+        private final List<Boolean> receivedStates = new CopyOnWriteArrayList<Boolean>();
+
+        /**
+         * @return the number of updates per message, in the order they were sent
+         */
+        public List<Integer> getUpdates() {
+            return new ArrayList<Integer>(updates);
+        }
+
+        /**
+         * @return for every received state, whether it only contained the missed updates
+         */
+        public List<Boolean> getReceivedStates() {
+            return new ArrayList<Boolean>(receivedStates);
+        }
+
+        @Override
+        public void messageSent(String collection, int count, int bytes) {
+            updates.add(count);
+        }
+
+        @Override
+        public void updateEncoded(String collection, Object action, int bytes, long nanos) {
+        }
+
+        @Override
+        public void updateDecoded(String collection, Object action, int bytes, long nanos) {
+        }
+
+        @Override
+        public void messageReceived(String collection, int count, int bytes, long nanos) {
+        }
+
+        @Override
+        public void callbackInvoked(String collection, long nanos) {
+        }
+
+        @Override
+        public void stateSent(String collection, boolean delta, long bytes, long nanos) {
+        }
+
+        @Override
+        public void stateReceived(String collection, boolean delta, long bytes, long nanos) {
+            receivedStates.add(delta);
+        }
+
+        @Override
+        public void batchQueueChanged(String collection, int depth) {
+        }
+
+        @Override
+        public void heldBackQueueChanged(String collection, int depth) {
+        }
+    }
+
+}
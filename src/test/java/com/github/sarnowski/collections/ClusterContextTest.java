@@ -0,0 +1,105 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests closing single collections and whole contexts.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ClusterContextTest extends AbstractClusterTest {
+
+    private static Map<String,Long> newMap(ClusterContext context, String name) throws Exception {
+        return newMap(context, name, new ClusterConfiguration());
+    }
+
+    private static Map<String,Long> newMap(ClusterContext context, String name, ClusterConfiguration configuration)
+            throws Exception {
+        return ClusteredCollections.newReplicatedClusteredMap(context, name,
+                Serializers.stringSerializer(), Serializers.longSerializer(), configuration);
+    }
+
+    private static void assertConverged(final Map<String,Long> expected, final Map<String,Long> actual) {
+        assertEventually("replica converges to " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return new HashMap<String,Long>(expected).equals(new HashMap<String,Long>(actual));
+            }
+        });
+    }
+
+    public void testOtherCollectionsKeepWorkingAfterAClose() throws Exception {
+        final ClusterContext firstContext = join();
+        final ClusterContext secondContext = join();
+        final Map<String,Long> closing = newMap(firstContext, "closing");
+        final Map<String,Long> kept = newMap(firstContext, "kept");
+        final Map<String,Long> closingReplica = newMap(secondContext, "closing");
+        final Map<String,Long> keptReplica = newMap(secondContext, "kept");
+        awaitView(2);
+        closing.put("key", 1L);
+        kept.put("key", 1L);
+        assertConverged(closing, closingReplica);
+        assertConverged(kept, keptReplica);
+
+        assertTrue(firstContext.close("closing"));
+        assertFalse(firstContext.close("closing"));
+        try {
+            closing.put("key", 2L);
+            fail("closed collection accepted an update");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // the other collection of the context still replicates in both directions
+        kept.put("other", 2L);
+        keptReplica.put("third", 3L);
+        assertConverged(kept, keptReplica);
+        assertEquals(3, kept.size());
+
+        // updates of the closed collection are dropped, its name can be used again
+        closingReplica.put("later", 4L);
+        final Map<String,Long> reopened = newMap(firstContext, "closing");
+        assertConverged(closingReplica, reopened);
+        assertEquals(Long.valueOf(4), reopened.get("later"));
+    }
+
+    public void testClosedCollectionStopsBeingAcknowledged() throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setConsistencyMode(ConsistencyMode.SYNCHRONOUS);
+        configuration.setRequestTimeout(2, TimeUnit.SECONDS);
+        final ClusterContext firstContext = join();
+        final ClusterContext secondContext = join();
+        final ClusterContext thirdContext = join();
+        final Map<String,Long> first = newMap(firstContext, "map", configuration);
+        newMap(secondContext, "map", configuration);
+        newMap(thirdContext, "map", configuration);
+        awaitView(3);
+        first.put("key", 1L);
+
+        // the closed collections announce it, so no majority of them is waited for
+        secondContext.close("map");
+        leave(thirdContext);
+        awaitView(2);
+        first.put("key", 2L);
+        assertEquals(Long.valueOf(2), first.get("key"));
+    }
+
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests the {@link ClusterEvent}s a replicated map delivers for the updates
+ * of other members.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ClusterEventsTest extends AbstractClusterTest {
+
+    private static ClusteredMap<String,Long> newMap(ClusterContext context) throws Exception {
+        return ClusteredCollections.newReplicatedClusteredMap(context, "map",
+                Serializers.stringSerializer(), Serializers.longSerializer());
+    }
+
+    private static void assertEvent(ClusterEvent<String,Long> event, ClusterEvent.Type type, String key,
+                                    Long oldValue, Long newValue) {
+        assertEquals(event.toString(), type, event.getType());
+        assertEquals(event.toString(), key, event.getKey());
+        assertEquals(event.toString(), oldValue, event.getOldValue());
+        assertEquals(event.toString(), newValue, event.getNewValue());
+    }
+
+    public void testRemoteWritesFireOldAndNewValues() throws Exception {
+        final ClusterContext firstContext = join();
+        final ClusteredMap<String,Long> first = newMap(firstContext);
+        final ClusteredMap<String,Long> second = newMap(join());
+        awaitView(2);
+        final Events events = new Events();
+        second.addEventListener(events);
+
+        first.put("key", 1L);
+        events.await(1);
+        first.put("key", 2L);
+        events.await(2);
+        // local writes are not reported
+        second.put("local", 3L);
+        first.remove("key");
+        events.await(3);
+
+        final List<ClusterEvent<String,Long>> received = events.get();
+        assertEquals(received.toString(), 3, received.size());
+        assertEvent(received.get(0), ClusterEvent.Type.ADDED, "key", null, 1L);
+        assertEvent(received.get(1), ClusterEvent.Type.UPDATED, "key", 1L, 2L);
+        assertEvent(received.get(2), ClusterEvent.Type.REMOVED, "key", 2L, null);
+        for (ClusterEvent<String,Long> event: received) {
+            assertEquals(firstContext.getChannel().getAddress(), event.getOrigin());
+        }
+        assertTrue(received.get(0).getSequence() < received.get(1).getSequence());
+    }
+
+    public void testFilteredListenerGetsABulkUpdateAtOnce() throws Exception {
+        final ClusteredMap<String,Long> first = newMap(join());
+        final ClusteredMap<String,Long> second = newMap(join());
+        awaitView(2);
+        final Events events = new Events();
+        second.addEventListener(events, new ClusterEventFilter<String>() {
+            @Override
+            public boolean accept(String key) {
+                return key.startsWith("a");
+            }
+        });
+
+        final Map<String,Long> entries = new LinkedHashMap<String,Long>();
+        entries.put("a1", 1L);
+        entries.put("b1", 2L);
+        entries.put("a2", 3L);
+        first.putAll(entries);
+        events.await(2);
+        assertEquals(1, events.calls.size());
+        assertEquals(2, events.calls.get(0).size());
+
+        // clearing is delivered without asking the filter
+        first.clear();
+        events.await(3);
+        assertEvent(events.get().get(2), ClusterEvent.Type.CLEARED, null, null, null);
+
+        // a removed listener gets nothing, the map keeps replicating
+        second.removeEventListener(events);
+        first.put("a3", 4L);
+        assertEventually("put replicated", new Condition() {
+            @Override
+            public boolean holds() {
+                return second.containsKey("a3");
+            }
+        });
+        assertEquals(3, events.get().size());
+    }
+
+    /**
+     * Records the delivered events.
+     */
+    private static final class Events implements ClusterEventListener<String,Long> {
+        final List<List<ClusterEvent<String,Long>>> calls = new CopyOnWriteArrayList<List<ClusterEvent<String,Long>>>();
+
+        @Override
+        public void clusterChanged(List<ClusterEvent<String,Long>> events) {
+            calls.add(new ArrayList<ClusterEvent<String,Long>>(events));
+        }
+
+        List<ClusterEvent<String,Long>> get() {
+            final List<ClusterEvent<String,Long>> events = new ArrayList<ClusterEvent<String,Long>>();
+            for (List<ClusterEvent<String,Long>> call: calls) {
+                events.addAll(call);
+            }
+            return events;
+        }
+
+        void await(final int count) {
+            assertEventually(count + " events", new Condition() {
+                @Override
+                public boolean holds() {
+                    return get().size() >= count;
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Collections;
+
+/**
+ * Tests how the {@link ConvergentClusteredCounter} merges the totals of the
+ * members.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ConvergentClusteredCounterTest extends AbstractClusterTest {
+
+    private static ConvergentClusteredCounter newCounter(ClusterContext context) throws Exception {
+        return new ConvergentClusteredCounter(context, "counter", new ClusterConfiguration());
+    }
+
+    private static void merge(ConvergentClusteredCounter counter, long member, long increments, long decrements) {
+        counter.handleUpdate(ConvergentClusteredCounter.CounterActions.MERGE, Collections.singletonMap(member,
+                new ConvergentClusteredCounter.Totals(increments, decrements)));
+    }
+
+    private static void assertValue(final long expected, final ClusteredCounter counter) {
+        assertEventually("counter reaches " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return counter.get() == expected;
+            }
+        });
+    }
+
+    public void testMergeKeepsTheHighestTotals() throws Exception {
+        final ConvergentClusteredCounter counter = newCounter(join());
+
+        merge(counter, 7, 5, 2);
+        assertEquals(3, counter.get());
+
+        // outdated and duplicated totals change nothing
+        merge(counter, 7, 3, 1);
+        merge(counter, 7, 5, 2);
+        assertEquals(3, counter.get());
+
+        // totals which are partly newer are combined
+        merge(counter, 7, 4, 4);
+        assertEquals(1, counter.get());
+        merge(counter, 7, 6, 0);
+        assertEquals(2, counter.get());
+
+        // every member counts
+        merge(counter, 8, 10, 0);
+        assertEquals(12, counter.get());
+        assertEquals(11, counter.decrementAndGet());
+    }
+
+    public void testConcurrentChangesAddUp() throws Exception {
+        final ClusteredCounter first = newCounter(join());
+        final ClusteredCounter second = newCounter(join());
+        awaitView(2);
+
+        final Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int n = 0; n < 500; n++) {
+                    second.incrementAndGet();
+                    if (n % 5 == 0) {
+                        second.addAndGet(-3);
+                    }
+                }
+            }
+        });
+        other.start();
+        for (int n = 0; n < 500; n++) {
+            first.incrementAndGet();
+            if (n % 2 == 0) {
+                first.decrementAndGet();
+            }
+        }
+        other.join();
+
+        final long expected = 500 - 300 + 500 - 250;
+        assertValue(expected, first);
+        assertValue(expected, second);
+
+        final ClusteredCounter third = newCounter(join());
+        assertEquals(expected, third.get());
+        third.addAndGet(-expected);
+        assertValue(0, first);
+        assertValue(0, second);
+    }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that concurrent inserts and removes leave the
+ * {@link ConvergentClusteredList} in the same order on every member.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ConvergentClusteredListTest extends AbstractClusterTest {
+
+    private static ClusteredList<String> newList(ClusterContext context, int batchSize) throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setBatchSize(batchSize);
+        configuration.setBatchDelay(1, TimeUnit.HOURS);
+        return ClusteredCollections.newConvergentClusteredList(context, "list", Serializers.stringSerializer(),
+                configuration);
+    }
+
+    private static void assertSameOrder(final List<String> first, final List<String> second) {
+        assertEventually("both members have the same order", new Condition() {
+            @Override
+            public boolean holds() {
+                return new ArrayList<String>(first).equals(new ArrayList<String>(second));
+            }
+        });
+    }
+
+    public void testConcurrentInsertsAtTheSamePosition() throws Exception {
+        // a member sends its updates once it queued three of them
+        final ClusteredList<String> first = newList(join(), 3);
+        final ClusteredList<String> second = newList(join(), 3);
+        awaitView(2);
+        first.add("a");
+        first.add("b");
+        first.add("c");
+        assertSameOrder(Arrays.asList("a", "b", "c"), second);
+
+        // neither member sees the updates of the other before its own
+        first.add(1, "first");
+        first.remove("b");
+        second.add(1, "second");
+        second.remove("a");
+        first.add("first-tail");
+        second.add(0, "second-head");
+
+        assertSameOrder(first, second);
+        final List<String> merged = new ArrayList<String>(first);
+        assertEquals(merged.toString(), 5, merged.size());
+        assertEquals("second-head", merged.get(0));
+        assertEquals(new HashSet<String>(Arrays.asList("first", "second")),
+                new HashSet<String>(merged.subList(1, 3)));
+        assertEquals(Arrays.asList("c", "first-tail"), merged.subList(3, 5));
+    }
+
+    public void testRandomConcurrentEditsConverge() throws Exception {
+        final ClusteredList<String> first = newList(join(), 1);
+        final ClusteredList<String> second = newList(join(), 1);
+        awaitView(2);
+
+        final Thread other = new Thread(new Editor(second, "second", 2));
+        other.start();
+        new Editor(first, "first", 1).run();
+        other.join();
+
+        assertSameOrder(first, second);
+        final ClusteredList<String> third = newList(join(), 1);
+        assertEquals(new ArrayList<String>(first), new ArrayList<String>(third));
+    }
+
+    /**
+     * Inserts at and removes from random positions.
+     */
+    private static final class Editor implements Runnable {
+        private final List<String> list;
+        private final String name;
+        private final Random random;
+
+        Editor(List<String> list, String name, long seed) {
+            this.list = list;
+            this.name = name;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            for (int n = 0; n < 300; n++) {
+                try {
+                    final int size = list.size();
+                    if (size > 0 && random.nextInt(3) == 0) {
+                        list.remove(random.nextInt(size));
+                    } else {
+                        list.add(random.nextInt(size + 1), name + n);
+                    }
+                } catch (IndexOutOfBoundsException e) {
+                    // the other member removed elements meanwhile
+                }
+            }
+        }
+    }
+
+}
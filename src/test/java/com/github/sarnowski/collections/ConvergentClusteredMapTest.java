@@ -0,0 +1,113 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests how the {@link ConvergentClusteredMap} resolves concurrent writes.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ConvergentClusteredMapTest extends AbstractClusterTest {
+
+    private static ConvergentClusteredMap<String,String> newMap(ClusterContext context, int batchSize)
+            throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setBatchSize(batchSize);
+        configuration.setBatchDelay(1, TimeUnit.HOURS);
+        return new ConvergentClusteredMap<String,String>(context, "map",
+                Serializers.stringSerializer(), Serializers.stringSerializer(), configuration);
+    }
+
+    private static void write(ConvergentClusteredMap<String,String> map, String value, long timestamp, long member) {
+        map.handleUpdate(ConvergentClusteredMap.MapActions.WRITE, Collections.singletonMap("key",
+                new ConvergentClusteredMap.Versioned<String>(value, timestamp, member)));
+    }
+
+    public void testEqualTimestampsAreDecidedByTheWriter() throws Exception {
+        final ConvergentClusteredMap<String,String> first = newMap(join(), 1);
+        final ConvergentClusteredMap<String,String> second = newMap(join(), 1);
+
+        // two writers used the same timestamp, the members receive them in different orders
+        write(first, "low", 100, 1);
+        write(first, "high", 100, 2);
+        write(second, "high", 100, 2);
+        write(second, "low", 100, 1);
+        assertEquals("high", first.get("key"));
+        assertEquals("high", second.get("key"));
+
+        // a remove is decided the same way
+        write(first, null, 100, 3);
+        write(first, "lower", 100, 2);
+        assertNull(first.get("key"));
+        write(second, "lower", 100, 2);
+        write(second, null, 100, 3);
+        assertNull(second.get("key"));
+    }
+
+    public void testLateOlderWriteDoesNotReviveARemovedKey() throws Exception {
+        final ConvergentClusteredMap<String,String> map = newMap(join(), 1);
+
+        write(map, "written", 200, 1);
+        write(map, null, 300, 1);
+        write(map, "delayed", 250, 2);
+        assertNull(map.get("key"));
+        assertTrue(map.isEmpty());
+
+        write(map, "newer", 301, 2);
+        assertEquals("newer", map.get("key"));
+    }
+
+    public void testConcurrentWritesConverge() throws Exception {
+        final ConvergentClusteredMap<String,String> first = newMap(join(), 3);
+        final ConvergentClusteredMap<String,String> second = newMap(join(), 3);
+        awaitView(2);
+        first.put("shared", "initial");
+        first.put("removed", "initial");
+        first.put("filler", "initial");
+        assertEventually("second received the writes", new Condition() {
+            @Override
+            public boolean holds() {
+                return second.size() == 3;
+            }
+        });
+
+        // neither member sees the writes of the other before its own
+        first.put("shared", "first");
+        first.remove("removed");
+        second.put("shared", "second");
+        second.put("removed", "second");
+        first.put("first", "only");
+        second.put("second", "only");
+
+        assertEventually("both members keep the same writes", new Condition() {
+            @Override
+            public boolean holds() {
+                return new HashMap<String,String>(first).equals(new HashMap<String,String>(second));
+            }
+        });
+        final Map<String,String> merged = new HashMap<String,String>(first);
+        assertTrue(merged.get("shared"), "first".equals(merged.get("shared")) || "second".equals(merged.get("shared")));
+        assertEquals("only", merged.get("first"));
+        assertEquals("only", merged.get("second"));
+    }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests how concurrent adds and removes of the {@link ConvergentClusteredSet}
+ * end on every member.
+ *
+ * <p>
+ * A member only sends its updates once it queued three of them, so that
+ * the writes both members make in between are concurrent. A new element
+ * is one update, a remove as well; adding a present element is two, the
+ * removal of its old dots and the add.
+ * </p>
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ConvergentClusteredSetTest extends AbstractClusterTest {
+
+    private ClusteredSet<String> first;
+    private ClusteredSet<String> second;
+
+    private static ClusteredSet<String> newSet(ClusterContext context) throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setBatchSize(3);
+        configuration.setBatchDelay(1, TimeUnit.HOURS);
+        return ClusteredCollections.newConvergentClusteredSet(context, "set", Serializers.stringSerializer(),
+                configuration);
+    }
+
+    private static void assertConverged(final Set<String> expected, final Set<String> actual) {
+        assertEventually("replica converges to " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return expected.equals(new HashSet<String>(actual));
+            }
+        });
+    }
+
+    private static Set<String> elements(String... elements) {
+        return new HashSet<String>(Arrays.asList(elements));
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        first = newSet(join());
+        second = newSet(join());
+        awaitView(2);
+        first.add("x");
+        first.add("a");
+        first.add("b");
+        assertConverged(elements("x", "a", "b"), second);
+    }
+
+    public void testConcurrentAddWinsOverRemove() throws Exception {
+        first.remove("x");
+        first.add("first0");
+        second.add("x");
+        first.add("first1");
+        second.add("second0");
+
+        final Set<String> expected = elements("x", "a", "b", "first0", "first1", "second0");
+        assertConverged(expected, first);
+        assertConverged(expected, second);
+    }
+
+    public void testRemoveDropsEveryObservedAdd() throws Exception {
+        first.remove("a");
+        second.remove("a");
+        first.add("z");
+        second.add("z");
+        first.add("first0");
+        second.add("second0");
+
+        final Set<String> expected = elements("x", "b", "z", "first0", "second0");
+        assertConverged(expected, first);
+        assertConverged(expected, second);
+
+        // the remove covers the adds of both members
+        first.remove("z");
+        first.add("first1");
+        first.add("first2");
+        expected.remove("z");
+        expected.addAll(elements("first1", "first2"));
+        assertConverged(expected, first);
+        assertConverged(expected, second);
+
+        final ClusteredSet<String> third = newSet(join());
+        assertEquals(expected, new HashSet<String>(third));
+    }
+
+}
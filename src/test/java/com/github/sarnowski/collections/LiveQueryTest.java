@@ -0,0 +1,149 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests how the result of a {@link ContinuousQuery} follows the local and
+ * received changes of a replicated map.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class LiveQueryTest extends AbstractClusterTest {
+
+    private static ClusteredMap<String,Long> newMap(ClusterContext context) throws Exception {
+        return ClusteredCollections.newReplicatedClusteredMap(context, "map",
+                Serializers.stringSerializer(), Serializers.longSerializer());
+    }
+
+    private static void assertResult(final Map<String,Long> expected, final ContinuousQuery<String,Long> query) {
+        assertEventually("result converges to " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return expected.equals(new HashMap<String,Long>(query.getResult()));
+            }
+        });
+    }
+
+    public void testResultFollowsRemoteChanges() throws Exception {
+        final ClusteredMap<String,Long> first = newMap(join());
+        final ClusteredMap<String,Long> second = newMap(join());
+        awaitView(2);
+        first.put("small", 1L);
+        first.put("large", 100L);
+        assertEventually("state replicated", new Condition() {
+            @Override
+            public boolean holds() {
+                return second.size() == 2;
+            }
+        });
+
+        final List<ClusterEvent<String,Long>> events = new CopyOnWriteArrayList<ClusterEvent<String,Long>>();
+        final ContinuousQuery<String,Long> query = second.addContinuousQuery(new AtLeast(10),
+                new ClusterEventListener<String,Long>() {
+                    @Override
+                    public void clusterChanged(List<ClusterEvent<String,Long>> changes) {
+                        events.addAll(changes);
+                    }
+                });
+        // starts with the current matches
+        final Map<String,Long> expected = new HashMap<String,Long>();
+        expected.put("large", 100L);
+        assertEquals(expected, new HashMap<String,Long>(query.getResult()));
+
+        // remote inserts, changes within, into and out of the result
+        first.put("inserted", 50L);
+        first.put("large", 200L);
+        first.put("small", 20L);
+        first.put("inserted", 5L);
+        expected.put("large", 200L);
+        expected.put("small", 20L);
+        assertResult(expected, query);
+
+        // remote and local removes
+        first.remove("large");
+        second.remove("small");
+        expected.clear();
+        assertResult(expected, query);
+
+        // the listener is called after the result changed
+        assertEventually("all events delivered", new Condition() {
+            @Override
+            public boolean holds() {
+                return events.size() >= 6;
+            }
+        });
+        assertEquals(events.toString(), 6, events.size());
+        final List<ClusterEvent.Type> types = new ArrayList<ClusterEvent.Type>();
+        for (ClusterEvent<String,Long> event: events) {
+            types.add(event.getType());
+        }
+        assertEquals(ClusterEvent.Type.ADDED, types.get(0));
+        assertEquals(ClusterEvent.Type.UPDATED, types.get(1));
+        assertEquals(ClusterEvent.Type.ADDED, types.get(2));
+        assertEquals(ClusterEvent.Type.REMOVED, types.get(3));
+        assertEquals("inserted", events.get(3).getKey());
+        assertEquals(Long.valueOf(50), events.get(3).getOldValue());
+        assertEquals(ClusterEvent.Type.REMOVED, types.get(4));
+        assertEquals(ClusterEvent.Type.REMOVED, types.get(5));
+    }
+
+    public void testClosedQueryKeepsItsLastResult() throws Exception {
+        final ClusteredMap<String,Long> first = newMap(join());
+        final ClusteredMap<String,Long> second = newMap(join());
+        awaitView(2);
+        final ContinuousQuery<String,Long> query = second.addContinuousQuery(new AtLeast(10), null);
+        first.put("key", 10L);
+        final Map<String,Long> expected = new HashMap<String,Long>();
+        expected.put("key", 10L);
+        assertResult(expected, query);
+
+        query.close();
+        first.put("key", 20L);
+        first.put("other", 30L);
+        assertEventually("updates replicated", new Condition() {
+            @Override
+            public boolean holds() {
+                return second.containsKey("other");
+            }
+        });
+        assertEquals(expected, new HashMap<String,Long>(query.getResult()));
+    }
+
+    /**
+     * Matches the values of at least a minimum.
+     */
+    private static final class AtLeast implements ClusterPredicate<String,Long> {
+        private static final long serialVersionUID = 1L;
+        private final long minimum;
+
+        AtLeast(long minimum) {
+            this.minimum = minimum;
+        }
+
+        @Override
+        public boolean evaluate(String key, Long value) {
+            return value >= minimum;
+        }
+    }
+
+}
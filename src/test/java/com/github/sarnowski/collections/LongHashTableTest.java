@@ -0,0 +1,194 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests the backward shift deletion, the resizing and the key 0 of the
+ * {@link LongHashTable}.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class LongHashTableTest extends TestCase {
+
+    /**
+     * Slots of a new table.
+     */
+    private static final int CAPACITY = 16;
+
+    /**
+     * Finds keys whose home slot in a new table is the given one.
+     */
+    private static long[] keysAt(int home, int count) {
+        final long[] keys = new long[count];
+        int found = 0;
+        for (long key = 1; found < count; key++) {
+            if ((LongHashTable.mix(key) & (CAPACITY - 1)) == home) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    private static void assertEntries(Map<Long,Long> expected, LongHashTable table) {
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<Long,Long> entry: expected.entrySet()) {
+            assertTrue(entry.getKey().toString(), table.contains(entry.getKey()));
+            assertEquals(entry.getValue().longValue(), table.get(entry.getKey(), -1));
+        }
+        final long[] keys = table.keys();
+        Arrays.sort(keys);
+        final List<Long> sorted = new ArrayList<Long>(expected.keySet());
+        Collections.sort(sorted);
+        assertEquals(sorted.size(), keys.length);
+        for (int n = 0; n < keys.length; n++) {
+            assertEquals(sorted.get(n).longValue(), keys[n]);
+        }
+    }
+
+    public void testRemoveShiftsBackAcrossTheEndOfTheTable() {
+        final LongHashTable table = new LongHashTable(true, 0);
+        final long[] last = keysAt(CAPACITY - 1, 3);
+        final long[] first = keysAt(0, 2);
+        final Map<Long,Long> expected = new HashMap<Long,Long>();
+        // the keys of the last slot wrap around and push the keys of the first slots back
+        for (long key: last) {
+            table.put(key, key * 10);
+            expected.put(key, key * 10);
+        }
+        for (long key: first) {
+            table.put(key, key * 10);
+            expected.put(key, key * 10);
+        }
+        assertEntries(expected, table);
+
+        assertTrue(table.remove(last[0]));
+        expected.remove(last[0]);
+        assertEntries(expected, table);
+        assertFalse(table.remove(last[0]));
+
+        assertTrue(table.remove(first[0]));
+        expected.remove(first[0]);
+        assertEntries(expected, table);
+
+        assertTrue(table.remove(last[2]));
+        expected.remove(last[2]);
+        assertEntries(expected, table);
+
+        table.put(last[0], 1);
+        expected.put(last[0], 1L);
+        assertEntries(expected, table);
+    }
+
+    public void testRandomOperationsAroundTheEnd() {
+        // few keys crowding the end of a small table, including the key 0
+        final long[] pool = new long[9];
+        System.arraycopy(keysAt(CAPACITY - 1, 4), 0, pool, 0, 4);
+        System.arraycopy(keysAt(CAPACITY - 2, 2), 0, pool, 4, 2);
+        System.arraycopy(keysAt(0, 2), 0, pool, 6, 2);
+        pool[8] = 0;
+
+        final LongHashTable table = new LongHashTable(true, 0);
+        final Map<Long,Long> expected = new HashMap<Long,Long>();
+        final Random random = new Random(42);
+        for (int n = 0; n < 10000; n++) {
+            final long key = pool[random.nextInt(pool.length)];
+            if (random.nextBoolean()) {
+                assertEquals(!expected.containsKey(key), table.put(key, n));
+                expected.put(key, (long) n);
+            } else {
+                assertEquals(expected.remove(key) != null, table.remove(key));
+            }
+            assertEntries(expected, table);
+        }
+    }
+
+    public void testResizeKeepsAllEntries() {
+        final LongHashTable table = new LongHashTable(true, 0);
+        final Map<Long,Long> expected = new HashMap<Long,Long>();
+        for (long key = -500; key < 500; key++) {
+            table.put(key, -key);
+            expected.put(key, -key);
+        }
+        assertEntries(expected, table);
+        assertTrue(table.toString(), table.toString().contains("capacity=2048"));
+
+        for (long key = -500; key < 500; key += 2) {
+            assertTrue(table.remove(key));
+            expected.remove(key);
+        }
+        assertEntries(expected, table);
+
+        assertEquals(expected.size(), table.copy().size());
+        int chunked = 0;
+        for (Iterator<LongHashTable> chunks = table.chunks(64); chunks.hasNext(); ) {
+            final LongHashTable chunk = chunks.next();
+            assertTrue(chunk.size() <= 64);
+            chunked += chunk.size();
+        }
+        assertEquals(expected.size(), chunked);
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertTrue(table.toString(), table.toString().contains("capacity=16"));
+    }
+
+    public void testKeyZeroAndAbsentKeys() {
+        final LongHashTable table = new LongHashTable(true, 0);
+        assertFalse(table.contains(0));
+        assertEquals(-1, table.get(0, -1));
+        assertEquals(-1, table.get(7, -1));
+        assertFalse(table.remove(0));
+        assertFalse(table.remove(7));
+
+        assertTrue(table.put(0, 5));
+        assertFalse(table.put(0, 6));
+        assertEquals(1, table.size());
+        assertEquals(6, table.get(0, -1));
+        assertEquals(8, table.add(0, 2));
+        assertEquals(3, table.add(7, 3));
+        assertEquals(2, table.size());
+
+        final LongHashTable copy = table.copy();
+        final Iterator<LongHashTable> chunks = table.chunks(1);
+        assertEquals(8, chunks.next().get(0, -1));
+        assertEquals(3, chunks.next().get(7, -1));
+        assertFalse(chunks.hasNext());
+
+        assertTrue(table.remove(0));
+        assertFalse(table.contains(0));
+        assertEquals(-1, table.get(0, -1));
+        assertEquals(1, table.size());
+        assertEquals(8, copy.get(0, -1));
+
+        final LongHashTable keys = new LongHashTable(false, 0);
+        assertTrue(keys.put(0, 99));
+        assertTrue(keys.contains(0));
+        assertEquals(0, keys.keys()[0]);
+    }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tests that the {@link OffHeapClusteredMap} replicates its writes and
+ * transfers its serialized records to late members.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class OffHeapClusteredMapTest extends AbstractClusterTest {
+
+    private static ClusteredMap<String,String> newMap(ClusterContext context, int stateChunkSize) throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setStateChunkSize(stateChunkSize);
+        return ClusteredCollections.newOffHeapClusteredMap(context, "map",
+                Serializers.stringSerializer(), Serializers.stringSerializer(), configuration);
+    }
+
+    private static void assertConverged(final Map<String,String> expected, final Map<String,String> actual) {
+        assertEventually("replica converges to " + expected.size() + " entries", new Condition() {
+            @Override
+            public boolean holds() {
+                return new HashMap<String,String>(expected).equals(new HashMap<String,String>(actual));
+            }
+        });
+    }
+
+    public void testPutsAndRemovesReplicate() throws Exception {
+        final ClusteredMap<String,String> first = newMap(join(), 1000);
+        final ClusteredMap<String,String> second = newMap(join(), 1000);
+        awaitView(2);
+
+        assertNull(first.put("key", "value"));
+        assertConverged(first, second);
+        assertEquals("value", second.get("key"));
+
+        // a longer value than the stored one
+        assertEquals("value", second.put("key", "a much longer value"));
+        assertConverged(second, first);
+        assertEquals("a much longer value", first.get("key"));
+
+        final Map<String,String> entries = new HashMap<String,String>();
+        for (int n = 0; n < 100; n++) {
+            entries.put("key" + n, "value" + n);
+        }
+        first.putAll(entries);
+        assertEquals("a much longer value", first.remove("key"));
+        assertNull(first.remove("absent"));
+        assertConverged(entries, second);
+
+        // removing through the iterator replicates as well
+        final Iterator<String> keys = second.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().endsWith("0")) {
+                keys.remove();
+            }
+        }
+        assertEquals(90, second.size());
+        assertConverged(second, first);
+        assertFalse(first.containsKey("key10"));
+
+        try {
+            first.put("key", null);
+            fail("null value accepted");
+        } catch (NullPointerException e) {
+            // expected
+        }
+
+        second.clear();
+        assertConverged(second, first);
+        assertTrue(first.isEmpty());
+    }
+
+    public void testLateMembersReceiveTheState() throws Exception {
+        final ClusteredMap<String,String> first = newMap(join(), 1000);
+        for (int n = 0; n < 500; n++) {
+            first.put("key" + n, "value" + n);
+        }
+        // leaves holes in the slabs of the store
+        for (int n = 0; n < 500; n += 3) {
+            first.remove("key" + n);
+        }
+        first.put("key1", "replaced");
+
+        // the complete state at once and in chunks
+        final ClusteredMap<String,String> second = newMap(join(), 1000);
+        final ClusteredMap<String,String> third = newMap(join(), 7);
+        awaitView(3);
+        assertEquals(new HashMap<String,String>(first), new HashMap<String,String>(second));
+        assertEquals(new HashMap<String,String>(first), new HashMap<String,String>(third));
+        assertEquals("replaced", third.get("key1"));
+        assertNull(third.get("key0"));
+
+        // the transferred records keep replicating
+        third.put("key0", "back");
+        second.remove("key1");
+        assertConverged(third, first);
+        assertConverged(third, second);
+        assertEquals("back", first.get("key0"));
+        assertFalse(first.containsKey("key1"));
+    }
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests the slabs and the index of the {@link OffHeapStore}.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class OffHeapStoreTest extends TestCase {
+
+    private static final int SLAB_SIZE = 1024;
+
+    /**
+     * Index of a new store, sized for up to twelve entries.
+     */
+    private static final int MIN_INDEX = 16 * 8;
+
+    private final OffHeapStore store = new OffHeapStore(SLAB_SIZE, 0);
+
+    private static byte[] bytes(String string) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Serializers.stringSerializer().write(string, new DataOutputStream(buffer));
+        return buffer.toByteArray();
+    }
+
+    private void put(String key, String value) throws IOException {
+        final byte[] keyBytes = bytes(key);
+        store.put(keyBytes, bytes(value), OffHeapStore.hash(keyBytes));
+    }
+
+    private boolean remove(String key) throws IOException {
+        final byte[] keyBytes = bytes(key);
+        return store.remove(keyBytes, OffHeapStore.hash(keyBytes));
+    }
+
+    private static int find(OffHeapStore from, String key) throws IOException {
+        final byte[] keyBytes = bytes(key);
+        return from.find(keyBytes, OffHeapStore.hash(keyBytes));
+    }
+
+    private static String get(OffHeapStore from, String key) throws IOException {
+        final int slot = find(from, key);
+        return slot < 0 ? null : from.read(slot, true, Serializers.stringSerializer());
+    }
+
+    private static String repeat(char character, int count) {
+        final char[] characters = new char[count];
+        Arrays.fill(characters, character);
+        return new String(characters);
+    }
+
+    public void testSlabsAndIndexGrow() throws IOException {
+        assertEquals(MIN_INDEX, store.allocated());
+        put("key0", "value0");
+        assertEquals(MIN_INDEX + SLAB_SIZE, store.allocated());
+
+        for (int n = 1; n < 1000; n++) {
+            put("key" + n, "value" + n);
+        }
+        assertEquals(1000, store.size());
+        assertTrue(store.toString(), store.allocated() > 20 * SLAB_SIZE);
+        for (int n = 0; n < 1000; n++) {
+            assertEquals("value" + n, get(store, "key" + n));
+        }
+        assertNull(get(store, "missing"));
+    }
+
+    public void testFreedSlotsAreReused() throws IOException {
+        for (int n = 0; n < 10; n++) {
+            put("key" + n, "value" + n);
+        }
+        final int slot = find(store, "key3");
+        assertTrue(remove("key3"));
+        assertFalse(remove("key3"));
+        assertEquals(-1, find(store, "key3"));
+        put("key3", "again");
+        assertEquals(slot, find(store, "key3"));
+        assertEquals("again", get(store, "key3"));
+
+        // removing and adding other keys drops the markers instead of growing the index
+        for (int n = 10; n < 2000; n++) {
+            assertTrue(remove("key" + (n - 10)));
+            put("key" + n, "value" + n);
+        }
+        assertEquals(10, store.size());
+        assertTrue(store.toString(), store.allocated() <= MIN_INDEX + 4 * SLAB_SIZE);
+        for (int n = 1990; n < 2000; n++) {
+            assertEquals("value" + n, get(store, "key" + n));
+        }
+    }
+
+    public void testOversizedValuesGetASlabOfTheirOwn() throws IOException {
+        put("small", "value");
+        final String large = repeat('x', 10 * SLAB_SIZE);
+        put("large", large);
+        assertTrue(store.toString(), store.allocated() >= MIN_INDEX + SLAB_SIZE + large.length());
+        assertEquals(large, get(store, "large"));
+        assertEquals("value", get(store, "small"));
+        put("after", "value");
+        assertEquals("value", get(store, "after"));
+
+        // overwriting the large value makes its slab garbage, which gets dropped
+        put("large", "small again");
+        assertEquals("small again", get(store, "large"));
+        assertTrue(store.toString(), store.allocated() < MIN_INDEX + 2 * SLAB_SIZE);
+        assertEquals("value", get(store, "small"));
+        assertEquals("value", get(store, "after"));
+    }
+
+    public void testClearReleasesTheSlabs() throws IOException {
+        for (int n = 0; n < 100; n++) {
+            put("key" + n, "value" + n);
+        }
+        final OffHeapStore copy = store.copy();
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(MIN_INDEX, store.allocated());
+        assertEquals(-1, store.nextSlot(0));
+        assertNull(get(store, "key1"));
+
+        // the cleared store stays usable, a copy keeps its own slabs
+        put("key1", "new");
+        assertEquals("new", get(store, "key1"));
+        assertEquals(1, store.size());
+        assertEquals(100, copy.size());
+        assertEquals("value1", get(copy, "key1"));
+        assertEquals("value99", get(copy, "key99"));
+    }
+
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the ordering, the failure handling, the overflow policies and the
+ * idling of the {@link OrderedExecutor}.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class OrderedExecutorTest extends TestCase {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+
+    public void testEveryExecutorRunsItsTasksInOrder() throws Exception {
+        final int producers = 4;
+        final int tasks = 2000;
+        final OrderedExecutor[] executors = new OrderedExecutor[8];
+        final List<List<Integer>> ran = new ArrayList<List<Integer>>();
+        final AtomicInteger[] running = new AtomicInteger[executors.length];
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        for (int n = 0; n < executors.length; n++) {
+            executors[n] = new OrderedExecutor("executor" + n, 16);
+            ran.add(new CopyOnWriteArrayList<Integer>());
+            running[n] = new AtomicInteger();
+        }
+
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < tasks; n++) {
+                        final int executor = (n + producer) % executors.length;
+                        final int task = producer * tasks + n;
+                        executors[executor].execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (running[executor].incrementAndGet() > 1) {
+                                    overlapped.set(true);
+                                }
+                                ran.get(executor).add(task);
+                                running[executor].decrementAndGet();
+                            }
+                        });
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread: threads) {
+            thread.join(TIMEOUT);
+            assertFalse(thread.isAlive());
+        }
+
+        int total = 0;
+        for (int n = 0; n < executors.length; n++) {
+            executors[n].awaitIdle();
+            assertEquals(0, executors[n].size());
+            // the tasks of every producer ran in the order it queued them
+            final int[] last = new int[producers];
+            Arrays.fill(last, -1);
+            for (int task: ran.get(n)) {
+                final int producer = task / tasks;
+                assertTrue(ran.get(n).toString(), task % tasks > last[producer]);
+                last[producer] = task % tasks;
+            }
+            total += ran.get(n).size();
+        }
+        assertEquals(producers * tasks, total);
+        assertFalse("tasks of one executor overlapped", overlapped.get());
+    }
+
+    public void testFailingTasksDoNotStopTheQueue() throws Exception {
+        final OrderedExecutor executor = new OrderedExecutor("failing", 100);
+        final List<Integer> ran = new CopyOnWriteArrayList<Integer>();
+        for (int n = 0; n < 10; n++) {
+            final int task = n;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(task);
+                    if (task % 3 == 0) {
+                        throw new IllegalStateException("task " + task + " fails");
+                    }
+                }
+            });
+        }
+        executor.awaitIdle();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), ran);
+    }
+
+    public void testOverflowPolicies() throws Exception {
+        final OrderedExecutor executor = new OrderedExecutor("full", 2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> ran = new CopyOnWriteArrayList<String>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ran.add("blocker");
+            }
+        });
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        assertTrue(executor.submit(new Adder(ran, "first"), OverflowPolicy.DISCARD));
+        assertTrue(executor.submit(new Adder(ran, "second"), OverflowPolicy.DISCARD));
+        assertFalse(executor.submit(new Adder(ran, "discarded"), OverflowPolicy.DISCARD));
+        assertEquals(2, executor.size());
+
+        // a blocked producer keeps its task even if it gets interrupted
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executor.submit(new Adder(ran, "blocked"), OverflowPolicy.BLOCK);
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue("producer waits for space", producer.isAlive());
+        producer.interrupt();
+        producer.join(200);
+        assertTrue("producer still waits for space", producer.isAlive());
+
+        release.countDown();
+        producer.join(TIMEOUT);
+        assertFalse(producer.isAlive());
+        assertTrue("interrupt was restored", interrupted.get());
+        executor.awaitIdle();
+        assertEquals(Arrays.asList("blocker", "first", "second", "blocked"), ran);
+    }
+
+    public void testAwaitIdleWaitsForQueuedTasks() throws Exception {
+        final OrderedExecutor executor = new OrderedExecutor("idle", 100);
+        // an executor without tasks holds no thread
+        executor.awaitIdle();
+
+        final List<String> ran = new CopyOnWriteArrayList<String>();
+        for (int n = 0; n < 5; n++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    ran.add("slow");
+                }
+            });
+        }
+        executor.awaitIdle();
+        assertEquals(5, ran.size());
+        assertEquals(0, executor.size());
+
+        // an idle executor picks up new tasks again
+        executor.execute(new Adder(ran, "later"));
+        executor.awaitIdle();
+        assertEquals(6, ran.size());
+        assertEquals("later", ran.get(5));
+    }
+
+    /**
+     * Records its name when it runs.
+     */
+    private static final class Adder implements Runnable {
+        private final List<String> ran;
+        private final String name;
+
+        Adder(List<String> ran, String name) {
+            this.ran = ran;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            ran.add(name);
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the placement, the rebalancing, the near cache and the closing of
+ * the {@link PartitionedClusteredMap}.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class PartitionedClusteredMapTest extends AbstractClusterTest {
+
+    private static final int KEYS = 200;
+
+    /**
+     * Released at the end of every test, lets {@link BlockingPredicate} wait.
+     */
+    private static volatile CountDownLatch release;
+
+    private PartitionedClusteredMap<String,String> newMap(ClusterContext context, int backups, int nearCacheSize) {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setBackupCount(backups);
+        configuration.setNearCacheSize(nearCacheSize);
+        return new PartitionedClusteredMap<String,String>(context, "map",
+                Serializers.stringSerializer(), Serializers.stringSerializer(), configuration);
+    }
+
+    private static void fill(PartitionedClusteredMap<String,String> map) {
+        for (int n = 0; n < KEYS; n++) {
+            map.put("key" + n, "value" + n);
+        }
+    }
+
+    /**
+     * Waits until every key is stored by exactly the given number of members
+     * and every member reads every value.
+     */
+    private static void assertPlaced(int copies, final List<PartitionedClusteredMap<String,String>> maps) {
+        assertHeld(copies, maps);
+        assertEventually("every member reads every value", new Condition() {
+            @Override
+            public boolean holds() {
+                for (PartitionedClusteredMap<String,String> map: maps) {
+                    for (int n = 0; n < KEYS; n++) {
+                        if (!("value" + n).equals(map.get("key" + n))) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Waits until every map spreads its entries over all maps and every key
+     * is stored by exactly the given number of members.
+     */
+    private static void assertHeld(final int copies, final List<PartitionedClusteredMap<String,String>> maps) {
+        assertEventually("every map sees " + maps.size() + " members", new Condition() {
+            @Override
+            public boolean holds() {
+                for (PartitionedClusteredMap<String,String> map: maps) {
+                    if (map.getMembers().size() != maps.size()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        assertEventually("every key on " + copies + " members", new Condition() {
+            @Override
+            public boolean holds() {
+                for (int n = 0; n < KEYS; n++) {
+                    int holders = 0;
+                    for (PartitionedClusteredMap<String,String> map: maps) {
+                        if (map.holds("key" + n)) {
+                            holders++;
+                        }
+                    }
+                    if (holders != copies) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    private static int hash(String key) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Serializers.stringSerializer().write(key, new DataOutputStream(buffer));
+        return ConsistentHash.hash(buffer.toByteArray(), 0, buffer.size());
+    }
+
+    public void testOwnerAndBackups() throws Exception {
+        final PartitionedClusteredMap<String,String> first = newMap(join(), 1, 0);
+        final PartitionedClusteredMap<String,String> second = newMap(join(), 1, 0);
+        final PartitionedClusteredMap<String,String> third = newMap(join(), 1, 0);
+        awaitView(3);
+
+        fill(second);
+        assertPlaced(2, Arrays.asList(first, second, third));
+        assertEquals(KEYS, first.size());
+
+        assertEquals("value7", third.remove("key7"));
+        assertEventually("removed from owner and backup", new Condition() {
+            @Override
+            public boolean holds() {
+                return !first.holds("key7") && !second.holds("key7") && !third.holds("key7");
+            }
+        });
+        assertEquals(KEYS - 1, second.size());
+    }
+
+    public void testRebalanceOnJoinAndLeave() throws Exception {
+        final List<PartitionedClusteredMap<String,String>> maps = new ArrayList<PartitionedClusteredMap<String,String>>();
+        maps.add(newMap(join(), 1, 0));
+        maps.add(newMap(join(), 1, 0));
+        awaitView(2);
+        fill(maps.get(0));
+        assertPlaced(2, maps);
+
+        final ClusterContext joined = join();
+        maps.add(newMap(joined, 1, 0));
+        awaitView(3);
+        assertPlaced(2, maps);
+
+        leave(joined);
+        maps.remove(2);
+        awaitView(2);
+        assertPlaced(2, maps);
+    }
+
+    public void testHandOverNeverOverwritesLiveWrites() throws Exception {
+        final PartitionedClusteredMap<String,String> map = newMap(join(), 0, 0);
+        awaitView(1);
+
+        assertTrue(map.acceptHandOver("moved", hash("moved"), "handed", 0));
+        assertEquals("handed", map.get("moved"));
+
+        // the put reached the new owner before the hand-over
+        map.put("written", "live");
+        assertFalse(map.acceptHandOver("written", hash("written"), "outdated", 0));
+        assertEquals("live", map.get("written"));
+
+        // the removal reached the new owner before the hand-over
+        map.put("removed", "live");
+        map.remove("removed");
+        assertFalse(map.acceptHandOver("removed", hash("removed"), "outdated", 0));
+        assertNull(map.get("removed"));
+
+        // the hand-over was read before the clear
+        map.clear();
+        assertFalse(map.acceptHandOver("cleared", hash("cleared"), "outdated", 0));
+        assertNull(map.get("cleared"));
+        assertTrue(map.acceptHandOver("cleared", hash("cleared"), "handed", 1));
+        assertEquals("handed", map.get("cleared"));
+    }
+
+    public void testNearCacheInvalidation() throws Exception {
+        final PartitionedClusteredMap<String,String> first = newMap(join(), 0, 100);
+        final PartitionedClusteredMap<String,String> second = newMap(join(), 0, 100);
+        awaitView(2);
+
+        // pick a key once the entries are placed, before they may still move
+        fill(first);
+        assertHeld(1, Arrays.asList(first, second));
+        String remote = null;
+        for (int n = 0; remote == null; n++) {
+            if (first.holds("key" + n)) {
+                remote = "key" + n;
+            }
+        }
+        first.put(remote, "old");
+
+        final String key = remote;
+        final NearCacheStatistics statistics = second.getNearCacheStatistics();
+        assertEventually("value cached", new Condition() {
+            @Override
+            public boolean holds() {
+                assertEquals("old", second.get(key));
+                return statistics.getHitCount() > 0;
+            }
+        });
+        assertEquals(1, statistics.getSize());
+
+        final long invalidations = statistics.getInvalidationCount();
+        first.put(remote, "new");
+        assertEventually("near cache invalidated", new Condition() {
+            @Override
+            public boolean holds() {
+                return "new".equals(second.get(key));
+            }
+        });
+        assertTrue(statistics.getInvalidationCount() > invalidations);
+
+        // writes of the reader itself replace its cached value right away
+        second.put(remote, "own");
+        assertEquals("own", second.get(remote));
+    }
+
+    public void testOnlyMembersHostingTheMapOwnEntries() throws Exception {
+        final PartitionedClusteredMap<String,String> first = newMap(join(), 1, 0);
+        // shares the cluster, but does not host the map
+        join();
+        final ClusterContext secondContext = join();
+        final PartitionedClusteredMap<String,String> second = newMap(secondContext, 1, 0);
+        awaitView(3);
+
+        fill(first);
+        assertPlaced(2, Arrays.asList(first, second));
+        assertEquals(KEYS, second.size());
+        assertEquals(KEYS, first.entrySet().size());
+
+        // the remaining host takes over without waiting for the closed one
+        assertTrue(secondContext.close("map"));
+        assertEventually("first owns every key", new Condition() {
+            @Override
+            public boolean holds() {
+                return first.getMembers().size() == 1;
+            }
+        });
+        assertEquals(KEYS, first.size());
+        assertEquals("value7", first.get("key7"));
+    }
+
+    public void testCloseFailsPendingRequests() throws Exception {
+        final ClusterContext firstContext = join();
+        final PartitionedClusteredMap<String,String> first = newMap(firstContext, 0, 0);
+        final PartitionedClusteredMap<String,String> second = newMap(join(), 0, 0);
+        awaitView(2);
+        fill(first);
+        assertHeld(1, Arrays.asList(first, second));
+        String remote = null;
+        for (int n = 0; remote == null; n++) {
+            if (second.holds("key" + n)) {
+                remote = "key" + n;
+            }
+        }
+
+        // the owner evaluates the query before it answers
+        release = new CountDownLatch(1);
+        try {
+            first.addContinuousQuery(new BlockingPredicate(), new ClusterEventListener<String,String>() {
+                @Override
+                public void clusterChanged(List<ClusterEvent<String,String>> events) {
+                }
+            });
+            final ReplicationFuture<String> pending = first.putAsync(remote, "block");
+            assertTrue(firstContext.close("map"));
+            try {
+                pending.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("request of a closed map succeeded");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("closed"));
+            }
+            try {
+                first.get(remote);
+                fail("closed map sent a request");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("closed"));
+            }
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Matches nothing, but waits for the end of the test when evaluating
+     * the value "block".
+     */
+    private static final class BlockingPredicate implements ClusterPredicate<String,String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean evaluate(String key, String value) {
+            if ("block".equals(value)) {
+                try {
+                    release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests how the {@link PersistentState} recovers from its snapshot and
+ * logs, from damaged logs, from a reset and from a failed write.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class PersistentStateTest extends TestCase {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("persistent-state", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private PersistentState open(Messages messages, int snapshotInterval) throws IOException {
+        final PersistentState state = new PersistentState(directory, snapshotInterval, messages);
+        state.recover();
+        return state;
+    }
+
+    private static void append(PersistentState state, Messages messages, String... applied) {
+        for (String message: applied) {
+            messages.apply(message);
+            final byte[] bytes = message.getBytes(UTF8);
+            state.append(bytes, 0, bytes.length);
+        }
+    }
+
+    private File logFile(long generation) {
+        return new File(directory, String.format("log-%016x", generation));
+    }
+
+    /**
+     * @return the generation of the snapshot, or -1 if there is none
+     */
+    private long snapshotGeneration() throws IOException {
+        final File snapshot = new File(directory, "snapshot");
+        if (!snapshot.isFile()) {
+            return -1;
+        }
+        final DataInputStream in = new DataInputStream(new FileInputStream(snapshot));
+        try {
+            in.readInt();
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void awaitSnapshot(long generation) throws Exception {
+        final long end = System.currentTimeMillis() + TIMEOUT;
+        while (snapshotGeneration() != generation || logFile(generation - 1).exists()) {
+            if (System.currentTimeMillis() > end) {
+                fail("no snapshot " + generation + " in " + Arrays.asList(directory.list()));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private List<String> recover() throws IOException {
+        final Messages recovered = new Messages();
+        open(recovered, 100).close();
+        return recovered.get();
+    }
+
+    public void testRecoverReplaysTheLogsAfterTheSnapshot() throws Exception {
+        final Messages messages = new Messages();
+        final PersistentState state = open(messages, 3);
+        append(state, messages, "a", "b", "c");
+        awaitSnapshot(1);
+        append(state, messages, "d", "e", "f");
+        awaitSnapshot(2);
+        append(state, messages, "g", "h");
+        state.close();
+
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h"), recover());
+        // recovering does not change the files
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h"), recover());
+        assertEquals(2, snapshotGeneration());
+    }
+
+    public void testIncompleteTailIsTruncated() throws Exception {
+        final Messages messages = new Messages();
+        final PersistentState state = open(messages, 100);
+        append(state, messages, "a", "b", "c");
+        state.close();
+        final File log = logFile(0);
+        final long length = log.length();
+
+        // the process died while writing the next message
+        final RandomAccessFile file = new RandomAccessFile(log, "rw");
+        try {
+            file.seek(length);
+            file.writeInt(100);
+            file.writeInt(0);
+            file.write("torn".getBytes(UTF8));
+        } finally {
+            file.close();
+        }
+
+        assertEquals(Arrays.asList("a", "b", "c"), recover());
+        assertEquals(length, log.length());
+
+        // new messages follow the complete ones
+        final Messages restarted = new Messages();
+        final PersistentState again = open(restarted, 100);
+        append(again, restarted, "d");
+        again.close();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), recover());
+    }
+
+    public void testCorruptMessageEndsTheLog() throws Exception {
+        final Messages messages = new Messages();
+        final PersistentState state = open(messages, 100);
+        append(state, messages, "a", "bb", "c");
+        state.close();
+        final File log = logFile(0);
+
+        // flip a byte of the second message, its checksum does not match anymore
+        final RandomAccessFile file = new RandomAccessFile(log, "rw");
+        // header and one byte of the first message
+        final long valid = 8 + 1;
+        try {
+            file.seek(valid + 8);
+            file.write('x');
+        } finally {
+            file.close();
+        }
+
+        assertEquals(Collections.singletonList("a"), recover());
+        assertEquals(valid, log.length());
+    }
+
+    public void testResetDiscardsAnOutdatedSnapshot() throws Exception {
+        final Messages messages = new Messages();
+        final CountDownLatch copied = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        messages.blockNextSnapshot(copied, release);
+        final PersistentState state = open(messages, 2);
+        append(state, messages, "a", "b");
+        assertTrue(copied.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // a complete state arrives while the snapshot of the old one is written
+        messages.replace("x", "y");
+        state.reset();
+        // not logged, the snapshot of the new state contains it
+        append(state, messages, "unlogged");
+        release.countDown();
+
+        awaitSnapshot(2);
+        append(state, messages, "z");
+        state.close();
+        assertEquals(Arrays.asList("x", "y", "unlogged", "z"), recover());
+        assertFalse(new File(directory, "snapshot.tmp").exists());
+    }
+
+    public void testRestartAfterAFailedWriteStartsEmpty() throws Exception {
+        final Messages messages = new Messages();
+        final PersistentState state = open(messages, 2);
+        append(state, messages, "a", "b");
+        awaitSnapshot(1);
+
+        // the next snapshot cannot be written
+        assertTrue(new File(directory, "snapshot.tmp").mkdir());
+        append(state, messages, "c", "d");
+        final long end = System.currentTimeMillis() + TIMEOUT;
+        while (snapshotGeneration() != -1) {
+            assertTrue("snapshot was not dropped", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        append(state, messages, "e");
+        state.close();
+
+        // without the snapshot, the logs are useless and the complete state gets fetched
+        assertEquals(Collections.<String>emptyList(), recover());
+        assertFalse(logFile(1).exists());
+        assertFalse(logFile(2).exists());
+
+        final Messages restarted = new Messages();
+        final PersistentState again = open(restarted, 100);
+        append(again, restarted, "f");
+        again.close();
+        assertEquals(Collections.singletonList("f"), recover());
+    }
+
+    /**
+     * A collection of messages which skips replayed messages the snapshot
+     * contains already, like the version vector of a collection does.
+     */
+    private static final class Messages implements PersistentState.Source {
+        private final List<String> messages = new ArrayList<String>();
+        private CountDownLatch copied;
+        private CountDownLatch release;
+
+        synchronized void apply(String message) {
+            messages.add(message);
+        }
+
+        synchronized void replace(String... replacement) {
+            messages.clear();
+            messages.addAll(Arrays.asList(replacement));
+        }
+
+        synchronized List<String> get() {
+            return new ArrayList<String>(messages);
+        }
+
+        /**
+         * Lets the next snapshot wait after copying the messages.
+         */
+        synchronized void blockNextSnapshot(CountDownLatch copied, CountDownLatch release) {
+            this.copied = copied;
+            this.release = release;
+        }
+
+        @Override
+        public synchronized void readSnapshot(DataInputStream in) throws IOException {
+            final int count = in.readInt();
+            for (int n = 0; n < count; n++) {
+                messages.add(in.readUTF());
+            }
+        }
+
+        @Override
+        public synchronized void replay(byte[] buffer, int offset, int length) {
+            final String message = new String(buffer, offset, length, UTF8);
+            if (!messages.contains(message)) {
+                messages.add(message);
+            }
+        }
+
+        @Override
+        public void writeSnapshot(DataOutputStream out) throws IOException {
+            final List<String> copy;
+            final CountDownLatch blocked;
+            synchronized (this) {
+                copy = new ArrayList<String>(messages);
+                if (copied != null) {
+                    copied.countDown();
+                    copied = null;
+                }
+                blocked = release;
+                release = null;
+            }
+            if (blocked != null) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            out.writeInt(copy.size());
+            for (String message: copy) {
+                out.writeUTF(message);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests how the {@link ReplicatedClusteredList} replicates updates with
+ * invalid or outdated indices. The list contract itself is tested by the
+ * {@link ReplicatedClusteredListTest}.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ReplicatedClusteredListReplicationTest extends AbstractClusterTest {
+
+    private static ClusteredList<String> newList(ClusterContext context, int batchSize, SentMessages sent)
+            throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setBatchSize(batchSize);
+        configuration.setBatchDelay(1, TimeUnit.HOURS);
+        if (sent != null) {
+            configuration.setMetricsListener(sent);
+        }
+        return ClusteredCollections.newReplicatedClusteredList(context, "list", Serializers.stringSerializer(),
+                configuration);
+    }
+
+    private static void assertConverged(final List<String> expected, final List<String> actual) {
+        assertEventually("replica converges to " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return expected.equals(new ArrayList<String>(actual));
+            }
+        });
+    }
+
+    public void testInvalidIndicesAreNotSent() throws Exception {
+        final SentMessages sent = new SentMessages();
+        final ClusteredList<String> first = newList(join(), 1, sent);
+        final ClusteredList<String> second = newList(join(), 1, null);
+        awaitView(2);
+        first.add("a");
+        assertConverged(Arrays.asList("a"), second);
+        assertEquals(1, sent.getUpdates().size());
+
+        try {
+            first.set(1, "b");
+            fail("set behind the end");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            first.add(2, "b");
+            fail("add behind the end");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            first.remove(-1);
+            fail("remove before the start");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEquals(1, sent.getUpdates().size());
+
+        first.add(1, "b");
+        assertConverged(Arrays.asList("a", "b"), second);
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(first));
+    }
+
+    public void testFailingUpdateDoesNotDropItsBatch() throws Exception {
+        final ClusteredList<String> batching = newList(join(), 3, null);
+        final ClusteredList<String> direct = newList(join(), 1, null);
+        awaitView(2);
+        direct.add("a");
+        direct.add("b");
+        assertConverged(Arrays.asList("a", "b"), batching);
+
+        // the set waits in the batch while the other member removes its element
+        batching.set(1, "replaced");
+        direct.remove(1);
+        assertConverged(Arrays.asList("a"), batching);
+
+        // completes the batch, the set cannot be applied by the other member anymore
+        batching.add("c");
+        batching.add("d");
+        assertConverged(Arrays.asList("a", "c", "d"), direct);
+
+        // later updates of the batching member still get applied
+        batching.remove(0);
+        batching.add("e");
+        batching.add("f");
+        assertConverged(Arrays.asList("c", "d", "e", "f"), direct);
+    }
+
+}
@@ -0,0 +1,411 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the batching, coalescing, argument checks, conditional writes,
+ * acknowledgements, consistency requirements, eviction and rejoining of the
+ * {@link ReplicatedClusteredMap}.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ReplicatedClusteredMapTest extends AbstractClusterTest {
+
+    private SentMessages sent;
+
+    private ClusteredConcurrentMap<String,Long> newMap(ClusterContext context, int batchSize) throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setBatchSize(batchSize);
+        configuration.setBatchDelay(1, TimeUnit.HOURS);
+        if (sent == null) {
+            sent = new SentMessages();
+            configuration.setMetricsListener(sent);
+        }
+        return ClusteredCollections.newReplicatedClusteredMap(context, "map",
+                Serializers.stringSerializer(), Serializers.longSerializer(), configuration);
+    }
+
+    private void assertConverged(final Map<String,Long> expected, final Map<String,Long> actual) {
+        assertEventually("replica converges to " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return new HashMap<String,Long>(expected).equals(new HashMap<String,Long>(actual));
+            }
+        });
+    }
+
+    private static Map<String,Long> newRejoiningMap(ClusterContext context, File directory, SentMessages listener)
+            throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setUpdateLogSize(5);
+        configuration.setPersistenceDirectory(directory);
+        configuration.setMetricsListener(listener);
+        return ClusteredCollections.newReplicatedClusteredMap(context, "map",
+                Serializers.stringSerializer(), Serializers.longSerializer(), configuration);
+    }
+
+    private static File newDirectory() throws Exception {
+        final File directory = File.createTempFile("rejoin", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        return directory;
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Starts a member which receives the complete state, persists it and
+     * leaves again.
+     */
+    private Map<String,Long> leaveAfterSnapshot(File directory) throws Exception {
+        final Map<String,Long> first = newRejoiningMap(join(), null, null);
+        for (long n = 0; n < 20; n++) {
+            first.put("key" + n, n);
+        }
+
+        final SentMessages received = new SentMessages();
+        final ClusterContext second = join();
+        final Map<String,Long> leaving = newRejoiningMap(second, directory, received);
+        awaitView(2);
+        // the log of the first member does not reach back to the first put
+        assertEquals(Collections.singletonList(false), received.getReceivedStates());
+        assertEquals(first, new HashMap<String,Long>(leaving));
+        final File snapshot = new File(new File(directory, "map"), "snapshot");
+        assertEventually("snapshot written", new Condition() {
+            @Override
+            public boolean holds() {
+                return snapshot.isFile();
+            }
+        });
+        leave(second);
+        awaitView(1);
+        return first;
+    }
+
+    public void testRejoinFetchesOnlyTheMissedUpdates() throws Exception {
+        final File directory = newDirectory();
+        try {
+            final Map<String,Long> first = leaveAfterSnapshot(directory);
+            first.put("key20", 20L);
+            first.remove("key0");
+            first.put("key1", 100L);
+
+            final SentMessages received = new SentMessages();
+            final Map<String,Long> rejoined = newRejoiningMap(join(), directory, received);
+            awaitView(2);
+            assertEquals(Collections.singletonList(true), received.getReceivedStates());
+            assertEquals(first, new HashMap<String,Long>(rejoined));
+            assertEquals(Long.valueOf(100), rejoined.get("key1"));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    public void testRejoinFallsBackToTheCompleteState() throws Exception {
+        final File directory = newDirectory();
+        try {
+            final Map<String,Long> first = leaveAfterSnapshot(directory);
+            // more updates than the log keeps
+            for (long n = 0; n < 10; n++) {
+                first.put("missed" + n, n);
+            }
+            first.remove("key0");
+
+            final SentMessages received = new SentMessages();
+            final Map<String,Long> rejoined = newRejoiningMap(join(), directory, received);
+            awaitView(2);
+            assertEquals(Collections.singletonList(false), received.getReceivedStates());
+            assertEquals(first, new HashMap<String,Long>(rejoined));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    public void testBatchCoalescesWritesOfTheSameKey() throws Exception {
+        final Map<String,Long> first = newMap(join(), 10);
+        final Map<String,Long> second = newMap(join(), 10);
+        awaitView(2);
+
+        for (long n = 0; n < 20; n++) {
+            first.put("hot", n);
+        }
+        first.remove("hot");
+        assertTrue("coalesced updates filled the batch", sent.getUpdates().isEmpty());
+        for (int n = 0; n < 9; n++) {
+            first.put("key" + n, (long) n);
+        }
+
+        assertEquals(Collections.singletonList(10), sent.getUpdates());
+        assertFalse(first.containsKey("hot"));
+        assertConverged(first, second);
+    }
+
+    public void testBulkOperationsAreSingleUpdates() throws Exception {
+        final Map<String,Long> first = newMap(join(), 1);
+        final Map<String,Long> second = newMap(join(), 1);
+        awaitView(2);
+
+        final Map<String,Long> entries = new HashMap<String,Long>();
+        for (long n = 0; n < 100; n++) {
+            entries.put("key" + n, n);
+        }
+        first.putAll(entries);
+        assertEquals(Collections.singletonList(1), sent.getUpdates());
+        assertConverged(entries, second);
+
+        assertTrue(first.keySet().removeAll(Arrays.asList("key1", "key2", "key3", "missing")));
+        assertEquals(Arrays.asList(1, 1), sent.getUpdates());
+        assertEquals(97, first.size());
+        assertConverged(first, second);
+
+        first.clear();
+        assertEquals(Arrays.asList(1, 1, 1), sent.getUpdates());
+        assertConverged(Collections.<String,Long>emptyMap(), second);
+    }
+
+    public void testEntrySetAddPuts() throws Exception {
+        final Map<String,Long> first = newMap(join(), 1);
+        final Map<String,Long> second = newMap(join(), 1);
+        awaitView(2);
+
+        assertTrue(first.entrySet().add(new AbstractMap.SimpleEntry<String,Long>("key", 1L)));
+        assertFalse(first.entrySet().add(new AbstractMap.SimpleEntry<String,Long>("key", 1L)));
+        assertTrue(first.entrySet().add(new AbstractMap.SimpleEntry<String,Long>("key", 2L)));
+        assertEquals(Arrays.asList(1, 1), sent.getUpdates());
+        assertConverged(Collections.singletonMap("key", 2L), second);
+    }
+
+    public void testNullsAreRejectedBeforeSending() throws Exception {
+        final Map<String,Long> map = newMap(join(), 1);
+        try {
+            map.put(null, 1L);
+            fail("accepted a null key");
+        } catch (NullPointerException e) {
+            // expected
+        }
+        try {
+            map.put("key", null);
+            fail("accepted a null value");
+        } catch (NullPointerException e) {
+            // expected
+        }
+        final Map<String,Long> entries = new HashMap<String,Long>();
+        entries.put("key", 1L);
+        entries.put("null", null);
+        try {
+            map.putAll(entries);
+            fail("accepted a null value in putAll");
+        } catch (NullPointerException e) {
+            // expected
+        }
+        assertTrue(map.isEmpty());
+        assertTrue(sent.getUpdates().isEmpty());
+    }
+
+    public void testAllMembersEvictTheSameEntries() throws Exception {
+        final EvictionPolicy<String,Long> policy = new EvictionPolicy<String,Long>();
+        policy.setMaxEntries(5);
+        final Map<String,Long> first = ClusteredCollections.newReplicatedClusteredMap(join(), "bounded",
+                Serializers.stringSerializer(), Serializers.longSerializer(), policy, new ClusterConfiguration());
+        final Map<String,Long> second = ClusteredCollections.newReplicatedClusteredMap(join(), "bounded",
+                Serializers.stringSerializer(), Serializers.longSerializer(), policy, new ClusterConfiguration());
+        awaitView(2);
+
+        // both members write concurrently, so they apply the writes in different orders
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long n = 0; n < 50; n++) {
+                    second.put("second" + n, n);
+                }
+            }
+        });
+        writer.start();
+        for (long n = 0; n < 50; n++) {
+            first.put("first" + n, n);
+        }
+        writer.join();
+
+        assertEventually("both members keep the same entries", new Condition() {
+            @Override
+            public boolean holds() {
+                return first.size() == 5 && new HashMap<String,Long>(first).equals(new HashMap<String,Long>(second));
+            }
+        });
+    }
+
+    public void testOnlyMembersHostingTheMapAcknowledge() throws Exception {
+        final ClusterContext firstContext = join();
+        final ClusterContext secondContext = join();
+        // members of the same contexts which never create the map
+        join();
+        join();
+        awaitView(4);
+
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setConsistencyMode(ConsistencyMode.SYNCHRONOUS);
+        final ClusteredMap<String,Long> first = ClusteredCollections.newReplicatedClusteredMap(firstContext, "hosted",
+                Serializers.stringSerializer(), Serializers.longSerializer(), configuration);
+        final ClusteredMap<String,Long> second = ClusteredCollections.newReplicatedClusteredMap(secondContext, "hosted",
+                Serializers.stringSerializer(), Serializers.longSerializer(), configuration);
+        second.put("ready", 0L);
+        assertEventually("first member knows the second host", new Condition() {
+            @Override
+            public boolean holds() {
+                return first.containsKey("ready");
+            }
+        });
+
+        // a majority of the hosts, not of the view
+        first.put("quorum", 1L);
+        assertEquals(Long.valueOf(1), second.get("quorum"));
+        first.putAsync("all", 2L, ReplicationLevel.ALL).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(Long.valueOf(2), second.get("all"));
+    }
+
+    public void testConditionalWritesOnlySendChanges() throws Exception {
+        final ClusteredConcurrentMap<String,Long> first = newMap(join(), 1);
+        final ClusteredConcurrentMap<String,Long> second = newMap(join(), 1);
+        awaitView(2);
+
+        assertNull(second.putIfAbsent("key", 1L));
+        assertConverged(second, first);
+
+        // failing conditions send nothing
+        assertEquals(Long.valueOf(1), first.putIfAbsent("key", 2L));
+        assertFalse(first.replace("key", 2L, 3L));
+        assertFalse(first.remove("key", 2L));
+        assertNull(first.replace("absent", 3L));
+        assertEquals(Long.valueOf(1), first.computeReplicated("key", new Identity()));
+        assertTrue(sent.getUpdates().toString(), sent.getUpdates().isEmpty());
+
+        assertTrue(first.replace("key", 1L, 3L));
+        assertEquals(Long.valueOf(5), first.mergeReplicated("key", 2L, new Sum()));
+        assertEquals(Long.valueOf(7), first.mergeReplicated("other", 7L, new Sum()));
+        assertConverged(first, second);
+        assertEquals(Long.valueOf(10), second.computeReplicated("key", new Doubling()));
+        assertConverged(second, first);
+        assertEquals(3, sent.getUpdates().size());
+
+        // a function returning null removes the key
+        assertNull(first.mergeReplicated("other", -7L, new Sum()));
+        assertTrue(second.remove("key", 10L));
+        assertConverged(Collections.<String,Long>emptyMap(), first);
+        assertConverged(Collections.<String,Long>emptyMap(), second);
+        assertEquals(4, sent.getUpdates().size());
+    }
+
+    public void testConcurrentMergesAreAtomic() throws Exception {
+        final ClusteredConcurrentMap<String,Long> first = newMap(join(), 1);
+        final ClusteredConcurrentMap<String,Long> second = newMap(join(), 1);
+        awaitView(2);
+
+        final int threads = 4;
+        final int merges = 250;
+        final Thread[] mergers = new Thread[threads];
+        for (int n = 0; n < threads; n++) {
+            mergers[n] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int m = 0; m < merges; m++) {
+                        first.mergeReplicated("counter", 1L, new Sum());
+                    }
+                }
+            });
+            mergers[n].start();
+        }
+        for (Thread merger: mergers) {
+            merger.join(TIMEOUT);
+            assertFalse(merger.isAlive());
+        }
+        assertEquals(Long.valueOf(threads * merges), first.get("counter"));
+        assertConverged(first, second);
+    }
+
+    public void testTotalOrderNeedsSequencer() throws Exception {
+        // the default protocol stack does not order the messages
+        final ClusterContext context = join();
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setConsistencyMode(ConsistencyMode.TOTAL_ORDER);
+        try {
+            ClusteredCollections.newReplicatedClusteredMap(context, "ordered",
+                    Serializers.stringSerializer(), Serializers.longSerializer(), configuration);
+            fail("created a totally ordered map without SEQUENCER");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("SEQUENCER"));
+        }
+
+        // the name is still free
+        configuration.setConsistencyMode(ConsistencyMode.ASYNC);
+        ClusteredCollections.newReplicatedClusteredMap(context, "ordered",
+                Serializers.stringSerializer(), Serializers.longSerializer(), configuration).put("key", 1L);
+    }
+
+    /**
+     * Adds the given value to the current one, removes the key at 0.
+     */
+    private static final class Sum implements ClusterMerger<Long> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Long merge(Long value, Long given) {
+            final long sum = value + given;
+            return sum == 0 ? null : sum;
+        }
+    }
+
+    /**
+     * Keeps the current value.
+     */
+    private static final class Identity implements ClusterComputation<String,Long> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Long compute(String key, Long value) {
+            return value;
+        }
+    }
+
+    /**
+     * Doubles the current value.
+     */
+    private static final class Doubling implements ClusterComputation<String,Long> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Long compute(String key, Long value) {
+            return value * 2;
+        }
+    }
+
+}
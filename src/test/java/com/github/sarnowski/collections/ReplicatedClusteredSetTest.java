@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Tests the iterators and the {@code null} element of the
+ * {@link ReplicatedClusteredSet}.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ReplicatedClusteredSetTest extends AbstractClusterTest {
+
+    private static ClusteredSet<String> newSet(ClusterContext context) throws Exception {
+        return ClusteredCollections.newReplicatedClusteredSet(context, "set", Serializers.stringSerializer());
+    }
+
+    private static void assertConverged(final Set<String> expected, final Set<String> actual) {
+        assertEventually("replica converges to " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return new HashSet<String>(expected).equals(new HashSet<String>(actual));
+            }
+        });
+    }
+
+    public void testIteratorToleratesConcurrentChanges() throws Exception {
+        final ClusteredSet<String> first = newSet(join());
+        final ClusteredSet<String> second = newSet(join());
+        awaitView(2);
+        for (int n = 0; n < 100; n++) {
+            first.add("element" + n);
+        }
+        assertConverged(first, second);
+
+        // changes while iterating neither fail the iteration nor get lost
+        final Iterator<String> iterator = first.iterator();
+        int visited = 0;
+        while (iterator.hasNext()) {
+            final String element = iterator.next();
+            visited++;
+            if (element.endsWith("0")) {
+                iterator.remove();
+            }
+            second.remove("element" + visited);
+            first.add("added" + visited);
+        }
+        assertTrue(String.valueOf(visited), visited >= 100 - 10);
+        assertFalse(first.contains("element10"));
+        assertTrue(first.contains("added1"));
+        assertConverged(first, second);
+    }
+
+    public void testNullElementReplicates() throws Exception {
+        final ClusteredSet<String> first = newSet(join());
+        final ClusteredSet<String> second = newSet(join());
+        awaitView(2);
+
+        assertTrue(first.add(null));
+        assertFalse(first.add(null));
+        first.add("key");
+        assertConverged(first, second);
+        assertTrue(second.contains(null));
+
+        // the state of a late member contains it as well
+        final ClusteredSet<String> third = newSet(join());
+        assertTrue(third.contains(null));
+        assertEquals(2, third.size());
+
+        boolean found = false;
+        for (String element: third) {
+            found |= element == null;
+        }
+        assertTrue(found);
+        assertTrue(third.remove(null));
+        assertConverged(third, first);
+    }
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Arrays;
+
+/**
+ * Tests the replication, the index checks and the state transfer of the
+ * {@link ReplicatedIntList}.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ReplicatedIntListTest extends AbstractClusterTest {
+
+    private SentMessages sent;
+
+    private ClusteredIntList newList(ClusterContext context) throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setStateChunkSize(2);
+        if (sent == null) {
+            sent = new SentMessages();
+            configuration.setMetricsListener(sent);
+        }
+        return ClusteredCollections.newReplicatedIntList(context, "list", configuration);
+    }
+
+    private static void assertConverged(final int[] expected, final ClusteredIntList list) {
+        assertEventually("list converges to " + Arrays.toString(expected), new Condition() {
+            @Override
+            public boolean holds() {
+                return Arrays.equals(expected, list.toArray());
+            }
+        });
+    }
+
+    public void testUpdatesReplicate() throws Exception {
+        final ClusteredIntList first = newList(join());
+        final ClusteredIntList second = newList(join());
+        awaitView(2);
+
+        first.add(1);
+        first.add(3);
+        first.insert(1, 2);
+        first.insert(0, 0);
+        assertConverged(new int[] {0, 1, 2, 3}, second);
+
+        assertEquals(2, second.set(2, 20));
+        assertEquals(0, second.removeAt(0));
+        second.add(4);
+        assertConverged(new int[] {1, 20, 3, 4}, first);
+        assertEquals(20, first.get(1));
+
+        first.clear();
+        assertConverged(new int[0], second);
+        assertTrue(second.isEmpty());
+    }
+
+    public void testInvalidIndicesAreNotSent() throws Exception {
+        final ClusteredIntList first = newList(join());
+        final ClusteredIntList second = newList(join());
+        awaitView(2);
+        first.add(1);
+        assertConverged(new int[] {1}, second);
+        assertEquals(1, sent.getUpdates().size());
+
+        try {
+            first.set(1, 2);
+            fail("set behind the end");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            first.insert(2, 2);
+            fail("insert behind the end");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            first.removeAt(-1);
+            fail("remove before the start");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            first.get(1);
+            fail("get behind the end");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEquals(1, sent.getUpdates().size());
+
+        first.insert(1, 2);
+        assertConverged(new int[] {1, 2}, second);
+    }
+
+    public void testLateJoinerReceivesTheChunkedState() throws Exception {
+        final ClusteredIntList first = newList(join());
+        for (int n = 0; n < 21; n++) {
+            first.add(n * n);
+        }
+        first.removeAt(0);
+        first.set(0, -1);
+
+        final ClusteredIntList second = newList(join());
+        awaitView(2);
+        assertEquals(20, second.size());
+        assertTrue(Arrays.equals(first.toArray(), second.toArray()));
+        assertEquals(-1, second.get(0));
+        assertEquals(400, second.get(19));
+
+        // the transferred list keeps replicating
+        second.insert(0, 7);
+        assertConverged(second.toArray(), first);
+        assertEquals(400, first.removeAt(20));
+        assertConverged(first.toArray(), second);
+        assertEquals(20, second.size());
+        assertEquals(7, second.get(0));
+    }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Arrays;
+
+/**
+ * Tests the key 0, absent keys and the state transfer of the
+ * {@link ReplicatedLongLongMap}.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ReplicatedLongLongMapTest extends AbstractClusterTest {
+
+    private SentMessages sent;
+
+    private ClusteredLongLongMap newMap(ClusterContext context) throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setStateChunkSize(2);
+        if (sent == null) {
+            sent = new SentMessages();
+            configuration.setMetricsListener(sent);
+        }
+        return ClusteredCollections.newReplicatedLongLongMap(context, "map", configuration);
+    }
+
+    private static void assertValue(final long key, final long expected, final ClusteredLongLongMap map) {
+        assertEventually(key + " reaches " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return map.get(key, -1) == expected;
+            }
+        });
+    }
+
+    public void testKeyZeroAndExtremeKeysReplicate() throws Exception {
+        final ClusteredLongLongMap first = newMap(join());
+        final ClusteredLongLongMap second = newMap(join());
+        awaitView(2);
+
+        first.put(0, 10);
+        first.put(Long.MIN_VALUE, 20);
+        first.put(Long.MAX_VALUE, 30);
+        first.put(-1, 40);
+        assertValue(0, 10, second);
+        assertValue(Long.MIN_VALUE, 20, second);
+        assertValue(Long.MAX_VALUE, 30, second);
+        assertValue(-1, 40, second);
+        assertEquals(4, second.size());
+
+        assertEquals(15, second.addAndGet(0, 5));
+        assertValue(0, 15, first);
+
+        assertTrue(second.remove(0));
+        assertEventually("first removed the key 0", new Condition() {
+            @Override
+            public boolean holds() {
+                return !first.containsKey(0);
+            }
+        });
+        assertEquals(-1, first.get(0, -1));
+        assertEquals(3, first.size());
+    }
+
+    public void testAbsentKeys() throws Exception {
+        final ClusteredLongLongMap first = newMap(join());
+        final ClusteredLongLongMap second = newMap(join());
+        awaitView(2);
+
+        assertFalse(first.containsKey(0));
+        assertEquals(-1, first.get(0, -1));
+        assertEquals(7, first.get(42, 7));
+
+        // removing an absent key sends nothing
+        assertFalse(first.remove(0));
+        assertFalse(first.remove(42));
+        assertTrue(sent.getUpdates().toString(), sent.getUpdates().isEmpty());
+
+        // adding to an absent key starts at 0
+        assertEquals(-3, first.addAndGet(42, -3));
+        assertValue(42, -3, second);
+        assertEquals(1, sent.getUpdates().size());
+    }
+
+    public void testLateJoinerReceivesTheChunkedState() throws Exception {
+        final ClusteredLongLongMap first = newMap(join());
+        for (long key = -10; key <= 10; key++) {
+            first.put(key, key * key);
+        }
+
+        final ClusteredLongLongMap second = newMap(join());
+        awaitView(2);
+        assertEquals(21, second.size());
+        assertEquals(0, second.get(0, -1));
+        assertEquals(100, second.get(-10, -1));
+        final long[] keys = second.keys();
+        Arrays.sort(keys);
+        assertEquals(-10, keys[0]);
+        assertEquals(10, keys[20]);
+
+        second.clear();
+        assertEventually("first cleared", new Condition() {
+            @Override
+            public boolean holds() {
+                return first.isEmpty();
+            }
+        });
+        assertEquals(-1, first.get(0, -1));
+    }
+
+}
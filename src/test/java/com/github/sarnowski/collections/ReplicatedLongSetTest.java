@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.Arrays;
+
+/**
+ * Tests the replication and the state transfer of the
+ * {@link ReplicatedLongSet}.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ReplicatedLongSetTest extends AbstractClusterTest {
+
+    private SentMessages sent;
+
+    private ClusteredLongSet newSet(ClusterContext context) throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setStateChunkSize(2);
+        if (sent == null) {
+            sent = new SentMessages();
+            configuration.setMetricsListener(sent);
+        }
+        return ClusteredCollections.newReplicatedLongSet(context, "set", configuration);
+    }
+
+    private static void assertContains(final long element, final boolean expected, final ClusteredLongSet set) {
+        assertEventually(element + (expected ? " added" : " removed"), new Condition() {
+            @Override
+            public boolean holds() {
+                return set.contains(element) == expected;
+            }
+        });
+    }
+
+    public void testAddsAndRemovesReplicate() throws Exception {
+        final ClusteredLongSet first = newSet(join());
+        final ClusteredLongSet second = newSet(join());
+        awaitView(2);
+
+        assertTrue(first.add(0));
+        assertTrue(first.add(Long.MIN_VALUE));
+        assertTrue(first.add(Long.MAX_VALUE));
+        assertContains(0, true, second);
+        assertContains(Long.MIN_VALUE, true, second);
+        assertContains(Long.MAX_VALUE, true, second);
+        assertEquals(3, second.size());
+
+        // unchanged sets send nothing
+        assertFalse(first.add(0));
+        assertFalse(first.remove(42));
+        assertEquals(3, sent.getUpdates().size());
+
+        assertTrue(second.remove(0));
+        assertContains(0, false, first);
+        assertTrue(second.add(42));
+        assertContains(42, true, first);
+        assertEquals(3, first.size());
+
+        first.clear();
+        assertEventually("second cleared", new Condition() {
+            @Override
+            public boolean holds() {
+                return second.isEmpty();
+            }
+        });
+        assertFalse(second.contains(Long.MAX_VALUE));
+        first.clear();
+        assertEquals(4, sent.getUpdates().size());
+    }
+
+    public void testLateJoinerReceivesTheChunkedState() throws Exception {
+        final ClusteredLongSet first = newSet(join());
+        for (long element = -10; element <= 10; element++) {
+            first.add(element * 1000);
+        }
+        first.remove(0);
+
+        final ClusteredLongSet second = newSet(join());
+        awaitView(2);
+        assertEquals(20, second.size());
+        assertFalse(second.contains(0));
+        final long[] elements = second.toArray();
+        Arrays.sort(elements);
+        assertEquals(-10000, elements[0]);
+        assertEquals(10000, elements[19]);
+
+        // the transferred set keeps replicating
+        assertTrue(second.add(0));
+        assertContains(0, true, first);
+        assertTrue(first.remove(10000));
+        assertContains(10000, false, second);
+    }
+
+}
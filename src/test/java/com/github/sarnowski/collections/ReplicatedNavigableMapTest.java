@@ -0,0 +1,156 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Tests the range views of the {@link ReplicatedNavigableMap} and the
+ * {@link ReplicatedNavigableSet}, and that they replicate writes and range
+ * removals.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ReplicatedNavigableMapTest extends AbstractClusterTest {
+
+    private static ClusteredNavigableMap<Long,String> newMap(ClusterContext context, SentMessages sent)
+            throws Exception {
+        final ClusterConfiguration configuration = new ClusterConfiguration();
+        if (sent != null) {
+            configuration.setMetricsListener(sent);
+        }
+        return ClusteredCollections.newReplicatedNavigableMap(context, "map",
+                Serializers.longSerializer(), Serializers.stringSerializer(), null, configuration);
+    }
+
+    private static ClusteredNavigableSet<String> newSet(ClusterContext context) throws Exception {
+        return ClusteredCollections.newReplicatedNavigableSet(context, "set", Serializers.stringSerializer(),
+                Collections.<String>reverseOrder(), new ClusterConfiguration());
+    }
+
+    private static void assertConverged(final Map<Long,String> expected, final Map<Long,String> actual) {
+        assertEventually("replica converges to " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return new TreeMap<Long,String>(expected).equals(new TreeMap<Long,String>(actual));
+            }
+        });
+    }
+
+    private static void assertConverged(final List<String> expected, final Set<String> actual) {
+        assertEventually("replica converges to " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return expected.equals(new ArrayList<String>(actual));
+            }
+        });
+    }
+
+    public void testViewsFollowRemoteWrites() throws Exception {
+        final ClusteredNavigableMap<Long,String> first = newMap(join(), null);
+        final ClusteredNavigableMap<Long,String> second = newMap(join(), null);
+        awaitView(2);
+        final ClusteredNavigableMap<Long,String> view = second.subMap(10L, true, 20L, false);
+        for (long n = 0; n < 30; n += 5) {
+            first.put(n, "value" + n);
+        }
+        assertConverged(first, second);
+
+        assertEquals(Arrays.asList(10L, 15L), new ArrayList<Long>(view.keySet()));
+        assertEquals(Arrays.asList(15L, 10L), new ArrayList<Long>(view.descendingMap().keySet()));
+        assertEquals(Long.valueOf(20), second.ceilingKey(16L));
+        assertEquals(Long.valueOf(25), second.tailMap(20L, false).firstKey());
+        assertEquals(3, second.headMap(10L, true).size());
+
+        // writes through a view replicate like writes to the map
+        view.put(12L, "twelve");
+        assertEquals("twelve", second.get(12L));
+        try {
+            view.put(20L, "out of range");
+            fail("view accepted a key out of its range");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        first.remove(15L);
+        assertConverged(second, first);
+        assertEquals(Arrays.asList(10L, 12L), new ArrayList<Long>(view.keySet()));
+        assertEquals(Long.valueOf(10), view.pollFirstEntry().getKey());
+        assertConverged(second, first);
+        assertFalse(first.containsKey(10L));
+    }
+
+    public void testClearingAViewReplicatesASingleRangeRemoval() throws Exception {
+        final SentMessages sent = new SentMessages();
+        final ClusteredNavigableMap<Long,String> first = newMap(join(), sent);
+        final ClusteredNavigableMap<Long,String> second = newMap(join(), null);
+        awaitView(2);
+        for (long n = 0; n < 100; n++) {
+            first.put(n, "value" + n);
+        }
+        assertConverged(first, second);
+        final int sentBefore = sent.getUpdates().size();
+
+        first.subMap(20L, 80L).clear();
+        assertEquals(40, first.size());
+        assertConverged(first, second);
+        assertEquals(Collections.singletonList(1), sent.getUpdates().subList(sentBefore, sent.getUpdates().size()));
+        assertEquals(Long.valueOf(19), second.lowerKey(80L));
+        assertEquals(Long.valueOf(80), second.higherKey(19L));
+
+        // an empty range sends nothing
+        first.subMap(30L, 70L).clear();
+        second.tailMap(90L).clear();
+        assertConverged(second, first);
+        assertEquals(30, first.size());
+        assertEquals(sentBefore + 1, sent.getUpdates().size());
+
+        // the state of a late member is sorted as well
+        final ClusteredNavigableMap<Long,String> third = newMap(join(), null);
+        assertEquals(Long.valueOf(0), third.firstKey());
+        assertEquals(Long.valueOf(89), third.lastKey());
+        assertEquals(30, third.size());
+    }
+
+    public void testSetRangesUseTheComparator() throws Exception {
+        final ClusteredNavigableSet<String> first = newSet(join());
+        final ClusteredNavigableSet<String> second = newSet(join());
+        awaitView(2);
+        for (String element: Arrays.asList("a", "b", "c", "d", "e")) {
+            first.add(element);
+        }
+        final List<String> expected = new ArrayList<String>(Arrays.asList("e", "d", "c", "b", "a"));
+        assertConverged(expected, second);
+
+        // in reverse order, the head holds the larger elements
+        assertEquals(Arrays.asList("e", "d"), new ArrayList<String>(second.headSet("c")));
+        second.headSet("c").clear();
+        expected.remove("e");
+        expected.remove("d");
+        assertConverged(expected, first);
+        assertEquals("c", first.first());
+
+        first.tailSet("b", true).clear();
+        assertConverged(Collections.singletonList("c"), second);
+    }
+
+}
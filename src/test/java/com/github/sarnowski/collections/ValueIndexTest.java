@@ -0,0 +1,156 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests that the indexes of a replicated map stay consistent with the
+ * local and received updates.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class ValueIndexTest extends AbstractClusterTest {
+
+    private static final ValueExtractor<Long,Long> LAST_DIGIT = new ValueExtractor<Long,Long>() {
+        @Override
+        public Long extract(Long value) {
+            return value % 10;
+        }
+    };
+
+    private static IndexedMap<String,Long> newMap(ClusterContext context) throws Exception {
+        return ClusteredCollections.newReplicatedClusteredMap(context, "map",
+                Serializers.stringSerializer(), Serializers.longSerializer());
+    }
+
+    private static void assertLookup(final Map<String,Long> expected, final MapIndex<String,Long,Long> index,
+                                     final Long attribute) {
+        assertEventually(attribute + " maps to " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return expected.equals(index.get(attribute));
+            }
+        });
+    }
+
+    private static Map<String,Long> entries(Object... keysAndValues) {
+        final Map<String,Long> entries = new HashMap<String,Long>();
+        for (int n = 0; n < keysAndValues.length; n += 2) {
+            entries.put((String) keysAndValues[n], (Long) keysAndValues[n + 1]);
+        }
+        return entries;
+    }
+
+    public void testLookupFollowsRemoteUpdatesAndRemoves() throws Exception {
+        final IndexedMap<String,Long> first = newMap(join());
+        final IndexedMap<String,Long> second = newMap(join());
+        awaitView(2);
+        first.put("a", 11L);
+        first.put("b", 21L);
+        first.put("c", 12L);
+        assertEventually("puts replicated", new Condition() {
+            @Override
+            public boolean holds() {
+                return second.size() == 3;
+            }
+        });
+
+        // filled with the current entries
+        final MapIndex<String,Long,Long> index = second.addHashIndex(LAST_DIGIT);
+        assertEquals(entries("a", 11L, "b", 21L), index.get(1L));
+        assertEquals(entries("c", 12L), index.get(2L));
+
+        // an update moves the key to its new attribute
+        first.put("a", 32L);
+        assertLookup(entries("b", 21L), index, 1L);
+        assertEquals(entries("a", 32L, "c", 12L), index.get(2L));
+
+        // an update within the same attribute keeps the key, with the new value
+        first.put("b", 41L);
+        assertLookup(entries("b", 41L), index, 1L);
+
+        first.remove("b");
+        assertLookup(Collections.<String,Long>emptyMap(), index, 1L);
+
+        // local writes are indexed as well
+        second.replace("c", 13L);
+        assertEquals(entries("a", 32L), index.get(2L));
+        assertEquals(entries("c", 13L), index.get(3L));
+
+        first.clear();
+        assertLookup(Collections.<String,Long>emptyMap(), index, 2L);
+        assertTrue(index.get(3L).isEmpty());
+    }
+
+    public void testSortedIndexRanges() throws Exception {
+        final IndexedMap<String,Long> first = newMap(join());
+        final IndexedMap<String,Long> second = newMap(join());
+        awaitView(2);
+        final MapIndex<String,Long,Long> index = second.addSortedIndex(LAST_DIGIT);
+        for (long n = 0; n < 10; n++) {
+            first.put("key" + n, n);
+        }
+        assertLookup(entries("key9", 9L), index, 9L);
+
+        // in the order of the attributes
+        assertEquals(Arrays.asList("key3", "key4", "key5"), new ArrayList<String>(index.range(3L, 6L).keySet()));
+        assertEquals(3, index.range(null, 3L).size());
+        assertEquals(2, index.range(8L, null).size());
+
+        first.put("key4", 40L);
+        first.remove("key5");
+        assertEventually("range follows the changes", new Condition() {
+            @Override
+            public boolean holds() {
+                return Arrays.asList("key3").equals(new ArrayList<String>(index.range(3L, 6L).keySet()));
+            }
+        });
+        assertEquals(entries("key0", 0L, "key4", 40L), index.get(0L));
+
+        try {
+            second.addHashIndex(LAST_DIGIT).range(3L, 6L);
+            fail("hash index supports ranges");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testRemovedIndexIsNotMaintained() throws Exception {
+        final IndexedMap<String,Long> first = newMap(join());
+        final IndexedMap<String,Long> second = newMap(join());
+        awaitView(2);
+        final MapIndex<String,Long,Long> index = second.addHashIndex(LAST_DIGIT);
+        first.put("a", 1L);
+        assertLookup(entries("a", 1L), index, 1L);
+
+        second.removeIndex(index);
+        first.put("b", 11L);
+        assertEventually("put replicated", new Condition() {
+            @Override
+            public boolean holds() {
+                return second.containsKey("b");
+            }
+        });
+        assertEquals(entries("a", 1L), index.get(1L));
+    }
+
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2011 Tobias Sarnowski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sarnowski.collections;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the round trips of the binary wire format.
+ *
+ * @author Tobias Sarnowski
+ * @since 1.1
+ */
+public final class VarintsTest extends TestCase {
+
+    private static final long[] LONGS = {
+        0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, -1, Long.MIN_VALUE
+    };
+
+    private static final int[] INTS = {
+        0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, 0x1FFFFF, 0x200000, Integer.MAX_VALUE, -1, Integer.MIN_VALUE
+    };
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+
+    private DataInputStream in() {
+        return new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+    }
+
+    public void testUnsignedInt() throws IOException {
+        for (int value: INTS) {
+            Varints.writeUnsignedInt(out, value);
+        }
+        final DataInputStream in = in();
+        for (int value: INTS) {
+            assertEquals(value, Varints.readUnsignedInt(in));
+        }
+        assertEquals(0, in.available());
+    }
+
+    public void testUnsignedLong() throws IOException {
+        for (long value: LONGS) {
+            Varints.writeUnsignedLong(out, value);
+        }
+        final DataInputStream in = in();
+        for (long value: LONGS) {
+            assertEquals(value, Varints.readUnsignedLong(in));
+        }
+        assertEquals(0, in.available());
+    }
+
+    public void testSigned() throws IOException {
+        for (int value: INTS) {
+            Varints.writeSignedInt(out, value);
+        }
+        for (long value: LONGS) {
+            Varints.writeSignedLong(out, value);
+        }
+        final DataInputStream in = in();
+        for (int value: INTS) {
+            assertEquals(value, Varints.readSignedInt(in));
+        }
+        for (long value: LONGS) {
+            assertEquals(value, Varints.readSignedLong(in));
+        }
+        assertEquals(0, in.available());
+    }
+
+    public void testSmallValuesNeedOneByte() throws IOException {
+        Varints.writeUnsignedInt(out, 127);
+        Varints.writeSignedInt(out, -64);
+        Varints.writeSignedLong(out, 63);
+        assertEquals(3, buffer.size());
+    }
+
+    public void testArrayEncodingMatchesStream() throws IOException {
+        for (long value: LONGS) {
+            buffer.reset();
+            Varints.writeUnsignedLong(out, value);
+            final byte[] array = new byte[12];
+            final int end = Varints.writeUnsignedLong(array, 1, value);
+            assertEquals(buffer.size(), Varints.sizeOfUnsignedLong(value));
+            assertEquals(1 + buffer.size(), end);
+            assertTrue(Arrays.equals(buffer.toByteArray(), Arrays.copyOfRange(array, 1, end)));
+        }
+    }
+
+    public void testMalformedVarintIsRejected() {
+        final byte[] endless = new byte[11];
+        Arrays.fill(endless, (byte) 0x80);
+        try {
+            Varints.readUnsignedLong(new DataInputStream(new ByteArrayInputStream(endless)));
+            fail("accepted a varlong of 11 bytes");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            Varints.readUnsignedInt(new DataInputStream(new ByteArrayInputStream(endless)));
+            fail("accepted a varint of 6 bytes");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testSerializers() throws IOException {
+        final Serializer<String> strings = Serializers.stringSerializer();
+        final Serializer<Long> longs = Serializers.longSerializer();
+        final Serializer<Integer> integers = Serializers.integerSerializer();
+        final Serializer<Object> objects = Serializers.javaSerializer();
+        strings.write("", out);
+        strings.write(null, out);
+        strings.write("\u00e4\u00f6\u00fc \u20ac", out);
+        longs.write(null, out);
+        longs.write(Long.MIN_VALUE, out);
+        integers.write(null, out);
+        integers.write(-1, out);
+        objects.write(null, out);
+        objects.write(Arrays.asList(1, 2), out);
+
+        final DataInputStream in = in();
+        assertEquals("", strings.read(in));
+        assertNull(strings.read(in));
+        assertEquals("\u00e4\u00f6\u00fc \u20ac", strings.read(in));
+        assertNull(longs.read(in));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), longs.read(in));
+        assertNull(integers.read(in));
+        assertEquals(Integer.valueOf(-1), integers.read(in));
+        assertNull(objects.read(in));
+        assertEquals(Arrays.asList(1, 2), objects.read(in));
+        assertEquals(0, in.available());
+    }
+
+    public void testMapCodec() throws IOException {
+        final ReplicatedClusteredMap.MapCodec<String,Long> codec = new ReplicatedClusteredMap.MapCodec<String,Long>(
+                Serializers.stringSerializer(), Serializers.longSerializer(), true);
+        final Map<String,Long> entries = new HashMap<String,Long>();
+        entries.put("a", 1L);
+        entries.put("b", -2L);
+        codec.writeUpdate(ReplicatedClusteredMap.MapActions.PUT,
+                new ReplicatedClusteredMap.MapPayload<String,Long>("key", 42L, 1234L), out);
+        codec.writeUpdate(ReplicatedClusteredMap.MapActions.PUT_ALL,
+                new ReplicatedClusteredMap.MapPayload<String,Long>(entries, 5678L), out);
+        codec.writeUpdate(ReplicatedClusteredMap.MapActions.REMOVE_ALL,
+                new ReplicatedClusteredMap.MapPayload<String,Long>(Arrays.asList("a", "b")), out);
+        codec.writeUpdate(ReplicatedClusteredMap.MapActions.TOUCH,
+                new ReplicatedClusteredMap.MapPayload<String,Long>(Arrays.asList("c"), 777L), out);
+        codec.writeUpdate(ReplicatedClusteredMap.MapActions.REPLACE_IF,
+                new ReplicatedClusteredMap.MapPayload<String,Long>("key", 42L, 43L, null, 9L), out);
+        codec.writeUpdate(ReplicatedClusteredMap.MapActions.CLEAR, null, out);
+
+        final DataInputStream in = in();
+        final ClusterUpdate<ReplicatedClusteredMap.MapActions,ReplicatedClusteredMap.MapPayload<String,Long>> put =
+                codec.readUpdate(in);
+        assertEquals(ReplicatedClusteredMap.MapActions.PUT, put.getActionIdentifier());
+        assertEquals("key", put.getPayload().getKey());
+        assertEquals(Long.valueOf(42), put.getPayload().getValue());
+        assertEquals(1234L, put.getPayload().getTimestamp());
+
+        final ClusterUpdate<ReplicatedClusteredMap.MapActions,ReplicatedClusteredMap.MapPayload<String,Long>> putAll =
+                codec.readUpdate(in);
+        assertEquals(ReplicatedClusteredMap.MapActions.PUT_ALL, putAll.getActionIdentifier());
+        assertEquals(entries, putAll.getPayload().getEntries());
+        assertEquals(5678L, putAll.getPayload().getTimestamp());
+
+        final ClusterUpdate<ReplicatedClusteredMap.MapActions,ReplicatedClusteredMap.MapPayload<String,Long>> removeAll =
+                codec.readUpdate(in);
+        assertEquals(ReplicatedClusteredMap.MapActions.REMOVE_ALL, removeAll.getActionIdentifier());
+        assertEquals(Arrays.asList("a", "b"), removeAll.getPayload().getKeys());
+
+        final ClusterUpdate<ReplicatedClusteredMap.MapActions,ReplicatedClusteredMap.MapPayload<String,Long>> touch =
+                codec.readUpdate(in);
+        assertEquals(ReplicatedClusteredMap.MapActions.TOUCH, touch.getActionIdentifier());
+        assertEquals(Arrays.asList("c"), touch.getPayload().getKeys());
+        assertEquals(777L, touch.getPayload().getTimestamp());
+
+        final ClusterUpdate<ReplicatedClusteredMap.MapActions,ReplicatedClusteredMap.MapPayload<String,Long>> replace =
+                codec.readUpdate(in);
+        assertEquals(ReplicatedClusteredMap.MapActions.REPLACE_IF, replace.getActionIdentifier());
+        assertEquals(Long.valueOf(42), replace.getPayload().getExpected());
+        assertEquals(Long.valueOf(43), replace.getPayload().getValue());
+        assertNull(replace.getPayload().getFunction());
+        assertEquals(9L, replace.getPayload().getTimestamp());
+
+        assertEquals(ReplicatedClusteredMap.MapActions.CLEAR, codec.readUpdate(in).getActionIdentifier());
+        assertEquals(0, in.available());
+    }
+
+    public void testUnknownActionIsRejected() throws IOException {
+        final ReplicatedClusteredMap.MapCodec<String,String> codec = new ReplicatedClusteredMap.MapCodec<String,String>(
+                Serializers.stringSerializer(), Serializers.stringSerializer());
+        out.writeByte(0x7F);
+        try {
+            codec.readUpdate(in());
+            fail("accepted an unknown action");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}